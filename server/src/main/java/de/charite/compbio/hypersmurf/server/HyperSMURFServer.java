@@ -0,0 +1,470 @@
+package de.charite.compbio.hypersmurf.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import weka.classifiers.meta.MicroBatchScorer;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * <p>
+ * Lightweight HTTP server for a serialized HyperSMURF model, based on the JDK {@link HttpServer}. Requests of all
+ * connections are coalesced into micro-batches by a {@link MicroBatchScorer}. The model file has to contain the
+ * classifier followed by the header of its training data, as written by the Weka Explorer or
+ * {@link weka.core.SerializationHelper#writeAll(String, Object[])}.
+ * </p>
+ *
+ * <p>
+ * Instances are sent as comma separated attribute values in the order of the training header, one instance per line.
+ * The class value can be omitted or given as <code>?</code>. Endpoints:
+ * </p>
+ *
+ * <pre>
+ * POST /score       one instance, returns {"distribution":[...]}
+ * POST /score/bulk  one instance per line, returns {"distributions":[[...],...]}
+ * GET  /health      status and the loaded model
+ * GET  /metrics     request counts, latency percentiles and batch sizes
+ * POST /reload      reloads the model file given at start, without dropping requests
+ * </pre>
+ *
+ * <p>
+ * The server has no authentication and listens on the loopback address unless another address is given.
+ * Malformed requests are answered with status 400, failures of the model with status 500. The metrics cover all
+ * models since the start of the server.
+ * </p>
+ *
+ * <p>
+ * Valid options are:
+ * </p>
+ *
+ * <pre>
+ *  -model &lt;file&gt;
+ *  The serialized model.
+ * </pre>
+ *
+ * <pre>
+ *  -bind &lt;address&gt;
+ *  Address to listen on, e.g. 0.0.0.0 for all interfaces.
+ *  (default loopback address)
+ * </pre>
+ *
+ * <pre>
+ *  -port &lt;num&gt;
+ *  Port to listen on.
+ *  (default 8080)
+ * </pre>
+ *
+ * <pre>
+ *  -threads &lt;num&gt;
+ *  Number of HTTP worker threads.
+ *  (default number of cores)
+ * </pre>
+ *
+ * <pre>
+ *  -batch-size &lt;num&gt;
+ *  Maximum number of instances in a batch.
+ *  (default 64)
+ * </pre>
+ *
+ * <pre>
+ *  -max-wait &lt;microseconds&gt;
+ *  Maximum time a request waits for a batch to fill up.
+ *  (default 500)
+ * </pre>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class HyperSMURFServer {
+
+	/** The model file, reloaded by /reload */
+	protected final File m_ModelFile;
+
+	/** The current model */
+	protected final AtomicReference<ModelHandle> m_Model = new AtomicReference<ModelHandle>();
+
+	/** Maximum number of instances in a batch */
+	protected final int m_MaxBatchSize;
+
+	/** Maximum time in microseconds a request waits for a batch to fill up */
+	protected final long m_MaxWaitMicros;
+
+	/** The HTTP server */
+	protected final HttpServer m_Server;
+
+	/** The executor of the HTTP server */
+	protected final ExecutorService m_Executor;
+
+	/** Number of handled scoring requests */
+	protected final AtomicLong m_NumRequests = new AtomicLong();
+
+	/** Number of failed requests */
+	protected final AtomicLong m_NumErrors = new AtomicLong();
+
+	/** Number of model reloads */
+	protected final AtomicLong m_NumReloads = new AtomicLong();
+
+	/** Latencies and batch sizes of all models, kept across reloads */
+	protected final MicroBatchScorer.Statistics m_Statistics;
+
+	/**
+	 * Loads the model and binds the server to the loopback address. Call {@link #start()} to accept requests.
+	 *
+	 * @param model
+	 *            the serialized model
+	 * @param port
+	 *            the port, 0 for an ephemeral port
+	 * @param numThreads
+	 *            number of HTTP worker threads
+	 * @param maxBatchSize
+	 *            the maximum number of instances in a batch
+	 * @param maxWaitMicros
+	 *            the maximum time in microseconds a request waits for a batch to fill up
+	 * @throws Exception
+	 *             if the model cannot be loaded or the port cannot be bound
+	 */
+	public HyperSMURFServer(File model, int port, int numThreads, int maxBatchSize, long maxWaitMicros)
+			throws Exception {
+		this(model, InetAddress.getLoopbackAddress(), port, numThreads, maxBatchSize, maxWaitMicros);
+	}
+
+	/**
+	 * Loads the model and binds the server. Call {@link #start()} to accept requests.
+	 *
+	 * @param model
+	 *            the serialized model
+	 * @param address
+	 *            the address to listen on
+	 * @param port
+	 *            the port, 0 for an ephemeral port
+	 * @param numThreads
+	 *            number of HTTP worker threads
+	 * @param maxBatchSize
+	 *            the maximum number of instances in a batch
+	 * @param maxWaitMicros
+	 *            the maximum time in microseconds a request waits for a batch to fill up
+	 * @throws Exception
+	 *             if the model cannot be loaded or the port cannot be bound
+	 */
+	public HyperSMURFServer(File model, InetAddress address, int port, int numThreads, int maxBatchSize,
+			long maxWaitMicros) throws Exception {
+		m_ModelFile = model;
+		m_MaxBatchSize = maxBatchSize;
+		m_MaxWaitMicros = maxWaitMicros;
+		m_Statistics = new MicroBatchScorer.Statistics(maxBatchSize);
+		m_Model.set(new ModelHandle(model, maxBatchSize, maxWaitMicros, m_Statistics));
+
+		// small responses are otherwise delayed by Nagle's algorithm
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		m_Server = HttpServer.create(new InetSocketAddress(address, port), 0);
+		m_Executor = Executors.newFixedThreadPool(numThreads);
+		m_Server.setExecutor(m_Executor);
+		m_Server.createContext("/score", new ScoreHandler());
+		m_Server.createContext("/health", new HealthHandler());
+		m_Server.createContext("/metrics", new MetricsHandler());
+		m_Server.createContext("/reload", new ReloadHandler());
+	}
+
+	/**
+	 * Starts accepting requests.
+	 */
+	public void start() {
+		m_Server.start();
+	}
+
+	/**
+	 * Stops the server and closes the scorer of the current model.
+	 */
+	public void stop() {
+		m_Server.stop(0);
+		m_Executor.shutdown();
+		m_Model.get().retire();
+	}
+
+	/**
+	 * @return the port the server listens on
+	 */
+	public int getPort() {
+		return m_Server.getAddress().getPort();
+	}
+
+	/**
+	 * @return the latencies and batch sizes of all models since the start
+	 */
+	public MicroBatchScorer.Statistics getStatistics() {
+		return m_Statistics;
+	}
+
+	/**
+	 * @return the address the server listens on
+	 */
+	public InetAddress getAddress() {
+		return m_Server.getAddress().getAddress();
+	}
+
+	/**
+	 * Loads the model file again and replaces the current model. Requests that already use the old model are finished
+	 * by it.
+	 *
+	 * @throws Exception
+	 *             if the model cannot be loaded, the current model stays active then
+	 */
+	public void reload() throws Exception {
+		ModelHandle handle = new ModelHandle(m_ModelFile, m_MaxBatchSize, m_MaxWaitMicros, m_Statistics);
+		m_Model.getAndSet(handle).retire();
+		m_NumReloads.incrementAndGet();
+	}
+
+	/**
+	 * Returns the current model, marked as used.
+	 *
+	 * @return the current model
+	 */
+	protected ModelHandle acquireModel() {
+		while (true) {
+			ModelHandle handle = m_Model.get();
+			handle.acquire();
+			if (m_Model.get() == handle)
+				return handle;
+			handle.release();
+		}
+	}
+
+	/**
+	 * Parses a line of comma separated values into an instance of the header. The class value may be omitted.
+	 *
+	 * @param line
+	 *            the values
+	 * @param header
+	 *            the header of the training data
+	 * @return the instance
+	 * @throws Exception
+	 *             if the line does not fit the header
+	 */
+	protected static Instance parseInstance(String line, Instances header) throws Exception {
+		String[] tokens = line.split(",", -1);
+		boolean withClass = tokens.length == header.numAttributes();
+		if (!withClass && tokens.length != header.numAttributes() - 1)
+			throw new Exception("Expected " + (header.numAttributes() - 1) + " or " + header.numAttributes()
+					+ " values but got " + tokens.length + "!");
+
+		double[] values = new double[header.numAttributes()];
+		int token = 0;
+		for (int i = 0; i < header.numAttributes(); i++) {
+			if (!withClass && i == header.classIndex()) {
+				values[i] = Utils.missingValue();
+				continue;
+			}
+			String value = Utils.unquote(tokens[token++].trim());
+			Attribute attribute = header.attribute(i);
+			if (value.equals("?")) {
+				values[i] = Utils.missingValue();
+			} else if (attribute.isNumeric()) {
+				values[i] = Double.parseDouble(value);
+			} else {
+				values[i] = attribute.indexOfValue(value);
+				if (values[i] < 0)
+					throw new Exception("Unknown value " + value + " of attribute " + attribute.name() + "!");
+			}
+		}
+		Instance instance = new DenseInstance(1.0, values);
+		instance.setDataset(header);
+		return instance;
+	}
+
+	private static String readBody(HttpExchange exchange) throws IOException {
+		StringBuilder body = new StringBuilder();
+		BufferedReader reader = new BufferedReader(
+				new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+		String line;
+		while ((line = reader.readLine()) != null)
+			body.append(line).append('\n');
+		reader.close();
+		return body.toString();
+	}
+
+	private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	private static void sendError(HttpExchange exchange, int status, Throwable e) throws IOException {
+		send(exchange, status, "application/json", "{\"error\":" + quote(String.valueOf(e.getMessage())) + "}\n");
+	}
+
+	private static String toJson(double[] distribution) {
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < distribution.length; i++) {
+			if (i > 0)
+				json.append(',');
+			json.append(distribution[i]);
+		}
+		return json.append(']').toString();
+	}
+
+	private static String quote(String value) {
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	/**
+	 * Handles /score and /score/bulk.
+	 */
+	protected class ScoreHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				send(exchange, 405, "text/plain", "Use POST\n");
+				return;
+			}
+			boolean bulk = exchange.getRequestURI().getPath().endsWith("/bulk");
+			ModelHandle model = acquireModel();
+			try {
+				// malformed requests are client errors, everything after parsing is a failure of the server
+				List<Instance> instances = new ArrayList<Instance>();
+				try {
+					for (String line : readBody(exchange).split("\n")) {
+						if (!line.trim().isEmpty())
+							instances.add(parseInstance(line.trim(), model.getHeader()));
+					}
+					if (!bulk && instances.size() != 1)
+						throw new Exception("Expected exactly one instance, use /score/bulk for more!");
+				} catch (Exception e) {
+					m_NumErrors.incrementAndGet();
+					sendError(exchange, 400, e);
+					return;
+				}
+				List<CompletableFuture<double[]>> futures = new ArrayList<CompletableFuture<double[]>>();
+				for (Instance instance : instances)
+					futures.add(model.getScorer().score(instance));
+
+				StringBuilder json = new StringBuilder(bulk ? "{\"distributions\":[" : "{\"distribution\":");
+				for (int i = 0; i < futures.size(); i++) {
+					if (i > 0)
+						json.append(',');
+					json.append(toJson(futures.get(i).get()));
+				}
+				json.append(bulk ? "]}\n" : "}\n");
+				m_NumRequests.incrementAndGet();
+				send(exchange, 200, "application/json", json.toString());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				m_NumErrors.incrementAndGet();
+				sendError(exchange, 500, e);
+			} catch (ExecutionException e) {
+				m_NumErrors.incrementAndGet();
+				sendError(exchange, 500, e.getCause());
+			} finally {
+				model.release();
+			}
+		}
+	}
+
+	/**
+	 * Handles /health.
+	 */
+	protected class HealthHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			ModelHandle model = m_Model.get();
+			send(exchange, 200, "application/json",
+					"{\"status\":\"ok\",\"model\":" + quote(model.getFile().getPath()) + ",\"loadedAt\":"
+							+ model.getLoadedAt() + ",\"classes\":" + model.getHeader().numClasses() + "}\n");
+		}
+	}
+
+	/**
+	 * Handles /metrics.
+	 */
+	protected class MetricsHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			StringBuilder text = new StringBuilder();
+			text.append("HTTP requests: " + m_NumRequests.get() + ", errors: " + m_NumErrors.get() + ", reloads: "
+					+ m_NumReloads.get() + "\n");
+			text.append(m_Statistics.toString());
+			send(exchange, 200, "text/plain", text.toString());
+		}
+	}
+
+	/**
+	 * Handles /reload. The body is ignored, only the model file given at start is reloaded.
+	 */
+	protected class ReloadHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				send(exchange, 405, "text/plain", "Use POST\n");
+				return;
+			}
+			readBody(exchange);
+			try {
+				reload();
+				send(exchange, 200, "application/json",
+						"{\"status\":\"reloaded\",\"model\":" + quote(m_ModelFile.getPath()) + "}\n");
+			} catch (Exception e) {
+				sendError(exchange, 500, e);
+			}
+		}
+	}
+
+	/**
+	 * Starts a server from the command line.
+	 *
+	 * @param args
+	 *            the options
+	 * @throws Exception
+	 *             if the server cannot be started
+	 */
+	public static void main(String[] args) throws Exception {
+		String model = Utils.getOption("model", args);
+		if (model.length() == 0) {
+			System.err.println("Usage: HyperSMURFServer -model <file> [-bind <address>] [-port <num>] "
+					+ "[-threads <num>] [-batch-size <num>] [-max-wait <microseconds>]");
+			System.exit(1);
+		}
+		String bind = Utils.getOption("bind", args);
+		String port = Utils.getOption("port", args);
+		String threads = Utils.getOption("threads", args);
+		String batchSize = Utils.getOption("batch-size", args);
+		String maxWait = Utils.getOption("max-wait", args);
+		Utils.checkForRemainingOptions(args);
+
+		HyperSMURFServer server = new HyperSMURFServer(new File(model),
+				bind.length() == 0 ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bind),
+				port.length() == 0 ? 8080 : Integer.parseInt(port),
+				threads.length() == 0 ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threads),
+				batchSize.length() == 0 ? 64 : Integer.parseInt(batchSize),
+				maxWait.length() == 0 ? 500 : Long.parseLong(maxWait));
+		server.start();
+		System.err.println("HyperSMURF server listening on " + server.getAddress().getHostAddress() + ":"
+				+ server.getPort());
+	}
+
+}
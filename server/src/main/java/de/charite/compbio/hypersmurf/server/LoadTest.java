@@ -0,0 +1,210 @@
+package de.charite.compbio.hypersmurf.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.core.converters.ParallelTextLoader;
+
+/**
+ * <p>
+ * Localhost load test of a {@link HyperSMURFServer}. Instances of a data file are sent by concurrent clients and the
+ * throughput and latency percentiles are reported. If a model is given a server is started in the same JVM on an
+ * ephemeral port.
+ * </p>
+ *
+ * <p>
+ * Valid options are:
+ * </p>
+ *
+ * <pre>
+ *  -data &lt;file&gt;
+ *  Data file with the instances to send (any format Weka can read).
+ * </pre>
+ *
+ * <pre>
+ *  -model &lt;file&gt;
+ *  Serialized model, starts a local server.
+ * </pre>
+ *
+ * <pre>
+ *  -url &lt;url&gt;
+ *  URL of a running server.
+ *  (default http://localhost:8080)
+ * </pre>
+ *
+ * <pre>
+ *  -clients &lt;num&gt;
+ *  Number of concurrent clients.
+ *  (default 16)
+ * </pre>
+ *
+ * <pre>
+ *  -requests &lt;num&gt;
+ *  Number of requests to send.
+ *  (default 10000)
+ * </pre>
+ *
+ * <pre>
+ *  -bulk &lt;num&gt;
+ *  Instances per request, 1 uses /score, more use /score/bulk.
+ *  (default 1)
+ * </pre>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class LoadTest {
+
+	/**
+	 * Converts an instance to the comma separated request format, without the class value.
+	 *
+	 * @param instance
+	 *            the instance
+	 * @return the line
+	 */
+	protected static String toLine(Instance instance) {
+		StringBuilder line = new StringBuilder();
+		for (int i = 0; i < instance.numAttributes(); i++) {
+			if (i == instance.classIndex())
+				continue;
+			if (line.length() > 0)
+				line.append(',');
+			line.append(instance.isMissing(i) ? "?" : instance.toString(i));
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Sends a request and returns its latency in nanoseconds.
+	 */
+	private static long post(URL url, byte[] body) throws IOException {
+		long start = System.nanoTime();
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		OutputStream out = connection.getOutputStream();
+		out.write(body);
+		out.close();
+		if (connection.getResponseCode() != 200)
+			throw new IOException("Request failed with status " + connection.getResponseCode());
+		InputStream in = connection.getInputStream();
+		byte[] buffer = new byte[4096];
+		while (in.read(buffer) >= 0) {
+			// drain response to reuse the connection
+		}
+		in.close();
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Runs the load test.
+	 *
+	 * @param args
+	 *            the options
+	 * @throws Exception
+	 *             if the test cannot be run
+	 */
+	public static void main(String[] args) throws Exception {
+		String data = Utils.getOption("data", args);
+		String model = Utils.getOption("model", args);
+		String url = Utils.getOption("url", args);
+		String clients = Utils.getOption("clients", args);
+		String requests = Utils.getOption("requests", args);
+		String bulk = Utils.getOption("bulk", args);
+		Utils.checkForRemainingOptions(args);
+		if (data.length() == 0) {
+			System.err.println("Usage: LoadTest -data <file> [-model <file> | -url <url>] [-clients <num>] "
+					+ "[-requests <num>] [-bulk <num>]");
+			System.exit(1);
+		}
+
+		final int numClients = clients.length() == 0 ? 16 : Integer.parseInt(clients);
+		final int numRequests = requests.length() == 0 ? 10000 : Integer.parseInt(requests);
+		final int bulkSize = bulk.length() == 0 ? 1 : Integer.parseInt(bulk);
+
+		Instances instances = ParallelTextLoader.read(data);
+		instances.setClassIndex(instances.numAttributes() - 1);
+		final List<byte[]> bodies = new ArrayList<byte[]>();
+		for (int i = 0; i < instances.numInstances(); i += bulkSize) {
+			StringBuilder body = new StringBuilder();
+			for (int j = i; j < Math.min(i + bulkSize, instances.numInstances()); j++)
+				body.append(toLine(instances.instance(j))).append('\n');
+			bodies.add(body.toString().getBytes(StandardCharsets.UTF_8));
+		}
+
+		HyperSMURFServer server = null;
+		if (model.length() != 0) {
+			server = new HyperSMURFServer(new File(model), 0, numClients, 64, 500);
+			server.start();
+			url = "http://localhost:" + server.getPort();
+		} else if (url.length() == 0) {
+			url = "http://localhost:8080";
+		}
+		final URL endpoint = new URL(url + (bulkSize > 1 ? "/score/bulk" : "/score"));
+
+		// warm up
+		for (int i = 0; i < Math.min(100, numRequests); i++)
+			post(endpoint, bodies.get(i % bodies.size()));
+
+		final long[] latencies = new long[numRequests];
+		final AtomicInteger next = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(numClients);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		long start = System.nanoTime();
+		for (int c = 0; c < numClients; c++) {
+			futures.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					int i;
+					while ((i = next.getAndIncrement()) < numRequests)
+						latencies[i] = post(endpoint, bodies.get(i % bodies.size()));
+					return null;
+				}
+			}));
+		}
+		for (Future<?> future : futures)
+			future.get();
+		long elapsed = System.nanoTime() - start;
+		pool.shutdown();
+		pool.awaitTermination(1, TimeUnit.MINUTES);
+
+		Arrays.sort(latencies);
+		double seconds = elapsed / 1e9;
+		System.out.println("Requests: " + numRequests + " with " + bulkSize + " instance(s) each, " + numClients
+				+ " clients");
+		System.out.println("Throughput: " + Utils.doubleToString(numRequests / seconds, 1) + " requests/s, "
+				+ Utils.doubleToString(numRequests * (double) bulkSize / seconds, 1) + " instances/s");
+		System.out.println("Latency (ms): p50=" + percentile(latencies, 50) + " p90=" + percentile(latencies, 90)
+				+ " p99=" + percentile(latencies, 99) + " p99.9=" + percentile(latencies, 99.9) + " max="
+				+ percentile(latencies, 100));
+
+		if (server != null) {
+			System.out.println();
+			System.out.println(server.m_Model.get().getScorer().getStatistics());
+			server.stop();
+		}
+	}
+
+	private static String percentile(long[] sorted, double percentile) {
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return Utils.doubleToString(sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6, 3);
+	}
+
+}
@@ -0,0 +1,126 @@
+package de.charite.compbio.hypersmurf.server;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.meta.MicroBatchScorer;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+
+/**
+ * A loaded model of the {@link HyperSMURFServer} together with its training header and its {@link MicroBatchScorer}.
+ * Requests acquire the handle before scoring and release it afterwards. A retired handle closes its scorer when the
+ * last request using it is released, so a reload never drops requests in flight.
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class ModelHandle {
+
+	/** The model file */
+	protected final File m_File;
+
+	/** The trained classifier */
+	protected final Classifier m_Classifier;
+
+	/** The header of the training data */
+	protected final Instances m_Header;
+
+	/** The scorer of the classifier */
+	protected final MicroBatchScorer m_Scorer;
+
+	/** Time the model was loaded */
+	protected final long m_LoadedAt = System.currentTimeMillis();
+
+	/** Number of requests using this handle */
+	protected final AtomicInteger m_Users = new AtomicInteger();
+
+	/** True if a newer model replaced this one */
+	protected volatile boolean m_Retired = false;
+
+	/**
+	 * Loads a model saved together with its training header, e.g. by the Weka Explorer or
+	 * {@link SerializationHelper#writeAll(String, Object[])}.
+	 *
+	 * @param file
+	 *            the serialized model
+	 * @param maxBatchSize
+	 *            the maximum number of instances in a batch
+	 * @param maxWaitMicros
+	 *            the maximum time in microseconds a request waits for a batch to fill up
+	 * @param statistics
+	 *            the statistics the scorer adds to, shared by the models of a server
+	 * @throws Exception
+	 *             if the model cannot be read
+	 */
+	public ModelHandle(File file, int maxBatchSize, long maxWaitMicros, MicroBatchScorer.Statistics statistics)
+			throws Exception {
+		Object[] objects = SerializationHelper.readAll(file.getPath());
+		if (objects.length < 2 || !(objects[0] instanceof Classifier) || !(objects[1] instanceof Instances))
+			throw new Exception("Model file must contain a classifier followed by its training header!");
+		m_File = file;
+		m_Classifier = (Classifier) objects[0];
+		m_Header = new Instances((Instances) objects[1], 0);
+		if (m_Header.classIndex() < 0)
+			m_Header.setClassIndex(m_Header.numAttributes() - 1);
+		m_Scorer = new MicroBatchScorer(m_Classifier, m_Header, maxBatchSize, maxWaitMicros, statistics);
+	}
+
+	/**
+	 * Marks the handle as used by a request.
+	 */
+	protected void acquire() {
+		m_Users.incrementAndGet();
+	}
+
+	/**
+	 * Releases the handle after a request. Closes the scorer if the handle is retired and not used anymore.
+	 */
+	protected void release() {
+		if (m_Users.decrementAndGet() == 0 && m_Retired)
+			closeScorer();
+	}
+
+	/**
+	 * Retires the handle. Its scorer is closed as soon as no request uses it.
+	 */
+	protected void retire() {
+		m_Retired = true;
+		if (m_Users.get() == 0)
+			closeScorer();
+	}
+
+	private synchronized void closeScorer() {
+		m_Scorer.close();
+	}
+
+	/**
+	 * @return the model file
+	 */
+	public File getFile() {
+		return m_File;
+	}
+
+	/**
+	 * @return the header of the training data
+	 */
+	public Instances getHeader() {
+		return m_Header;
+	}
+
+	/**
+	 * @return the scorer of the model
+	 */
+	public MicroBatchScorer getScorer() {
+		return m_Scorer;
+	}
+
+	/**
+	 * @return the time the model was loaded in milliseconds since the epoch
+	 */
+	public long getLoadedAt() {
+		return m_LoadedAt;
+	}
+
+}
@@ -0,0 +1,263 @@
+package de.charite.compbio.hypersmurf.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.io.Resources;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.trees.HyperSMURF;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.json.JSONNode;
+
+public class HyperSMURFServerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Instances train;
+	private Instances test;
+	private HyperSMURF hyperSMURF;
+	private File model;
+	private HyperSMURFServer server;
+	private String diabetesFile = "diabetes.arff.gz";
+	private int seed = 42;
+
+	@Before
+	public void setUp() throws Exception {
+		File file = new File(Resources.getResource(diabetesFile).getPath());
+		GZIPInputStream in = new GZIPInputStream(new FileInputStream(file));
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+		Instances data = new Instances(reader);
+		in.close();
+		reader.close();
+		data.setClassIndex(data.numAttributes() - 1);
+		data.randomize(new Random(seed));
+		train = data.trainCV(3, 0);
+		test = data.testCV(3, 0);
+
+		hyperSMURF = new HyperSMURF();
+		hyperSMURF.setNumIterations(2);
+		hyperSMURF.buildClassifier(train);
+		model = folder.newFile("model.model");
+		SerializationHelper.writeAll(model.getPath(), new Object[] { hyperSMURF, new Instances(train, 0) });
+
+		server = new HyperSMURFServer(model, 0, 4, 16, 500);
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void loopbackTest() throws Exception {
+		assertTrue(server.getAddress().isLoopbackAddress());
+	}
+
+	@Test
+	public void scoreTest() throws Exception {
+		for (int i = 0; i < 20; i++) {
+			JSONNode json = requestJSON("POST", "/score", toLine(test.instance(i)), 200);
+			assertArrayEquals(hyperSMURF.distributionForInstance(test.instance(i)),
+					numbers(json.getChild("distribution")), 1e-12);
+		}
+		// the class value may be given
+		String line = toLine(test.instance(0)) + "," + test.instance(0).stringValue(test.classIndex());
+		assertArrayEquals(hyperSMURF.distributionForInstance(test.instance(0)),
+				numbers(requestJSON("POST", "/score", line, 200).getChild("distribution")), 1e-12);
+
+		requestJSON("POST", "/score", "1,2,3", 400);
+		requestJSON("POST", "/score", toLine(test.instance(0)) + "\n" + toLine(test.instance(1)), 400);
+	}
+
+	@Test
+	public void bulkTest() throws Exception {
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < test.numInstances(); i++)
+			body.append(toLine(test.instance(i))).append('\n');
+		JSONNode distributions = requestJSON("POST", "/score/bulk", body.toString(), 200).getChild("distributions");
+		assertEquals(test.numInstances(), distributions.getChildCount());
+		for (int i = 0; i < test.numInstances(); i++)
+			assertArrayEquals(hyperSMURF.distributionForInstance(test.instance(i)),
+					numbers((JSONNode) distributions.getChildAt(i)), 1e-12);
+	}
+
+	@Test
+	public void healthTest() throws Exception {
+		String health = request("GET", "/health", null, 200);
+		assertTrue(health.startsWith("{\"status\":\"ok\",\"model\":\"" + model.getPath() + "\","));
+		assertTrue(health.endsWith(",\"classes\":2}\n"));
+	}
+
+	@Test
+	public void reloadTest() throws Exception {
+		for (int i = 0; i < 3; i++)
+			requestJSON("POST", "/score", toLine(test.instance(i)), 200);
+
+		// a path in the body is ignored
+		File other = folder.newFile("other.model");
+		JSONNode json = requestJSON("POST", "/reload", other.getPath(), 200);
+		assertEquals(model.getPath(), json.getChild("model").getValue());
+		assertTrue(request("GET", "/health", null, 200).contains("\"model\":\"" + model.getPath() + "\""));
+		// the metrics are kept across reloads
+		String metrics = request("GET", "/metrics", null, 200);
+		assertTrue(metrics.startsWith("HTTP requests: 3, errors: 0, reloads: 1\nRequests: 3, "));
+		assertEquals(3, server.getStatistics().getNumRequests());
+
+		request("GET", "/reload", null, 405);
+		// a broken model file keeps the current model
+		SerializationHelper.write(model.getPath(), hyperSMURF);
+		requestJSON("POST", "/reload", null, 500);
+		assertArrayEquals(hyperSMURF.distributionForInstance(test.instance(0)),
+				numbers(requestJSON("POST", "/score", toLine(test.instance(0)), 200).getChild("distribution")), 1e-12);
+	}
+
+	@Test
+	public void reloadInFlightTest() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		List<Future<Void>> clients = new ArrayList<Future<Void>>();
+		for (int c = 0; c < 4; c++) {
+			final int client = c;
+			clients.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int i = client; i < test.numInstances(); i += 4) {
+						JSONNode json = requestJSON("POST", "/score", toLine(test.instance(i)), 200);
+						assertArrayEquals(hyperSMURF.distributionForInstance(test.instance(i)),
+								numbers(json.getChild("distribution")), 1e-12);
+					}
+					return null;
+				}
+			}));
+		}
+		for (int r = 0; r < 5; r++)
+			requestJSON("POST", "/reload", "", 200);
+		for (Future<Void> future : clients)
+			future.get();
+		pool.shutdown();
+		assertTrue(request("GET", "/metrics", null, 200).startsWith("HTTP requests: " + test.numInstances()
+				+ ", errors: 0, reloads: 5"));
+		assertEquals(test.numInstances(), server.getStatistics().getNumRequests());
+	}
+
+	@Test
+	public void statusTest() throws Exception {
+		File failing = folder.newFile("failing.model");
+		SerializationHelper.writeAll(failing.getPath(), new Object[] { new FailingClassifier(), new Instances(train, 0) });
+		HyperSMURFServer failingServer = new HyperSMURFServer(failing, 0, 2, 16, 500);
+		failingServer.start();
+		try {
+			HyperSMURFServer previous = server;
+			server = failingServer;
+			// malformed requests are client errors
+			assertTrue(request("POST", "/score", "1,2,3", 400).contains("Expected 8 or 9 values"));
+			request("POST", "/score", toLine(test.instance(0)).replaceFirst("[^,]+", "x"), 400);
+			// failures of the model are server errors
+			assertTrue(request("POST", "/score", toLine(test.instance(0)), 500).contains("Model is broken!"));
+			request("POST", "/score/bulk", toLine(test.instance(0)) + "\n" + toLine(test.instance(1)), 500);
+			assertTrue(request("GET", "/metrics", null, 200).startsWith("HTTP requests: 0, errors: 4, "));
+			server = previous;
+		} finally {
+			failingServer.stop();
+		}
+	}
+
+	/**
+	 * A model that fails to score.
+	 */
+	public static class FailingClassifier extends AbstractClassifier {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public void buildClassifier(Instances data) throws Exception {
+		}
+
+		@Override
+		public double[] distributionForInstance(Instance instance) throws Exception {
+			throw new Exception("Model is broken!");
+		}
+	}
+
+	private JSONNode requestJSON(String method, String path, String body, int status) throws Exception {
+		return JSONNode.read(new StringReader(request(method, path, body, status)));
+	}
+
+	/**
+	 * Sends a request and checks the status.
+	 *
+	 * @return the response body
+	 */
+	private String request(String method, String path, String body, int status) throws Exception {
+		URL url = new URL("http://" + server.getAddress().getHostAddress() + ":" + server.getPort() + path);
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod(method);
+		if (body != null) {
+			connection.setDoOutput(true);
+			OutputStream out = connection.getOutputStream();
+			out.write(body.getBytes(StandardCharsets.UTF_8));
+			out.close();
+		}
+		assertEquals(status, connection.getResponseCode());
+		InputStream in = connection.getResponseCode() < 400 ? connection.getInputStream()
+				: connection.getErrorStream();
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) >= 0)
+			response.write(buffer, 0, read);
+		in.close();
+		return new String(response.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static String toLine(Instance instance) {
+		StringBuilder line = new StringBuilder();
+		for (int i = 0; i < instance.numAttributes(); i++) {
+			if (i == instance.classIndex())
+				continue;
+			if (line.length() > 0)
+				line.append(',');
+			line.append(instance.isMissing(i) ? "?" : Double.toString(instance.value(i)));
+		}
+		return line.toString();
+	}
+
+	private static double[] numbers(JSONNode node) {
+		double[] numbers = new double[node.getChildCount()];
+		for (int i = 0; i < numbers.length; i++)
+			numbers[i] = ((Number) ((JSONNode) node.getChildAt(i)).getValue()).doubleValue();
+		return numbers;
+	}
+
+}
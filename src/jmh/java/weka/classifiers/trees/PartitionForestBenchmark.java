@@ -0,0 +1,90 @@
+package weka.classifiers.trees;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import weka.core.Instances;
+import weka.datagenerators.classifiers.classification.RandomRBF;
+
+/**
+ * Compares scoring a batch instance by instance with the block-wise batch scoring of {@link PartitionForest}, and
+ * building the forest on the bootstrap samples with building it on a presorted index.
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PartitionForestBenchmark {
+
+	/** the number of attributes */
+	@Param({ "10", "50" })
+	public int numAttributes;
+
+	private PartitionForest m_Forest;
+	private Instances m_Train;
+	private Instances m_Test;
+
+	@Setup
+	public void setUp() throws Exception {
+		RandomRBF generator = new RandomRBF();
+		generator.setNumAttributes(numAttributes);
+		generator.setNumExamples(30000);
+		generator.setSeed(42);
+		generator.setDatasetFormat(generator.defineDataFormat());
+		Instances data = generator.generateExamples();
+		data.setClassIndex(data.numAttributes() - 1);
+
+		m_Forest = new PartitionForest();
+		m_Forest.setNumIterations(20);
+		m_Train = new Instances(data, 0, 10000);
+		m_Forest.buildClassifier(m_Train);
+		m_Test = new Instances(data, 10000, 20000);
+	}
+
+	@Benchmark
+	public void singleInstances(Blackhole blackhole) throws Exception {
+		for (int i = 0; i < m_Test.numInstances(); i++)
+			blackhole.consume(m_Forest.distributionForInstance(m_Test.instance(i)));
+	}
+
+	@Benchmark
+	public double[][] batch() throws Exception {
+		return m_Forest.distributionsForInstances(m_Test);
+	}
+
+	@Benchmark
+	public PartitionForest buildSampled() throws Exception {
+		return build(false);
+	}
+
+	@Benchmark
+	public PartitionForest buildPresorted() throws Exception {
+		return build(true);
+	}
+
+	private PartitionForest build(boolean presort) throws Exception {
+		PartitionForest forest = new PartitionForest();
+		forest.setNumIterations(20);
+		forest.setPresort(presort);
+		forest.buildClassifier(m_Train);
+		return forest;
+	}
+
+}
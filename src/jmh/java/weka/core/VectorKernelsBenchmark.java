@@ -0,0 +1,69 @@
+package weka.core;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the scalar {@link VectorKernels} with the implementation returned by {@link VectorKernels#getInstance()},
+ * the Vector API one if the benchmark runs on the multi-release jar with JDK 17 or higher.
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VectorKernelsBenchmark {
+
+	/** scalar or the best implementation available */
+	@Param({ "scalar", "best" })
+	public String kernels;
+
+	/** the number of values */
+	@Param({ "8", "64", "1024" })
+	public int length;
+
+	private VectorKernels m_Kernels;
+	private double[] m_A;
+	private double[] m_B;
+	private boolean[] m_Less;
+
+	@Setup
+	public void setUp() {
+		m_Kernels = kernels.equals("scalar") ? new VectorKernels() : VectorKernels.getInstance();
+		Random random = new Random(42);
+		m_A = new double[length];
+		m_B = new double[length];
+		for (int i = 0; i < length; i++) {
+			m_A[i] = random.nextGaussian();
+			m_B[i] = random.nextGaussian();
+		}
+		m_Less = new boolean[length];
+	}
+
+	@Benchmark
+	public double squaredDistance() {
+		return m_Kernels.squaredDistance(m_A, m_B, length);
+	}
+
+	@Benchmark
+	public int lessThan() {
+		return m_Kernels.lessThan(m_A, length, 0.1, m_Less);
+	}
+
+}
@@ -0,0 +1,88 @@
+package weka.classifiers.evaluation;
+
+import weka.core.Utils;
+
+/**
+ * Exact area under the precision-recall and ROC curves of a set of scores. The areas are computed like
+ * {@link ThresholdCurve#getPRCArea(weka.core.Instances)} and {@link ThresholdCurve#getROCArea(weka.core.Instances)},
+ * i.e. like {@link Evaluation#areaUnderPRC(int)} and {@link Evaluation#areaUnderROC(int)}, but without building
+ * predictions and curves.
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public final class RankMetrics {
+
+	private RankMetrics() {
+	}
+
+	/**
+	 * Area under the precision-recall curve. Instances with equal scores are handled as one threshold.
+	 *
+	 * @param scores
+	 *            the scores of the positive class
+	 * @param positive
+	 *            true for instances of the positive class
+	 * @return the area, or {@link Utils#missingValue()} if it is 0 or there are no positives
+	 */
+	public static double areaUnderPRC(double[] scores, boolean[] positive) {
+		int[] sorted = Utils.sort(scores);
+		double totalPositives = 0;
+		for (boolean p : positive)
+			if (p)
+				totalPositives++;
+		if (totalPositives == 0)
+			return Utils.missingValue();
+
+		double area = 0;
+		double tp = 0;
+		double fp = 0;
+		int i = sorted.length - 1;
+		while (i >= 0) {
+			double threshold = scores[sorted[i]];
+			double groupPositives = 0;
+			for (; i >= 0 && scores[sorted[i]] == threshold; i--) {
+				if (positive[sorted[i]])
+					groupPositives++;
+				else
+					fp++;
+			}
+			tp += groupPositives;
+			area += tp / (tp + fp) * groupPositives / totalPositives;
+		}
+		return area == 0 ? Utils.missingValue() : area;
+	}
+
+	/**
+	 * Area under the ROC curve. Pairs with equal scores count half.
+	 *
+	 * @param scores
+	 *            the scores of the positive class
+	 * @param positive
+	 *            true for instances of the positive class
+	 * @return the area, NaN if one of the classes is empty
+	 */
+	public static double areaUnderROC(double[] scores, boolean[] positive) {
+		int[] sorted = Utils.sort(scores);
+		double area = 0;
+		double cumulativeNegatives = 0;
+		double totalPositives = 0;
+		int i = 0;
+		while (i < sorted.length) {
+			double threshold = scores[sorted[i]];
+			double groupPositives = 0;
+			double groupNegatives = 0;
+			for (; i < sorted.length && scores[sorted[i]] == threshold; i++) {
+				if (positive[sorted[i]])
+					groupPositives++;
+				else
+					groupNegatives++;
+			}
+			area += groupPositives * (cumulativeNegatives + 0.5 * groupNegatives);
+			cumulativeNegatives += groupNegatives;
+			totalPositives += groupPositives;
+		}
+		return area / (totalPositives * cumulativeNegatives);
+	}
+
+}
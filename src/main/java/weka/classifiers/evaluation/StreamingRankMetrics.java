@@ -0,0 +1,340 @@
+package weka.classifiers.evaluation;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import weka.classifiers.Classifier;
+import weka.core.BatchPredictor;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * <p>
+ * Area under the precision-recall and ROC curves of a stream of scores, with bounded memory. The scores are the
+ * probabilities of the positive class, e.g. of a HyperSMURF model, and are counted per class in a histogram of fixed
+ * resolution over [0, 1], scores outside are counted in the first or last bin. The memory does not depend on the number
+ * of scores. The instances of a bin are handled as one threshold, i.e. as if they had equal scores, and the largest
+ * possible deviation of the exact areas of {@link RankMetrics} from these estimates is reported, see
+ * {@link #getPRCErrorBound()} and {@link #getROCErrorBound()}. Optionally all scores are kept and the areas are
+ * computed exactly by sorting, see {@link #EXACT}.
+ * </p>
+ *
+ * <p>
+ * The metrics are not thread safe: each thread, fold or file adds its scores to its own metrics, which are then
+ * combined with {@link #merge(StreamingRankMetrics)}.
+ * </p>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class StreamingRankMetrics implements Serializable {
+
+	/** for serialization */
+	private static final long serialVersionUID = 4305870212487453919L;
+
+	/** Number of bins to keep all scores and compute the areas exactly */
+	public static final int EXACT = 0;
+
+	/** The default number of bins */
+	public static final int DEFAULT_NUM_BINS = 1 << 16;
+
+	/** The number of bins, {@link #EXACT} to keep all scores */
+	protected int m_NumBins;
+
+	/** The number of positives per bin */
+	protected long[] m_Positives;
+
+	/** The number of negatives per bin */
+	protected long[] m_Negatives;
+
+	/** The scores of the positives in exact mode */
+	protected double[] m_PositiveScores;
+
+	/** The scores of the negatives in exact mode */
+	protected double[] m_NegativeScores;
+
+	/** The number of positives */
+	protected long m_NumPositives;
+
+	/** The number of negatives */
+	protected long m_NumNegatives;
+
+	/**
+	 * Makes metrics with a histogram of {@link #DEFAULT_NUM_BINS} bins.
+	 */
+	public StreamingRankMetrics() {
+		this(DEFAULT_NUM_BINS);
+	}
+
+	/**
+	 * Makes metrics with a histogram of the given number of bins.
+	 *
+	 * @param numBins
+	 *            the number of bins, {@link #EXACT} to keep all scores and compute the areas exactly
+	 */
+	public StreamingRankMetrics(int numBins) {
+		if (numBins < 0)
+			throw new IllegalArgumentException("The number of bins must be >= 0!");
+		m_NumBins = numBins;
+		if (numBins == EXACT) {
+			m_PositiveScores = new double[16];
+			m_NegativeScores = new double[16];
+		} else {
+			m_Positives = new long[numBins];
+			m_Negatives = new long[numBins];
+		}
+	}
+
+	/**
+	 * Get the number of bins.
+	 *
+	 * @return the number of bins, {@link #EXACT} if all scores are kept
+	 */
+	public int getNumBins() {
+		return m_NumBins;
+	}
+
+	/**
+	 * Get the number of positives.
+	 *
+	 * @return the number of positives
+	 */
+	public long getNumPositives() {
+		return m_NumPositives;
+	}
+
+	/**
+	 * Get the number of negatives.
+	 *
+	 * @return the number of negatives
+	 */
+	public long getNumNegatives() {
+		return m_NumNegatives;
+	}
+
+	/**
+	 * Adds a score. Missing scores are skipped.
+	 *
+	 * @param score
+	 *            the score of the positive class
+	 * @param positive
+	 *            true for an instance of the positive class
+	 */
+	public void add(double score, boolean positive) {
+		if (Utils.isMissingValue(score))
+			return;
+		if (m_NumBins == EXACT) {
+			if (positive) {
+				if (m_NumPositives == m_PositiveScores.length)
+					m_PositiveScores = Arrays.copyOf(m_PositiveScores, grow(m_PositiveScores.length));
+				m_PositiveScores[(int) m_NumPositives] = score;
+			} else {
+				if (m_NumNegatives == m_NegativeScores.length)
+					m_NegativeScores = Arrays.copyOf(m_NegativeScores, grow(m_NegativeScores.length));
+				m_NegativeScores[(int) m_NumNegatives] = score;
+			}
+		} else {
+			int bin = score <= 0 ? 0 : score >= 1 ? m_NumBins - 1 : (int) (score * m_NumBins);
+			if (positive)
+				m_Positives[bin]++;
+			else
+				m_Negatives[bin]++;
+		}
+		if (positive)
+			m_NumPositives++;
+		else
+			m_NumNegatives++;
+	}
+
+	/**
+	 * Adds scores.
+	 *
+	 * @param scores
+	 *            the scores of the positive class
+	 * @param positive
+	 *            true for instances of the positive class
+	 */
+	public void add(double[] scores, boolean[] positive) {
+		for (int i = 0; i < scores.length; i++)
+			add(scores[i], positive[i]);
+	}
+
+	/**
+	 * Scores instances with a trained classifier and adds the probabilities of the positive class. Instances with a
+	 * missing class are skipped.
+	 *
+	 * @param classifier
+	 *            the classifier
+	 * @param instances
+	 *            the instances, e.g. one block of a large data set
+	 * @param classIndex
+	 *            the index of the positive class value
+	 * @throws Exception
+	 *             if the instances cannot be scored
+	 */
+	public void add(Classifier classifier, Instances instances, int classIndex) throws Exception {
+		if (classifier instanceof BatchPredictor) {
+			double[][] distributions = ((BatchPredictor) classifier).distributionsForInstances(instances);
+			for (int i = 0; i < distributions.length; i++)
+				if (!instances.instance(i).classIsMissing())
+					add(distributions[i][classIndex], (int) instances.instance(i).classValue() == classIndex);
+		} else {
+			for (int i = 0; i < instances.numInstances(); i++)
+				if (!instances.instance(i).classIsMissing())
+					add(classifier.distributionForInstance(instances.instance(i))[classIndex],
+							(int) instances.instance(i).classValue() == classIndex);
+		}
+	}
+
+	/**
+	 * Adds the scores of other metrics with the same number of bins.
+	 *
+	 * @param other
+	 *            the other metrics
+	 */
+	public void merge(StreamingRankMetrics other) {
+		if (other.m_NumBins != m_NumBins)
+			throw new IllegalArgumentException("Only metrics with the same number of bins can be merged!");
+		if (m_NumBins == EXACT) {
+			m_PositiveScores = append(m_PositiveScores, (int) m_NumPositives, other.m_PositiveScores,
+					(int) other.m_NumPositives);
+			m_NegativeScores = append(m_NegativeScores, (int) m_NumNegatives, other.m_NegativeScores,
+					(int) other.m_NumNegatives);
+		} else {
+			for (int b = 0; b < m_NumBins; b++) {
+				m_Positives[b] += other.m_Positives[b];
+				m_Negatives[b] += other.m_Negatives[b];
+			}
+		}
+		m_NumPositives += other.m_NumPositives;
+		m_NumNegatives += other.m_NumNegatives;
+	}
+
+	/**
+	 * Area under the precision-recall curve, like {@link RankMetrics#areaUnderPRC(double[], boolean[])}.
+	 *
+	 * @return the area, or {@link Utils#missingValue()} if it is 0 or there are no positives
+	 */
+	public double areaUnderPRC() {
+		if (m_NumBins == EXACT)
+			return exact(true);
+		if (m_NumPositives == 0)
+			return Utils.missingValue();
+		double area = 0;
+		double tp = 0;
+		double fp = 0;
+		for (int b = m_NumBins - 1; b >= 0; b--) {
+			tp += m_Positives[b];
+			fp += m_Negatives[b];
+			if (m_Positives[b] > 0)
+				area += tp / (tp + fp) * m_Positives[b] / m_NumPositives;
+		}
+		return area == 0 ? Utils.missingValue() : area;
+	}
+
+	/**
+	 * Area under the ROC curve, like {@link RankMetrics#areaUnderROC(double[], boolean[])}.
+	 *
+	 * @return the area, NaN if one of the classes is empty
+	 */
+	public double areaUnderROC() {
+		if (m_NumBins == EXACT)
+			return exact(false);
+		double area = 0;
+		double cumulativeNegatives = 0;
+		for (int b = 0; b < m_NumBins; b++) {
+			area += m_Positives[b] * (cumulativeNegatives + 0.5 * m_Negatives[b]);
+			cumulativeNegatives += m_Negatives[b];
+		}
+		return area / ((double) m_NumPositives * m_NumNegatives);
+	}
+
+	/**
+	 * The largest possible difference between {@link #areaUnderPRC()} and the exact area, whatever the order of the
+	 * scores within the bins. Within a bin the exact area is smallest if all negatives come first and every positive has
+	 * its own score, and largest if all positives come first with equal scores.
+	 *
+	 * @return the bound, 0 in exact mode
+	 */
+	public double getPRCErrorBound() {
+		if (m_NumBins == EXACT || m_NumPositives == 0)
+			return 0;
+		double lower = 0;
+		double upper = 0;
+		double tp = 0;
+		double fp = 0;
+		for (int b = m_NumBins - 1; b >= 0; b--) {
+			long positives = m_Positives[b];
+			if (positives > 0) {
+				upper += (tp + positives) / (tp + positives + fp) * positives;
+				for (long k = 1; k <= positives; k++)
+					lower += (tp + k) / (tp + k + fp + m_Negatives[b]);
+			}
+			tp += positives;
+			fp += m_Negatives[b];
+		}
+		double area = areaUnderPRC();
+		if (Utils.isMissingValue(area))
+			area = 0;
+		return Math.max(upper / m_NumPositives - area, area - lower / m_NumPositives);
+	}
+
+	/**
+	 * The largest possible difference between {@link #areaUnderROC()} and the exact area: the pairs of a positive and a
+	 * negative in the same bin count half, but may be ordered either way.
+	 *
+	 * @return the bound, 0 in exact mode
+	 */
+	public double getROCErrorBound() {
+		if (m_NumBins == EXACT || m_NumPositives == 0 || m_NumNegatives == 0)
+			return 0;
+		double ties = 0;
+		for (int b = 0; b < m_NumBins; b++)
+			ties += (double) m_Positives[b] * m_Negatives[b];
+		return 0.5 * ties / ((double) m_NumPositives * m_NumNegatives);
+	}
+
+	/**
+	 * Computes an area exactly from all scores.
+	 */
+	private double exact(boolean prc) {
+		int numPositives = (int) m_NumPositives;
+		int n = numPositives + (int) m_NumNegatives;
+		double[] scores = new double[n];
+		boolean[] positive = new boolean[n];
+		System.arraycopy(m_PositiveScores, 0, scores, 0, numPositives);
+		System.arraycopy(m_NegativeScores, 0, scores, numPositives, n - numPositives);
+		Arrays.fill(positive, 0, numPositives, true);
+		return prc ? RankMetrics.areaUnderPRC(scores, positive) : RankMetrics.areaUnderROC(scores, positive);
+	}
+
+	private static int grow(int length) {
+		if (length == Integer.MAX_VALUE - 8)
+			throw new IllegalStateException("Too many scores for the exact mode!");
+		return (int) Math.min(Integer.MAX_VALUE - 8L, 2L * length);
+	}
+
+	private static double[] append(double[] values, int size, double[] others, int otherSize) {
+		if (size + (long) otherSize > Integer.MAX_VALUE - 8)
+			throw new IllegalStateException("Too many scores for the exact mode!");
+		if (values.length < size + otherSize)
+			values = Arrays.copyOf(values, size + otherSize);
+		System.arraycopy(others, 0, values, size, otherSize);
+		return values;
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer text = new StringBuffer();
+		text.append("Positives: " + m_NumPositives + ", negatives: " + m_NumNegatives + "\n");
+		text.append("AUPRC: " + Utils.doubleToString(areaUnderPRC(), 6));
+		if (m_NumBins != EXACT)
+			text.append(" (+/- " + Utils.doubleToString(getPRCErrorBound(), 6) + ")");
+		text.append("\nAUROC: " + Utils.doubleToString(areaUnderROC(), 6));
+		if (m_NumBins != EXACT)
+			text.append(" (+/- " + Utils.doubleToString(getROCErrorBound(), 6) + ")");
+		text.append("\n");
+		return text.toString();
+	}
+
+}
@@ -0,0 +1,74 @@
+package weka.classifiers.meta;
+
+/**
+ * <p>
+ * Cooperative cancellation of a build. A token is cancelled explicitly with {@link #cancel()}, when its time limit is
+ * reached or when its parent is cancelled. Builds check {@link #isCancelled()} at safe points, e.g. before a partition
+ * or a tree is started, and keep what they have built so far.
+ * </p>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class CancellationToken {
+
+	/** The parent token, null if there is none */
+	private final CancellationToken m_Parent;
+
+	/** The deadline in terms of {@link System#nanoTime()}, only used if there is a time limit */
+	private final long m_Deadline;
+
+	/** Whether there is a time limit */
+	private final boolean m_HasTimeLimit;
+
+	/** Whether {@link #cancel()} was called */
+	private volatile boolean m_Cancelled = false;
+
+	/**
+	 * A token without time limit that is only cancelled by {@link #cancel()}.
+	 */
+	public CancellationToken() {
+		this(null, 0);
+	}
+
+	/**
+	 * A token with a time limit that starts now.
+	 *
+	 * @param parent
+	 *            a token that cancels this token too, may be null
+	 * @param timeLimit
+	 *            the time limit in seconds, 0 for no time limit
+	 */
+	public CancellationToken(CancellationToken parent, double timeLimit) {
+		m_Parent = parent;
+		m_HasTimeLimit = timeLimit > 0;
+		m_Deadline = System.nanoTime() + (long) (timeLimit * 1e9);
+	}
+
+	/**
+	 * Cancels the token.
+	 */
+	public void cancel() {
+		m_Cancelled = true;
+	}
+
+	/**
+	 * Returns whether the token is cancelled, its time limit is reached or its parent is cancelled.
+	 *
+	 * @return true if the build should stop
+	 */
+	public boolean isCancelled() {
+		return m_Cancelled || isTimeLimitReached() || (m_Parent != null && m_Parent.isCancelled());
+	}
+
+	/**
+	 * Returns whether the time limit of this token or of its parent is reached.
+	 *
+	 * @return true if a time limit is reached
+	 */
+	public boolean isTimeLimitReached() {
+		return (m_HasTimeLimit && System.nanoTime() - m_Deadline >= 0)
+				|| (m_Parent != null && m_Parent.isTimeLimitReached());
+	}
+
+}
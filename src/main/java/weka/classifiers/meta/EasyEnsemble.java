@@ -1,22 +1,37 @@
 package weka.classifiers.meta;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Random;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.ParallelIteratedSingleClassifierEnhancer;
 import weka.classifiers.RandomizableParallelIteratedSingleClassifierEnhancer;
+import weka.classifiers.evaluation.RankMetrics;
+import weka.core.BatchPredictor;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.Option;
 import weka.core.Randomizable;
+import weka.core.SelectedTag;
+import weka.core.SparseInstance;
+import weka.core.Tag;
 import weka.core.TechnicalInformation;
 import weka.core.TechnicalInformation.Field;
 import weka.core.TechnicalInformation.Type;
 import weka.core.TechnicalInformationHandler;
 import weka.core.Utils;
-import weka.filters.Filter;
-import weka.filters.unsupervised.instance.RemoveWithValues;
+import weka.core.converters.ColumnarDataset;
 
 /**
  * <!-- globalinfo-start -->
@@ -71,6 +86,44 @@ import weka.filters.unsupervised.instance.RemoveWithValues;
  *  (default 1 - i.e. no parallelism)
  * </pre>
  * 
+ * <pre>
+ *  -memory-budget &lt;MB&gt;
+ *  Heap budget in MB for partitions built at the same time.
+ *  (default 0 - i.e. no budget)
+ * </pre>
+ * 
+ * <pre>
+ *  -majority-storage &lt;heap|direct|mapped&gt;
+ *  Storage of the majority class during the build.
+ *  (default heap)
+ * </pre>
+ * 
+ * <pre>
+ *  -time-limit &lt;seconds&gt;
+ *  Time limit of the build, partitions finished in time are kept.
+ *  (default 0 - i.e. no limit)
+ * </pre>
+ * 
+ * <pre>
+ *  -adaptive-tolerance &lt;num&gt;
+ *  Build the partitions in waves and stop when the out-of-partition
+ *  AUPRC improves by less than this, -I is the maximum.
+ *  (default 0 - i.e. build all partitions)
+ * </pre>
+ * 
+ * <pre>
+ *  -adaptive-wave &lt;num&gt;
+ *  Number of partitions per wave of the adaptive build.
+ *  (default 5)
+ * </pre>
+ * 
+ * <pre>
+ *  -minority-classes &lt;num&gt;
+ *  Number of minority classes, the least frequent classes. Each
+ *  partition of the majority class gets one classifier per minority class.
+ *  (default 1)
+ * </pre>
+ * 
  * 
  * <pre>
  *  -D
@@ -101,11 +154,116 @@ public class EasyEnsemble extends RandomizableParallelIteratedSingleClassifierEn
 	protected Instances m_majorityData;
 	protected Instances m_minorityData;
 	protected Instances m_data;
-	protected Random m_random = new Random();
+
+	/** Id of the seed of the base classifier of a partition, see {@link #deriveSeed(long, int)} */
+	protected static final int CLASSIFIER_SEED = 0;
+
+	/** Heap budget in MB for partitions that are built at the same time (0 = no budget) */
+	protected int m_MemoryBudget = 0;
+
+	/** Approximate number of copies of a partition training set alive while its classifier is built */
+	protected static final int TRAINING_SET_COPIES = 3;
+
+	/** The majority class is kept on the Java heap */
+	public static final int STORAGE_HEAP = 0;
+
+	/** The majority class is kept in direct buffers, limited by -XX:MaxDirectMemorySize */
+	public static final int STORAGE_DIRECT = 1;
+
+	/** The majority class is kept in a temporary memory-mapped file */
+	public static final int STORAGE_MAPPED = 2;
+
+	/** The storages of the majority class */
+	public static final Tag[] TAGS_STORAGE = { new Tag(STORAGE_HEAP, "heap", "Java heap"),
+			new Tag(STORAGE_DIRECT, "direct", "Direct buffers"),
+			new Tag(STORAGE_MAPPED, "mapped", "Temporary memory-mapped file") };
+
+	/** The storage of the majority class during the build */
+	protected int m_MajorityStorage = STORAGE_HEAP;
+
+	/** The majority class outside of the heap, null if it is kept in {@link #m_majorityData} */
+	protected transient ColumnarDataset m_majorityStore;
+
+	/** The rows of {@link #m_majorityStore} that belong to the majority class, null for all rows */
+	protected int[] m_majorityRows;
+
+	/** The weights of the majority instances, null if all weights are 1 */
+	protected double[] m_majorityWeights;
+
+	/** Time limit of the build in seconds (0 = no limit) */
+	protected double m_TimeLimit = 0;
+
+	/** Token to cancel the build from outside, null if there is none */
+	protected transient CancellationToken m_CancellationToken;
+
+	/** The token checked by the running build */
+	protected transient CancellationToken m_BuildToken;
+
+	/** Which partitions of the running build have been built */
+	protected transient boolean[] m_Built;
+
+	/** The number of partitions of the last build that failed with an error */
+	protected int m_NumFailedPartitions;
+
+	/** The number of partitions requested for the last build */
+	protected int m_NumPlannedPartitions;
+
+	/** Whether the last build was stopped by the time limit or the cancellation token */
+	protected boolean m_BuildStopped;
+
+	/** Whether the last build was stopped by the time limit */
+	protected boolean m_TimeLimitReached;
+
+	/** The duration of the last build in ms */
+	protected long m_BuildTime;
+
+	/** Number of folds of the minority class in the adaptive build, each partition leaves out one of them */
+	protected static final int ADAPTIVE_FOLDS = 5;
+
+	/** Maximum number of majority instances the out-of-partition AUPRC of the adaptive build is computed on */
+	protected static final int ADAPTIVE_MAJORITY_SAMPLE = 10000;
+
+	/** Id of the seed of the folds and the sample of the adaptive build, see {@link #deriveSeed(long, int)} */
+	protected static final int ADAPTIVE_SEED = -1;
+
+	/** Minimum improvement of the out-of-partition AUPRC per wave of partitions (0 = build all partitions) */
+	protected double m_AdaptiveTolerance = 0;
+
+	/** Number of partitions built per wave in the adaptive build */
+	protected int m_AdaptiveWave = ADAPTIVE_FOLDS;
+
+	/** The minority fold of each minority instance during an adaptive build, null otherwise */
+	protected transient int[] m_MinorityFolds;
+
+	/** The out-of-partition AUPRC after each wave of the last adaptive build, null if the build was not adaptive */
+	protected double[] m_AdaptiveAUPRC;
+
+	/** The number of minority classes */
+	protected int m_NumMinorityClasses = 1;
+
+	/** The minority classes of the built model, each partition has one classifier per minority class */
+	protected int[] m_MinorityClasses;
+
+	/** The instances of each minority class during the build */
+	protected transient Instances[] m_minorityClassData;
+
+	/** The majority instances of each partition while not all classifiers of it got their training set */
+	protected transient Instances[] m_sharedPartitions;
+
+	/** The number of classifiers of each partition that got their training set */
+	protected transient int[] m_sharedPartitionUses;
 
 	/** for serialization */
 	private static final long serialVersionUID = 3340927280517126814L;
 
+	/** Scratch buffer of the calling thread for the partition distributions */
+	private static final ThreadLocal<double[]> SCRATCH = new ThreadLocal<double[]>() {
+		@Override
+		protected double[] initialValue() {
+			return new double[0];
+		}
+	};
+
 	/**
 	 * Constructor.
 	 */
@@ -149,7 +307,27 @@ public class EasyEnsemble extends RandomizableParallelIteratedSingleClassifierEn
 	@Override
 	public Enumeration<Option> listOptions() {
 
-		Vector<Option> newVector = new Vector<Option>(0);
+		Vector<Option> newVector = new Vector<Option>(1);
+
+		newVector.addElement(new Option("\tHeap budget in MB for partitions built at the same time.\n"
+				+ "\t(default 0 - i.e. no budget)", "memory-budget", 1, "-memory-budget <MB>"));
+
+		newVector.addElement(new Option("\tStorage of the majority class during the build.\n" + "\t(default heap)",
+				"majority-storage", 1, "-majority-storage <heap|direct|mapped>"));
+
+		newVector.addElement(new Option("\tTime limit of the build, partitions finished in time are kept.\n"
+				+ "\t(default 0 - i.e. no limit)", "time-limit", 1, "-time-limit <seconds>"));
+
+		newVector.addElement(new Option("\tBuild the partitions in waves and stop when the out-of-partition\n"
+				+ "\tAUPRC improves by less than this, -I is the maximum.\n"
+				+ "\t(default 0 - i.e. build all partitions)", "adaptive-tolerance", 1, "-adaptive-tolerance <num>"));
+
+		newVector.addElement(new Option("\tNumber of partitions per wave of the adaptive build.\n" + "\t(default 5)",
+				"adaptive-wave", 1, "-adaptive-wave <num>"));
+
+		newVector.addElement(new Option("\tNumber of minority classes, the least frequent classes. Each\n"
+				+ "\tpartition of the majority class gets one classifier per minority class.\n" + "\t(default 1)",
+				"minority-classes", 1, "-minority-classes <num>"));
 
 		newVector.addAll(Collections.list(super.listOptions()));
 
@@ -184,6 +362,44 @@ public class EasyEnsemble extends RandomizableParallelIteratedSingleClassifierEn
 	 *  (default 1 - i.e. no parallelism)
 	 * </pre>
 	 * 
+	 * <pre>
+	 *  -memory-budget &lt;MB&gt;
+	 *  Heap budget in MB for partitions built at the same time.
+	 *  (default 0 - i.e. no budget)
+	 * </pre>
+	 * 
+	 * <pre>
+	 *  -majority-storage &lt;heap|direct|mapped&gt;
+	 *  Storage of the majority class during the build.
+	 *  (default heap)
+	 * </pre>
+	 * 
+	 * <pre>
+	 *  -time-limit &lt;seconds&gt;
+	 *  Time limit of the build, partitions finished in time are kept.
+	 *  (default 0 - i.e. no limit)
+	 * </pre>
+	 * 
+	 * <pre>
+	 *  -adaptive-tolerance &lt;num&gt;
+	 *  Build the partitions in waves and stop when the out-of-partition
+	 *  AUPRC improves by less than this, -I is the maximum.
+	 *  (default 0 - i.e. build all partitions)
+	 * </pre>
+	 * 
+	 * <pre>
+	 *  -adaptive-wave &lt;num&gt;
+	 *  Number of partitions per wave of the adaptive build.
+	 *  (default 5)
+	 * </pre>
+	 * 
+	 * <pre>
+	 *  -minority-classes &lt;num&gt;
+	 *  Number of minority classes, the least frequent classes. Each
+	 *  partition of the majority class gets one classifier per minority class.
+	 *  (default 1)
+	 * </pre>
+	 * 
 	 * 
 	 * <pre>
 	 *  -D
@@ -212,6 +428,48 @@ public class EasyEnsemble extends RandomizableParallelIteratedSingleClassifierEn
 	@Override
 	public void setOptions(String[] options) throws Exception {
 
+		String budget = Utils.getOption("memory-budget", options);
+		if (budget.length() != 0) {
+			setMemoryBudget(Integer.parseInt(budget));
+		} else {
+			setMemoryBudget(0);
+		}
+
+		String storage = Utils.getOption("majority-storage", options);
+		if (storage.length() != 0) {
+			setMajorityStorage(new SelectedTag(storage, TAGS_STORAGE));
+		} else {
+			setMajorityStorage(new SelectedTag(STORAGE_HEAP, TAGS_STORAGE));
+		}
+
+		String timeLimit = Utils.getOption("time-limit", options);
+		if (timeLimit.length() != 0) {
+			setTimeLimit(Double.parseDouble(timeLimit));
+		} else {
+			setTimeLimit(0);
+		}
+
+		String tolerance = Utils.getOption("adaptive-tolerance", options);
+		if (tolerance.length() != 0) {
+			setAdaptiveTolerance(Double.parseDouble(tolerance));
+		} else {
+			setAdaptiveTolerance(0);
+		}
+
+		String wave = Utils.getOption("adaptive-wave", options);
+		if (wave.length() != 0) {
+			setAdaptiveWave(Integer.parseInt(wave));
+		} else {
+			setAdaptiveWave(ADAPTIVE_FOLDS);
+		}
+
+		String minorityClasses = Utils.getOption("minority-classes", options);
+		if (minorityClasses.length() != 0) {
+			setNumMinorityClasses(Integer.parseInt(minorityClasses));
+		} else {
+			setNumMinorityClasses(1);
+		}
+
 		super.setOptions(options);
 
 		Utils.checkForRemainingOptions(options);
@@ -227,6 +485,24 @@ public class EasyEnsemble extends RandomizableParallelIteratedSingleClassifierEn
 
 		Vector<String> options = new Vector<String>();
 
+		options.add("-memory-budget");
+		options.add("" + getMemoryBudget());
+
+		options.add("-majority-storage");
+		options.add(getMajorityStorage().getSelectedTag().getIDStr());
+
+		options.add("-time-limit");
+		options.add("" + getTimeLimit());
+
+		options.add("-adaptive-tolerance");
+		options.add("" + getAdaptiveTolerance());
+
+		options.add("-adaptive-wave");
+		options.add("" + getAdaptiveWave());
+
+		options.add("-minority-classes");
+		options.add("" + getNumMinorityClasses());
+
 		Collections.addAll(options, super.getOptions());
 
 		return options.toArray(new String[0]);
@@ -236,24 +512,702 @@ public class EasyEnsemble extends RandomizableParallelIteratedSingleClassifierEn
 	public String numIterationsTipText() {
 		return "The number of partitions to be used.";
 	}
+
+	/**
+	 * Returns the tip text for this property
+	 * 
+	 * @return tip text for this property suitable for displaying in the explorer/experimenter gui
+	 */
+	public String memoryBudgetTipText() {
+		return "The heap budget in MB for partitions that are built at the same time (0 = no budget). "
+				+ "Execution slots that cannot be used for partitions are used inside the base classifiers, as far as "
+				+ "the extra copies of the training sets they need fit into the budget.";
+	}
+
+	/**
+	 * Get the heap budget in MB for partitions that are built at the same time.
+	 * 
+	 * @return the memory budget in MB, 0 for no budget
+	 */
+	public int getMemoryBudget() {
+		return m_MemoryBudget;
+	}
+
+	/**
+	 * Set the heap budget in MB for partitions that are built at the same time, 0 for no budget.
+	 * 
+	 * @param budget
+	 *            the memory budget in MB
+	 */
+	public void setMemoryBudget(int budget) {
+		if (budget >= 0)
+			m_MemoryBudget = budget;
+		else
+			System.err.println("Memory budget must be >= 0!");
+	}
+
+	/**
+	 * Returns the tip text for this property
+	 * 
+	 * @return tip text for this property suitable for displaying in the explorer/experimenter gui
+	 */
+	public String majorityStorageTipText() {
+		return "The storage of the majority class during the build: the Java heap, direct buffers or a temporary "
+				+ "memory-mapped file. Outside of the heap only the minority class and the training sets of the "
+				+ "partitions being built are on the heap. Majority instances are stored dense. Direct buffers are "
+				+ "limited by -XX:MaxDirectMemorySize, which defaults to the maximum heap size, so a majority class "
+				+ "larger than the heap needs a larger limit or a memory-mapped file.";
+	}
+
+	/**
+	 * Get the storage of the majority class during the build.
+	 * 
+	 * @return the storage
+	 */
+	public SelectedTag getMajorityStorage() {
+		return new SelectedTag(m_MajorityStorage, TAGS_STORAGE);
+	}
+
+	/**
+	 * Set the storage of the majority class during the build.
+	 * 
+	 * @param storage
+	 *            the storage
+	 */
+	public void setMajorityStorage(SelectedTag storage) {
+		if (storage.getTags() == TAGS_STORAGE)
+			m_MajorityStorage = storage.getSelectedTag().getID();
+		else
+			System.err.println("Unknown majority storage!");
+	}
+
+	/**
+	 * Returns the tip text for this property
+	 * 
+	 * @return tip text for this property suitable for displaying in the explorer/experimenter gui
+	 */
+	public String timeLimitTipText() {
+		return "The time limit of the build in seconds (0 = no limit). When it is reached no further partitions or "
+				+ "trees are started, the model consists of the partitions finished so far.";
+	}
+
+	/**
+	 * Get the time limit of the build.
+	 * 
+	 * @return the time limit in seconds, 0 for no limit
+	 */
+	public double getTimeLimit() {
+		return m_TimeLimit;
+	}
+
+	/**
+	 * Set the time limit of the build, 0 for no limit.
+	 * 
+	 * @param timeLimit
+	 *            the time limit in seconds
+	 */
+	public void setTimeLimit(double timeLimit) {
+		if (timeLimit >= 0)
+			m_TimeLimit = timeLimit;
+		else
+			System.err.println("Time limit must be >= 0!");
+	}
+
+	/**
+	 * Returns the tip text for this property
+	 * 
+	 * @return tip text for this property suitable for displaying in the explorer/experimenter gui
+	 */
+	public String adaptiveToleranceTipText() {
+		return "Minimum improvement of the out-of-partition AUPRC per wave of partitions (0 = build all partitions). "
+				+ "The number of partitions is then the maximum, the build stops once a wave improves the AUPRC by "
+				+ "less than this and keeps the partitions built so far. For the AUPRC each partition is trained without "
+				+ "one fifth of the minority class; the kept partitions are trained again on the whole minority class.";
+	}
+
+	/**
+	 * Get the minimum improvement of the out-of-partition AUPRC per wave of partitions.
+	 * 
+	 * @return the tolerance, 0 if all partitions are built
+	 */
+	public double getAdaptiveTolerance() {
+		return m_AdaptiveTolerance;
+	}
+
+	/**
+	 * Set the minimum improvement of the out-of-partition AUPRC per wave of partitions, 0 to build all partitions.
+	 * 
+	 * @param tolerance
+	 *            the tolerance
+	 */
+	public void setAdaptiveTolerance(double tolerance) {
+		if (tolerance >= 0)
+			m_AdaptiveTolerance = tolerance;
+		else
+			System.err.println("Adaptive tolerance must be >= 0!");
+	}
+
+	/**
+	 * Returns the tip text for this property
+	 * 
+	 * @return tip text for this property suitable for displaying in the explorer/experimenter gui
+	 */
+	public String adaptiveWaveTipText() {
+		return "The number of partitions built per wave of the adaptive build.";
+	}
+
+	/**
+	 * Get the number of partitions built per wave of the adaptive build.
+	 * 
+	 * @return the number of partitions
+	 */
+	public int getAdaptiveWave() {
+		return m_AdaptiveWave;
+	}
+
+	/**
+	 * Set the number of partitions built per wave of the adaptive build.
+	 * 
+	 * @param wave
+	 *            the number of partitions
+	 */
+	public void setAdaptiveWave(int wave) {
+		if (wave >= 1)
+			m_AdaptiveWave = wave;
+		else
+			System.err.println("Adaptive wave must be >= 1!");
+	}
+
+	/**
+	 * Returns the tip text for this property
+	 * 
+	 * @return tip text for this property suitable for displaying in the explorer/experimenter gui
+	 */
+	public String numMinorityClassesTipText() {
+		return "The number of minority classes, the least frequent classes of the training data. The majority class "
+				+ "is split once and each partition gets one classifier per minority class, trained on the partition "
+				+ "and that minority class.";
+	}
+
+	/**
+	 * Get the number of minority classes.
+	 * 
+	 * @return the number of minority classes
+	 */
+	public int getNumMinorityClasses() {
+		return m_NumMinorityClasses;
+	}
+
+	/**
+	 * Set the number of minority classes. At least one class of the training data is kept as majority class.
+	 * 
+	 * @param numClasses
+	 *            the number of minority classes
+	 */
+	public void setNumMinorityClasses(int numClasses) {
+		if (numClasses >= 1)
+			m_NumMinorityClasses = numClasses;
+		else
+			System.err.println("Number of minority classes must be >= 1!");
+	}
+
+	/**
+	 * Returns the minority classes of the built model. The classifiers of a partition follow each other in
+	 * {@link #getPartitionClassifiers()}, one per minority class in this order.
+	 * 
+	 * @return the indices of the minority classes, null if no model is built yet
+	 */
+	public int[] getMinorityClasses() {
+		return m_MinorityClasses;
+	}
+
+	/**
+	 * Returns the out-of-partition AUPRC after each wave of the last adaptive build.
+	 * 
+	 * @return the AUPRC of each wave, null if the last build was not adaptive
+	 */
+	public double[] getAdaptiveAUPRC() {
+		return m_AdaptiveAUPRC;
+	}
+
+	/**
+	 * Get the token that cancels the build from outside.
+	 * 
+	 * @return the token, null if there is none
+	 */
+	public CancellationToken getCancellationToken() {
+		return m_CancellationToken;
+	}
+
+	/**
+	 * Set a token to cancel the build from outside, e.g. from another thread. Partitions and trees that are not
+	 * started when the token is cancelled are skipped, the model consists of the partitions finished so far.
+	 * 
+	 * @param token
+	 *            the token, null for none
+	 */
+	public void setCancellationToken(CancellationToken token) {
+		m_CancellationToken = token;
+	}
 	
 	/**
-	 * Returns a training set for a particular partition.
+	 * Returns a training set for a particular classifier: the majority instances of its partition and the instances of
+	 * its minority class. With several minority classes the majority instances of a partition are taken once and
+	 * shared by the classifiers of the partition.
 	 * 
-	 * @param partition
-	 *            the number of the partition for the requested training set.
+	 * @param classifier
+	 *            the number of the classifier for the requested training set.
 	 * @return the training set for the supplied iteration number
 	 * @throws Exception
 	 *             if something goes wrong when generating a training set.
 	 */
 
 	@Override
-	protected synchronized Instances getTrainingSet(int partition) throws Exception {
-		Instances trainingSet = m_majorityData.testCV(getNumIterations(), partition);
-		trainingSet.addAll(m_minorityData);
+	protected synchronized Instances getTrainingSet(int classifier) throws Exception {
+		int partition = getMajorityPartition(classifier);
+		Instances minorityData = m_minorityClassData[classifier % m_minorityClassData.length];
+		if (m_minorityClassData.length == 1)
+			return getTrainingSet(partition, minorityData);
+
+		if (m_sharedPartitions[partition] == null)
+			m_sharedPartitions[partition] = getTrainingSet(partition, new Instances(minorityData, 0));
+		Instances majority = m_sharedPartitions[partition];
+		if (++m_sharedPartitionUses[partition] == m_minorityClassData.length)
+			m_sharedPartitions[partition] = null;
+		Instances trainingSet = new Instances(majority, 0, majority.numInstances());
+		trainingSet.addAll(minorityData);
+		return trainingSet;
+	}
+
+	/**
+	 * Returns the majority instances of a partition with the given minority instances.
+	 */
+	private Instances getTrainingSet(int partition, Instances minorityData) throws Exception {
+		Instances trainingSet;
+		if (m_majorityStore == null) {
+			trainingSet = m_majorityData.testCV(getNumIterations(), partition);
+		} else {
+			// the same slice as testCV, read from outside of the heap
+			int from = getPartitionStart(partition);
+			int to = from + getPartitionSize(partition);
+			trainingSet = m_majorityRows == null ? m_majorityStore.getInstances(from, to)
+					: m_majorityStore.getInstances(m_majorityRows, from, to);
+			if (m_majorityWeights != null)
+				for (int i = from; i < to; i++)
+					trainingSet.instance(i - from).setWeight(m_majorityWeights[i]);
+		}
+		if (m_MinorityFolds == null) {
+			trainingSet.addAll(minorityData);
+		} else {
+			// the adaptive build leaves out one fold of the minority class for the out-of-partition AUPRC
+			for (int i = 0; i < minorityData.numInstances(); i++)
+				if (m_MinorityFolds[i] != partition % ADAPTIVE_FOLDS)
+					trainingSet.add(minorityData.instance(i));
+		}
 		return trainingSet;
 	}
 
+	/**
+	 * Returns the partition of the majority class a classifier is trained on.
+	 * 
+	 * @param classifier
+	 *            the number of the classifier
+	 * @return the number of the partition
+	 */
+	protected int getMajorityPartition(int classifier) {
+		return m_minorityClassData == null ? classifier : classifier / m_minorityClassData.length;
+	}
+
+	/**
+	 * Returns the number of minority instances a classifier is trained on.
+	 * 
+	 * @param classifier
+	 *            the number of the classifier
+	 * @return the number of instances of its minority class
+	 */
+	protected int numMinorityInstances(int classifier) {
+		if (m_minorityClassData == null)
+			return m_minorityData.numInstances();
+		return m_minorityClassData[classifier % m_minorityClassData.length].numInstances();
+	}
+
+	/**
+	 * Returns the number of majority instances.
+	 * 
+	 * @return number of majority instances
+	 */
+	protected int numMajorityInstances() {
+		if (m_majorityStore == null)
+			return m_majorityData.numInstances();
+		return m_majorityRows == null ? m_majorityStore.numInstances() : m_majorityRows.length;
+	}
+
+	/**
+	 * Returns the number of majority instances in a partition. Mirrors the fold sizes of {@link Instances#testCV}.
+	 * 
+	 * @param partition
+	 *            the number of the partition
+	 * @return number of majority instances in the partition
+	 */
+	protected int getPartitionSize(int partition) {
+		int size = numMajorityInstances() / getNumIterations();
+		if (partition < numMajorityInstances() % getNumIterations())
+			size++;
+		return size;
+	}
+
+	/**
+	 * Returns the index of the first majority instance of a partition. Mirrors {@link Instances#testCV}.
+	 * 
+	 * @param partition
+	 *            the number of the partition
+	 * @return index of the first majority instance in the partition
+	 */
+	protected int getPartitionStart(int partition) {
+		return partition * (numMajorityInstances() / getNumIterations())
+				+ Math.min(partition, numMajorityInstances() % getNumIterations());
+	}
+
+	/**
+	 * Estimates the heap in bytes needed to build the classifier of a partition. The estimate is based on the number of
+	 * instances and attributes of the training set and the copies of it made while training.
+	 * 
+	 * @param classifier
+	 *            the number of the classifier
+	 * @return estimated heap usage in bytes
+	 */
+	protected long estimatePartitionMemory(int classifier) {
+		long rows = getPartitionSize(getMajorityPartition(classifier)) + numMinorityInstances(classifier);
+		return TRAINING_SET_COPIES * rows * estimateInstanceMemory();
+	}
+
+	/**
+	 * Estimates the heap in bytes needed to build the classifier of a partition if its base classifier uses the given
+	 * number of execution slots. Every slot beyond the first holds another copy of the training set, e.g. the bootstrap
+	 * sample of a tree built at the same time.
+	 * 
+	 * @param classifier
+	 *            the number of the classifier
+	 * @param numSlots
+	 *            the number of execution slots of the base classifier
+	 * @return estimated heap usage in bytes
+	 */
+	protected long estimatePartitionMemory(int classifier, int numSlots) {
+		long rows = getPartitionSize(getMajorityPartition(classifier)) + numMinorityInstances(classifier);
+		return estimatePartitionMemory(classifier) + (numSlots - 1L) * rows * estimateInstanceMemory();
+	}
+
+	/**
+	 * The largest estimate of {@link #estimatePartitionMemory(int, int)} of the given classifiers.
+	 */
+	private long maxPartitionMemory(int from, int to, int numSlots) {
+		long maxCost = 1;
+		for (int i = from; i < to; i++)
+			maxCost = Math.max(maxCost, estimatePartitionMemory(i, numSlots));
+		return maxCost;
+	}
+
+	/**
+	 * Estimates the mean heap in bytes of an instance of the training data. Sparse instances are estimated by their
+	 * number of non-zero values.
+	 * 
+	 * @return estimated heap usage in bytes
+	 */
+	protected long estimateInstanceMemory() {
+		long bytes = 0;
+		int count = 0;
+		for (Instance instance : m_minorityData) {
+			bytes += estimateInstanceMemory(instance);
+			count++;
+		}
+		for (int i = 0; i < Math.min(1000, numMajorityInstances()); i++) {
+			// majority instances read from outside of the heap are dense
+			bytes += m_majorityStore == null ? estimateInstanceMemory(m_majorityData.instance(i))
+					: estimateInstanceMemory(m_minorityData.numAttributes());
+			count++;
+		}
+		return count == 0 ? estimateInstanceMemory(m_minorityData.numAttributes()) : (bytes + count - 1) / count;
+	}
+
+	/**
+	 * Estimates the heap in bytes of a single instance.
+	 * 
+	 * @param instance
+	 *            the instance
+	 * @return estimated heap usage in bytes
+	 */
+	public static long estimateInstanceMemory(Instance instance) {
+		if (instance instanceof SparseInstance)
+			// additional index array
+			return 32 + 16 + 16 + 12L * instance.numValues() + 8;
+		return estimateInstanceMemory(instance.numAttributes());
+	}
+
+	/**
+	 * Estimates the heap in bytes of a single dense instance.
+	 * 
+	 * @param numAttributes
+	 *            number of attributes of the instance
+	 * @return estimated heap usage in bytes
+	 */
+	public static long estimateInstanceMemory(int numAttributes) {
+		// object header and fields of the instance, the value array, and the reference held by Instances
+		return 32 + 16 + 8L * numAttributes + 8;
+	}
+
+	/**
+	 * Sets the number of execution slots a base classifier may use internally. Used when the memory budget does not
+	 * allow to build as many partitions at once as there are slots.
+	 * 
+	 * @param classifier
+	 *            the classifier of a partition
+	 * @param numSlots
+	 *            the number of slots it may use
+	 */
+	protected void setBaseClassifierExecutionSlots(Classifier classifier, int numSlots) {
+		if (classifier instanceof ParallelIteratedSingleClassifierEnhancer) {
+			ParallelIteratedSingleClassifierEnhancer parallel = (ParallelIteratedSingleClassifierEnhancer) classifier;
+			if (parallel.getNumExecutionSlots() < numSlots)
+				parallel.setNumExecutionSlots(numSlots);
+		}
+	}
+
+	/**
+	 * Passes the token of the build to a base classifier that can stop early, e.g. after some of its trees. The default
+	 * does nothing, partitions are then only checked before they are started.
+	 * 
+	 * @param classifier
+	 *            the classifier of a partition
+	 * @param token
+	 *            the token of the build
+	 */
+	protected void setBaseClassifierCancellationToken(Classifier classifier, CancellationToken token) {
+	}
+
+	/**
+	 * Returns whether the classifier of a partition can be used after its build returned. A classifier that was stopped
+	 * before it learned anything, e.g. a forest without trees, is left out of the model.
+	 * 
+	 * @param classifier
+	 *            the classifier of a partition
+	 * @return true if the classifier is part of the model
+	 */
+	protected boolean isUsable(Classifier classifier) {
+		return true;
+	}
+
+	/**
+	 * Returns whether the classifier of a built partition stopped early, e.g. with fewer trees than requested.
+	 * 
+	 * @param classifier
+	 *            the classifier of a partition
+	 * @return true if the classifier is incomplete
+	 */
+	protected boolean isIncomplete(Classifier classifier) {
+		return false;
+	}
+
+	/**
+	 * Builds the classifiers of all partitions. With a memory budget a new partition is only started while the
+	 * estimated heap of all running partitions stays below the budget. A single partition is always started if no
+	 * other is running. Slots that stay idle because of the budget are handed to the base classifiers. No partition
+	 * is started once the build token is cancelled, see {@link #m_Built} for the partitions that were built.
+	 * 
+	 * @throws Exception
+	 *             if the classifiers could not be built successfully
+	 */
+	@Override
+	protected void buildClassifiers() throws Exception {
+		m_Built = new boolean[m_Classifiers.length];
+		buildClassifiers(0, m_Classifiers.length);
+	}
+
+	/**
+	 * Builds the classifiers of the partitions <code>from</code> to <code>to</code>, see {@link #buildClassifiers()}.
+	 * {@link #m_Built} must be allocated for all partitions.
+	 * 
+	 * @param from
+	 *            the first partition
+	 * @param to
+	 *            the partition after the last one
+	 * @throws Exception
+	 *             if the classifiers could not be built successfully
+	 */
+	protected void buildClassifiers(int from, int to) throws Exception {
+		final CancellationToken token = m_BuildToken != null ? m_BuildToken : new CancellationToken();
+		final boolean[] built = m_Built;
+		for (int i = from; i < to; i++)
+			setBaseClassifierCancellationToken(m_Classifiers[i], token);
+
+		final int numCores = (m_numExecutionSlots == 0) ? Runtime.getRuntime().availableProcessors()
+				: m_numExecutionSlots;
+		if (numCores == 1) {
+			for (int i = from; i < to && !token.isCancelled(); i++) {
+				if (m_Debug)
+					System.err.println("Training classifier (" + (i + 1) + ")");
+				m_Classifiers[i].buildClassifier(getTrainingSet(i));
+				built[i] = isUsable(m_Classifiers[i]);
+			}
+			return;
+		}
+
+		final long budget = m_MemoryBudget > 0 ? m_MemoryBudget * 1024L * 1024L : Long.MAX_VALUE;
+		final long[] used = new long[1];
+		final Object lock = new Object();
+
+		int fitting = numCores;
+		int numSlots = 1;
+		if (m_MemoryBudget > 0) {
+			fitting = (int) Math.max(1, Math.min(numCores, budget / maxPartitionMemory(from, to, 1)));
+			if (fitting < numCores) {
+				// the slots left over go to the base classifiers as far as their extra copies fit into the budget
+				numSlots = numCores / fitting;
+				while (numSlots > 1 && fitting * maxPartitionMemory(from, to, numSlots) > budget)
+					numSlots--;
+				if (numSlots > 1)
+					for (int i = from; i < to; i++)
+						setBaseClassifierExecutionSlots(m_Classifiers[i], numSlots);
+			}
+			if (m_Debug)
+				System.err.println("Memory budget allows " + fitting + " of " + numCores + " partitions at once with "
+						+ numSlots + " slots each.");
+		}
+
+		ExecutorService executorPool = Executors.newFixedThreadPool(fitting);
+		final AtomicInteger numFailed = new AtomicInteger();
+
+		try {
+			for (int i = from; i < to; i++) {
+				final Classifier currentClassifier = m_Classifiers[i];
+				final int partition = i;
+				final long cost = m_MemoryBudget > 0 ? estimatePartitionMemory(partition, numSlots) : 0;
+
+				synchronized (lock) {
+					while (used[0] > 0 && used[0] + cost > budget && !token.isCancelled())
+						lock.wait(100);
+					if (token.isCancelled())
+						break;
+					used[0] += cost;
+				}
+
+				if (m_Debug)
+					System.err.println("Training classifier (" + (i + 1) + ")");
+
+				executorPool.submit(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							if (!token.isCancelled()) {
+								currentClassifier.buildClassifier(getTrainingSet(partition));
+								built[partition] = isUsable(currentClassifier);
+							}
+						} catch (Throwable ex) {
+							ex.printStackTrace();
+							numFailed.incrementAndGet();
+							if (m_Debug)
+								System.err.println("Iteration " + partition + " failed!");
+						} finally {
+							synchronized (lock) {
+								used[0] -= cost;
+								lock.notifyAll();
+							}
+						}
+					}
+				});
+			}
+			executorPool.shutdown();
+			executorPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} finally {
+			executorPool.shutdownNow();
+		}
+
+		m_NumFailedPartitions += numFailed.intValue();
+		if (m_Debug && numFailed.intValue() > 0)
+			System.err.println("Problem building classifiers - some iterations failed.");
+	}
+
+	/**
+	 * Keeps the partitions that have been built and records the outcome of the build for {@link #getBuildReport()}.
+	 * 
+	 * @param token
+	 *            the token of the build
+	 * @param start
+	 *            the start of the build in terms of {@link System#nanoTime()}
+	 * @throws Exception
+	 *             if no partition has been built
+	 */
+	private void retainBuiltPartitions(CancellationToken token, long start) throws Exception {
+		m_NumPlannedPartitions = m_Classifiers.length;
+		m_BuildTime = (System.nanoTime() - start) / 1000000;
+		// a partition is only kept with the classifiers of all its minority classes
+		int numClassifiers = numClassifiersPerPartition();
+		boolean[] complete = new boolean[m_Built.length / numClassifiers];
+		int numBuilt = 0;
+		for (int p = 0; p < complete.length; p++) {
+			complete[p] = true;
+			for (int k = 0; k < numClassifiers; k++)
+				complete[p] &= m_Built[p * numClassifiers + k];
+			if (complete[p])
+				numBuilt++;
+		}
+		if (numBuilt == 0)
+			throw new Exception(token.isCancelled() ? "The build was stopped before a partition was finished"
+					: "No partition could be built");
+		int[] partitions = new int[numBuilt];
+		for (int p = 0, j = 0; p < complete.length; p++)
+			if (complete[p])
+				partitions[j++] = p;
+		if (numBuilt < complete.length)
+			retainPartitions(partitions);
+		m_Built = null;
+
+		boolean incomplete = m_Classifiers.length < m_NumPlannedPartitions;
+		for (Classifier classifier : m_Classifiers)
+			incomplete |= isIncomplete(classifier);
+		m_BuildStopped = incomplete && token.isCancelled();
+		m_TimeLimitReached = m_BuildStopped && token.isTimeLimitReached();
+		if (m_Debug)
+			System.err.println(getBuildReport());
+	}
+
+	/**
+	 * Returns whether the last build was stopped by the time limit or the cancellation token before all partitions
+	 * were built completely.
+	 * 
+	 * @return true if the model is smaller than requested
+	 */
+	public boolean isBuildStopped() {
+		return m_BuildStopped;
+	}
+
+	/**
+	 * Returns a short report of the last build: the number of partitions built and whether the build was stopped.
+	 * 
+	 * @return the report
+	 */
+	public String getBuildReport() {
+		if (m_Classifiers == null)
+			return "No model built yet.";
+		StringBuffer text = new StringBuffer();
+		if (m_MinorityClasses != null && m_MinorityClasses.length > 1)
+			text.append("Built " + m_Classifiers.length + " of " + m_NumPlannedPartitions + " classifiers for "
+					+ m_MinorityClasses.length + " minority classes in " + Utils.doubleToString(m_BuildTime / 1000.0, 1)
+					+ " s");
+		else
+			text.append("Built " + m_Classifiers.length + " of " + m_NumPlannedPartitions + " partitions in "
+					+ Utils.doubleToString(m_BuildTime / 1000.0, 1) + " s");
+		if (m_BuildStopped)
+			text.append(m_TimeLimitReached ? ", stopped by the time limit of " + Utils.doubleToString(m_TimeLimit, 1) + " s"
+					: ", stopped by cancellation");
+		if (m_NumFailedPartitions > 0)
+			text.append(", " + m_NumFailedPartitions + " partitions failed");
+		if (m_AdaptiveAUPRC != null)
+			text.append(", " + m_AdaptiveAUPRC.length + " waves with an out-of-partition AUPRC of "
+					+ Utils.doubleToString(m_AdaptiveAUPRC[m_AdaptiveAUPRC.length - 1], 4));
+		text.append(".");
+		return text.toString();
+	}
+
 	/**
 	 * EasyEnsemble method.
 	 *
@@ -275,13 +1229,231 @@ public class EasyEnsemble extends RandomizableParallelIteratedSingleClassifierEn
 		
 		this.buildEasyEnsembleClassifier();
 	}
-	
-	@Override
-	public void setSeed(int seed) {
-		super.setSeed(seed);
-		m_random = new Random(m_Seed);
+
+	/**
+	 * Builds the classifier from a columnar data set, e.g. a memory-mapped file. The minority class is read onto the
+	 * heap, the majority class stays in the data set and the partitions read their slices from there, independent of
+	 * the majority storage. Instances with a missing class are ignored. The model is the same as the one built from
+	 * the instances of the data set.
+	 *
+	 * @param data
+	 *            the training data, its class index must be set
+	 * @throws Exception
+	 *             if the classifier could not be built successfully
+	 */
+	public void buildClassifier(ColumnarDataset data) throws Exception {
+		int classIndex = data.getStructure().classIndex();
+		if (classIndex < 0)
+			throw new Exception("The class index of the columnar data set is not set");
+		double[] classValues = new double[data.numInstances()];
+		data.column(classIndex, 0, data.numInstances(), classValues);
+		int[] classCounts = new int[data.getStructure().numClasses()];
+		for (double value : classValues)
+			if (!Utils.isMissingValue(value))
+				classCounts[(int) value]++;
+		boolean[] minority = new boolean[classCounts.length];
+		int numMinorityRows = 0;
+		for (int minorityClass : getMinorityClasses(classCounts)) {
+			minority[minorityClass] = true;
+			numMinorityRows += classCounts[minorityClass];
+		}
+
+		int[] minorityRows = new int[numMinorityRows];
+		int[] majorityRows = new int[Utils.sum(classCounts) - minorityRows.length];
+		int numMinority = 0;
+		int numMajority = 0;
+		for (int i = 0; i < classValues.length; i++) {
+			if (Utils.isMissingValue(classValues[i]))
+				continue;
+			if (minority[(int) classValues[i]])
+				minorityRows[numMinority++] = i;
+			else
+				majorityRows[numMajority++] = i;
+		}
+
+		// the minority class goes through the usual build, the majority class is taken from the data set
+		m_majorityStore = data;
+		m_majorityRows = majorityRows;
+		m_majorityWeights = null;
+		try {
+			buildClassifier(data.getInstances(minorityRows, 0, minorityRows.length));
+		} finally {
+			m_majorityStore = null;
+			m_majorityRows = null;
+		}
 	}
 	
+	/**
+	 * Builds the partitions in waves of {@link #m_AdaptiveWave} and stops once a wave improves the out-of-partition
+	 * AUPRC by less than {@link #m_AdaptiveTolerance}. Each instance of a validation set is scored by the partitions
+	 * that were not trained on it: a sample of the majority class by all partitions but its own and the minority class
+	 * by the partitions that leave out its fold, see {@link #getTrainingSet(int)}. The AUPRC of each wave is kept in
+	 * {@link #m_AdaptiveAUPRC}. Once the build stops, the partitions built so far are trained again on the whole
+	 * minority class, only these are kept.
+	 * 
+	 * @param minorityClass
+	 *            the index of the minority class
+	 * @throws Exception
+	 *             if the classifiers could not be built successfully
+	 */
+	protected void buildAdaptively(int minorityClass) throws Exception {
+		Random random = new Random(deriveSeed(m_Seed, ADAPTIVE_SEED));
+		int numMinority = m_minorityData.numInstances();
+		int[] order = new int[numMinority];
+		for (int i = 0; i < numMinority; i++)
+			order[i] = i;
+		shuffle(order, numMinority, random);
+		m_MinorityFolds = new int[numMinority];
+		for (int i = 0; i < numMinority; i++)
+			m_MinorityFolds[order[i]] = i % ADAPTIVE_FOLDS;
+
+		// sorted sample of the majority class and the partition of each instance
+		int numMajority = numMajorityInstances();
+		int numSample = Math.min(numMajority, ADAPTIVE_MAJORITY_SAMPLE);
+		int[] sample = new int[numMajority];
+		for (int i = 0; i < numMajority; i++)
+			sample[i] = i;
+		if (numSample < numMajority) {
+			shuffle(sample, numSample, random);
+			sample = Arrays.copyOf(sample, numSample);
+			Arrays.sort(sample);
+		}
+		Instances validation = new Instances(m_minorityData, numSample + numMinority);
+		if (m_majorityStore == null) {
+			for (int row : sample)
+				validation.add(m_majorityData.instance(row));
+		} else {
+			int[] rows = sample;
+			if (m_majorityRows != null) {
+				rows = new int[numSample];
+				for (int i = 0; i < numSample; i++)
+					rows[i] = m_majorityRows[sample[i]];
+			}
+			validation.addAll(m_majorityStore.getInstances(rows, 0, numSample));
+		}
+		validation.addAll(m_minorityData);
+		int numPartitions = m_Classifiers.length;
+		int size = numMajority / numPartitions;
+		int larger = numMajority % numPartitions;
+		boolean[] positive = new boolean[validation.numInstances()];
+		int[] partitionOf = new int[validation.numInstances()];
+		for (int i = 0; i < numSample; i++)
+			partitionOf[i] = sample[i] < larger * (size + 1) ? sample[i] / (size + 1)
+					: larger + (sample[i] - larger * (size + 1)) / size;
+		for (int i = numSample; i < positive.length; i++)
+			positive[i] = true;
+
+		double[] sums = new double[positive.length];
+		int[] counts = new int[positive.length];
+		double[] trace = new double[(numPartitions + m_AdaptiveWave - 1) / m_AdaptiveWave];
+		int numWaves = 0;
+		int numTrained = 0;
+		m_Built = new boolean[numPartitions];
+		try {
+			for (int from = 0; from < numPartitions && !m_BuildToken.isCancelled(); from += m_AdaptiveWave) {
+				int to = Math.min(numPartitions, from + m_AdaptiveWave);
+				buildClassifiers(from, to);
+				numTrained = to;
+				for (int j = from; j < to; j++) {
+					if (!m_Built[j])
+						continue;
+					double[][] dists;
+					if (m_Classifiers[j] instanceof BatchPredictor
+							&& ((BatchPredictor) m_Classifiers[j]).implementsMoreEfficientBatchPrediction()) {
+						dists = ((BatchPredictor) m_Classifiers[j]).distributionsForInstances(validation);
+					} else {
+						dists = new double[validation.numInstances()][];
+						for (int k = 0; k < dists.length; k++)
+							dists[k] = m_Classifiers[j].distributionForInstance(validation.instance(k));
+					}
+					for (int k = 0; k < dists.length; k++) {
+						boolean trained = k < numSample ? partitionOf[k] == j
+								: m_MinorityFolds[k - numSample] != j % ADAPTIVE_FOLDS;
+						if (!trained) {
+							sums[k] += dists[k][minorityClass];
+							counts[k]++;
+						}
+					}
+				}
+
+				// AUPRC of the instances with at least one out-of-partition score
+				int numCovered = 0;
+				for (int count : counts)
+					if (count > 0)
+						numCovered++;
+				double[] scores = new double[numCovered];
+				boolean[] covered = new boolean[numCovered];
+				for (int k = 0, c = 0; k < counts.length; k++) {
+					if (counts[k] > 0) {
+						scores[c] = sums[k] / counts[k];
+						covered[c++] = positive[k];
+					}
+				}
+				trace[numWaves++] = RankMetrics.areaUnderPRC(scores, covered);
+				if (m_Debug)
+					System.err.println("Wave " + numWaves + ": out-of-partition AUPRC "
+							+ Utils.doubleToString(trace[numWaves - 1], 4));
+				if (numWaves >= 2 && trace[numWaves - 1] - trace[numWaves - 2] < m_AdaptiveTolerance)
+					break;
+			}
+		} finally {
+			m_MinorityFolds = null;
+			m_AdaptiveAUPRC = Arrays.copyOf(trace, numWaves);
+		}
+
+		// the folds were only left out for the AUPRC, the kept partitions are trained again on the whole minority class
+		Arrays.fill(m_Built, false);
+		m_NumFailedPartitions = 0;
+		buildClassifiers(0, numTrained);
+	}
+
+	/**
+	 * Moves a random selection of <code>num</code> values to the front of the array (partial Fisher-Yates shuffle).
+	 */
+	private static void shuffle(int[] values, int num, Random random) {
+		for (int i = 0; i < num; i++) {
+			int j = i + random.nextInt(values.length - i);
+			int tmp = values[i];
+			values[i] = values[j];
+			values[j] = tmp;
+		}
+	}
+
+	/**
+	 * Derives a seed from a seed and an id, e.g. the seed of a partition from the global seed and the number of the
+	 * partition. Seeds derived this way only depend on the global seed and the ids and not on the order in which
+	 * partitions or trees are built, so the model is the same for any number of execution slots.
+	 * 
+	 * @param seed
+	 *            the seed
+	 * @param id
+	 *            the id
+	 * @return the derived seed
+	 */
+	public static long deriveSeed(long seed, int id) {
+		return mix(mix(seed) + 0x9E3779B97F4A7C15L * (id + 1L));
+	}
+
+	/**
+	 * SplitMix64 finalizer.
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Returns the seed of a partition.
+	 * 
+	 * @param partition
+	 *            the number of the partition
+	 * @return the seed, derived from the global seed and the partition alone
+	 */
+	protected long getPartitionSeed(int partition) {
+		return deriveSeed(m_Seed, partition);
+	}
+
 	/**
 	 * outsource easy-ensemble specific buildClassifier methods for better extension of this method
 	 * 
@@ -289,32 +1461,130 @@ public class EasyEnsemble extends RandomizableParallelIteratedSingleClassifierEn
 	 */
 	protected void  buildEasyEnsembleClassifier() throws Exception {
 		
+		long start = System.nanoTime();
+		m_BuildToken = new CancellationToken(m_CancellationToken, m_TimeLimit);
+		m_NumFailedPartitions = 0;
 
-		RemoveWithValues classValueFilter = new RemoveWithValues();
-		classValueFilter.setAttributeIndex(Integer.toString(m_data.classIndex() + 1));
-		classValueFilter.setNominalIndicesArr(new int[] { getMinorityClass(m_data)});
-		classValueFilter.setInputFormat(m_data);
-
-		m_majorityData = Filter.useFilter(m_data, classValueFilter);
 
-		classValueFilter.setInvertSelection(true);
-		classValueFilter.setInputFormat(m_data);
-		m_minorityData = Filter.useFilter(m_data, classValueFilter);
+		// split by class with a single copy of each instance, sparse instances stay sparse
+		m_MinorityClasses = getMinorityClasses(m_data.attributeStats(m_data.classIndex()).nominalCounts);
+		if (m_MinorityClasses.length > 1 && m_AdaptiveTolerance > 0)
+			throw new Exception("The adaptive build supports a single minority class only!");
+		boolean[] minority = new boolean[m_data.numClasses()];
+		for (int minorityClass : m_MinorityClasses)
+			minority[minorityClass] = true;
+		boolean ownStore = false;
+		if (m_majorityStore != null) {
+			// majority class given by buildClassifier(ColumnarDataset)
+			m_majorityData = null;
+			m_minorityData = m_data;
+		} else if (m_MajorityStorage != STORAGE_HEAP) {
+			m_minorityData = new Instances(m_data, 0);
+			int numMajority = 0;
+			for (Instance instance : m_data) {
+				if (minority[(int) instance.classValue()])
+					m_minorityData.add(instance);
+				else
+					numMajority++;
+			}
+			m_majorityStore = ColumnarDataset.allocate(m_data, numMajority, m_MajorityStorage == STORAGE_MAPPED);
+			ownStore = true;
+			m_majorityWeights = null;
+			int row = 0;
+			for (Instance instance : m_data) {
+				if (minority[(int) instance.classValue()])
+					continue;
+				m_majorityStore.set(row, instance);
+				if (instance.weight() != 1.0) {
+					if (m_majorityWeights == null) {
+						m_majorityWeights = new double[numMajority];
+						Arrays.fill(m_majorityWeights, 1.0);
+					}
+					m_majorityWeights[row] = instance.weight();
+				}
+				row++;
+			}
+		} else {
+			m_majorityData = new Instances(m_data, 0);
+			m_minorityData = new Instances(m_data, 0);
+			for (Instance instance : m_data) {
+				if (minority[(int) instance.classValue()])
+					m_minorityData.add(instance);
+				else
+					m_majorityData.add(instance);
+			}
+		}
 
 		// save memory
 		m_data = null;
 
+		// one classifier per partition and minority class, the classifiers of a partition share its majority instances
+		if (m_MinorityClasses.length == 1) {
+			m_minorityClassData = new Instances[] { m_minorityData };
+		} else {
+			m_minorityClassData = new Instances[m_MinorityClasses.length];
+			for (int k = 0; k < m_MinorityClasses.length; k++) {
+				m_minorityClassData[k] = new Instances(m_minorityData, 0);
+				for (Instance instance : m_minorityData)
+					if ((int) instance.classValue() == m_MinorityClasses[k])
+						m_minorityClassData[k].add(instance);
+			}
+			m_Classifiers = makePartitionClassifiers(m_NumIterations * m_MinorityClasses.length);
+			m_sharedPartitions = new Instances[m_NumIterations];
+			m_sharedPartitionUses = new int[m_NumIterations];
+		}
+
 		for (int j = 0; j < m_Classifiers.length; j++) {
 			if (m_Classifiers[j] instanceof Randomizable) {
-				((Randomizable) m_Classifiers[j]).setSeed(m_random.nextInt());
+				((Randomizable) m_Classifiers[j]).setSeed((int) deriveSeed(getPartitionSeed(j), CLASSIFIER_SEED));
 			}
 		}
 
-		buildClassifiers();
+		m_AdaptiveAUPRC = null;
+		try {
+			if (m_AdaptiveTolerance > 0)
+				buildAdaptively(m_MinorityClasses[0]);
+			else
+				buildClassifiers();
+			retainBuiltPartitions(m_BuildToken, start);
+		} finally {
+			if (ownStore)
+				closeMajorityStore();
+			m_minorityClassData = null;
+			m_sharedPartitions = null;
+			m_sharedPartitionUses = null;
+		}
 
 		// save memory
 		m_majorityData = null;
 		m_minorityData = null;
+		m_majorityWeights = null;
+	}
+
+	/**
+	 * Returns new untrained classifiers for the partitions, used when each partition gets one classifier per minority
+	 * class. The classifiers of a partition follow each other.
+	 * 
+	 * @param numClassifiers
+	 *            the number of classifiers
+	 * @return the classifiers
+	 * @throws Exception
+	 *             if the base classifier cannot be copied
+	 */
+	protected Classifier[] makePartitionClassifiers(int numClassifiers) throws Exception {
+		return AbstractClassifier.makeCopies(m_Classifier, numClassifiers);
+	}
+
+	/**
+	 * Closes the majority class storage created for a build.
+	 */
+	private void closeMajorityStore() {
+		try {
+			m_majorityStore.close();
+		} catch (IOException e) {
+			System.err.println("Could not release the majority class storage: " + e.getMessage());
+		}
+		m_majorityStore = null;
 	}
 	
 
@@ -329,10 +1599,12 @@ public class EasyEnsemble extends RandomizableParallelIteratedSingleClassifierEn
 	 */
 	@Override
 	public double[] distributionForInstance(Instance instance) throws Exception {
+		if (!instance.classAttribute().isNumeric())
+			return distributionForInstance(instance, new double[instance.numClasses()]);
 		double[] sums = new double[instance.numClasses()], newProbs;
 
 		double numPreds = 0;
-		for (int i = 0; i < m_NumIterations; i++) {
+		for (int i = 0; i < m_Classifiers.length; i++) {
 			if (instance.classAttribute().isNumeric() == true) {
 				double pred = m_Classifiers[i].classifyInstance(instance);
 				if (!Utils.isMissingValue(pred)) {
@@ -360,32 +1632,209 @@ public class EasyEnsemble extends RandomizableParallelIteratedSingleClassifierEn
 		}
 	}
 
+	/**
+	 * Calculates the class membership probabilities for the given test instance into the given array. The partition
+	 * distributions are collected in a scratch buffer of the calling thread, so nothing is allocated per call once the
+	 * buffer is warm if the partition classifiers score without allocating, see
+	 * {@link #partitionDistribution(Classifier, Instance, double[])}.
+	 *
+	 * @param instance
+	 *            the instance to be classified
+	 * @param dist
+	 *            the array for the distribution, one entry per class
+	 * @return the given array with the predicted class probability distribution
+	 * @throws Exception
+	 *             if distribution can't be computed successfully
+	 */
+	public double[] distributionForInstance(Instance instance, double[] dist) throws Exception {
+		if (instance.classAttribute().isNumeric()) {
+			double[] result = distributionForInstance(instance);
+			System.arraycopy(result, 0, dist, 0, result.length);
+			return dist;
+		}
+		double[] scratch = SCRATCH.get();
+		if (scratch.length != dist.length) {
+			scratch = new double[dist.length];
+			SCRATCH.set(scratch);
+		}
+		Arrays.fill(dist, 0);
+		for (int i = 0; i < m_Classifiers.length; i++) {
+			double[] newProbs = partitionDistribution(m_Classifiers[i], instance, scratch);
+			for (int j = 0; j < dist.length; j++)
+				dist[j] += newProbs[j];
+		}
+		if (!Utils.eq(Utils.sum(dist), 0))
+			Utils.normalize(dist);
+		return dist;
+	}
+
+	/**
+	 * Calculates the class membership probabilities of a partition classifier. Subclasses can score into the given
+	 * scratch buffer instead of allocating a new distribution.
+	 *
+	 * @param classifier
+	 *            the classifier of the partition
+	 * @param instance
+	 *            the instance to be classified
+	 * @param scratch
+	 *            a buffer of the calling thread with one entry per class
+	 * @return the distribution, either the scratch buffer or a new array
+	 * @throws Exception
+	 *             if distribution can't be computed successfully
+	 */
+	protected double[] partitionDistribution(Classifier classifier, Instance instance, double[] scratch)
+			throws Exception {
+		return classifier.distributionForInstance(instance);
+	}
+
+	/**
+	 * Calculates the class membership probabilities for a batch of test instances. Every partition classifier scores
+	 * the whole batch at once, using its own batch prediction if it has one.
+	 *
+	 * @param instances
+	 *            the instances to be classified
+	 * @return predicted class probability distributions, one row per instance
+	 * @throws Exception
+	 *             if distributions can't be computed successfully
+	 */
+	@Override
+	public double[][] distributionsForInstances(Instances instances) throws Exception {
+		if (instances.classAttribute().isNumeric())
+			return super.distributionsForInstances(instances);
+
+		double[][] sums = new double[instances.numInstances()][instances.numClasses()];
+		for (int i = 0; i < m_Classifiers.length; i++) {
+			double[][] newProbs;
+			if (m_Classifiers[i] instanceof BatchPredictor) {
+				newProbs = ((BatchPredictor) m_Classifiers[i]).distributionsForInstances(instances);
+			} else {
+				newProbs = new double[instances.numInstances()][];
+				for (int k = 0; k < instances.numInstances(); k++)
+					newProbs[k] = m_Classifiers[i].distributionForInstance(instances.instance(k));
+			}
+			for (int k = 0; k < sums.length; k++)
+				for (int j = 0; j < newProbs[k].length; j++)
+					sums[k][j] += newProbs[k][j];
+		}
+		for (int k = 0; k < sums.length; k++) {
+			if (!Utils.eq(Utils.sum(sums[k]), 0))
+				Utils.normalize(sums[k]);
+		}
+		return sums;
+	}
+
+	@Override
+	public boolean implementsMoreEfficientBatchPrediction() {
+		return true;
+	}
+
+	/**
+	 * Returns the classifiers of the partitions of the built model.
+	 * 
+	 * @return the classifiers, null if no model is built yet
+	 */
+	public Classifier[] getPartitionClassifiers() {
+		return m_Classifiers;
+	}
+
+	/**
+	 * Returns the number of classifiers of each partition, one per minority class.
+	 * 
+	 * @return the number of classifiers of a partition
+	 */
+	public int numClassifiersPerPartition() {
+		return m_MinorityClasses == null ? 1 : m_MinorityClasses.length;
+	}
+
+	/**
+	 * Returns the number of partitions of the built model. Can be smaller than {@link #getNumIterations()} if the build
+	 * was stopped or partitions were removed.
+	 * 
+	 * @return the number of partitions, 0 if no model is built yet
+	 */
+	public int getNumPartitions() {
+		return m_Classifiers == null ? 0 : m_Classifiers.length / numClassifiersPerPartition();
+	}
+
+	/**
+	 * Keeps only the given partitions of the built model, each with the classifiers of all its minority classes. The
+	 * number of iterations is not changed, so the next build trains all partitions again.
+	 * 
+	 * @param partitions
+	 *            the indices of the partitions to keep
+	 */
+	public void retainPartitions(int[] partitions) {
+		int numClassifiers = numClassifiersPerPartition();
+		Classifier[] retained = new Classifier[partitions.length * numClassifiers];
+		for (int i = 0; i < partitions.length; i++)
+			System.arraycopy(m_Classifiers, partitions[i] * numClassifiers, retained, i * numClassifiers,
+					numClassifiers);
+		m_Classifiers = retained;
+	}
+
 	@Override
 	public String toString() {
 
 		if (m_Classifiers == null)
 			return "EasyEnsemble: No model built yet.";
 
-		StringBuffer text = new StringBuffer();
-		text.append("All the base classifiers: \n\n");
-		for (int i = 0; i < m_Classifiers.length; i++)
-			text.append(m_Classifiers[i].toString() + "\n\n");
-
+		StringWriter text = new StringWriter();
+		try {
+			writeDescription(text);
+		} catch (IOException e) {
+			// cannot happen for a StringWriter
+		}
 		return text.toString();
 	}
 
-	private int getMinorityClass(Instances data) {
-		int minIndex = 0;
-		int min = Integer.MAX_VALUE;
-		// find minority class
-		int[] classCounts = data.attributeStats(data.classIndex()).nominalCounts;
-		for (int i = 0; i < classCounts.length; i++) {
-			if (classCounts[i] != 0 && classCounts[i] < min) {
-				min = classCounts[i];
-				minIndex = i;
+	/**
+	 * Writes the same text as {@link #toString()} partition by partition, so only the text of one partition is held in
+	 * memory. Use it instead of {@link #toString()} for large models that print their trees.
+	 * 
+	 * @param writer
+	 *            the writer
+	 * @throws IOException
+	 *             if the text cannot be written
+	 */
+	public void writeDescription(Writer writer) throws IOException {
+		if (m_Classifiers == null) {
+			writer.write(getClass().getSimpleName() + ": No model built yet.");
+			return;
+		}
+		if (m_BuildStopped)
+			writer.write(getBuildReport() + "\n\n");
+		writer.write("All the base classifiers: \n\n");
+		for (int i = 0; i < m_Classifiers.length; i++)
+			writer.write(m_Classifiers[i].toString() + "\n\n");
+	}
+
+	/**
+	 * Returns the minority classes: the {@link #m_NumMinorityClasses} least frequent classes that occur, ordered by
+	 * frequency. At least one class that occurs is left as majority class.
+	 * 
+	 * @param classCounts
+	 *            the number of instances of each class
+	 * @return the indices of the minority classes
+	 */
+	protected int[] getMinorityClasses(int[] classCounts) {
+		int numPresent = 0;
+		for (int count : classCounts)
+			if (count != 0)
+				numPresent++;
+		int[] minorityClasses = new int[Math.max(1, Math.min(m_NumMinorityClasses, numPresent - 1))];
+		boolean[] taken = new boolean[classCounts.length];
+		for (int k = 0; k < minorityClasses.length; k++) {
+			int min = Integer.MAX_VALUE;
+			// find the next minority class
+			for (int i = 0; i < classCounts.length; i++) {
+				if (!taken[i] && classCounts[i] != 0 && classCounts[i] < min) {
+					min = classCounts[i];
+					minorityClasses[k] = i;
+				}
 			}
+			taken[minorityClasses[k]] = true;
 		}
-		return minIndex;
+		return minorityClasses;
 	}
 
 
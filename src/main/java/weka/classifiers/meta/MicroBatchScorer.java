@@ -0,0 +1,365 @@
+package weka.classifiers.meta;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import weka.classifiers.Classifier;
+import weka.core.BatchPredictor;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * <p>
+ * Asynchronous scoring facade for a trained classifier, usually a {@link EasyEnsemble} or HyperSMURF. Requests of many
+ * threads are queued and collected into micro-batches by a single worker thread. A batch is closed when it reaches the
+ * maximum batch size or when its first request has waited for the maximum wait time. Each batch is scored in one pass
+ * through the ensemble with {@link BatchPredictor#distributionsForInstances(Instances)}.
+ * </p>
+ *
+ * <p>
+ * Because only the worker thread touches the classifier, the filters of the partition classifiers are never used
+ * concurrently. Latency percentiles and a batch-size histogram are available with {@link #getStatistics()}.
+ * </p>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class MicroBatchScorer implements Closeable {
+
+	/** Number of most recent latencies kept for the percentiles */
+	protected static final int LATENCY_WINDOW = 1 << 16;
+
+	/** The trained classifier */
+	protected final Classifier m_Classifier;
+
+	/** Header of the training data, used to assemble the batches */
+	protected final Instances m_Header;
+
+	/** The maximum number of instances in a batch */
+	protected final int m_MaxBatchSize;
+
+	/** The maximum time in nanoseconds the first request of a batch waits for more requests */
+	protected final long m_MaxWaitNanos;
+
+	/** Queue of pending requests */
+	protected final BlockingQueue<Request> m_Queue = new LinkedBlockingQueue<Request>();
+
+	/** The statistics of the scorer */
+	protected final Statistics m_Statistics;
+
+	/** The worker thread */
+	protected final Thread m_Worker;
+
+	/** False after the scorer is closed */
+	protected volatile boolean m_Running = true;
+
+	/** Guards queuing a request against closing the scorer */
+	protected final Object m_Lock = new Object();
+
+	/**
+	 * A queued scoring request.
+	 */
+	protected static class Request {
+		protected final Instance m_Instance;
+		protected final long m_Submitted = System.nanoTime();
+		protected final CompletableFuture<double[]> m_Future = new CompletableFuture<double[]>();
+
+		protected Request(Instance instance) {
+			m_Instance = instance;
+		}
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param classifier
+	 *            the trained classifier
+	 * @param header
+	 *            the header of the training data
+	 * @param maxBatchSize
+	 *            the maximum number of instances in a batch
+	 * @param maxWaitMicros
+	 *            the maximum time in microseconds a request waits for a batch to fill up
+	 */
+	public MicroBatchScorer(Classifier classifier, Instances header, int maxBatchSize, long maxWaitMicros) {
+		this(classifier, header, maxBatchSize, maxWaitMicros, new Statistics(maxBatchSize));
+	}
+
+	/**
+	 * Constructor with statistics that may be shared with other scorers, e.g. the scorers of the models a server loads
+	 * one after the other.
+	 *
+	 * @param classifier
+	 *            the trained classifier
+	 * @param header
+	 *            the header of the training data
+	 * @param maxBatchSize
+	 *            the maximum number of instances in a batch
+	 * @param maxWaitMicros
+	 *            the maximum time in microseconds a request waits for a batch to fill up
+	 * @param statistics
+	 *            the statistics to add to, for batches of at least the maximum batch size
+	 */
+	public MicroBatchScorer(Classifier classifier, Instances header, int maxBatchSize, long maxWaitMicros,
+			Statistics statistics) {
+		if (maxBatchSize < 1)
+			throw new IllegalArgumentException("Maximum batch size must be >= 1!");
+		if (maxWaitMicros < 0)
+			throw new IllegalArgumentException("Maximum wait time must be >= 0!");
+		m_Classifier = classifier;
+		m_Header = new Instances(header, 0);
+		m_MaxBatchSize = maxBatchSize;
+		m_MaxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+		if (statistics.getMaxBatchSize() < maxBatchSize)
+			throw new IllegalArgumentException("The statistics are for batches of at most "
+					+ statistics.getMaxBatchSize() + " instances!");
+		m_Statistics = statistics;
+
+		m_Worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		}, "MicroBatchScorer");
+		m_Worker.setDaemon(true);
+		m_Worker.start();
+	}
+
+	/**
+	 * Queues an instance for scoring. The future fails if the scorer is closed.
+	 *
+	 * @param instance
+	 *            the instance to be classified, compatible with the header
+	 * @return future of the predicted class probability distribution
+	 */
+	public CompletableFuture<double[]> score(Instance instance) {
+		Request request = new Request(instance);
+		synchronized (m_Lock) {
+			// a request queued before close() is scored by the worker before it stops
+			if (m_Running) {
+				m_Queue.add(request);
+				return request.m_Future;
+			}
+		}
+		request.m_Future.completeExceptionally(new IllegalStateException("Scorer is closed!"));
+		return request.m_Future;
+	}
+
+	/**
+	 * Returns the statistics of this scorer.
+	 *
+	 * @return the statistics
+	 */
+	public Statistics getStatistics() {
+		return m_Statistics;
+	}
+
+	/**
+	 * Stops accepting requests, scores all pending requests and stops the worker.
+	 */
+	@Override
+	public void close() {
+		synchronized (m_Lock) {
+			m_Running = false;
+		}
+		try {
+			m_Worker.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// requests left if the worker or the waiting for it was interrupted
+		failQueued(new IllegalStateException("Scorer is closed!"));
+	}
+
+	/**
+	 * Fails the futures of all queued requests.
+	 *
+	 * @param cause
+	 *            the exception of the futures
+	 */
+	protected void failQueued(Throwable cause) {
+		Request request;
+		while ((request = m_Queue.poll()) != null)
+			request.m_Future.completeExceptionally(cause);
+	}
+
+	/**
+	 * Loop of the worker thread.
+	 */
+	protected void work() {
+		List<Request> batch = new ArrayList<Request>(m_MaxBatchSize);
+		while (m_Running || !m_Queue.isEmpty()) {
+			try {
+				Request first = m_Queue.poll(10, TimeUnit.MILLISECONDS);
+				if (first == null)
+					continue;
+				batch.add(first);
+				long deadline = first.m_Submitted + m_MaxWaitNanos;
+				while (batch.size() < m_MaxBatchSize) {
+					if (m_Queue.drainTo(batch, m_MaxBatchSize - batch.size()) > 0)
+						continue;
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0)
+						break;
+					Request next = m_Queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if (next == null)
+						break;
+					batch.add(next);
+				}
+				scoreBatch(batch);
+			} catch (InterruptedException e) {
+				// stops without scoring the collected and queued requests, no request is queued afterwards
+				synchronized (m_Lock) {
+					m_Running = false;
+				}
+				CancellationException cancelled = new CancellationException("Scorer was interrupted!");
+				for (Request request : batch)
+					request.m_Future.completeExceptionally(cancelled);
+				failQueued(cancelled);
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Scores a batch of requests and completes their futures.
+	 *
+	 * @param batch
+	 *            the requests
+	 */
+	protected void scoreBatch(List<Request> batch) {
+		try {
+			Instances instances = new Instances(m_Header, batch.size());
+			for (Request request : batch)
+				instances.add(request.m_Instance);
+
+			double[][] distributions;
+			if (m_Classifier instanceof BatchPredictor
+					&& ((BatchPredictor) m_Classifier).implementsMoreEfficientBatchPrediction()) {
+				distributions = ((BatchPredictor) m_Classifier).distributionsForInstances(instances);
+			} else {
+				distributions = new double[batch.size()][];
+				for (int i = 0; i < batch.size(); i++)
+					distributions[i] = m_Classifier.distributionForInstance(instances.instance(i));
+			}
+
+			long now = System.nanoTime();
+			for (int i = 0; i < batch.size(); i++) {
+				m_Statistics.addLatency(now - batch.get(i).m_Submitted);
+				batch.get(i).m_Future.complete(distributions[i]);
+			}
+		} catch (Throwable e) {
+			for (Request request : batch)
+				request.m_Future.completeExceptionally(e);
+		}
+		m_Statistics.addBatch(batch.size());
+	}
+
+	/**
+	 * Latency and batch-size statistics of a {@link MicroBatchScorer}. Latencies are measured from queuing a request
+	 * to its completion. Percentiles are computed over the most recent requests.
+	 */
+	public static class Statistics {
+
+		private final long[] m_BatchSizes;
+		private final long[] m_Latencies = new long[LATENCY_WINDOW];
+		private long m_NumRequests = 0;
+		private long m_NumBatches = 0;
+
+		/**
+		 * Makes empty statistics.
+		 *
+		 * @param maxBatchSize
+		 *            the maximum number of instances in a batch
+		 */
+		public Statistics(int maxBatchSize) {
+			m_BatchSizes = new long[maxBatchSize + 1];
+		}
+
+		/**
+		 * Returns the maximum number of instances in a batch.
+		 *
+		 * @return the maximum batch size
+		 */
+		public int getMaxBatchSize() {
+			return m_BatchSizes.length - 1;
+		}
+
+		protected synchronized void addLatency(long nanos) {
+			m_Latencies[(int) (m_NumRequests % LATENCY_WINDOW)] = nanos;
+			m_NumRequests++;
+		}
+
+		protected synchronized void addBatch(int size) {
+			m_BatchSizes[size]++;
+			m_NumBatches++;
+		}
+
+		/**
+		 * Returns the number of scored requests.
+		 *
+		 * @return number of requests
+		 */
+		public synchronized long getNumRequests() {
+			return m_NumRequests;
+		}
+
+		/**
+		 * Returns the number of scored batches.
+		 *
+		 * @return number of batches
+		 */
+		public synchronized long getNumBatches() {
+			return m_NumBatches;
+		}
+
+		/**
+		 * Returns the batch-size histogram. Entry i is the number of batches with i instances.
+		 *
+		 * @return the histogram
+		 */
+		public synchronized long[] getBatchSizeHistogram() {
+			return m_BatchSizes.clone();
+		}
+
+		/**
+		 * Returns a latency percentile in microseconds.
+		 *
+		 * @param percentile
+		 *            the percentile between 0 and 100
+		 * @return the latency in microseconds, 0 if nothing was scored yet
+		 */
+		public synchronized double getLatencyPercentile(double percentile) {
+			int n = (int) Math.min(m_NumRequests, LATENCY_WINDOW);
+			if (n == 0)
+				return 0;
+			long[] sorted = Arrays.copyOf(m_Latencies, n);
+			Arrays.sort(sorted);
+			int index = (int) Math.ceil(percentile / 100.0 * n) - 1;
+			return sorted[Math.max(0, Math.min(n - 1, index))] / 1000.0;
+		}
+
+		@Override
+		public synchronized String toString() {
+			StringBuffer text = new StringBuffer();
+			text.append("Requests: " + m_NumRequests + ", batches: " + m_NumBatches + "\n");
+			text.append("Latency (us): p50=" + getLatencyPercentile(50) + " p90=" + getLatencyPercentile(90) + " p99="
+					+ getLatencyPercentile(99) + " p99.9=" + getLatencyPercentile(99.9) + "\n");
+			text.append("Batch sizes:\n");
+			for (int i = 1; i < m_BatchSizes.length; i++) {
+				if (m_BatchSizes[i] > 0)
+					text.append(i + "\t" + m_BatchSizes[i] + "\n");
+			}
+			return text.toString();
+		}
+	}
+
+}
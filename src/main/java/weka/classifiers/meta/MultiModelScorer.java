@@ -0,0 +1,528 @@
+package weka.classifiers.meta;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import weka.classifiers.Classifier;
+import weka.core.Attribute;
+import weka.core.BatchPredictor;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Range;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+import weka.core.converters.ConverterUtils.DataSource;
+import weka.core.converters.ParallelTextLoader;
+
+/**
+ * <p>
+ * Scores one input with many trained classifiers, e.g. HyperSMURF models per variant category or disease panel, in a
+ * single pass. Every row is read and parsed once. The attributes of each model are looked up by name in the input
+ * once, and models with equal training headers share the mapped rows. The rows are scored in batches, every model of
+ * a batch in its own task, while the next batch is read.
+ * </p>
+ *
+ * <p>
+ * A model is never used by two tasks at the same time, so the filters of its partition classifiers are safe. The
+ * score of a model is the probability of its positive class. Nominal values unknown to a model are scored as missing
+ * and counted, see {@link #getNumUnknownValues()}.
+ * </p>
+ *
+ * <p>
+ * Valid options are:
+ * </p>
+ *
+ * <pre>
+ *  -model &lt;file&gt;
+ *  A serialized model with its training header, can be given several times.
+ * </pre>
+ *
+ * <pre>
+ *  -i &lt;file&gt;
+ *  The input, ARFF, CSV or columnar, optionally gzipped.
+ * </pre>
+ *
+ * <pre>
+ *  -o &lt;file&gt;
+ *  The CSV output with one score per model and row.
+ *  (default: standard output)
+ * </pre>
+ *
+ * <pre>
+ *  -keep &lt;range&gt;
+ *  Input attributes copied to the output before the scores, e.g. first-3.
+ *  (default: none)
+ * </pre>
+ *
+ * <pre>
+ *  -C &lt;value-index&gt;
+ *  The index of the positive class value of all models, starting with 1.
+ *  (default 2)
+ * </pre>
+ *
+ * <pre>
+ *  -num-slots &lt;num&gt;
+ *  Number of execution slots.
+ *  (default number of cores)
+ * </pre>
+ *
+ * <pre>
+ *  -batch-size &lt;num&gt;
+ *  Number of rows scored together.
+ *  (default 1000)
+ * </pre>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class MultiModelScorer {
+
+	/** The trained classifiers */
+	protected final Classifier[] m_Classifiers;
+
+	/** The names of the classifiers, the columns of the output */
+	protected final String[] m_Names;
+
+	/** The distinct training headers */
+	protected final List<Instances> m_Headers = new ArrayList<Instances>();
+
+	/** The index of the training header of each classifier in {@link #m_Headers} */
+	protected final int[] m_HeaderIndex;
+
+	/** The index of the positive class of each classifier */
+	protected final int[] m_PositiveClass;
+
+	/** The structure of the input the mappings are prepared for */
+	protected Instances m_Input;
+
+	/** For every header and attribute the input attribute, -1 for the class */
+	protected int[][] m_AttributeMap;
+
+	/** For every header and nominal attribute the value of the header for each value of the input, -1 if unknown */
+	protected int[][][] m_ValueMap;
+
+	/** Number of values unknown to the headers */
+	protected final AtomicLong m_NumUnknownValues = new AtomicLong();
+
+	/** Number of execution slots */
+	protected int m_NumExecutionSlots = Runtime.getRuntime().availableProcessors();
+
+	/** Number of rows scored together */
+	protected int m_BatchSize = 1000;
+
+	/**
+	 * Constructor. The positive class of every classifier is its second class value.
+	 *
+	 * @param classifiers
+	 *            the trained classifiers
+	 * @param headers
+	 *            the headers of their training data with the class set
+	 * @param names
+	 *            the names of the classifiers
+	 */
+	public MultiModelScorer(Classifier[] classifiers, Instances[] headers, String[] names) {
+		if (classifiers.length != headers.length || classifiers.length != names.length)
+			throw new IllegalArgumentException("Need a header and a name for every classifier!");
+		m_Classifiers = classifiers;
+		m_Names = names;
+		m_HeaderIndex = new int[classifiers.length];
+		m_PositiveClass = new int[classifiers.length];
+		for (int i = 0; i < classifiers.length; i++) {
+			m_HeaderIndex[i] = -1;
+			for (int j = 0; j < m_Headers.size() && m_HeaderIndex[i] < 0; j++) {
+				if (m_Headers.get(j).equalHeaders(headers[i]))
+					m_HeaderIndex[i] = j;
+			}
+			if (m_HeaderIndex[i] < 0) {
+				m_HeaderIndex[i] = m_Headers.size();
+				m_Headers.add(new Instances(headers[i], 0));
+			}
+			m_PositiveClass[i] = Math.min(1, headers[i].numClasses() - 1);
+		}
+	}
+
+	/**
+	 * Get the number of execution slots.
+	 *
+	 * @return the number of slots
+	 */
+	public int getNumExecutionSlots() {
+		return m_NumExecutionSlots;
+	}
+
+	/**
+	 * Set the number of execution slots. More slots than classifiers do not speed up the scoring.
+	 *
+	 * @param numSlots
+	 *            the number of slots
+	 */
+	public void setNumExecutionSlots(int numSlots) {
+		if (numSlots > 0)
+			m_NumExecutionSlots = numSlots;
+		else
+			System.err.println("Number of execution slots has to be greater than 0!");
+	}
+
+	/**
+	 * Get the number of rows scored together.
+	 *
+	 * @return the batch size
+	 */
+	public int getBatchSize() {
+		return m_BatchSize;
+	}
+
+	/**
+	 * Set the number of rows scored together.
+	 *
+	 * @param batchSize
+	 *            the batch size
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize > 0)
+			m_BatchSize = batchSize;
+		else
+			System.err.println("Batch size has to be greater than 0!");
+	}
+
+	/**
+	 * Set the positive class of all classifiers.
+	 *
+	 * @param valueIndex
+	 *            the index of the class value, starting with 0
+	 */
+	public void setPositiveClass(int valueIndex) {
+		for (int i = 0; i < m_Classifiers.length; i++) {
+			if (valueIndex >= m_Headers.get(m_HeaderIndex[i]).numClasses())
+				throw new IllegalArgumentException(
+						"Model " + m_Names[i] + " has no class value with index " + (valueIndex + 1) + "!");
+			m_PositiveClass[i] = valueIndex;
+		}
+	}
+
+	/**
+	 * Returns the number of nominal input values unknown to a model, which were scored as missing.
+	 *
+	 * @return the number of values
+	 */
+	public long getNumUnknownValues() {
+		return m_NumUnknownValues.get();
+	}
+
+	/**
+	 * Looks up the attributes and nominal values of all training headers in the input. Done once per input structure.
+	 *
+	 * @param input
+	 *            the structure of the input
+	 * @throws Exception
+	 *             if an attribute of a model is missing in the input or has another type
+	 */
+	protected void prepare(Instances input) throws Exception {
+		if (m_Input != null && m_Input.equalHeaders(input))
+			return;
+		m_AttributeMap = new int[m_Headers.size()][];
+		m_ValueMap = new int[m_Headers.size()][][];
+		for (int h = 0; h < m_Headers.size(); h++) {
+			Instances header = m_Headers.get(h);
+			m_AttributeMap[h] = new int[header.numAttributes()];
+			m_ValueMap[h] = new int[header.numAttributes()][];
+			for (int j = 0; j < header.numAttributes(); j++) {
+				if (j == header.classIndex()) {
+					m_AttributeMap[h][j] = -1;
+					continue;
+				}
+				Attribute attribute = header.attribute(j);
+				Attribute inputAttribute = input.attribute(attribute.name());
+				if (inputAttribute == null)
+					throw new Exception("Attribute " + attribute.name() + " is missing in the input!");
+				if (attribute.isNominal() != inputAttribute.isNominal())
+					throw new Exception("Attribute " + attribute.name() + " has another type in the input!");
+				m_AttributeMap[h][j] = inputAttribute.index();
+				if (attribute.isNominal()) {
+					int[] values = new int[inputAttribute.numValues()];
+					for (int v = 0; v < values.length; v++)
+						values[v] = attribute.indexOfValue(inputAttribute.value(v));
+					m_ValueMap[h][j] = values;
+				}
+			}
+		}
+		m_Input = new Instances(input, 0);
+	}
+
+	/**
+	 * Maps a batch of the input to a training header.
+	 *
+	 * @param batch
+	 *            the rows of the input
+	 * @param h
+	 *            the index of the header
+	 * @return the rows in the format of the header
+	 */
+	protected Instances map(Instances batch, int h) {
+		Instances header = m_Headers.get(h);
+		int[] attributeMap = m_AttributeMap[h];
+		int[][] valueMap = m_ValueMap[h];
+		Instances mapped = new Instances(header, batch.numInstances());
+		long unknown = 0;
+		for (Instance instance : batch) {
+			double[] values = new double[attributeMap.length];
+			for (int j = 0; j < values.length; j++) {
+				if (attributeMap[j] < 0) {
+					values[j] = Utils.missingValue();
+					continue;
+				}
+				double value = instance.value(attributeMap[j]);
+				if (valueMap[j] != null && !Utils.isMissingValue(value)) {
+					int index = valueMap[j][(int) value];
+					if (index < 0) {
+						unknown++;
+						value = Utils.missingValue();
+					} else {
+						value = index;
+					}
+				}
+				values[j] = value;
+			}
+			mapped.add(new DenseInstance(instance.weight(), values));
+		}
+		m_NumUnknownValues.addAndGet(unknown);
+		return mapped;
+	}
+
+	/**
+	 * Scores a batch with one classifier.
+	 */
+	private double[] score(Instances mapped, int model) throws Exception {
+		Classifier classifier = m_Classifiers[model];
+		double[] scores = new double[mapped.numInstances()];
+		if (classifier instanceof BatchPredictor) {
+			double[][] distributions = ((BatchPredictor) classifier).distributionsForInstances(mapped);
+			for (int i = 0; i < scores.length; i++)
+				scores[i] = distributions[i][m_PositiveClass[model]];
+		} else {
+			for (int i = 0; i < scores.length; i++)
+				scores[i] = classifier.distributionForInstance(mapped.instance(i))[m_PositiveClass[model]];
+		}
+		return scores;
+	}
+
+	/**
+	 * Starts scoring a batch. Each header is mapped once, each classifier scores in its own task as soon as its header
+	 * is mapped.
+	 *
+	 * @param batch
+	 *            the rows of the input
+	 * @param executor
+	 *            the executor of the tasks
+	 * @return the scores of every classifier
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	protected CompletableFuture<double[]>[] submit(final Instances batch, ExecutorService executor) {
+		List<CompletableFuture<Instances>> mapped = new ArrayList<CompletableFuture<Instances>>();
+		for (int h = 0; h < m_Headers.size(); h++) {
+			final int header = h;
+			mapped.add(CompletableFuture.supplyAsync(new Supplier<Instances>() {
+				@Override
+				public Instances get() {
+					return map(batch, header);
+				}
+			}, executor));
+		}
+		CompletableFuture<double[]>[] scores = new CompletableFuture[m_Classifiers.length];
+		for (int i = 0; i < m_Classifiers.length; i++) {
+			final int model = i;
+			scores[i] = mapped.get(m_HeaderIndex[i]).thenApplyAsync(new Function<Instances, double[]>() {
+				@Override
+				public double[] apply(Instances instances) {
+					try {
+						return score(instances, model);
+					} catch (Exception e) {
+						throw new CompletionException(e);
+					}
+				}
+			}, executor);
+		}
+		return scores;
+	}
+
+	/**
+	 * Waits for the scores of a batch.
+	 *
+	 * @return the scores, one row per instance with one column per classifier
+	 */
+	private double[][] collect(CompletableFuture<double[]>[] futures, int numInstances) throws Exception {
+		double[][] scores = new double[numInstances][m_Classifiers.length];
+		for (int i = 0; i < futures.length; i++) {
+			double[] column;
+			try {
+				column = futures[i].join();
+			} catch (CompletionException e) {
+				Throwable cause = e.getCause();
+				throw cause instanceof Exception ? (Exception) cause : new Exception(cause);
+			}
+			for (int j = 0; j < numInstances; j++)
+				scores[j][i] = column[j];
+		}
+		return scores;
+	}
+
+	/**
+	 * Scores instances with all classifiers.
+	 *
+	 * @param instances
+	 *            the instances
+	 * @return the scores, one row per instance with one column per classifier
+	 * @throws Exception
+	 *             if the instances do not fit a classifier
+	 */
+	public double[][] score(Instances instances) throws Exception {
+		prepare(instances);
+		ExecutorService executor = Executors.newFixedThreadPool(m_NumExecutionSlots);
+		try {
+			return collect(submit(instances, executor), instances.numInstances());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Scores all rows of a data source with all classifiers and writes them as CSV: the kept input attributes followed
+	 * by one score per classifier. The next batch is read while the current one is scored.
+	 *
+	 * @param source
+	 *            the input
+	 * @param keep
+	 *            the input attributes copied to the output, may be null
+	 * @param out
+	 *            the output
+	 * @return the number of scored rows
+	 * @throws Exception
+	 *             if the input cannot be read or does not fit a classifier
+	 */
+	public long score(DataSource source, Range keep, Writer out) throws Exception {
+		Instances structure = source.getStructure();
+		prepare(structure);
+		int[] kept = new int[0];
+		if (keep != null) {
+			keep.setUpper(structure.numAttributes() - 1);
+			kept = keep.getSelection();
+		}
+
+		StringBuilder line = new StringBuilder();
+		for (int attribute : kept)
+			line.append(Utils.quote(structure.attribute(attribute).name())).append(',');
+		for (String name : m_Names)
+			line.append(Utils.quote(name)).append(',');
+		line.setLength(line.length() - 1);
+		out.write(line.append('\n').toString());
+
+		ExecutorService executor = Executors.newFixedThreadPool(m_NumExecutionSlots);
+		long numRows = 0;
+		try {
+			Instances batch = nextBatch(source, structure);
+			while (batch.numInstances() > 0) {
+				CompletableFuture<double[]>[] futures = submit(batch, executor);
+				Instances next = nextBatch(source, structure);
+				double[][] scores = collect(futures, batch.numInstances());
+				for (int i = 0; i < scores.length; i++) {
+					line.setLength(0);
+					for (int attribute : kept)
+						line.append(batch.instance(i).toString(attribute)).append(',');
+					for (double score : scores[i])
+						line.append(Utils.doubleToString(score, 6)).append(',');
+					line.setLength(line.length() - 1);
+					out.write(line.append('\n').toString());
+				}
+				numRows += batch.numInstances();
+				batch = next;
+			}
+		} finally {
+			executor.shutdown();
+		}
+		out.flush();
+		return numRows;
+	}
+
+	private Instances nextBatch(DataSource source, Instances structure) throws Exception {
+		Instances batch = new Instances(structure, m_BatchSize);
+		while (batch.numInstances() < m_BatchSize && source.hasMoreElements(structure))
+			batch.add(source.nextElement(structure));
+		return batch;
+	}
+
+	/**
+	 * Scores a file with several serialized models from the command line.
+	 *
+	 * @param args
+	 *            the options
+	 * @throws Exception
+	 *             if a model or the input cannot be read
+	 */
+	public static void main(String[] args) throws Exception {
+		List<String> modelFiles = new ArrayList<String>();
+		String modelFile;
+		while ((modelFile = Utils.getOption("model", args)).length() != 0)
+			modelFiles.add(modelFile);
+		String inputFile = Utils.getOption('i', args);
+		String outputFile = Utils.getOption('o', args);
+		String keep = Utils.getOption("keep", args);
+		String classValue = Utils.getOption('C', args);
+		String numSlots = Utils.getOption("num-slots", args);
+		String batchSize = Utils.getOption("batch-size", args);
+		Utils.checkForRemainingOptions(args);
+		if (modelFiles.isEmpty() || inputFile.length() == 0) {
+			System.err.println("Usage: MultiModelScorer -model <file> [-model <file> ...] -i <file> [-o <file>] "
+					+ "[-keep <range>] [-C <value-index>] [-num-slots <num>] [-batch-size <num>]");
+			System.exit(1);
+		}
+
+		Classifier[] classifiers = new Classifier[modelFiles.size()];
+		Instances[] headers = new Instances[modelFiles.size()];
+		String[] names = new String[modelFiles.size()];
+		for (int i = 0; i < classifiers.length; i++) {
+			Object[] objects = SerializationHelper.readAll(modelFiles.get(i));
+			if (objects.length < 2 || !(objects[0] instanceof Classifier) || !(objects[1] instanceof Instances))
+				throw new Exception(
+						"Model file " + modelFiles.get(i) + " must contain a classifier followed by its training header!");
+			classifiers[i] = (Classifier) objects[0];
+			headers[i] = (Instances) objects[1];
+			if (headers[i].classIndex() < 0)
+				headers[i].setClassIndex(headers[i].numAttributes() - 1);
+			names[i] = new File(modelFiles.get(i)).getName().replaceAll("\\.[^.]*$", "");
+		}
+
+		MultiModelScorer scorer = new MultiModelScorer(classifiers, headers, names);
+		if (classValue.length() != 0)
+			scorer.setPositiveClass(Integer.parseInt(classValue) - 1);
+		if (numSlots.length() != 0)
+			scorer.setNumExecutionSlots(Integer.parseInt(numSlots));
+		if (batchSize.length() != 0)
+			scorer.setBatchSize(Integer.parseInt(batchSize));
+
+		Writer out = new BufferedWriter(new OutputStreamWriter(
+				outputFile.length() == 0 ? System.out : new FileOutputStream(outputFile), StandardCharsets.UTF_8));
+		long start = System.nanoTime();
+		long numRows = scorer.score(ParallelTextLoader.getDataSource(inputFile),
+				keep.length() == 0 ? null : new Range(keep), out);
+		out.close();
+		System.err.println("Scored " + numRows + " rows with " + classifiers.length + " models in "
+				+ Utils.doubleToString((System.nanoTime() - start) / 1e9, 2) + " s.");
+		if (scorer.getNumUnknownValues() > 0)
+			System.err.println(scorer.getNumUnknownValues() + " nominal values unknown to a model were scored as missing.");
+	}
+
+}
@@ -0,0 +1,466 @@
+package weka.classifiers.trees;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import weka.classifiers.AbstractClassifier;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Tag;
+import weka.core.Utils;
+
+/**
+ * <p>
+ * A trained {@link RandomTree} of a nominal class in a compact, read-only form for scoring. The nodes are stored
+ * breadth first in flat arrays, the successors of a node next to each other. The class distributions are stored once
+ * per distinct distribution as 16 bit probabilities, either as unsigned integers (uint16, absolute error below
+ * 1e-5) or as half precision floats (float16, relative error below 1e-3). The split points are stored as float32 or
+ * exactly as 16 bit indices into split tables of the attributes, which can be shared by all trees of a forest, see
+ * {@link #splitTables(List)}. The proportions of the successors, used for missing values, are stored as uint16.
+ * Values within the rounding of a float32 split point can take the other branch, the split tables are exact.
+ * </p>
+ *
+ * <p>
+ * The tree scores like the {@link RandomTree} it was made from, up to the rounding of the stored values.
+ * </p>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class CompactTree extends AbstractClassifier {
+
+	/** for serialization */
+	private static final long serialVersionUID = -2795713024366328461L;
+
+	/** Class distributions as unsigned 16 bit integers */
+	public static final int LEAVES_UINT16 = 0;
+
+	/** Class distributions as half precision floats */
+	public static final int LEAVES_FLOAT16 = 1;
+
+	/** Storage formats of the class distributions */
+	public static final Tag[] TAGS_LEAVES = { new Tag(LEAVES_UINT16, "uint16", "Unsigned 16 bit integers"),
+			new Tag(LEAVES_FLOAT16, "float16", "Half precision floats") };
+
+	/** Split points as single precision floats */
+	public static final int THRESHOLDS_FLOAT32 = 0;
+
+	/** Split points as indices into the split tables of the attributes */
+	public static final int THRESHOLDS_TABLE = 1;
+
+	/** Storage formats of the split points */
+	public static final Tag[] TAGS_THRESHOLDS = {
+			new Tag(THRESHOLDS_FLOAT32, "float32", "Single precision floats"),
+			new Tag(THRESHOLDS_TABLE, "table", "Indices into split tables of the attributes") };
+
+	/** The largest number of split points of an attribute in a split table */
+	public static final int MAX_TABLE_SIZE = 1 << 16;
+
+	/** Attribute of a leaf */
+	protected static final int LEAF = -1;
+
+	/** The number of classes */
+	protected int m_NumClasses;
+
+	/** Whether instances that reach an empty leaf get an empty distribution */
+	protected boolean m_AllowUnclassifiedInstances;
+
+	/** The number of values of each attribute, 0 for numeric attributes */
+	protected int[] m_NumValues;
+
+	/** The attribute of each node, {@link #LEAF} for leaves */
+	protected int[] m_Attributes;
+
+	/** The first successor of each node */
+	protected int[] m_FirstSuccessors;
+
+	/** The split point of each node, null if the split tables are used */
+	protected float[] m_Thresholds;
+
+	/** The index of the split point of each node in the split table of its attribute */
+	protected char[] m_ThresholdIndices;
+
+	/** The split points of each attribute, sorted, null if the split points are stored as floats */
+	protected double[][] m_SplitTables;
+
+	/** The proportion of the instances of its parent in each node as uint16 */
+	protected char[] m_Props;
+
+	/** The class distribution of each node as index of the first value in {@link #m_Values}, -1 if there is none */
+	protected int[] m_Distributions;
+
+	/** The distinct class distributions, normalized */
+	protected char[] m_Values;
+
+	/** The storage format of the class distributions */
+	protected int m_LeafFormat;
+
+	/** Scratch buffers of the calling thread, one per missing value split on the path through the tree */
+	private static final ThreadLocal<double[][]> SCRATCH = new ThreadLocal<double[][]>() {
+		@Override
+		protected double[][] initialValue() {
+			return new double[0][];
+		}
+	};
+
+	/**
+	 * Makes the compact form of a trained tree.
+	 *
+	 * @param tree
+	 *            the tree, trained on a nominal class
+	 * @param leafFormat
+	 *            the storage format of the class distributions, {@link #LEAVES_UINT16} or {@link #LEAVES_FLOAT16}
+	 * @param splitTables
+	 *            the split tables of the attributes, which must contain all split points of the tree, or null to store
+	 *            the split points as float32
+	 * @throws Exception
+	 *             if the tree is not trained on a nominal class or cannot be read, see {@link FlatTree#read(RandomTree)}
+	 */
+	public CompactTree(RandomTree tree, int leafFormat, double[][] splitTables) throws Exception {
+		this(read(tree), leafFormat, splitTables);
+	}
+
+	/**
+	 * Makes the compact form of a trained tree.
+	 *
+	 * @param tree
+	 *            the flat form of the tree
+	 * @param leafFormat
+	 *            the storage format of the class distributions, {@link #LEAVES_UINT16} or {@link #LEAVES_FLOAT16}
+	 * @param splitTables
+	 *            the split tables of the attributes, which must contain all split points of the tree, or null to store
+	 *            the split points as float32
+	 */
+	public CompactTree(FlatTree tree, int leafFormat, double[][] splitTables) {
+		Instances header = tree.getHeader();
+		m_NumClasses = header.numClasses();
+		m_AllowUnclassifiedInstances = tree.getAllowUnclassifiedInstances();
+		m_LeafFormat = leafFormat;
+		m_SplitTables = splitTables;
+		m_NumValues = new int[header.numAttributes()];
+		for (int i = 0; i < m_NumValues.length; i++)
+			if (header.attribute(i).isNominal())
+				m_NumValues[i] = header.attribute(i).numValues();
+
+		// same breadth first order as the flat tree
+		int numNodes = tree.numNodes();
+		m_Attributes = new int[numNodes];
+		m_FirstSuccessors = new int[numNodes];
+		m_Props = new char[numNodes];
+		m_Distributions = new int[numNodes];
+		if (splitTables == null)
+			m_Thresholds = new float[numNodes];
+		else
+			m_ThresholdIndices = new char[numNodes];
+		Map<String, Integer> distributions = new HashMap<String, Integer>();
+		StringBuilder values = new StringBuilder();
+		for (int i = 0; i < numNodes; i++) {
+			m_Props[i] = quantize(tree.prop(i));
+			m_Distributions[i] = tree.classDistribution(i) == null ? -1
+					: distribution(tree.classDistribution(i), distributions, values);
+			int attribute = tree.attribute(i);
+			m_Attributes[i] = attribute == FlatTree.LEAF ? LEAF : attribute;
+			if (attribute == FlatTree.LEAF)
+				continue;
+			m_FirstSuccessors[i] = tree.firstSuccessor(i);
+			if (m_NumValues[attribute] == 0) {
+				if (splitTables == null)
+					m_Thresholds[i] = (float) tree.splitPoint(i);
+				else
+					m_ThresholdIndices[i] = (char) Arrays.binarySearch(splitTables[attribute], tree.splitPoint(i));
+			}
+		}
+		m_Values = values.toString().toCharArray();
+	}
+
+	/**
+	 * Reads the flat form of a tree that is compacted.
+	 */
+	private static FlatTree read(RandomTree tree) throws Exception {
+		FlatTree flatTree = FlatTree.read(tree);
+		if (flatTree == null)
+			throw new Exception("Only trained trees of a nominal class can be compacted!");
+		return flatTree;
+	}
+
+	/**
+	 * Returns the split tables of the numeric attributes of trees: the distinct split points of each attribute, sorted.
+	 * Attributes with more than {@link #MAX_TABLE_SIZE} split points cannot be stored in a table.
+	 *
+	 * @param trees
+	 *            the flat forms of the trained trees, with the same attributes
+	 * @return the split tables, one per attribute, or null if an attribute has too many split points
+	 */
+	public static double[][] splitTables(List<FlatTree> trees) {
+		if (trees.isEmpty())
+			return null;
+		List<TreeSet<Double>> splitPoints = new ArrayList<TreeSet<Double>>();
+		for (int i = 0; i < trees.get(0).getHeader().numAttributes(); i++)
+			splitPoints.add(new TreeSet<Double>());
+		for (FlatTree tree : trees) {
+			for (int node = 0; node < tree.numNodes(); node++) {
+				int attribute = tree.attribute(node);
+				if (attribute != FlatTree.LEAF && tree.getHeader().attribute(attribute).isNumeric())
+					splitPoints.get(attribute).add(tree.splitPoint(node));
+			}
+		}
+		double[][] tables = new double[splitPoints.size()][];
+		for (int i = 0; i < tables.length; i++) {
+			if (splitPoints.get(i).size() > MAX_TABLE_SIZE)
+				return null;
+			tables[i] = new double[splitPoints.get(i).size()];
+			int j = 0;
+			for (double splitPoint : splitPoints.get(i))
+				tables[i][j++] = splitPoint;
+		}
+		return tables;
+	}
+
+	/**
+	 * Returns the index of the quantized, normalized distribution in the values, adding it if it is new.
+	 */
+	private int distribution(double[] classDistribution, Map<String, Integer> distributions, StringBuilder values) {
+		double[] normalized = classDistribution.clone();
+		Utils.normalize(normalized);
+		char[] quantized = new char[m_NumClasses];
+		for (int j = 0; j < m_NumClasses; j++)
+			quantized[j] = m_LeafFormat == LEAVES_FLOAT16 ? toFloat16(normalized[j]) : quantize(normalized[j]);
+		String key = new String(quantized);
+		Integer index = distributions.get(key);
+		if (index == null) {
+			index = values.length();
+			distributions.put(key, index);
+			values.append(quantized);
+		}
+		return index;
+	}
+
+	/**
+	 * Quantizes a probability as uint16.
+	 */
+	protected static char quantize(double probability) {
+		return (char) Math.round(probability * Character.MAX_VALUE);
+	}
+
+	/**
+	 * Converts a non-negative value to a half precision float, rounded to the nearest value.
+	 */
+	protected static char toFloat16(double value) {
+		int bits = Float.floatToIntBits((float) value);
+		int exponent = ((bits >>> 23) & 0xff) - 127 + 15;
+		int mantissa = bits & 0x7fffff;
+		if (exponent >= 31)
+			return 0x7c00;
+		if (exponent <= 0) {
+			// subnormal
+			if (exponent < -10)
+				return 0;
+			mantissa |= 0x800000;
+			int shift = 14 - exponent;
+			return (char) ((mantissa >> shift) + ((mantissa >> (shift - 1)) & 1));
+		}
+		// a carry of the rounding into the exponent is still the nearest value
+		return (char) (((exponent << 10) | (mantissa >> 13)) + ((mantissa >> 12) & 1));
+	}
+
+	/**
+	 * Converts a non-negative half precision float to a double.
+	 */
+	protected static double fromFloat16(char value) {
+		int exponent = value >>> 10;
+		int mantissa = value & 0x3ff;
+		if (exponent == 0)
+			return mantissa * 0x1p-24;
+		return Float.intBitsToFloat(((exponent - 15 + 127) << 23) | (mantissa << 13));
+	}
+
+	/**
+	 * Compact trees are only made from trained trees.
+	 */
+	@Override
+	public void buildClassifier(Instances data) throws Exception {
+		throw new Exception("A compact tree is made from a trained RandomTree!");
+	}
+
+	@Override
+	public double[] distributionForInstance(Instance instance) throws Exception {
+		double[] dist = new double[m_NumClasses];
+		return distributionForInstance(instance, dist) ? dist : null;
+	}
+
+	/**
+	 * Calculates the class membership probabilities for the given test instance into the given array, walking the
+	 * tree on scratch buffers of the calling thread.
+	 *
+	 * @param instance
+	 *            the instance to be classified
+	 * @param dist
+	 *            the array for the distribution, one entry per class
+	 * @return false if the tree cannot classify the instance, as a {@link RandomTree} returning null
+	 */
+	public boolean distributionForInstance(Instance instance, double[] dist) {
+		double[] result = scratchDistribution(instance);
+		if (result == null)
+			return false;
+		System.arraycopy(result, 0, dist, 0, m_NumClasses);
+		return true;
+	}
+
+	/**
+	 * Calculates the class membership probabilities for the given test instance into a scratch buffer of the calling
+	 * thread, which is overwritten by the next call.
+	 *
+	 * @param instance
+	 *            the instance to be classified
+	 * @return the scratch buffer with the distribution, null if the tree cannot classify the instance
+	 */
+	protected double[] scratchDistribution(Instance instance) {
+		return distributionForInstance(instance, 0, 0) ? SCRATCH.get()[0] : null;
+	}
+
+	/**
+	 * Calculates the distribution of a node into the scratch buffer of the given depth, see
+	 * {@link PartitionForest#distributionForInstance(Instance, double[])}.
+	 */
+	private boolean distributionForInstance(Instance instance, int node, int depth) {
+		double[][] scratch = SCRATCH.get();
+		if (scratch.length <= depth + 1 || scratch[depth].length != m_NumClasses) {
+			scratch = Arrays.copyOf(scratch, Math.max(scratch.length, depth + 2));
+			for (int i = 0; i < scratch.length; i++)
+				if (scratch[i] == null || scratch[i].length != m_NumClasses)
+					scratch[i] = new double[m_NumClasses];
+			SCRATCH.set(scratch);
+		}
+		double[] dist = scratch[depth];
+		int attribute = m_Attributes[node];
+		if (attribute != LEAF) {
+			int first = m_FirstSuccessors[node];
+			double value = instance.value(attribute);
+			if (Utils.isMissingValue(value)) {
+				Arrays.fill(dist, 0);
+				int numSuccessors = m_NumValues[attribute] == 0 ? 2 : m_NumValues[attribute];
+				for (int i = first; i < first + numSuccessors; i++) {
+					if (!distributionForInstance(instance, i, depth + 1))
+						continue;
+					double[] help = SCRATCH.get()[depth + 1];
+					double prop = m_Props[i] / (double) Character.MAX_VALUE;
+					for (int j = 0; j < m_NumClasses; j++)
+						dist[j] += prop * help[j];
+				}
+				return true;
+			}
+			int successor;
+			if (m_NumValues[attribute] > 0)
+				successor = first + (int) value;
+			else
+				successor = first + (value < threshold(node, attribute) ? 0 : 1);
+			if (distributionForInstance(instance, successor, depth))
+				return true;
+		}
+		int index = m_Distributions[node];
+		if (index < 0) {
+			if (!m_AllowUnclassifiedInstances)
+				return false;
+			Arrays.fill(dist, 0);
+			return true;
+		}
+		for (int j = 0; j < m_NumClasses; j++)
+			dist[j] = value(index + j);
+		Utils.normalize(dist);
+		return true;
+	}
+
+	/**
+	 * Returns a stored probability.
+	 */
+	private double value(int index) {
+		if (m_LeafFormat == LEAVES_FLOAT16)
+			return fromFloat16(m_Values[index]);
+		return m_Values[index] / (double) Character.MAX_VALUE;
+	}
+
+	/**
+	 * Returns the class distribution of a node as it is used for scoring.
+	 *
+	 * @param node
+	 *            the node
+	 * @return the normalized distribution, null if the node has none
+	 */
+	protected double[] distribution(int node) {
+		int index = m_Distributions[node];
+		if (index < 0)
+			return null;
+		double[] dist = new double[m_NumClasses];
+		for (int j = 0; j < m_NumClasses; j++)
+			dist[j] = value(index + j);
+		Utils.normalize(dist);
+		return dist;
+	}
+
+	/**
+	 * Returns the split point of a node with a numeric attribute.
+	 *
+	 * @param node
+	 *            the node
+	 * @param attribute
+	 *            the attribute of the node
+	 * @return the split point
+	 */
+	protected double threshold(int node, int attribute) {
+		if (m_Thresholds != null)
+			return m_Thresholds[node];
+		return m_SplitTables[attribute][m_ThresholdIndices[node]];
+	}
+
+	/**
+	 * Returns the number of nodes.
+	 *
+	 * @return the number of nodes
+	 */
+	public int numNodes() {
+		return m_Attributes.length;
+	}
+
+	/**
+	 * Returns the number of leaves.
+	 *
+	 * @return the number of leaves
+	 */
+	public int numLeaves() {
+		int numLeaves = 0;
+		for (int attribute : m_Attributes)
+			if (attribute == LEAF)
+				numLeaves++;
+		return numLeaves;
+	}
+
+	/**
+	 * Returns the depth, the number of splits on the longest path from the root to a leaf.
+	 *
+	 * @return the depth
+	 */
+	public int depth() {
+		int[] depths = new int[m_Attributes.length];
+		int depth = 0;
+		for (int i = 0; i < m_Attributes.length; i++) {
+			depth = Math.max(depth, depths[i]);
+			if (m_Attributes[i] == LEAF)
+				continue;
+			int numSuccessors = m_NumValues[m_Attributes[i]] == 0 ? 2 : m_NumValues[m_Attributes[i]];
+			for (int j = m_FirstSuccessors[i]; j < m_FirstSuccessors[i] + numSuccessors; j++)
+				depths[j] = depths[i] + 1;
+		}
+		return depth;
+	}
+
+	@Override
+	public String toString() {
+		return "CompactTree\n===========\n\nSize of the tree : " + numNodes() + "\nDistinct class distributions : "
+				+ m_Values.length / m_NumClasses;
+	}
+
+}
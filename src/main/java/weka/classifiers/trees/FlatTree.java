@@ -0,0 +1,347 @@
+package weka.classifiers.trees;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * <p>
+ * The nodes of a trained {@link RandomTree} of a nominal class in flat arrays, read once for scoring and for the tools
+ * that inspect, compact or export the trees. The nodes are stored breadth first, the successors of a node next to each
+ * other. The split points, proportions and class distributions are the values of the tree, the class distribution
+ * arrays are shared with it, so the flat tree scores exactly like the {@link RandomTree}.
+ * </p>
+ *
+ * <p>
+ * The nodes of a {@link RandomTree} are only reachable through protected fields. Weka loads packages in a class loader
+ * of their own, so the classes of this package are not in the runtime package of {@link RandomTree} and the fields are
+ * read by reflection, like {@link HyperSMURFInspector} reads the object graph of a model. If they cannot be read,
+ * {@link #read(RandomTree)} returns null and the callers fall back to the public API of the tree.
+ * </p>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class FlatTree {
+
+	/** Attribute of a leaf */
+	public static final int LEAF = -1;
+
+	/** The fields of {@link RandomTree} and its nodes, null if they cannot be read */
+	private static final Field TREE = field(RandomTree.class, "m_Tree");
+	private static final Field INFO = field(RandomTree.class, "m_Info");
+	private static final Field ZERO_R = field(RandomTree.class, "m_zeroR");
+	private static final Field ATTRIBUTE = field(RandomTree.Tree.class, "m_Attribute");
+	private static final Field SPLIT_POINT = field(RandomTree.Tree.class, "m_SplitPoint");
+	private static final Field PROP = field(RandomTree.Tree.class, "m_Prop");
+	private static final Field CLASS_DISTRIBUTION = field(RandomTree.Tree.class, "m_ClassDistribution");
+	private static final Field SUCCESSORS = field(RandomTree.Tree.class, "m_Successors");
+
+	/** The header of the training data of the tree */
+	protected final Instances m_Header;
+
+	/** The number of classes */
+	protected final int m_NumClasses;
+
+	/** Whether instances that reach an empty leaf get an empty distribution */
+	protected final boolean m_AllowUnclassifiedInstances;
+
+	/** The number of values of each attribute, 0 for numeric attributes */
+	protected final int[] m_NumValues;
+
+	/** The attribute of each node, {@link #LEAF} for leaves */
+	protected final int[] m_Attributes;
+
+	/** The first successor of each node */
+	protected final int[] m_FirstSuccessors;
+
+	/** The split point of each node with a numeric attribute */
+	protected final double[] m_SplitPoints;
+
+	/** The proportion of the instances of its parent in each node, 1 for the root */
+	protected final double[] m_Props;
+
+	/** The class distribution of each node as stored in the tree, null if there is none */
+	protected final double[][] m_ClassDistributions;
+
+	/** Scratch buffers of the calling thread, one per missing value split on the path through a tree */
+	private static final ThreadLocal<double[][]> SCRATCH = new ThreadLocal<double[][]>() {
+		@Override
+		protected double[][] initialValue() {
+			return new double[0][];
+		}
+	};
+
+	/**
+	 * Reads the nodes of a trained tree.
+	 *
+	 * @param tree
+	 *            the tree
+	 * @return the flat tree, null if the tree is not trained on a nominal class, was replaced by ZeroR or its fields
+	 *         cannot be read
+	 */
+	public static FlatTree read(RandomTree tree) {
+		if (TREE == null || INFO == null || ZERO_R == null || ATTRIBUTE == null || SPLIT_POINT == null || PROP == null
+				|| CLASS_DISTRIBUTION == null || SUCCESSORS == null)
+			return null;
+		try {
+			Object root = TREE.get(tree);
+			Instances header = (Instances) INFO.get(tree);
+			if (root == null || ZERO_R.get(tree) != null || header == null || !header.classAttribute().isNominal())
+				return null;
+			return new FlatTree(root, header, tree.getAllowUnclassifiedInstances());
+		} catch (IllegalAccessException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns an accessible field, null if it cannot be made accessible.
+	 */
+	private static Field field(Class<?> type, String name) {
+		try {
+			Field field = type.getDeclaredField(name);
+			field.setAccessible(true);
+			return field;
+		} catch (Exception e) {
+			// renamed in another Weka version or denied by a security manager
+			return null;
+		}
+	}
+
+	private FlatTree(Object root, Instances header, boolean allowUnclassifiedInstances) throws IllegalAccessException {
+		m_Header = header;
+		m_NumClasses = header.numClasses();
+		m_AllowUnclassifiedInstances = allowUnclassifiedInstances;
+		m_NumValues = new int[header.numAttributes()];
+		for (int i = 0; i < m_NumValues.length; i++)
+			if (header.attribute(i).isNominal())
+				m_NumValues[i] = header.attribute(i).numValues();
+
+		// breadth first, the successors of a node are added next to each other
+		List<Object> nodes = new ArrayList<Object>();
+		nodes.add(root);
+		for (int i = 0; i < nodes.size(); i++) {
+			Object[] successors = (Object[]) SUCCESSORS.get(nodes.get(i));
+			if (ATTRIBUTE.getInt(nodes.get(i)) > LEAF && successors != null)
+				nodes.addAll(Arrays.asList(successors));
+		}
+		int numNodes = nodes.size();
+		m_Attributes = new int[numNodes];
+		m_FirstSuccessors = new int[numNodes];
+		m_SplitPoints = new double[numNodes];
+		m_Props = new double[numNodes];
+		m_ClassDistributions = new double[numNodes][];
+		m_Props[0] = 1.0;
+		int next = 1;
+		for (int i = 0; i < numNodes; i++) {
+			Object node = nodes.get(i);
+			m_ClassDistributions[i] = (double[]) CLASS_DISTRIBUTION.get(node);
+			Object[] successors = (Object[]) SUCCESSORS.get(node);
+			int attribute = ATTRIBUTE.getInt(node);
+			if (attribute <= LEAF || successors == null) {
+				m_Attributes[i] = LEAF;
+				continue;
+			}
+			m_Attributes[i] = attribute;
+			m_SplitPoints[i] = SPLIT_POINT.getDouble(node);
+			m_FirstSuccessors[i] = next;
+			double[] props = (double[]) PROP.get(node);
+			for (int j = 0; j < successors.length; j++)
+				m_Props[next++] = props[j];
+		}
+	}
+
+	/**
+	 * Calculates the class membership probabilities for the given test instance into a scratch buffer of the calling
+	 * thread, which is overwritten by the next call. Same arithmetic as the nodes of {@link RandomTree}.
+	 *
+	 * @param instance
+	 *            the instance to be classified
+	 * @return the scratch buffer with the distribution, null if the tree cannot classify the instance
+	 */
+	protected double[] scratchDistribution(Instance instance) {
+		return distributionForInstance(instance, 0, 0) ? SCRATCH.get()[0] : null;
+	}
+
+	/**
+	 * Calculates the distribution of a node into the scratch buffer of the given depth, the depth only increases at
+	 * splits on missing values.
+	 *
+	 * @return false if the node cannot classify the instance
+	 */
+	private boolean distributionForInstance(Instance instance, int node, int depth) {
+		double[][] scratch = SCRATCH.get();
+		if (scratch.length <= depth + 1 || scratch[depth].length != m_NumClasses) {
+			scratch = Arrays.copyOf(scratch, Math.max(scratch.length, depth + 2));
+			for (int i = 0; i < scratch.length; i++)
+				if (scratch[i] == null || scratch[i].length != m_NumClasses)
+					scratch[i] = new double[m_NumClasses];
+			SCRATCH.set(scratch);
+		}
+		double[] dist = scratch[depth];
+		int attribute = m_Attributes[node];
+		if (attribute != LEAF) {
+			int first = m_FirstSuccessors[node];
+			if (instance.isMissing(attribute)) {
+				Arrays.fill(dist, 0);
+				for (int i = first; i < first + numSuccessors(node); i++) {
+					if (!distributionForInstance(instance, i, depth + 1))
+						continue;
+					double[] help = SCRATCH.get()[depth + 1];
+					for (int j = 0; j < m_NumClasses; j++)
+						dist[j] += m_Props[i] * help[j];
+				}
+				return true;
+			}
+			int successor;
+			if (m_NumValues[attribute] > 0)
+				successor = first + (int) instance.value(attribute);
+			else
+				successor = first + (instance.value(attribute) < m_SplitPoints[node] ? 0 : 1);
+			if (distributionForInstance(instance, successor, depth))
+				return true;
+		}
+		if (m_ClassDistributions[node] == null) {
+			if (!m_AllowUnclassifiedInstances)
+				return false;
+			Arrays.fill(dist, 0);
+			return true;
+		}
+		System.arraycopy(m_ClassDistributions[node], 0, dist, 0, m_NumClasses);
+		Utils.normalize(dist);
+		return true;
+	}
+
+	/**
+	 * Get the header of the training data of the tree.
+	 *
+	 * @return the header, shared with the tree
+	 */
+	public Instances getHeader() {
+		return m_Header;
+	}
+
+	/**
+	 * Get whether instances that reach an empty leaf get an empty distribution.
+	 *
+	 * @return true if they get an empty distribution, false if the tree cannot classify them
+	 */
+	public boolean getAllowUnclassifiedInstances() {
+		return m_AllowUnclassifiedInstances;
+	}
+
+	/**
+	 * Returns the number of nodes.
+	 *
+	 * @return the number of nodes
+	 */
+	public int numNodes() {
+		return m_Attributes.length;
+	}
+
+	/**
+	 * Returns the number of leaves.
+	 *
+	 * @return the number of leaves
+	 */
+	public int numLeaves() {
+		int numLeaves = 0;
+		for (int attribute : m_Attributes)
+			if (attribute == LEAF)
+				numLeaves++;
+		return numLeaves;
+	}
+
+	/**
+	 * Returns the depth, the number of splits on the longest path from the root to a leaf.
+	 *
+	 * @return the depth
+	 */
+	public int depth() {
+		int[] depths = new int[m_Attributes.length];
+		int depth = 0;
+		for (int i = 0; i < m_Attributes.length; i++) {
+			depth = Math.max(depth, depths[i]);
+			for (int j = m_FirstSuccessors[i]; j < m_FirstSuccessors[i] + numSuccessors(i); j++)
+				depths[j] = depths[i] + 1;
+		}
+		return depth;
+	}
+
+	/**
+	 * Returns the attribute of a node.
+	 *
+	 * @param node
+	 *            the node
+	 * @return the index of the attribute, {@link #LEAF} for a leaf
+	 */
+	public int attribute(int node) {
+		return m_Attributes[node];
+	}
+
+	/**
+	 * Returns the first successor of a node, the others follow it.
+	 *
+	 * @param node
+	 *            the node, no leaf
+	 * @return the first successor
+	 */
+	public int firstSuccessor(int node) {
+		return m_FirstSuccessors[node];
+	}
+
+	/**
+	 * Returns the number of successors of a node: the number of values of a nominal attribute, two for a numeric one.
+	 *
+	 * @param node
+	 *            the node
+	 * @return the number of successors, 0 for a leaf
+	 */
+	public int numSuccessors(int node) {
+		int attribute = m_Attributes[node];
+		if (attribute == LEAF)
+			return 0;
+		return m_NumValues[attribute] == 0 ? 2 : m_NumValues[attribute];
+	}
+
+	/**
+	 * Returns the split point of a node with a numeric attribute. Instances with a smaller value go to the first
+	 * successor.
+	 *
+	 * @param node
+	 *            the node
+	 * @return the split point
+	 */
+	public double splitPoint(int node) {
+		return m_SplitPoints[node];
+	}
+
+	/**
+	 * Returns the proportion of the training instances of the parent that reached a node, used for missing values.
+	 *
+	 * @param node
+	 *            the node
+	 * @return the proportion, 1 for the root
+	 */
+	public double prop(int node) {
+		return m_Props[node];
+	}
+
+	/**
+	 * Returns the class distribution of a node as stored in the tree, not normalized.
+	 *
+	 * @param node
+	 *            the node
+	 * @return the distribution, shared with the tree, null if the node has none
+	 */
+	public double[] classDistribution(int node) {
+		return m_ClassDistributions[node];
+	}
+
+}
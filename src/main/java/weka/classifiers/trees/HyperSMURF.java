@@ -1,24 +1,29 @@
 package weka.classifiers.trees;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
-import java.util.Random;
 import java.util.Vector;
 
 import weka.classifiers.Classifier;
-import weka.classifiers.RandomizableClassifier;
+import weka.classifiers.meta.CancellationToken;
 import weka.classifiers.meta.EasyEnsemble;
 import weka.classifiers.meta.FilteredClassifier;
-import weka.classifiers.meta.RandomizableFilteredClassifier;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.Option;
 import weka.core.TechnicalInformation;
 import weka.core.TechnicalInformation.Field;
 import weka.core.TechnicalInformation.Type;
 import weka.core.Utils;
+import weka.core.converters.ColumnarDataset;
 import weka.filters.Filter;
 import weka.filters.MultiFilter;
 import weka.filters.supervised.instance.SMOTE;
+import weka.filters.supervised.instance.SparseSMOTE;
 import weka.filters.supervised.instance.SpreadSubsample;
 
 /**
@@ -84,6 +89,44 @@ import weka.filters.supervised.instance.SpreadSubsample;
  *  (default 1 - i.e. no parallelism)
  * </pre>
  * 
+ * <pre>
+ *  -memory-budget &lt;MB&gt;
+ *  Heap budget in MB for partitions built at the same time.
+ *  (default 0 - i.e. no budget)
+ * </pre>
+ * 
+ * <pre>
+ *  -majority-storage &lt;heap|direct|mapped&gt;
+ *  Storage of the majority class during the build.
+ *  (default heap)
+ * </pre>
+ * 
+ * <pre>
+ *  -time-limit &lt;seconds&gt;
+ *  Time limit of the build, partitions finished in time are kept.
+ *  (default 0 - i.e. no limit)
+ * </pre>
+ * 
+ * <pre>
+ *  -adaptive-tolerance &lt;num&gt;
+ *  Build the partitions in waves and stop when the out-of-partition
+ *  AUPRC improves by less than this, -I is the maximum.
+ *  (default 0 - i.e. build all partitions)
+ * </pre>
+ * 
+ * <pre>
+ *  -adaptive-wave &lt;num&gt;
+ *  Number of partitions per wave of the adaptive build.
+ *  (default 5)
+ * </pre>
+ * 
+ * <pre>
+ *  -minority-classes &lt;num&gt;
+ *  Number of minority classes, the least frequent classes. Each
+ *  partition of the majority class gets one classifier per minority class.
+ *  (default 1)
+ * </pre>
+ * 
  * <p>
  * SMOTE:
  * </p>
@@ -106,6 +149,18 @@ import weka.filters.supervised.instance.SpreadSubsample;
  *  (default 0: auto-detect non-empty minority class))
  * </pre>
  * 
+ * <pre>
+ *  -lazy-smote
+ *  Generate the SMOTE instances while drawing the bootstrap samples of the trees
+ *  instead of adding them to the training data of the forest.
+ * </pre>
+ * 
+ * <pre>
+ *  -attribute-importance
+ *  Compute the impurity decreases of the attributes while building the trees,
+ *  see HyperSMURFAttributeImportance.
+ * </pre>
+ * 
  * <p>
  * SpreadSubsample
  * </p>
@@ -198,11 +253,26 @@ public class HyperSMURF extends EasyEnsemble {
 	/** whether to detect the minority class automatically. */
 	protected boolean m_DetectMinorityClass = true;
 
+	/** whether to generate the SMOTE instances in the bootstrap samples of the trees. */
+	protected boolean m_LazySMOTE = false;
+
+	/** whether the trees compute the impurity decreases of the attributes. */
+	protected boolean m_ComputeAttributeImportance = false;
+
+	/** Id of the SMOTE seed of a partition, see {@link #deriveSeed(long, int)} */
+	protected static final int SMOTE_SEED = 1;
+
+	/** Id of the subsampling seed of a partition, see {@link #deriveSeed(long, int)} */
+	protected static final int SUBSAMPLE_SEED = 2;
+
+	/** Number of rows of a matrix scored together, see {@link #score(Classifier, double[], int)} */
+	protected static final int MATRIX_BATCH_SIZE = 10000;
+
 	/** Default classifier. Null if you want to use a RandomForest as it comes along with HyperSMURF */
 	protected Classifier m_default_classifier = null;
 	
 	public HyperSMURF() {
-		m_Classifier = getFilteredClassifier();
+		m_Classifier = getFilteredClassifier(0, m_ClassValueIndex);
 	}
 
 	/**
@@ -232,12 +302,7 @@ public class HyperSMURF extends EasyEnsemble {
 		if (m_Classifiers == null)
 			return "HyperSMURF: No model built yet.";
 
-		StringBuffer text = new StringBuffer();
-		text.append("All the base classifiers: \n\n");
-		for (int i = 0; i < m_Classifiers.length; i++)
-			text.append(m_Classifiers[i].toString() + "\n\n");
-
-		return text.toString();
+		return super.toString();
 	}
 
 	@Override
@@ -264,6 +329,14 @@ public class HyperSMURF extends EasyEnsemble {
 						"\tSpecifies the index of the nominal class value to SMOTE\n"
 								+ "\t(default 0: auto-detect non-empty minority class))\n",
 						"C", 1, "-C <value-index>"));
+		newVector.addElement(new Option(
+				"\tGenerate the SMOTE instances while drawing the bootstrap samples of the trees\n"
+						+ "\tinstead of adding them to the training data of the forest.",
+				"lazy-smote", 0, "-lazy-smote"));
+		newVector.addElement(new Option(
+				"\tCompute the impurity decreases of the attributes while building the trees,\n"
+						+ "\tsee HyperSMURFAttributeImportance.",
+				"attribute-importance", 0, "-attribute-importance"));
 		// SpreadSubsample
 		newVector.addElement(new Option("\tThe maximum class distribution spread.\n"
 				+ "\t0 = no maximum spread, 1 = uniform distribution, 10 = allow at most\n"
@@ -304,6 +377,10 @@ public class HyperSMURF extends EasyEnsemble {
 			m_DetectMinorityClass = true;
 		}
 
+		setLazySMOTE(Utils.getFlag("lazy-smote", options));
+
+		setComputeAttributeImportance(Utils.getFlag("attribute-importance", options));
+
 		String maxString = Utils.getOption('M', options);
 		if (maxString.length() != 0) {
 			setDistributionSpread(Double.valueOf(maxString).doubleValue());
@@ -344,6 +421,14 @@ public class HyperSMURF extends EasyEnsemble {
 		options.add("-P");
 		options.add("" + getPercentage());
 
+		if (getLazySMOTE()) {
+			options.add("-lazy-smote");
+		}
+
+		if (getComputeAttributeImportance()) {
+			options.add("-attribute-importance");
+		}
+
 		options.add("-M");
 		options.add("" + getDistributionSpread());
 
@@ -639,6 +724,65 @@ public class HyperSMURF extends EasyEnsemble {
 		return m_ClassValueIndex;
 	}
 
+	/**
+	 * Returns the tip text for this property.
+	 * 
+	 * @return tip text for this property suitable for displaying in the explorer/experimenter gui
+	 */
+	public String lazySMOTETipText() {
+		return "Whether to generate the SMOTE instances while drawing the bootstrap samples of the trees "
+				+ "instead of adding them to the training data of the forest.";
+	}
+
+	/**
+	 * Sets whether to generate the SMOTE instances in the bootstrap samples of the trees. Then the training data of a
+	 * forest does not grow with the SMOTE percentage. Only used with the default random forest.
+	 * 
+	 * @param value
+	 *            true to generate the SMOTE instances lazily
+	 */
+	public void setLazySMOTE(boolean value) {
+		m_LazySMOTE = value;
+	}
+
+	/**
+	 * Gets whether to generate the SMOTE instances in the bootstrap samples of the trees.
+	 * 
+	 * @return true if the SMOTE instances are generated lazily
+	 */
+	public boolean getLazySMOTE() {
+		return m_LazySMOTE;
+	}
+
+	/**
+	 * Returns the tip text for this property.
+	 * 
+	 * @return tip text for this property suitable for displaying in the explorer/experimenter gui
+	 */
+	public String computeAttributeImportanceTipText() {
+		return "Whether to compute the impurity decreases of the attributes while building the trees.";
+	}
+
+	/**
+	 * Sets whether the trees compute the impurity decreases of the attributes, which are aggregated over all
+	 * partitions by {@link HyperSMURFAttributeImportance}. Only used with the default random forest.
+	 * 
+	 * @param value
+	 *            true to compute the impurity decreases
+	 */
+	public void setComputeAttributeImportance(boolean value) {
+		m_ComputeAttributeImportance = value;
+	}
+
+	/**
+	 * Gets whether the trees compute the impurity decreases of the attributes.
+	 * 
+	 * @return true if the impurity decreases are computed
+	 */
+	public boolean getComputeAttributeImportance() {
+		return m_ComputeAttributeImportance;
+	}
+
 	/**
 	 * Returns the tip text for this property
 	 * 
@@ -748,11 +892,9 @@ public class HyperSMURF extends EasyEnsemble {
 		m_data = new Instances(data);
 		m_data.deleteWithMissingClass();
 
-		m_random = new Random(m_Seed);
-
 		m_Classifiers = new Classifier[m_NumIterations];
 		for (int i = 0; i < m_Classifiers.length; i++) {
-			m_Classifiers[i] = getFilteredClassifier();
+			m_Classifiers[i] = getFilteredClassifier(i, m_ClassValueIndex);
 		}
 
 		if (m_numExecutionSlots < 0) {
@@ -763,23 +905,445 @@ public class HyperSMURF extends EasyEnsemble {
 
 	}
 
-	private Classifier getFilteredClassifier() {
+	/**
+	 * Returns the header of data given as a matrix: the numeric attributes <code>V1</code> to <code>Vk</code> and the
+	 * class <code>class</code> with the values <code>0</code> and <code>1</code>.
+	 * 
+	 * @param numFeatures
+	 *            the number of columns of the matrix
+	 * @return the header with the class set
+	 */
+	public static Instances getMatrixHeader(int numFeatures) {
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>(numFeatures + 1);
+		for (int i = 0; i < numFeatures; i++)
+			attributes.add(new Attribute("V" + (i + 1)));
+		attributes.add(new Attribute("class", Arrays.asList("0", "1")));
+		Instances header = new Instances("matrix", attributes, 0);
+		header.setClassIndex(numFeatures);
+		return header;
+	}
+
+	/**
+	 * Trains a classifier on a column-major feature matrix, e.g. a matrix handed over from R in a single call. The
+	 * columns are copied in bulk into a {@link ColumnarDataset} outside of the heap, from where the classifier reads
+	 * the minority class and the slices of the partitions, so no instance of the whole matrix is created.
+	 * 
+	 * @param features
+	 *            the features, column by column, NaN for missing values
+	 * @param labels
+	 *            the labels, 1 for the positive and 0 for the negative class
+	 * @param options
+	 *            the options of the classifier, may be null
+	 * @return the trained classifier
+	 * @throws Exception
+	 *             if the matrix does not fit the labels or the classifier could not be built successfully
+	 */
+	public static HyperSMURF train(double[] features, int[] labels, String[] options) throws Exception {
+		return train(features, null, labels, options);
+	}
+
+	/**
+	 * Trains a classifier on a column-major float32 feature matrix, see {@link #train(double[], int[], String[])}.
+	 * The columns are stored as float32.
+	 * 
+	 * @param features
+	 *            the features, column by column, NaN for missing values
+	 * @param labels
+	 *            the labels, 1 for the positive and 0 for the negative class
+	 * @param options
+	 *            the options of the classifier, may be null
+	 * @return the trained classifier
+	 * @throws Exception
+	 *             if the matrix does not fit the labels or the classifier could not be built successfully
+	 */
+	public static HyperSMURF train(float[] features, int[] labels, String[] options) throws Exception {
+		return train(null, features, labels, options);
+	}
+
+	private static HyperSMURF train(double[] doubles, float[] floats, int[] labels, String[] options)
+			throws Exception {
+		int numRows = labels.length;
+		int numFeatures = getNumFeatures(doubles != null ? doubles.length : floats.length, numRows);
+		for (int label : labels) {
+			if (label != 0 && label != 1)
+				throw new Exception("Labels must be 0 or 1, found " + label + "!");
+		}
+
+		HyperSMURF classifier = new HyperSMURF();
+		if (options != null)
+			classifier.setOptions(options.clone());
+		ColumnarDataset data = ColumnarDataset.allocate(getMatrixHeader(numFeatures), numRows, false, floats != null);
+		try {
+			for (int i = 0; i < numFeatures; i++) {
+				if (doubles != null)
+					data.setColumn(i, doubles, i * numRows);
+				else
+					data.setColumn(i, floats, i * numRows);
+			}
+			data.setColumn(numFeatures, labels, 0);
+			classifier.buildClassifier(data);
+		} finally {
+			data.close();
+		}
+		return classifier;
+	}
+
+	/**
+	 * Scores a column-major feature matrix with a classifier trained by {@link #train(double[], int[], String[])}.
+	 * The rows are scored in batches of columns with {@link PartitionForest#distributionsForColumns(double[][], int)},
+	 * so no instance is created per row. Classifiers other than {@link HyperSMURF} score the rows one by one on a
+	 * single instance that is refilled for every row.
+	 * 
+	 * @param classifier
+	 *            the trained classifier
+	 * @param features
+	 *            the features, column by column, NaN for missing values
+	 * @param numRows
+	 *            the number of rows of the matrix
+	 * @return the probability of the positive class of every row
+	 * @throws Exception
+	 *             if the matrix does not fit the classifier
+	 */
+	public static double[] score(Classifier classifier, double[] features, int numRows) throws Exception {
+		return score(classifier, features, null, numRows);
+	}
+
+	/**
+	 * Scores a column-major float32 feature matrix, see {@link #score(Classifier, double[], int)}.
+	 * 
+	 * @param classifier
+	 *            the trained classifier
+	 * @param features
+	 *            the features, column by column, NaN for missing values
+	 * @param numRows
+	 *            the number of rows of the matrix
+	 * @return the probability of the positive class of every row
+	 * @throws Exception
+	 *             if the matrix does not fit the classifier
+	 */
+	public static double[] score(Classifier classifier, float[] features, int numRows) throws Exception {
+		return score(classifier, null, features, numRows);
+	}
+
+	private static double[] score(Classifier classifier, double[] doubles, float[] floats, int numRows)
+			throws Exception {
+		int numFeatures = getNumFeatures(doubles != null ? doubles.length : floats.length, numRows);
+		double[] scores = new double[numRows];
+		// the column of the class stays null
+		double[][] columns = new double[numFeatures + 1][];
+		double[] values = null;
+		Instance row = null;
+		for (int from = 0; from < numRows; from += MATRIX_BATCH_SIZE) {
+			int to = Math.min(numRows, from + MATRIX_BATCH_SIZE);
+			for (int i = 0; i < numFeatures; i++) {
+				int offset = i * numRows;
+				if (doubles != null) {
+					columns[i] = Arrays.copyOfRange(doubles, offset + from, offset + to);
+				} else {
+					columns[i] = new double[to - from];
+					for (int k = from; k < to; k++)
+						columns[i][k - from] = floats[offset + k];
+				}
+			}
+
+			double[][] distributions = classifier instanceof HyperSMURF
+					? ((HyperSMURF) classifier).distributionsForColumns(columns, to - from) : null;
+			if (distributions != null) {
+				for (int k = 0; k < distributions.length; k++)
+					scores[from + k] = distributions[k][1];
+				continue;
+			}
+			// other classifiers score the rows one by one on a single instance that is refilled for every row
+			if (row == null) {
+				values = new double[numFeatures + 1];
+				values[numFeatures] = Utils.missingValue();
+				row = new DenseInstance(1.0, values);
+				row.setDataset(getMatrixHeader(numFeatures));
+			}
+			for (int k = 0; k < to - from; k++) {
+				for (int i = 0; i < numFeatures; i++)
+					values[i] = columns[i][k];
+				scores[from + k] = classifier.distributionForInstance(row)[1];
+			}
+		}
+		return scores;
+	}
+
+	/**
+	 * Calculates the class membership probabilities for rows that are given column by column with the forests of the
+	 * partitions, see {@link PartitionForest#distributionsForColumns(double[][], int)}. Gives the same result as
+	 * {@link #distributionsForInstances(Instances)} for the instances of the rows, without creating them.
+	 * 
+	 * @param columns
+	 *            the values of the attributes of the training header, one array per attribute with a value for every
+	 *            row, the column of the class can be null
+	 * @param numRows
+	 *            the number of rows
+	 * @return predicted class probability distributions, one row per instance, null if a partition is no
+	 *         {@link PartitionForest} behind filters of the training data
+	 * @throws Exception
+	 *             if the columns do not fit the model or distributions can't be computed successfully
+	 */
+	protected double[][] distributionsForColumns(double[][] columns, int numRows) throws Exception {
+		PartitionForest[] forests = new PartitionForest[m_Classifiers.length];
+		for (int i = 0; i < forests.length; i++) {
+			Classifier classifier = m_Classifiers[i];
+			if (classifier instanceof FilteredClassifier
+					&& isTrainingDataFilter(((FilteredClassifier) classifier).getFilter()))
+				classifier = ((FilteredClassifier) classifier).getClassifier();
+			if (!(classifier instanceof PartitionForest))
+				return null;
+			forests[i] = (PartitionForest) classifier;
+		}
+		double[][] sums = null;
+		for (PartitionForest forest : forests) {
+			double[][] newProbs = forest.distributionsForColumns(columns, numRows);
+			if (sums == null) {
+				sums = newProbs;
+				continue;
+			}
+			for (int k = 0; k < numRows; k++)
+				for (int j = 0; j < newProbs[k].length; j++)
+					sums[k][j] += newProbs[k][j];
+		}
+		for (double[] sum : sums)
+			if (!Utils.eq(Utils.sum(sum), 0))
+				Utils.normalize(sum);
+		return sums;
+	}
+
+	private static int getNumFeatures(int length, int numRows) throws Exception {
+		if (numRows <= 0 || length % numRows != 0)
+			throw new Exception("A matrix with " + length + " values cannot have " + numRows + " rows!");
+		return length / numRows;
+	}
+
+	/**
+	 * Estimates the heap in bytes needed to build the classifier of a partition. Takes the SMOTE instances, the
+	 * subsampling of the majority class and the bootstrap samples of the random forest into account.
+	 * 
+	 * @param classifier
+	 *            the number of the classifier
+	 * @return estimated heap usage in bytes
+	 */
+	@Override
+	protected long estimatePartitionMemory(int classifier) {
+		return estimatePartitionMemory(classifier, 1);
+	}
+
+	/**
+	 * Estimates the heap in bytes needed to build the classifier of a partition if its random forest builds at least
+	 * the given number of trees at the same time.
+	 * 
+	 * @param classifier
+	 *            the number of the classifier
+	 * @param numSlots
+	 *            the number of execution slots of the random forest
+	 * @return estimated heap usage in bytes
+	 */
+	@Override
+	protected long estimatePartitionMemory(int classifier, int numSlots) {
+		long majority = getPartitionSize(getMajorityPartition(classifier));
+		long minority = numMinorityInstances(classifier);
+		int numTreeSlots = Math.max(numSlots, m_numRFExecutionSlots);
+		if (m_Classifiers != null && m_Classifiers[classifier] instanceof FilteredClassifier) {
+			Classifier base = ((FilteredClassifier) m_Classifiers[classifier]).getClassifier();
+			if (base instanceof RandomForest)
+				numTreeSlots = Math.max(numSlots, ((RandomForest) base).getNumExecutionSlots());
+		}
+		return estimatePartitionRows(majority, minority, numTreeSlots) * estimateInstanceMemory();
+	}
+
+	/**
+	 * Estimates the number of minority instances after SMOTE.
+	 * 
+	 * @param minority
+	 *            the number of minority instances
+	 * @return the number of minority instances including the synthetic ones
+	 */
+	protected long numSMOTEInstances(long minority) {
+		long smoted = minority + (long) (minority * m_Percentage / 100.0);
+		return m_MaxCount > 0 ? Math.min(smoted, m_MaxCount) : smoted;
+	}
+
+	/**
+	 * Estimates the number of majority instances of a partition after the subsampling.
+	 * 
+	 * @param majority
+	 *            the number of majority instances of the partition
+	 * @param minority
+	 *            the number of minority instances
+	 * @return the number of majority instances the forest is trained on
+	 */
+	protected long numSubsampledInstances(long majority, long minority) {
+		long subsampled = majority;
+		if (m_DistributionSpread > 0)
+			subsampled = Math.min(subsampled, (long) (numSMOTEInstances(minority) * m_DistributionSpread));
+		return m_MaxCount > 0 ? Math.min(subsampled, m_MaxCount) : subsampled;
+	}
+
+	/**
+	 * Estimates the number of instances held at the same time while the classifier of a partition is built.
+	 * 
+	 * @param majority
+	 *            the number of majority instances of the partition
+	 * @param minority
+	 *            the number of minority instances
+	 * @param numTreeSlots
+	 *            the number of trees built at the same time
+	 * @return the number of instances
+	 */
+	protected long estimatePartitionRows(long majority, long minority, int numTreeSlots) {
+		long smoted = numSMOTEInstances(minority);
+		long subsampled = numSubsampledInstances(majority, minority);
+		long rows;
+		if (isLazySMOTE()) {
+			// partition, copy in the filtered classifier, subsample output and forest copy
+			rows = 2 * (majority + minority) + 2 * (subsampled + Math.min(minority, smoted));
+		} else {
+			// partition, copy in the filtered classifier, SMOTE output, subsample output and forest copy
+			rows = 2 * (majority + minority) + (majority + smoted) + 2 * (subsampled + smoted);
+		}
+		// bootstrap sample and tree copy for every tree built at the same time
+		rows += 2 * numTreeSlots * (subsampled + smoted);
+		return rows;
+	}
+
+	/**
+	 * Whether the SMOTE instances are generated by the forest of a partition.
+	 * 
+	 * @return true if lazy SMOTE is set and the default random forest is used
+	 */
+	protected boolean isLazySMOTE() {
+		return m_LazySMOTE && m_default_classifier == null;
+	}
+
+	@Override
+	protected void setBaseClassifierExecutionSlots(Classifier classifier, int numSlots) {
+		if (classifier instanceof FilteredClassifier)
+			classifier = ((FilteredClassifier) classifier).getClassifier();
+		super.setBaseClassifierExecutionSlots(classifier, numSlots);
+	}
+
+	@Override
+	protected void setBaseClassifierCancellationToken(Classifier classifier, CancellationToken token) {
+		if (classifier instanceof FilteredClassifier)
+			classifier = ((FilteredClassifier) classifier).getClassifier();
+		if (classifier instanceof PartitionForest)
+			((PartitionForest) classifier).setCancellationToken(token);
+	}
+
+	@Override
+	protected boolean isUsable(Classifier classifier) {
+		if (classifier instanceof FilteredClassifier)
+			classifier = ((FilteredClassifier) classifier).getClassifier();
+		return !(classifier instanceof PartitionForest) || ((PartitionForest) classifier).getNumTrees() > 0;
+	}
+
+	@Override
+	protected boolean isIncomplete(Classifier classifier) {
+		if (classifier instanceof FilteredClassifier)
+			classifier = ((FilteredClassifier) classifier).getClassifier();
+		return classifier instanceof PartitionForest
+				&& ((PartitionForest) classifier).getNumTrees() < ((PartitionForest) classifier).getNumPlannedTrees();
+	}
+
+	/**
+	 * Scores the forest of a partition directly into the scratch buffer. The filters of a partition only change the
+	 * training data, so the filtered copy of the test instance made by the {@link FilteredClassifier} is skipped.
+	 */
+	@Override
+	protected double[] partitionDistribution(Classifier classifier, Instance instance, double[] scratch)
+			throws Exception {
+		if (classifier instanceof FilteredClassifier
+				&& isTrainingDataFilter(((FilteredClassifier) classifier).getFilter()))
+			classifier = ((FilteredClassifier) classifier).getClassifier();
+		if (classifier instanceof PartitionForest)
+			return ((PartitionForest) classifier).distributionForInstance(instance, scratch);
+		return classifier.distributionForInstance(instance);
+	}
+
+	/**
+	 * Whether a filter passes test instances through unchanged, i.e. it is SMOTE or SpreadSubsample or a
+	 * {@link MultiFilter} of them.
+	 * 
+	 * @param filter
+	 *            the filter
+	 * @return true if the filter only changes the training data
+	 */
+	protected static boolean isTrainingDataFilter(Filter filter) {
+		if (filter instanceof MultiFilter) {
+			for (Filter f : ((MultiFilter) filter).getFilters())
+				if (!isTrainingDataFilter(f))
+					return false;
+			return true;
+		}
+		return filter instanceof SMOTE || filter instanceof SpreadSubsample;
+	}
+
+	/**
+	 * Returns a short report of the last build: the number of partitions and trees built and whether the build was
+	 * stopped.
+	 * 
+	 * @return the report
+	 */
+	@Override
+	public String getBuildReport() {
+		String report = super.getBuildReport();
+		if (m_Classifiers == null)
+			return report;
+		int numTrees = 0;
+		int numPlannedTrees = 0;
+		for (Classifier classifier : m_Classifiers) {
+			if (classifier instanceof FilteredClassifier)
+				classifier = ((FilteredClassifier) classifier).getClassifier();
+			if (classifier instanceof PartitionForest) {
+				numTrees += ((PartitionForest) classifier).getNumTrees();
+				numPlannedTrees += ((PartitionForest) classifier).getNumPlannedTrees();
+			}
+		}
+		if (numPlannedTrees > 0)
+			report += " The built partitions have " + numTrees + " of " + numPlannedTrees + " trees.";
+		return report;
+	}
+
+	/**
+	 * Returns one classifier per partition and minority class, SMOTE oversamples the minority class of each
+	 * classifier.
+	 */
+	@Override
+	protected Classifier[] makePartitionClassifiers(int numClassifiers) throws Exception {
+		Classifier[] classifiers = new Classifier[numClassifiers];
+		for (int i = 0; i < classifiers.length; i++)
+			classifiers[i] = getFilteredClassifier(i, "" + (m_MinorityClasses[i % m_MinorityClasses.length] + 1));
+		return classifiers;
+	}
+
+	/**
+	 * Returns the classifier of a partition. All seeds of it are derived from the global seed and the number of the
+	 * partition alone. A plain {@link FilteredClassifier} is used because a
+	 * {@link weka.classifiers.meta.RandomizableFilteredClassifier} would reseed the forest from the training data.
+	 * 
+	 * @param partition
+	 *            the number of the partition
+	 * @param classValue
+	 *            the class value index oversampled by SMOTE, 0 to detect the minority class
+	 * @return the classifier
+	 */
+	private Classifier getFilteredClassifier(int partition, String classValue) {
+
+		long seed = getPartitionSeed(partition);
 
 		MultiFilter mfilter = new MultiFilter();
 		mfilter.setDebug(m_Debug);
 		mfilter.setDoNotCheckCapabilities(m_DoNotCheckCapabilities);
-		mfilter.setFilters(new Filter[] { getSMOTE(), getSpreadSubsample() });
+		if (isLazySMOTE())
+			mfilter.setFilters(new Filter[] { getSpreadSubsample(seed) });
+		else
+			mfilter.setFilters(new Filter[] { getSMOTE(seed, classValue), getSpreadSubsample(seed) });
 //		mfilter.setInputFormat(m_data);
 
-		FilteredClassifier classifier;
-
-		// Set the random forest as base learner if no other method is set.
-		if (m_default_classifier == null || m_Classifier instanceof RandomizableClassifier) {
-			classifier = new RandomizableFilteredClassifier();
-			((RandomizableFilteredClassifier) classifier).setSeed(m_Seed);
-
-		} else
-			classifier = new FilteredClassifier();
+		FilteredClassifier classifier = new FilteredClassifier();
 
 		classifier.setNumDecimalPlaces(m_numDecimalPlaces);
 		classifier.setDebug(m_Debug);
@@ -787,39 +1351,61 @@ public class HyperSMURF extends EasyEnsemble {
 		classifier.setDoNotCheckCapabilities(m_DoNotCheckCapabilities);
 		classifier.setFilter(mfilter);
 		if (m_default_classifier == null)
-			classifier.setClassifier(getRandomForest());
+			classifier.setClassifier(getRandomForest(seed, classValue));
 		else
 			classifier.setClassifier(m_Classifier);
 
 		return classifier;
 	}
 
-	private Filter getSpreadSubsample() {
+	protected Filter getSpreadSubsample(long seed) {
 		SpreadSubsample subsample = new SpreadSubsample();
-		subsample.setDistributionSpread(m_DistributionSpread);
+		// with lazy SMOTE the spread refers to the minority class including the SMOTE instances of the forest
+		if (isLazySMOTE())
+			subsample.setDistributionSpread(m_DistributionSpread * (1 + m_Percentage / 100.0));
+		else
+			subsample.setDistributionSpread(m_DistributionSpread);
 		subsample.setAdjustWeights(m_AdjustWeights);
 		subsample.setMaxCount(m_MaxCount);
-		subsample.setRandomSeed(m_random.nextInt());
+		subsample.setRandomSeed((int) deriveSeed(seed, SUBSAMPLE_SEED));
 		subsample.setDebug(m_Debug);
 		subsample.setDoNotCheckCapabilities(m_DoNotCheckCapabilities);
 //		subsample.setInputFormat(m_data);
 		return subsample;
 	}
 
-	private Filter getSMOTE() {
-		SMOTE smote = new SMOTE();
+	protected Filter getSMOTE(long seed) {
+		return getSMOTE(seed, m_ClassValueIndex);
+	}
+
+	protected Filter getSMOTE(long seed, String classValue) {
+		SMOTE smote = new SparseSMOTE();
 		smote.setPercentage(m_Percentage);
 		smote.setNearestNeighbors(m_NearestNeighbors);
-		smote.setRandomSeed(m_random.nextInt());
-		smote.setClassValue(m_ClassValueIndex);
+		smote.setRandomSeed((int) deriveSeed(seed, SMOTE_SEED));
+		smote.setClassValue(classValue);
 		smote.setDoNotCheckCapabilities(m_DoNotCheckCapabilities);
 		smote.setDebug(m_Debug);
 //		smote.setInputFormat(m_data);
 		return smote;
 	}
 
-	private RandomForest getRandomForest() {
-		RandomForest randomForest = new RandomForest();
+	protected RandomForest getRandomForest(long seed) {
+		return getRandomForest(seed, m_ClassValueIndex);
+	}
+
+	protected RandomForest getRandomForest(long seed, String classValue) {
+		RandomForest randomForest;
+		if (isLazySMOTE()) {
+			LazySMOTEForest lazySMOTEForest = new LazySMOTEForest();
+			lazySMOTEForest.setPercentage(m_Percentage);
+			lazySMOTEForest.setNearestNeighbors(m_NearestNeighbors);
+			lazySMOTEForest.setClassValueIndex(classValue);
+			lazySMOTEForest.setMaxCount(m_MaxCount);
+			randomForest = lazySMOTEForest;
+		} else {
+			randomForest = new PartitionForest();
+		}
 		randomForest.setBatchSize(m_BatchSize);
 		randomForest.setBreakTiesRandomly(m_BreakTiesRandomly);
 		randomForest.setCalcOutOfBag(false);
@@ -829,7 +1415,8 @@ public class HyperSMURF extends EasyEnsemble {
 		randomForest.setNumFeatures(m_numFeatures);
 		randomForest.setNumIterations(m_numTrees);
 		randomForest.setPrintClassifiers(m_printTrees);
-		randomForest.setSeed(m_random.nextInt());
+		randomForest.setComputeAttributeImportance(m_ComputeAttributeImportance);
+		randomForest.setSeed((int) deriveSeed(seed, CLASSIFIER_SEED));
 		randomForest.setDoNotCheckCapabilities(m_DoNotCheckCapabilities);
 		randomForest.setDebug(m_Debug);
 		return randomForest;
@@ -0,0 +1,531 @@
+package weka.classifiers.trees;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.evaluation.RankMetrics;
+import weka.classifiers.meta.EasyEnsemble;
+import weka.classifiers.meta.FilteredClassifier;
+import weka.core.Attribute;
+import weka.core.BatchPredictor;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+import weka.core.converters.ParallelTextLoader;
+
+/**
+ * <p>
+ * Importance of the attributes for a trained {@link HyperSMURF} (or any {@link EasyEnsemble}) without retraining.
+ * </p>
+ *
+ * <p>
+ * The impurity importance is the mean impurity decrease of the nodes that split on an attribute, over all trees of all
+ * partitions. The trees compute their impurity decreases while they are built, see
+ * {@link HyperSMURF#setComputeAttributeImportance(boolean)}, so it costs nothing extra after training. Only
+ * {@link RandomTree}s of a {@link PartitionForest} are counted, compacted trees have no impurity decreases.
+ * </p>
+ *
+ * <p>
+ * The permutation importance is the loss of AUPRC and AUROC of the ensemble on held-out data when the values of one
+ * attribute are permuted. The data are scored block by block: the rows of a block are copied once per partition and
+ * scored with the original and with the permuted values of every attribute, all partitions in parallel. Each partition
+ * classifier is only used by one thread at a time, so the filters of the partitions are never used concurrently. The
+ * distributions of the partitions are summed in their order, so the result does not depend on the number of threads or
+ * the block size. The memory needed is the scores of all instances for every attribute and the distributions of one
+ * block for every partition and attribute.
+ * </p>
+ *
+ * <p>
+ * Valid options are:
+ * </p>
+ *
+ * <pre>
+ *  -model &lt;file&gt;
+ *  The serialized model.
+ * </pre>
+ *
+ * <pre>
+ *  -validation &lt;file&gt;
+ *  The held-out data for the permutation importance, the class is the last attribute.
+ *  (default none: only the impurity importance)
+ * </pre>
+ *
+ * <pre>
+ *  -threads &lt;num&gt;
+ *  The number of threads, 0 for the number of cores.
+ *  (default 1)
+ * </pre>
+ *
+ * <pre>
+ *  -block &lt;num&gt;
+ *  The number of rows scored together.
+ *  (default 256)
+ * </pre>
+ *
+ * <pre>
+ *  -S &lt;num&gt;
+ *  The seed of the permutation.
+ *  (default 1)
+ * </pre>
+ *
+ * <pre>
+ *  -C &lt;value-index&gt;
+ *  The index of the positive class value, starting with 1.
+ *  (default 0: least frequent class of the held-out data)
+ * </pre>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class HyperSMURFAttributeImportance {
+
+	/** The number of threads, 0 for the number of cores */
+	protected int m_NumThreads = 1;
+
+	/** The number of rows scored together */
+	protected int m_BlockSize = 256;
+
+	/** The seed of the permutation */
+	protected int m_Seed = 1;
+
+	/** The index of the positive class, -1 for the least frequent class of the held-out data */
+	protected int m_ClassIndex = -1;
+
+	/**
+	 * The importance of the attributes.
+	 */
+	public static class Report {
+		protected String[] m_Attributes;
+		protected int m_ClassAttribute;
+		protected double[] m_ImpurityDecreases;
+		protected double[] m_NumNodes;
+		protected double m_AUPRC;
+		protected double m_AUROC;
+		protected double[] m_AUPRCLosses;
+		protected double[] m_AUROCLosses;
+
+		/**
+		 * @return the names of the attributes
+		 */
+		public String[] getAttributes() {
+			return m_Attributes;
+		}
+
+		/**
+		 * @return the index of the class attribute
+		 */
+		public int getClassAttribute() {
+			return m_ClassAttribute;
+		}
+
+		/**
+		 * @return the mean impurity decrease of each attribute, 0 if no node splits on it, null if the trees have no
+		 *         impurity decreases
+		 */
+		public double[] getImpurityDecreases() {
+			return m_ImpurityDecreases;
+		}
+
+		/**
+		 * @return the number of nodes that split on each attribute, null if the trees have no impurity decreases
+		 */
+		public double[] getNumNodes() {
+			return m_NumNodes;
+		}
+
+		/**
+		 * @return the AUPRC of the ensemble on the held-out data
+		 */
+		public double getAUPRC() {
+			return m_AUPRC;
+		}
+
+		/**
+		 * @return the AUROC of the ensemble on the held-out data
+		 */
+		public double getAUROC() {
+			return m_AUROC;
+		}
+
+		/**
+		 * @return the loss of AUPRC if an attribute is permuted, null if no held-out data were given
+		 */
+		public double[] getAUPRCLosses() {
+			return m_AUPRCLosses;
+		}
+
+		/**
+		 * @return the loss of AUROC if an attribute is permuted, null if no held-out data were given
+		 */
+		public double[] getAUROCLosses() {
+			return m_AUROCLosses;
+		}
+
+		/**
+		 * Returns the importance table, ordered by the loss of AUPRC if there is one, otherwise by the impurity
+		 * decrease.
+		 */
+		@Override
+		public String toString() {
+			StringBuffer text = new StringBuffer();
+			if (m_AUPRCLosses != null)
+				text.append("AUPRC " + Utils.doubleToString(m_AUPRC, 6) + ", AUROC " + Utils.doubleToString(m_AUROC, 6)
+						+ " on the held-out data\n\n");
+			if (m_ImpurityDecreases != null)
+				text.append("Impurity\tNodes\t");
+			if (m_AUPRCLosses != null)
+				text.append("AUPRC loss\tAUROC loss\t");
+			text.append("Attribute\n");
+			int[] order = Utils.sort(m_AUPRCLosses != null ? m_AUPRCLosses : m_ImpurityDecreases);
+			for (int i = order.length - 1; i >= 0; i--) {
+				int a = order[i];
+				if (a == m_ClassAttribute)
+					continue;
+				if (m_ImpurityDecreases != null)
+					text.append(Utils.doubleToString(m_ImpurityDecreases[a], 6) + "\t"
+							+ Utils.doubleToString(m_NumNodes[a], 0) + "\t");
+				if (m_AUPRCLosses != null)
+					text.append(Utils.doubleToString(m_AUPRCLosses[a], 6) + "\t"
+							+ Utils.doubleToString(m_AUROCLosses[a], 6) + "\t");
+				text.append(m_Attributes[a] + "\n");
+			}
+			return text.toString();
+		}
+	}
+
+	/**
+	 * Get the number of threads of the permutation importance.
+	 *
+	 * @return the number of threads, 0 for the number of cores
+	 */
+	public int getNumThreads() {
+		return m_NumThreads;
+	}
+
+	/**
+	 * Set the number of threads of the permutation importance.
+	 *
+	 * @param numThreads
+	 *            the number of threads, 0 for the number of cores
+	 */
+	public void setNumThreads(int numThreads) {
+		if (numThreads >= 0)
+			m_NumThreads = numThreads;
+		else
+			System.err.println("The number of threads must be >= 0!");
+	}
+
+	/**
+	 * Get the number of rows scored together.
+	 *
+	 * @return the block size
+	 */
+	public int getBlockSize() {
+		return m_BlockSize;
+	}
+
+	/**
+	 * Set the number of rows scored together.
+	 *
+	 * @param blockSize
+	 *            the block size
+	 */
+	public void setBlockSize(int blockSize) {
+		if (blockSize > 0)
+			m_BlockSize = blockSize;
+		else
+			System.err.println("The block size must be > 0!");
+	}
+
+	/**
+	 * Get the seed of the permutation.
+	 *
+	 * @return the seed
+	 */
+	public int getSeed() {
+		return m_Seed;
+	}
+
+	/**
+	 * Set the seed of the permutation.
+	 *
+	 * @param seed
+	 *            the seed
+	 */
+	public void setSeed(int seed) {
+		m_Seed = seed;
+	}
+
+	/**
+	 * Get the index of the positive class.
+	 *
+	 * @return the index, -1 for the least frequent class of the held-out data
+	 */
+	public int getClassIndex() {
+		return m_ClassIndex;
+	}
+
+	/**
+	 * Set the index of the positive class.
+	 *
+	 * @param classIndex
+	 *            the index, -1 for the least frequent class of the held-out data
+	 */
+	public void setClassIndex(int classIndex) {
+		m_ClassIndex = classIndex;
+	}
+
+	/**
+	 * Computes the importance of the attributes: the impurity importance if the trees have impurity decreases, the
+	 * permutation importance if held-out data are given.
+	 *
+	 * @param model
+	 *            the trained model
+	 * @param header
+	 *            the header of the training data
+	 * @param data
+	 *            the held-out data, or null
+	 * @return the importance
+	 * @throws Exception
+	 *             if neither importance can be computed
+	 */
+	public Report evaluate(EasyEnsemble model, Instances header, Instances data) throws Exception {
+		Report report = new Report();
+		report.m_Attributes = new String[header.numAttributes()];
+		for (int a = 0; a < report.m_Attributes.length; a++)
+			report.m_Attributes[a] = header.attribute(a).name();
+		report.m_ClassAttribute = header.classIndex();
+		impurityImportance(model, header, report);
+		if (data != null)
+			permutationImportance(model, data, report);
+		if (report.m_ImpurityDecreases == null && report.m_AUPRCLosses == null)
+			throw new Exception("The trees have no impurity decreases, build the model with "
+					+ "-attribute-importance or give held-out data!");
+		return report;
+	}
+
+	/**
+	 * Sums the impurity decreases of all trees, attributes are matched by name.
+	 */
+	private static void impurityImportance(EasyEnsemble model, Instances header, Report report) {
+		double[] sums = new double[header.numAttributes()];
+		double[] counts = new double[header.numAttributes()];
+		boolean found = false;
+		for (Classifier partition : model.getPartitionClassifiers()) {
+			while (partition instanceof FilteredClassifier)
+				partition = ((FilteredClassifier) partition).getClassifier();
+			if (!(partition instanceof PartitionForest))
+				continue;
+			PartitionForest forest = (PartitionForest) partition;
+			Instances treeHeader = forest.getTrainingHeader();
+			for (int t = 0; t < forest.getNumTrees(); t++) {
+				if (!(forest.getTree(t) instanceof RandomTree))
+					continue;
+				RandomTree tree = (RandomTree) forest.getTree(t);
+				double[][] decreases = tree.getImpurityDecreases();
+				if (decreases == null)
+					continue;
+				found = true;
+				for (int i = 0; i < decreases.length; i++) {
+					if (decreases[i][1] == 0)
+						continue;
+					Attribute attribute = header.attribute(treeHeader.attribute(i).name());
+					if (attribute == null)
+						continue;
+					sums[attribute.index()] += decreases[i][0];
+					counts[attribute.index()] += decreases[i][1];
+				}
+			}
+		}
+		if (!found)
+			return;
+		for (int a = 0; a < sums.length; a++)
+			if (counts[a] > 0)
+				sums[a] /= counts[a];
+		report.m_ImpurityDecreases = sums;
+		report.m_NumNodes = counts;
+	}
+
+	/**
+	 * Scores the held-out data block by block with the original and the permuted values of each attribute.
+	 */
+	private void permutationImportance(EasyEnsemble model, Instances data, Report report) throws Exception {
+		final Instances evaluation = new Instances(data);
+		evaluation.deleteWithMissingClass();
+		final int classIndex = m_ClassIndex >= 0 ? m_ClassIndex : leastFrequentClass(evaluation);
+		final int n = evaluation.numInstances();
+		final int numAttributes = evaluation.numAttributes();
+		final int numClasses = evaluation.numClasses();
+		boolean[] positive = new boolean[n];
+		for (int i = 0; i < n; i++)
+			positive[i] = (int) evaluation.instance(i).classValue() == classIndex;
+
+		// the same permutation of the rows for all attributes, they are permuted one at a time
+		final int[] permutation = new int[n];
+		for (int i = 0; i < n; i++)
+			permutation[i] = i;
+		Random random = new Random(m_Seed);
+		for (int i = n - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int swap = permutation[i];
+			permutation[i] = permutation[j];
+			permutation[j] = swap;
+		}
+
+		// the scores of the original data are in the row of the class attribute
+		double[][] scores = new double[numAttributes][n];
+		Classifier[] partitions = model.getPartitionClassifiers();
+		int numThreads = m_NumThreads == 0 ? Runtime.getRuntime().availableProcessors() : m_NumThreads;
+		ExecutorService executorPool = Executors.newFixedThreadPool(numThreads);
+		try {
+			for (int start = 0; start < n; start += m_BlockSize) {
+				final int first = start;
+				final int size = Math.min(m_BlockSize, n - start);
+				final double[][][][] distributions = new double[partitions.length][][][];
+				final CountDownLatch doneSignal = new CountDownLatch(partitions.length);
+				final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+				for (int p = 0; p < partitions.length; p++) {
+					final Classifier partition = partitions[p];
+					final int index = p;
+					executorPool.submit(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								distributions[index] = scoreBlock(partition, evaluation, first, size, permutation);
+							} catch (Throwable ex) {
+								failure.compareAndSet(null, ex);
+							} finally {
+								doneSignal.countDown();
+							}
+						}
+					});
+				}
+				doneSignal.await();
+				if (failure.get() != null)
+					throw new Exception("Scoring of a partition failed!", failure.get());
+				double[] sums = new double[numClasses];
+				for (int a = 0; a < numAttributes; a++) {
+					for (int row = 0; row < size; row++) {
+						Arrays.fill(sums, 0);
+						for (int p = 0; p < partitions.length; p++)
+							for (int j = 0; j < numClasses; j++)
+								sums[j] += distributions[p][a][row][j];
+						double sum = Utils.sum(sums);
+						scores[a][first + row] = Utils.eq(sum, 0) ? 0 : sums[classIndex] / sum;
+					}
+				}
+			}
+		} finally {
+			executorPool.shutdownNow();
+		}
+
+		int classAttribute = evaluation.classIndex();
+		report.m_AUPRC = RankMetrics.areaUnderPRC(scores[classAttribute], positive);
+		report.m_AUROC = RankMetrics.areaUnderROC(scores[classAttribute], positive);
+		report.m_AUPRCLosses = new double[numAttributes];
+		report.m_AUROCLosses = new double[numAttributes];
+		for (int a = 0; a < numAttributes; a++) {
+			if (a == classAttribute)
+				continue;
+			report.m_AUPRCLosses[a] = report.m_AUPRC - RankMetrics.areaUnderPRC(scores[a], positive);
+			report.m_AUROCLosses[a] = report.m_AUROC - RankMetrics.areaUnderROC(scores[a], positive);
+		}
+	}
+
+	/**
+	 * Scores a block of rows with one partition.
+	 *
+	 * @return the distributions of the rows for each permuted attribute, of the original rows for the class attribute
+	 */
+	private static double[][][] scoreBlock(Classifier partition, Instances data, int first, int size,
+			int[] permutation) throws Exception {
+		double[][][] distributions = new double[data.numAttributes()][][];
+		Instances block = new Instances(data, size);
+		for (int row = 0; row < size; row++)
+			block.add(data.instance(first + row));
+		for (int a = 0; a < data.numAttributes(); a++) {
+			if (a != data.classIndex()) {
+				for (int row = 0; row < size; row++)
+					block.instance(row).setValue(a, data.instance(permutation[first + row]).value(a));
+			}
+			distributions[a] = distributions(partition, block);
+			if (a != data.classIndex()) {
+				for (int row = 0; row < size; row++)
+					block.instance(row).setValue(a, data.instance(first + row).value(a));
+			}
+		}
+		return distributions;
+	}
+
+	private static double[][] distributions(Classifier classifier, Instances instances) throws Exception {
+		if (classifier instanceof BatchPredictor)
+			return ((BatchPredictor) classifier).distributionsForInstances(instances);
+		double[][] distributions = new double[instances.numInstances()][];
+		for (int i = 0; i < distributions.length; i++)
+			distributions[i] = classifier.distributionForInstance(instances.instance(i));
+		return distributions;
+	}
+
+	private static int leastFrequentClass(Instances data) {
+		int[] counts = data.attributeStats(data.classIndex()).nominalCounts;
+		int minIndex = 0;
+		for (int i = 1; i < counts.length; i++) {
+			if (counts[i] != 0 && (counts[minIndex] == 0 || counts[i] < counts[minIndex]))
+				minIndex = i;
+		}
+		return minIndex;
+	}
+
+	/**
+	 * Computes the importance of the attributes of a serialized model from the command line.
+	 *
+	 * @param args
+	 *            the options
+	 * @throws Exception
+	 *             if the importance cannot be computed
+	 */
+	public static void main(String[] args) throws Exception {
+		String modelFile = Utils.getOption("model", args);
+		String validationFile = Utils.getOption("validation", args);
+		String threads = Utils.getOption("threads", args);
+		String block = Utils.getOption("block", args);
+		String seed = Utils.getOption('S', args);
+		String classValue = Utils.getOption('C', args);
+		Utils.checkForRemainingOptions(args);
+		if (modelFile.length() == 0) {
+			System.err.println("Usage: HyperSMURFAttributeImportance -model <file> [-validation <file>] "
+					+ "[-threads <num>] [-block <num>] [-S <num>] [-C <value-index>]");
+			System.exit(1);
+		}
+
+		HyperSMURFAttributeImportance importance = new HyperSMURFAttributeImportance();
+		if (threads.length() != 0)
+			importance.setNumThreads(Integer.parseInt(threads));
+		if (block.length() != 0)
+			importance.setBlockSize(Integer.parseInt(block));
+		if (seed.length() != 0)
+			importance.setSeed(Integer.parseInt(seed));
+		if (classValue.length() != 0)
+			importance.setClassIndex(Integer.parseInt(classValue) - 1);
+
+		Object[] objects = SerializationHelper.readAll(modelFile);
+		EasyEnsemble model = (EasyEnsemble) objects[0];
+		Instances validation = null;
+		if (validationFile.length() != 0) {
+			validation = ParallelTextLoader.read(validationFile);
+			validation.setClassIndex(validation.numAttributes() - 1);
+		}
+		Instances header = objects.length > 1 && objects[1] instanceof Instances ? (Instances) objects[1]
+				: validation;
+		if (header == null)
+			throw new Exception("The model file has no header of the training data, give held-out data!");
+
+		System.out.println(importance.evaluate(model, header, validation));
+	}
+
+}
@@ -0,0 +1,319 @@
+package weka.classifiers.trees;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.evaluation.RankMetrics;
+import weka.classifiers.meta.EasyEnsemble;
+import weka.classifiers.meta.FilteredClassifier;
+import weka.core.Instances;
+import weka.core.SelectedTag;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+import weka.core.converters.ParallelTextLoader;
+
+/**
+ * <p>
+ * Compacts a trained {@link HyperSMURF} (or any {@link EasyEnsemble} of {@link PartitionForest}s) after training:
+ * every {@link RandomTree} is replaced by a {@link CompactTree}, which stores the class distributions as 16 bit
+ * probabilities and the split points as float32 or as indices into split tables shared by all trees of a forest.
+ * </p>
+ *
+ * <p>
+ * The loss of accuracy is reported on an evaluation set: the largest and the mean absolute difference of the scores of
+ * the positive class, the number of changed predictions, and the AUPRC and AUROC before and after the compaction.
+ * </p>
+ *
+ * <p>
+ * Valid options are:
+ * </p>
+ *
+ * <pre>
+ *  -model &lt;file&gt;
+ *  The serialized model.
+ * </pre>
+ *
+ * <pre>
+ *  -validation &lt;file&gt;
+ *  The evaluation set, the class is the last attribute.
+ * </pre>
+ *
+ * <pre>
+ *  -output &lt;file&gt;
+ *  File for the compacted model.
+ * </pre>
+ *
+ * <pre>
+ *  -leaves &lt;uint16|float16&gt;
+ *  Storage format of the class distributions.
+ *  (default uint16)
+ * </pre>
+ *
+ * <pre>
+ *  -thresholds &lt;float32|table&gt;
+ *  Storage format of the split points.
+ *  (default table)
+ * </pre>
+ *
+ * <pre>
+ *  -C &lt;value-index&gt;
+ *  The index of the positive class value, starting with 1.
+ *  (default 0: least frequent class of the evaluation set)
+ * </pre>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class HyperSMURFCompactor {
+
+	/** The storage format of the class distributions */
+	protected int m_LeafFormat = CompactTree.LEAVES_UINT16;
+
+	/** The storage format of the split points */
+	protected int m_ThresholdFormat = CompactTree.THRESHOLDS_TABLE;
+
+	/** The index of the positive class, -1 for the least frequent class of the evaluation set */
+	protected int m_ClassIndex = -1;
+
+	/**
+	 * The loss of accuracy and the size of a compaction.
+	 */
+	public static class Report {
+		protected long m_BytesBefore;
+		protected long m_BytesAfter;
+		protected int m_NumTrees;
+		protected double m_MaxDifference;
+		protected double m_MeanDifference;
+		protected int m_ChangedPredictions;
+		protected int m_NumInstances;
+		protected double m_AUPRCBefore;
+		protected double m_AUPRCAfter;
+		protected double m_AUROCBefore;
+		protected double m_AUROCAfter;
+
+		public long getBytesBefore() {
+			return m_BytesBefore;
+		}
+
+		public long getBytesAfter() {
+			return m_BytesAfter;
+		}
+
+		public int getNumTrees() {
+			return m_NumTrees;
+		}
+
+		public double getMaxDifference() {
+			return m_MaxDifference;
+		}
+
+		public double getMeanDifference() {
+			return m_MeanDifference;
+		}
+
+		public int getChangedPredictions() {
+			return m_ChangedPredictions;
+		}
+
+		public double getAUPRCBefore() {
+			return m_AUPRCBefore;
+		}
+
+		public double getAUPRCAfter() {
+			return m_AUPRCAfter;
+		}
+
+		public double getAUROCBefore() {
+			return m_AUROCBefore;
+		}
+
+		public double getAUROCAfter() {
+			return m_AUROCAfter;
+		}
+
+		@Override
+		public String toString() {
+			StringBuffer text = new StringBuffer();
+			text.append("Compacted trees: " + m_NumTrees + "\n");
+			text.append("Model size: " + Utils.doubleToString(m_BytesBefore / 1048576.0, 2) + " MB before, "
+					+ Utils.doubleToString(m_BytesAfter / 1048576.0, 2) + " MB after compaction\n");
+			text.append("Score difference: max " + Utils.doubleToString(m_MaxDifference, 8) + ", mean "
+					+ Utils.doubleToString(m_MeanDifference, 8) + "\n");
+			text.append("Changed predictions: " + m_ChangedPredictions + " of " + m_NumInstances + "\n");
+			text.append("AUPRC: " + Utils.doubleToString(m_AUPRCBefore, 6) + " before, "
+					+ Utils.doubleToString(m_AUPRCAfter, 6) + " after compaction\n");
+			text.append("AUROC: " + Utils.doubleToString(m_AUROCBefore, 6) + " before, "
+					+ Utils.doubleToString(m_AUROCAfter, 6) + " after compaction\n");
+			return text.toString();
+		}
+	}
+
+	/**
+	 * Get the storage format of the class distributions.
+	 *
+	 * @return the format, see {@link CompactTree#TAGS_LEAVES}
+	 */
+	public SelectedTag getLeafFormat() {
+		return new SelectedTag(m_LeafFormat, CompactTree.TAGS_LEAVES);
+	}
+
+	/**
+	 * Set the storage format of the class distributions.
+	 *
+	 * @param format
+	 *            the format, see {@link CompactTree#TAGS_LEAVES}
+	 */
+	public void setLeafFormat(SelectedTag format) {
+		if (format.getTags() == CompactTree.TAGS_LEAVES)
+			m_LeafFormat = format.getSelectedTag().getID();
+	}
+
+	/**
+	 * Get the storage format of the split points.
+	 *
+	 * @return the format, see {@link CompactTree#TAGS_THRESHOLDS}
+	 */
+	public SelectedTag getThresholdFormat() {
+		return new SelectedTag(m_ThresholdFormat, CompactTree.TAGS_THRESHOLDS);
+	}
+
+	/**
+	 * Set the storage format of the split points.
+	 *
+	 * @param format
+	 *            the format, see {@link CompactTree#TAGS_THRESHOLDS}
+	 */
+	public void setThresholdFormat(SelectedTag format) {
+		if (format.getTags() == CompactTree.TAGS_THRESHOLDS)
+			m_ThresholdFormat = format.getSelectedTag().getID();
+	}
+
+	/**
+	 * Get the index of the positive class.
+	 *
+	 * @return the index, -1 for the least frequent class of the evaluation set
+	 */
+	public int getClassIndex() {
+		return m_ClassIndex;
+	}
+
+	/**
+	 * Set the index of the positive class.
+	 *
+	 * @param classIndex
+	 *            the index, -1 for the least frequent class of the evaluation set
+	 */
+	public void setClassIndex(int classIndex) {
+		m_ClassIndex = classIndex;
+	}
+
+	/**
+	 * Compacts the model in place and reports the loss of accuracy.
+	 *
+	 * @param model
+	 *            the trained model
+	 * @param evaluation
+	 *            the evaluation set
+	 * @return the report
+	 * @throws Exception
+	 *             if the model cannot be compacted or evaluated
+	 */
+	public Report compact(EasyEnsemble model, Instances evaluation) throws Exception {
+		evaluation = new Instances(evaluation);
+		evaluation.deleteWithMissingClass();
+		int classIndex = m_ClassIndex >= 0 ? m_ClassIndex : leastFrequentClass(evaluation);
+		int n = evaluation.numInstances();
+		boolean[] positive = new boolean[n];
+		for (int i = 0; i < n; i++)
+			positive[i] = (int) evaluation.instance(i).classValue() == classIndex;
+
+		Report report = new Report();
+		report.m_NumInstances = n;
+		report.m_BytesBefore = HyperSMURFInspector.inspect(model).getBytes();
+		double[][] before = model.distributionsForInstances(evaluation);
+
+		for (Classifier partition : model.getPartitionClassifiers()) {
+			while (partition instanceof FilteredClassifier)
+				partition = ((FilteredClassifier) partition).getClassifier();
+			if (!(partition instanceof PartitionForest))
+				continue;
+			PartitionForest forest = (PartitionForest) partition;
+			forest.compact(m_LeafFormat, m_ThresholdFormat);
+			for (int t = 0; t < forest.getNumTrees(); t++)
+				if (forest.getTree(t) instanceof CompactTree)
+					report.m_NumTrees++;
+		}
+
+		report.m_BytesAfter = HyperSMURFInspector.inspect(model).getBytes();
+		double[][] after = model.distributionsForInstances(evaluation);
+
+		double[] scoresBefore = new double[n];
+		double[] scoresAfter = new double[n];
+		for (int i = 0; i < n; i++) {
+			scoresBefore[i] = before[i][classIndex];
+			scoresAfter[i] = after[i][classIndex];
+			double difference = Math.abs(scoresBefore[i] - scoresAfter[i]);
+			report.m_MaxDifference = Math.max(report.m_MaxDifference, difference);
+			report.m_MeanDifference += difference / n;
+			if (Utils.maxIndex(before[i]) != Utils.maxIndex(after[i]))
+				report.m_ChangedPredictions++;
+		}
+		report.m_AUPRCBefore = RankMetrics.areaUnderPRC(scoresBefore, positive);
+		report.m_AUPRCAfter = RankMetrics.areaUnderPRC(scoresAfter, positive);
+		report.m_AUROCBefore = RankMetrics.areaUnderROC(scoresBefore, positive);
+		report.m_AUROCAfter = RankMetrics.areaUnderROC(scoresAfter, positive);
+		return report;
+	}
+
+	private static int leastFrequentClass(Instances data) {
+		int[] counts = data.attributeStats(data.classIndex()).nominalCounts;
+		int minIndex = 0;
+		for (int i = 1; i < counts.length; i++) {
+			if (counts[i] != 0 && (counts[minIndex] == 0 || counts[i] < counts[minIndex]))
+				minIndex = i;
+		}
+		return minIndex;
+	}
+
+	/**
+	 * Compacts a serialized model from the command line.
+	 *
+	 * @param args
+	 *            the options
+	 * @throws Exception
+	 *             if the model cannot be compacted
+	 */
+	public static void main(String[] args) throws Exception {
+		String modelFile = Utils.getOption("model", args);
+		String validationFile = Utils.getOption("validation", args);
+		String outputFile = Utils.getOption("output", args);
+		String leaves = Utils.getOption("leaves", args);
+		String thresholds = Utils.getOption("thresholds", args);
+		String classValue = Utils.getOption('C', args);
+		Utils.checkForRemainingOptions(args);
+		if (modelFile.length() == 0 || validationFile.length() == 0 || outputFile.length() == 0) {
+			System.err.println("Usage: HyperSMURFCompactor -model <file> -validation <file> -output <file> "
+					+ "[-leaves <uint16|float16>] [-thresholds <float32|table>] [-C <value-index>]");
+			System.exit(1);
+		}
+
+		HyperSMURFCompactor compactor = new HyperSMURFCompactor();
+		if (leaves.length() != 0)
+			compactor.setLeafFormat(new SelectedTag(leaves, CompactTree.TAGS_LEAVES));
+		if (thresholds.length() != 0)
+			compactor.setThresholdFormat(new SelectedTag(thresholds, CompactTree.TAGS_THRESHOLDS));
+		if (classValue.length() != 0)
+			compactor.setClassIndex(Integer.parseInt(classValue) - 1);
+
+		Object[] objects = SerializationHelper.readAll(modelFile);
+		EasyEnsemble model = (EasyEnsemble) objects[0];
+		Instances validation = ParallelTextLoader.read(validationFile);
+		validation.setClassIndex(validation.numAttributes() - 1);
+
+		Report report = compactor.compact(model, validation);
+		System.out.println(report);
+
+		Instances header = objects.length > 1 && objects[1] instanceof Instances ? (Instances) objects[1]
+				: new Instances(validation, 0);
+		SerializationHelper.writeAll(outputFile, new Object[] { model, header });
+	}
+
+}
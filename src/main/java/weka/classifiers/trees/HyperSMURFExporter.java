@@ -0,0 +1,410 @@
+package weka.classifiers.trees;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.meta.EasyEnsemble;
+import weka.classifiers.meta.FilteredClassifier;
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.core.OptionHandler;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+import weka.filters.Filter;
+
+/**
+ * <p>
+ * Exports a trained {@link HyperSMURF} (or any {@link EasyEnsemble}) partition by partition to a {@link Writer}, so
+ * the memory needed does not grow with the size of the model. Two formats are written: the text of
+ * {@link EasyEnsemble#toString()}, see {@link EasyEnsemble#writeDescription(Writer)}, and a portable JSON format for
+ * other scoring stacks.
+ * </p>
+ *
+ * <p>
+ * The JSON format, version 1, is one object:
+ * </p>
+ *
+ * <pre>
+ * {
+ *   "format": "hyperSMURF", "version": 1,
+ *   "model": class name, "options": options of the model,
+ *   "relation": name of the data set,
+ *   "attributes": [ { "name": ..., "type": "numeric" | "nominal" | ..., "values": [ ... ] }, ... ],
+ *   "classIndex": index of the class attribute,
+ *   "partitions": [ partition, ... ]
+ * }
+ * </pre>
+ *
+ * <p>
+ * A partition lists the filters it was trained with, outermost first, as
+ * <code>{ "filter": class name, "options": ... }</code>. Instance filters like SMOTE only change the training set and
+ * are skipped at scoring time. A forest of {@link RandomTree}s or {@link CompactTree}s, e.g. a
+ * {@link PartitionForest}, is exported as <code>{ "classifier": class name, "trees": [ tree, ... ] }</code>. A tree is
+ * <code>{ "allowUnclassified": ..., "root": node }</code>, a node is <code>{ "attribute": index, "split": split
+ * point, "props": [ ... ], "distribution": [ ... ], "successors": [ ... ] }</code>, without split point for a nominal
+ * attribute, and a leaf only has the distribution. Other classifiers, and forests with trees that cannot be read, see
+ * {@link FlatTree#read(RandomTree)}, are exported with their options and the text of their <code>toString()</code>.
+ * If the trees of a partition use other attributes than the model, e.g. after an attribute filter, the partition has
+ * its own <code>"attributes"</code>.
+ * </p>
+ *
+ * <p>
+ * An instance is scored by the trees like a {@link RandomTree}. At a node with an attribute, a missing value is passed
+ * down all successors and their distributions are summed, weighted with the proportions <code>"props"</code>. Otherwise
+ * the successor is the index of the value for a nominal attribute, and for a numeric attribute the first successor if
+ * the value is less than the split point, the second one if not. If the successor cannot classify the instance, the
+ * distribution of the node is taken. A node without a distribution (null) cannot classify the instance, unless the
+ * tree allows unclassified instances, then its distribution is all zeros. The distributions are normalized class
+ * probabilities. The distribution of a forest is the normalized sum of the distributions of its trees, the distribution
+ * of the model the normalized sum of the distributions of its partitions. Numbers are written without exponent.
+ * </p>
+ *
+ * <p>
+ * Valid options are:
+ * </p>
+ *
+ * <pre>
+ *  -model &lt;file&gt;
+ *  The serialized model, with its header.
+ * </pre>
+ *
+ * <pre>
+ *  -output &lt;file&gt;
+ *  File for the exported model.
+ * </pre>
+ *
+ * <pre>
+ *  -format &lt;json|text&gt;
+ *  The format.
+ *  (default json)
+ * </pre>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class HyperSMURFExporter {
+
+	/** The version of the JSON format */
+	public static final int VERSION = 1;
+
+	/** The writer */
+	protected Writer m_Writer;
+
+	/**
+	 * Makes an exporter that writes to a writer.
+	 *
+	 * @param writer
+	 *            the writer
+	 */
+	public HyperSMURFExporter(Writer writer) {
+		m_Writer = writer;
+	}
+
+	/**
+	 * Makes an exporter that writes UTF-8 to a stream.
+	 *
+	 * @param out
+	 *            the stream
+	 */
+	public HyperSMURFExporter(OutputStream out) {
+		this(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Writes the model in the JSON format and flushes the writer.
+	 *
+	 * @param model
+	 *            the trained model
+	 * @param header
+	 *            the header of the training data
+	 * @throws Exception
+	 *             if the model is not built or cannot be written
+	 */
+	public void writeJSON(EasyEnsemble model, Instances header) throws Exception {
+		Classifier[] partitions = model.getPartitionClassifiers();
+		if (partitions == null)
+			throw new Exception("No model built yet!");
+		m_Writer.write("{\n\"format\": \"hyperSMURF\",\n\"version\": " + VERSION + ",\n\"model\": ");
+		writeString(model.getClass().getName());
+		m_Writer.write(",\n\"options\": ");
+		writeString(Utils.joinOptions(model.getOptions()));
+		m_Writer.write(",\n\"relation\": ");
+		writeString(header.relationName());
+		m_Writer.write(",\n");
+		writeAttributes(header);
+		m_Writer.write(",\n\"classIndex\": " + header.classIndex() + ",\n\"partitions\": [");
+		for (int p = 0; p < partitions.length; p++) {
+			m_Writer.write(p == 0 ? "\n" : ",\n");
+			writePartition(partitions[p], header);
+		}
+		m_Writer.write("\n]\n}\n");
+		m_Writer.flush();
+	}
+
+	/**
+	 * Writes the text of the model, see {@link EasyEnsemble#writeDescription(Writer)}, and flushes the writer.
+	 *
+	 * @param model
+	 *            the model
+	 * @throws IOException
+	 *             if the model cannot be written
+	 */
+	public void writeText(EasyEnsemble model) throws IOException {
+		model.writeDescription(m_Writer);
+		m_Writer.flush();
+	}
+
+	private void writeAttributes(Instances header) throws IOException {
+		m_Writer.write("\"attributes\": [");
+		for (int i = 0; i < header.numAttributes(); i++) {
+			Attribute attribute = header.attribute(i);
+			m_Writer.write(i == 0 ? "\n{\"name\": " : ",\n{\"name\": ");
+			writeString(attribute.name());
+			m_Writer.write(", \"type\": ");
+			writeString(Attribute.typeToString(attribute));
+			if (attribute.isNominal()) {
+				m_Writer.write(", \"values\": [");
+				for (int j = 0; j < attribute.numValues(); j++) {
+					if (j > 0)
+						m_Writer.write(", ");
+					writeString(attribute.value(j));
+				}
+				m_Writer.write("]");
+			}
+			m_Writer.write("}");
+		}
+		m_Writer.write("\n]");
+	}
+
+	private void writePartition(Classifier classifier, Instances header) throws Exception {
+		m_Writer.write("{\"filters\": [");
+		boolean first = true;
+		while (classifier instanceof FilteredClassifier) {
+			Filter filter = ((FilteredClassifier) classifier).getFilter();
+			m_Writer.write(first ? "{\"filter\": " : ", {\"filter\": ");
+			writeString(filter.getClass().getName());
+			m_Writer.write(", \"options\": ");
+			writeString(filter instanceof OptionHandler ? Utils.joinOptions(((OptionHandler) filter).getOptions())
+					: "");
+			m_Writer.write("}");
+			first = false;
+			classifier = ((FilteredClassifier) classifier).getClassifier();
+		}
+		m_Writer.write("],\n\"classifier\": ");
+		writeString(classifier.getClass().getName());
+		FlatTree[] flatTrees = classifier instanceof PartitionForest ? ((PartitionForest) classifier).getFlatTrees()
+				: null;
+		if (flatTrees == null || !isExportable((PartitionForest) classifier, flatTrees)) {
+			m_Writer.write(",\n\"options\": ");
+			writeString(classifier instanceof OptionHandler
+					? Utils.joinOptions(((OptionHandler) classifier).getOptions()) : "");
+			m_Writer.write(",\n\"text\": ");
+			writeString(classifier.toString());
+			m_Writer.write("}");
+			return;
+		}
+		PartitionForest forest = (PartitionForest) classifier;
+		for (int t = 0; t < forest.getNumTrees(); t++) {
+			if (flatTrees[t] != null) {
+				Instances info = flatTrees[t].getHeader();
+				if (!info.equalHeaders(header)) {
+					m_Writer.write(",\n");
+					writeAttributes(info);
+				}
+				break;
+			}
+		}
+		m_Writer.write(",\n\"trees\": [");
+		for (int t = 0; t < forest.getNumTrees(); t++) {
+			m_Writer.write(t == 0 ? "\n" : ",\n");
+			if (flatTrees[t] != null) {
+				m_Writer.write("{\"allowUnclassified\": " + flatTrees[t].getAllowUnclassifiedInstances()
+						+ ", \"root\": ");
+				writeNode(flatTrees[t], 0);
+			} else {
+				CompactTree compactTree = (CompactTree) forest.getTree(t);
+				m_Writer.write("{\"allowUnclassified\": " + compactTree.m_AllowUnclassifiedInstances + ", \"root\": ");
+				writeNode(compactTree, 0);
+			}
+			m_Writer.write("}");
+		}
+		m_Writer.write("\n]}");
+	}
+
+	/**
+	 * Whether all trees of a forest can be exported, only trained {@link RandomTree}s of a nominal class that can be
+	 * read as {@link FlatTree}s and {@link CompactTree}s can.
+	 */
+	private static boolean isExportable(PartitionForest forest, FlatTree[] flatTrees) {
+		for (int t = 0; t < forest.getNumTrees(); t++)
+			if (flatTrees[t] == null && !(forest.getTree(t) instanceof CompactTree))
+				return false;
+		return true;
+	}
+
+	private void writeNode(FlatTree tree, int node) throws IOException {
+		int attribute = tree.attribute(node);
+		if (attribute == FlatTree.LEAF) {
+			m_Writer.write("{\"distribution\": ");
+			writeDistribution(tree.classDistribution(node));
+			m_Writer.write("}");
+			return;
+		}
+		int first = tree.firstSuccessor(node);
+		m_Writer.write("{\"attribute\": " + attribute);
+		if (tree.getHeader().attribute(attribute).isNumeric()) {
+			m_Writer.write(", \"split\": ");
+			writeNumber(tree.splitPoint(node));
+		}
+		m_Writer.write(", \"props\": [");
+		for (int i = first; i < first + tree.numSuccessors(node); i++) {
+			if (i > first)
+				m_Writer.write(", ");
+			writeNumber(tree.prop(i));
+		}
+		m_Writer.write("], \"distribution\": ");
+		writeDistribution(tree.classDistribution(node));
+		m_Writer.write(",\n\"successors\": [");
+		for (int i = first; i < first + tree.numSuccessors(node); i++) {
+			if (i > first)
+				m_Writer.write(",\n");
+			writeNode(tree, i);
+		}
+		m_Writer.write("]}");
+	}
+
+	private void writeNode(CompactTree tree, int node) throws IOException {
+		int attribute = tree.m_Attributes[node];
+		if (attribute == CompactTree.LEAF) {
+			m_Writer.write("{\"distribution\": ");
+			writeNumbers(tree.distribution(node));
+			m_Writer.write("}");
+			return;
+		}
+		int first = tree.m_FirstSuccessors[node];
+		int numSuccessors = tree.m_NumValues[attribute] == 0 ? 2 : tree.m_NumValues[attribute];
+		m_Writer.write("{\"attribute\": " + attribute);
+		if (tree.m_NumValues[attribute] == 0) {
+			m_Writer.write(", \"split\": ");
+			writeNumber(tree.threshold(node, attribute));
+		}
+		m_Writer.write(", \"props\": [");
+		for (int i = first; i < first + numSuccessors; i++) {
+			if (i > first)
+				m_Writer.write(", ");
+			writeNumber(tree.m_Props[i] / (double) Character.MAX_VALUE);
+		}
+		m_Writer.write("], \"distribution\": ");
+		writeNumbers(tree.distribution(node));
+		m_Writer.write(",\n\"successors\": [");
+		for (int i = first; i < first + numSuccessors; i++) {
+			if (i > first)
+				m_Writer.write(",\n");
+			writeNode(tree, i);
+		}
+		m_Writer.write("]}");
+	}
+
+	/**
+	 * Writes a class distribution normalized to probabilities, null if there is none.
+	 */
+	private void writeDistribution(double[] classDistribution) throws IOException {
+		if (classDistribution == null) {
+			writeNumbers(null);
+			return;
+		}
+		double[] normalized = classDistribution.clone();
+		Utils.normalize(normalized);
+		writeNumbers(normalized);
+	}
+
+	private void writeNumbers(double[] values) throws IOException {
+		if (values == null) {
+			m_Writer.write("null");
+			return;
+		}
+		m_Writer.write("[");
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0)
+				m_Writer.write(", ");
+			writeNumber(values[i]);
+		}
+		m_Writer.write("]");
+	}
+
+	/**
+	 * Writes a number without exponent, null if it is not finite.
+	 */
+	private void writeNumber(double value) throws IOException {
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			m_Writer.write("null");
+		else
+			m_Writer.write(BigDecimal.valueOf(value).toPlainString());
+	}
+
+	private void writeString(String value) throws IOException {
+		m_Writer.write('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				m_Writer.write('\\');
+				m_Writer.write(c);
+			} else if (c == '\n') {
+				m_Writer.write("\\n");
+			} else if (c == '\t') {
+				m_Writer.write("\\t");
+			} else if (c == '\r') {
+				m_Writer.write("\\r");
+			} else if (c < 0x20) {
+				m_Writer.write(String.format("\\u%04x", (int) c));
+			} else {
+				m_Writer.write(c);
+			}
+		}
+		m_Writer.write('"');
+	}
+
+	/**
+	 * Exports a serialized model from the command line.
+	 *
+	 * @param args
+	 *            the options
+	 * @throws Exception
+	 *             if the model cannot be exported
+	 */
+	public static void main(String[] args) throws Exception {
+		String modelFile = Utils.getOption("model", args);
+		String outputFile = Utils.getOption("output", args);
+		String format = Utils.getOption("format", args);
+		Utils.checkForRemainingOptions(args);
+		if (modelFile.length() == 0 || outputFile.length() == 0 || !(format.length() == 0 || format.equals("json")
+				|| format.equals("text"))) {
+			System.err.println("Usage: HyperSMURFExporter -model <file> -output <file> [-format <json|text>]");
+			System.exit(1);
+		}
+
+		Object[] objects = SerializationHelper.readAll(modelFile);
+		EasyEnsemble model = (EasyEnsemble) objects[0];
+		OutputStream out = new FileOutputStream(outputFile);
+		try {
+			HyperSMURFExporter exporter = new HyperSMURFExporter(out);
+			if (format.equals("text")) {
+				exporter.writeText(model);
+			} else {
+				if (objects.length < 2 || !(objects[1] instanceof Instances))
+					throw new Exception("The model file has no header of the training data!");
+				exporter.writeJSON(model, (Instances) objects[1]);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,580 @@
+package weka.classifiers.trees;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.meta.EasyEnsemble;
+import weka.classifiers.meta.FilteredClassifier;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+import weka.filters.Filter;
+
+/**
+ * <p>
+ * Reports the size of a built {@link HyperSMURF} or any other {@link EasyEnsemble} model: for each partition and each
+ * tree the number of nodes and leaves, the depth and the estimated retained heap, and the heap held by the filters
+ * and the header copies of the partitions.
+ * </p>
+ *
+ * <p>
+ * The heap is estimated by walking the object graph of the model with the layout of a 64 bit HotSpot JVM with
+ * compressed references, i.e. a heap of less than 32 GB. Objects shared by several parts of the model, e.g. the
+ * attributes of the header copies, are counted once, for the part that is inspected first. Header copies are all
+ * {@link Instances} objects of a partition outside of its filter, i.e. those of the trees and the filtered classifier.
+ * The split tables shared by the {@link CompactTree}s of a forest are counted for its first tree. Trees of other
+ * classifiers than {@link RandomTree} and {@link CompactTree} are not broken down, their forest is counted as a
+ * whole.
+ * </p>
+ *
+ * <p>
+ * Valid options are:
+ * </p>
+ *
+ * <pre>
+ *  -l &lt;file&gt;
+ *  The serialized model.
+ * </pre>
+ *
+ * <pre>
+ *  -trees
+ *  Report every tree, not only the partitions.
+ * </pre>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class HyperSMURFInspector {
+
+	/** Bytes of an object header */
+	protected static final int OBJECT_HEADER = 12;
+
+	/** Bytes of an array header */
+	protected static final int ARRAY_HEADER = 16;
+
+	/** Bytes of a reference */
+	protected static final int REFERENCE = 4;
+
+	/** Alignment of objects in bytes */
+	protected static final int ALIGNMENT = 8;
+
+	/** Estimated bytes of an entry of a hash map */
+	protected static final int MAP_ENTRY = 32;
+
+	/**
+	 * The size of a tree.
+	 */
+	public static class TreeStatistics {
+		protected int m_NumNodes;
+		protected int m_NumLeaves;
+		protected int m_Depth;
+		protected long m_Bytes;
+		protected long m_HeaderBytes;
+
+		/**
+		 * @return the number of nodes including the leaves
+		 */
+		public int getNumNodes() {
+			return m_NumNodes;
+		}
+
+		/**
+		 * @return the number of leaves
+		 */
+		public int getNumLeaves() {
+			return m_NumLeaves;
+		}
+
+		/**
+		 * @return the number of edges of the longest path from the root to a leaf
+		 */
+		public int getDepth() {
+			return m_Depth;
+		}
+
+		/**
+		 * @return the estimated retained heap of the tree in bytes without its header
+		 */
+		public long getBytes() {
+			return m_Bytes;
+		}
+
+		/**
+		 * @return the estimated heap in bytes of the header copy of the tree
+		 */
+		public long getHeaderBytes() {
+			return m_HeaderBytes;
+		}
+	}
+
+	/**
+	 * The size of a partition.
+	 */
+	public static class PartitionStatistics {
+		protected List<TreeStatistics> m_Trees = new ArrayList<TreeStatistics>();
+		protected long m_ClassifierBytes;
+		protected long m_FilterBytes;
+		protected long m_HeaderBytes;
+
+		/**
+		 * @return the trees of the partition, empty if the classifier is no forest of {@link RandomTree}s
+		 */
+		public List<TreeStatistics> getTrees() {
+			return m_Trees;
+		}
+
+		/**
+		 * @return the number of nodes of all trees
+		 */
+		public long getNumNodes() {
+			long numNodes = 0;
+			for (TreeStatistics tree : m_Trees)
+				numNodes += tree.getNumNodes();
+			return numNodes;
+		}
+
+		/**
+		 * @return the number of leaves of all trees
+		 */
+		public long getNumLeaves() {
+			long numLeaves = 0;
+			for (TreeStatistics tree : m_Trees)
+				numLeaves += tree.getNumLeaves();
+			return numLeaves;
+		}
+
+		/**
+		 * @return the largest depth of the trees
+		 */
+		public int getDepth() {
+			int depth = 0;
+			for (TreeStatistics tree : m_Trees)
+				depth = Math.max(depth, tree.getDepth());
+			return depth;
+		}
+
+		/**
+		 * @return the estimated retained heap in bytes of the trees without their headers
+		 */
+		public long getTreeBytes() {
+			long bytes = 0;
+			for (TreeStatistics tree : m_Trees)
+				bytes += tree.getBytes();
+			return bytes;
+		}
+
+		/**
+		 * @return the estimated retained heap in bytes of the classifiers without trees, filters and headers
+		 */
+		public long getClassifierBytes() {
+			return m_ClassifierBytes;
+		}
+
+		/**
+		 * @return the estimated retained heap in bytes of the filters including their input and output formats
+		 */
+		public long getFilterBytes() {
+			return m_FilterBytes;
+		}
+
+		/**
+		 * @return the estimated heap in bytes of the header copies outside of the filters
+		 */
+		public long getHeaderBytes() {
+			return m_HeaderBytes;
+		}
+
+		/**
+		 * @return the estimated retained heap of the partition in bytes
+		 */
+		public long getBytes() {
+			return getTreeBytes() + m_ClassifierBytes + m_FilterBytes + m_HeaderBytes;
+		}
+	}
+
+	/**
+	 * The size of a model.
+	 */
+	public static class ModelStatistics {
+		protected List<PartitionStatistics> m_Partitions = new ArrayList<PartitionStatistics>();
+		protected long m_EnsembleBytes;
+
+		/**
+		 * @return the partitions of the model
+		 */
+		public List<PartitionStatistics> getPartitions() {
+			return m_Partitions;
+		}
+
+		/**
+		 * @return the estimated heap in bytes of the ensemble without the partitions
+		 */
+		public long getEnsembleBytes() {
+			return m_EnsembleBytes;
+		}
+
+		/**
+		 * @return the estimated retained heap of the model in bytes
+		 */
+		public long getBytes() {
+			long bytes = m_EnsembleBytes;
+			for (PartitionStatistics partition : m_Partitions)
+				bytes += partition.getBytes();
+			return bytes;
+		}
+
+		/**
+		 * Returns a table of the partitions, and of the trees if requested.
+		 *
+		 * @param trees
+		 *            true if every tree is listed
+		 * @return the report
+		 */
+		public String toString(boolean trees) {
+			StringBuffer text = new StringBuffer();
+			text.append("Partition\tTrees\tNodes\tLeaves\tDepth\tTrees MB\tClassifier MB\tFilter MB\tHeaders MB\tTotal MB\n");
+			long numNodes = 0;
+			long numLeaves = 0;
+			int depth = 0;
+			int numTrees = 0;
+			long treeBytes = 0;
+			long classifierBytes = 0;
+			long filterBytes = 0;
+			long headerBytes = 0;
+			for (int i = 0; i < m_Partitions.size(); i++) {
+				PartitionStatistics partition = m_Partitions.get(i);
+				text.append((i + 1) + "\t" + partition.getTrees().size() + "\t" + partition.getNumNodes() + "\t"
+						+ partition.getNumLeaves() + "\t" + partition.getDepth() + "\t" + toMB(partition.getTreeBytes())
+						+ "\t" + toMB(partition.getClassifierBytes()) + "\t" + toMB(partition.getFilterBytes()) + "\t"
+						+ toMB(partition.getHeaderBytes()) + "\t" + toMB(partition.getBytes()) + "\n");
+				if (trees) {
+					for (int j = 0; j < partition.getTrees().size(); j++) {
+						TreeStatistics tree = partition.getTrees().get(j);
+						text.append((i + 1) + "." + (j + 1) + "\t\t" + tree.getNumNodes() + "\t" + tree.getNumLeaves()
+								+ "\t" + tree.getDepth() + "\t" + toMB(tree.getBytes()) + "\t\t\t"
+								+ toMB(tree.getHeaderBytes()) + "\t" + toMB(tree.getBytes() + tree.getHeaderBytes())
+								+ "\n");
+					}
+				}
+				numTrees += partition.getTrees().size();
+				numNodes += partition.getNumNodes();
+				numLeaves += partition.getNumLeaves();
+				depth = Math.max(depth, partition.getDepth());
+				treeBytes += partition.getTreeBytes();
+				classifierBytes += partition.getClassifierBytes();
+				filterBytes += partition.getFilterBytes();
+				headerBytes += partition.getHeaderBytes();
+			}
+			text.append("All\t" + numTrees + "\t" + numNodes + "\t" + numLeaves + "\t" + depth + "\t" + toMB(treeBytes)
+					+ "\t" + toMB(classifierBytes) + "\t" + toMB(filterBytes) + "\t" + toMB(headerBytes) + "\t"
+					+ toMB(getBytes() - m_EnsembleBytes) + "\n\n");
+			text.append("Ensemble without partitions: " + toMB(m_EnsembleBytes) + " MB, model: " + toMB(getBytes())
+					+ " MB\n");
+			return text.toString();
+		}
+
+		@Override
+		public String toString() {
+			return toString(false);
+		}
+	}
+
+	/** The objects counted so far */
+	protected IdentityHashMap<Object, Object> m_Visited = new IdentityHashMap<Object, Object>();
+
+	/** The instance fields of each class that hold references, null if they cannot be read */
+	protected Map<Class<?>, Field[]> m_ReferenceFields = new HashMap<Class<?>, Field[]>();
+
+	/** The shallow size of the instances of each class */
+	protected Map<Class<?>, Long> m_ShallowSizes = new HashMap<Class<?>, Long>();
+
+	/**
+	 * Inspects a built model.
+	 *
+	 * @param model
+	 *            the model
+	 * @return the size of the model
+	 * @throws Exception
+	 *             if the model is not built
+	 */
+	public static ModelStatistics inspect(EasyEnsemble model) throws Exception {
+		Classifier[] partitions = model.getPartitionClassifiers();
+		if (partitions == null)
+			throw new Exception("The model is not built");
+		HyperSMURFInspector inspector = new HyperSMURFInspector();
+		ModelStatistics statistics = new ModelStatistics();
+		for (Classifier partition : partitions)
+			statistics.m_Partitions.add(inspector.inspectPartition(partition));
+		statistics.m_EnsembleBytes = inspector.retainedBytes(model, null);
+		return statistics;
+	}
+
+	/**
+	 * Inspects the classifier of a partition. The filters of nested {@link FilteredClassifier}s are counted as filters,
+	 * the trees of a {@link PartitionForest} are broken down.
+	 *
+	 * @param classifier
+	 *            the classifier
+	 * @return the size of the partition
+	 */
+	protected PartitionStatistics inspectPartition(Classifier classifier) {
+		PartitionStatistics statistics = new PartitionStatistics();
+		List<Object> headers = new ArrayList<Object>();
+		Classifier current = classifier;
+		while (current instanceof FilteredClassifier) {
+			Filter filter = ((FilteredClassifier) current).getFilter();
+			statistics.m_FilterBytes += retainedBytes(filter, null);
+			current = ((FilteredClassifier) current).getClassifier();
+		}
+		if (current instanceof PartitionForest) {
+			PartitionForest forest = (PartitionForest) current;
+			for (int i = 0; i < forest.getNumTrees(); i++) {
+				if (forest.getTree(i) instanceof RandomTree)
+					statistics.m_Trees.add(inspectTree((RandomTree) forest.getTree(i)));
+				else if (forest.getTree(i) instanceof CompactTree)
+					statistics.m_Trees.add(inspectTree((CompactTree) forest.getTree(i)));
+			}
+		}
+		statistics.m_ClassifierBytes = retainedBytes(classifier, headers);
+		statistics.m_HeaderBytes = retainedBytes(headers);
+		return statistics;
+	}
+
+	/**
+	 * Inspects a tree.
+	 *
+	 * @param tree
+	 *            the tree
+	 * @return the size of the tree
+	 */
+	protected TreeStatistics inspectTree(RandomTree tree) {
+		TreeStatistics statistics = new TreeStatistics();
+		FlatTree flatTree = FlatTree.read(tree);
+		if (flatTree != null) {
+			statistics.m_NumNodes = flatTree.numNodes();
+			statistics.m_NumLeaves = flatTree.numLeaves();
+			statistics.m_Depth = flatTree.depth();
+		} else {
+			// only the number of nodes is public
+			try {
+				statistics.m_NumNodes = tree.numElements();
+			} catch (Exception e) {
+				// not built
+			}
+		}
+		List<Object> headers = new ArrayList<Object>();
+		statistics.m_Bytes = retainedBytes(tree, headers);
+		statistics.m_HeaderBytes = retainedBytes(headers);
+		return statistics;
+	}
+
+	/**
+	 * Inspects a compact tree.
+	 *
+	 * @param tree
+	 *            the tree
+	 * @return the size of the tree
+	 */
+	protected TreeStatistics inspectTree(CompactTree tree) {
+		TreeStatistics statistics = new TreeStatistics();
+		statistics.m_NumNodes = tree.numNodes();
+		statistics.m_NumLeaves = tree.numLeaves();
+		statistics.m_Depth = tree.depth();
+		statistics.m_Bytes = retainedBytes(tree, null);
+		return statistics;
+	}
+
+	/**
+	 * Estimates the heap of all objects reachable from a root that have not been counted before.
+	 *
+	 * @param root
+	 *            the root
+	 * @param headers
+	 *            if not null, {@link Instances} are not followed but added to this list
+	 * @return the estimated bytes
+	 */
+	protected long retainedBytes(Object root, List<Object> headers) {
+		long bytes = 0;
+		Deque<Object> stack = new ArrayDeque<Object>();
+		push(stack, root);
+		while (!stack.isEmpty()) {
+			Object object = stack.pop();
+			if (object instanceof Instances && headers != null) {
+				headers.add(object);
+				continue;
+			}
+			if (m_Visited.containsKey(object))
+				continue;
+			m_Visited.put(object, object);
+			Class<?> type = object.getClass();
+			if (type.isArray()) {
+				bytes += arrayBytes(object);
+				if (!type.getComponentType().isPrimitive()) {
+					for (int i = 0; i < Array.getLength(object); i++)
+						push(stack, Array.get(object, i));
+				}
+			} else if (object instanceof String) {
+				bytes += align(OBJECT_HEADER + REFERENCE + 8) + align(ARRAY_HEADER + 2L * ((String) object).length());
+			} else if (object instanceof Collection && type.getName().startsWith("java.")) {
+				// the internals of the collections of the JDK cannot be read on newer JVMs
+				Collection<?> collection = (Collection<?>) object;
+				bytes += shallowSize(type) + align(ARRAY_HEADER + (long) REFERENCE * collection.size());
+				if (!(object instanceof List))
+					bytes += (long) MAP_ENTRY * collection.size();
+				for (Object element : collection)
+					push(stack, element);
+			} else if (object instanceof Map && type.getName().startsWith("java.")) {
+				Map<?, ?> map = (Map<?, ?>) object;
+				bytes += shallowSize(type) + align(ARRAY_HEADER + (long) REFERENCE * map.size() * 4 / 3)
+						+ (long) MAP_ENTRY * map.size();
+				for (Map.Entry<?, ?> entry : map.entrySet()) {
+					push(stack, entry.getKey());
+					push(stack, entry.getValue());
+				}
+			} else {
+				bytes += shallowSize(type);
+				Field[] fields = referenceFields(type);
+				if (fields != null) {
+					for (Field field : fields) {
+						try {
+							push(stack, field.get(object));
+						} catch (IllegalAccessException e) {
+							// not followed
+						}
+					}
+				}
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Estimates the heap of all objects reachable from the given roots that have not been counted before.
+	 */
+	private long retainedBytes(List<Object> roots) {
+		long bytes = 0;
+		for (Object root : roots)
+			bytes += retainedBytes(root, null);
+		return bytes;
+	}
+
+	/**
+	 * Pushes an object that is part of the model.
+	 */
+	private static void push(Deque<Object> stack, Object object) {
+		if (object == null || object instanceof Class
+				|| object instanceof ClassLoader || object instanceof Thread)
+			return;
+		stack.push(object);
+	}
+
+	/**
+	 * Returns the size of an object without the objects it references.
+	 */
+	protected long shallowSize(Class<?> type) {
+		Long size = m_ShallowSizes.get(type);
+		if (size == null) {
+			long bytes = OBJECT_HEADER;
+			for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+				for (Field field : c.getDeclaredFields()) {
+					if (!Modifier.isStatic(field.getModifiers()))
+						bytes += fieldSize(field.getType());
+				}
+			}
+			size = align(bytes);
+			m_ShallowSizes.put(type, size);
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the readable instance fields of a class and its super classes that hold references, null if they cannot
+	 * be read.
+	 */
+	protected Field[] referenceFields(Class<?> type) {
+		if (m_ReferenceFields.containsKey(type))
+			return m_ReferenceFields.get(type);
+		List<Field> fields = new ArrayList<Field>();
+		try {
+			for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+				for (Field field : c.getDeclaredFields()) {
+					if (!Modifier.isStatic(field.getModifiers()) && !field.getType().isPrimitive()) {
+						field.setAccessible(true);
+						fields.add(field);
+					}
+				}
+			}
+		} catch (RuntimeException e) {
+			// modules of newer JVMs do not open their internals
+			fields = null;
+		}
+		Field[] result = fields == null ? null : fields.toArray(new Field[fields.size()]);
+		m_ReferenceFields.put(type, result);
+		return result;
+	}
+
+	/**
+	 * Returns the size of an array without the objects it references, 0 for null.
+	 */
+	protected static long arrayBytes(Object array) {
+		if (array == null)
+			return 0;
+		Class<?> component = array.getClass().getComponentType();
+		return align(ARRAY_HEADER + (long) fieldSize(component) * Array.getLength(array));
+	}
+
+	/**
+	 * Returns the bytes of a field or array element of a type.
+	 */
+	private static int fieldSize(Class<?> type) {
+		if (type == long.class || type == double.class)
+			return 8;
+		if (type == int.class || type == float.class)
+			return 4;
+		if (type == short.class || type == char.class)
+			return 2;
+		if (type == byte.class || type == boolean.class)
+			return 1;
+		return REFERENCE;
+	}
+
+	private static long align(long bytes) {
+		return (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+	}
+
+	private static String toMB(long bytes) {
+		return Utils.doubleToString(bytes / (double) (1 << 20), 3);
+	}
+
+	/**
+	 * Reports the size of a serialized model on the command line.
+	 *
+	 * @param args
+	 *            the options
+	 * @throws Exception
+	 *             if the model cannot be read or is no {@link EasyEnsemble}
+	 */
+	public static void main(String[] args) throws Exception {
+		String modelFile = Utils.getOption('l', args);
+		boolean trees = Utils.getFlag("trees", args);
+		Utils.checkForRemainingOptions(args);
+		if (modelFile.length() == 0) {
+			System.err.println("Usage: HyperSMURFInspector -l <model file> [-trees]");
+			System.exit(1);
+		}
+		Object model = SerializationHelper.read(modelFile);
+		if (!(model instanceof EasyEnsemble))
+			throw new Exception("No HyperSMURF or EasyEnsemble model: " + model.getClass().getName());
+		System.out.print(inspect((EasyEnsemble) model).toString(trees));
+	}
+}
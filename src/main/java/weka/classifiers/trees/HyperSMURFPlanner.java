@@ -0,0 +1,727 @@
+package weka.classifiers.trees;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import weka.classifiers.meta.EasyEnsemble;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.core.converters.ConverterUtils.DataSource;
+import weka.core.converters.ParallelTextLoader;
+import weka.filters.Filter;
+
+/**
+ * <p>
+ * Dry-run planner of a {@link HyperSMURF} build. From the number of instances per class, the number of attributes and
+ * the options of the classifier it estimates the training set of a partition, the peak heap and the build time, and
+ * recommends the number of partitions and trees built at the same time that fit into a given heap.
+ * </p>
+ *
+ * <p>
+ * The memory model is the one used by the memory budget of the classifier. The time of a tree is modelled as
+ * proportional to <code>n * log2(n)^2 * K</code> for a training set of <code>n</code> instances and <code>K</code>
+ * features per split, the time of SMOTE as proportional to <code>m^2 * a</code> for <code>m</code> minority instances
+ * and <code>a</code> attributes. The factors default to values measured on a single core of a current desktop CPU and
+ * can be calibrated with a build of a single partition on a sample of the data.
+ * </p>
+ *
+ * <p>
+ * Valid options are:
+ * </p>
+ *
+ * <pre>
+ *  -t &lt;file&gt;
+ *  The data set, the class is the last attribute. Only read once to count the classes and to draw the calibration
+ *  sample.
+ * </pre>
+ *
+ * <pre>
+ *  -majority &lt;num&gt; -minority &lt;num&gt; -attributes &lt;num&gt;
+ *  The size of the data set if no file is given. The number of attributes includes the class.
+ * </pre>
+ *
+ * <pre>
+ *  -heap &lt;MB&gt;
+ *  The heap to plan for.
+ *  (default: maximum heap of this JVM)
+ * </pre>
+ *
+ * <pre>
+ *  -cores &lt;num&gt;
+ *  The number of cores to plan for.
+ *  (default: available processors)
+ * </pre>
+ *
+ * <pre>
+ *  -num-trees &lt;num&gt;
+ *  The number of trees of each partition.
+ *  (default 10)
+ * </pre>
+ *
+ * <pre>
+ *  -calibrate
+ *  Calibrate the time and model size with a build of a single partition on a sample of the data set.
+ * </pre>
+ *
+ * <pre>
+ *  -sample &lt;num&gt;
+ *  Maximum number of instances of the calibration sample.
+ *  (default 2000)
+ * </pre>
+ *
+ * <p>
+ * Options after -- are passed to {@link HyperSMURF}.
+ * </p>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class HyperSMURFPlanner {
+
+	/** Default seconds per unit of work of a tree, i.e. per <code>n * log2(n)^2 * K</code> */
+	public static final double DEFAULT_TREE_COST = 1.5e-8;
+
+	/** Default seconds per unit of work of SMOTE, i.e. per <code>m^2 * a</code> */
+	public static final double DEFAULT_SMOTE_COST = 1e-8;
+
+	/** Default number of tree nodes per instance of the training set */
+	public static final double DEFAULT_NODES_PER_INSTANCE = 0.25;
+
+	/** Estimated heap in bytes of a tree node */
+	protected static final long NODE_MEMORY = 120;
+
+	/** The classifier whose options are planned for */
+	protected HyperSMURF m_Classifier;
+
+	/** The heap in bytes to plan for */
+	protected long m_Heap = Runtime.getRuntime().maxMemory();
+
+	/** The number of cores to plan for */
+	protected int m_NumCores = Runtime.getRuntime().availableProcessors();
+
+	/** Maximum number of instances of the calibration sample */
+	protected int m_SampleSize = 2000;
+
+	/** Seconds per unit of work of a tree */
+	protected double m_TreeCost = DEFAULT_TREE_COST;
+
+	/** Seconds per unit of work of SMOTE */
+	protected double m_SMOTECost = DEFAULT_SMOTE_COST;
+
+	/** Number of tree nodes per instance of the training set */
+	protected double m_NodesPerInstance = DEFAULT_NODES_PER_INSTANCE;
+
+	/** Whether the factors were calibrated */
+	protected boolean m_Calibrated = false;
+
+	/**
+	 * A way to run the build: the number of partitions and trees built at the same time and the storage of the
+	 * majority class.
+	 */
+	public static class Configuration {
+		protected final int m_PartitionSlots;
+		protected final int m_TreeSlots;
+		protected final int m_Storage;
+		protected final long m_PeakMemory;
+		protected final double m_Seconds;
+
+		protected Configuration(int partitionSlots, int treeSlots, int storage, long peakMemory, double seconds) {
+			m_PartitionSlots = partitionSlots;
+			m_TreeSlots = treeSlots;
+			m_Storage = storage;
+			m_PeakMemory = peakMemory;
+			m_Seconds = seconds;
+		}
+
+		/**
+		 * @return the number of partitions built at the same time, the <code>-num-slots</code> of the classifier
+		 */
+		public int getPartitionSlots() {
+			return m_PartitionSlots;
+		}
+
+		/**
+		 * @return the number of trees of a partition built at the same time, see
+		 *         {@link HyperSMURF#setNumRFExecutionSlots(int)}
+		 */
+		public int getTreeSlots() {
+			return m_TreeSlots;
+		}
+
+		/**
+		 * @return the storage of the majority class, one of {@link EasyEnsemble#TAGS_STORAGE}
+		 */
+		public int getStorage() {
+			return m_Storage;
+		}
+
+		/**
+		 * @return the estimated peak heap in bytes
+		 */
+		public long getPeakMemory() {
+			return m_PeakMemory;
+		}
+
+		/**
+		 * @return the estimated wall-clock time of the build in seconds
+		 */
+		public double getSeconds() {
+			return m_Seconds;
+		}
+	}
+
+	/**
+	 * The estimates of a build.
+	 */
+	public static class Plan {
+		protected int m_NumPartitions;
+		protected int m_NumTrees;
+		protected long m_NumMajority;
+		protected long m_NumMinority;
+		protected int m_NumAttributes;
+		protected long m_PartitionMajority;
+		protected long m_SMOTEInstances;
+		protected long m_SubsampledInstances;
+		protected long m_InstanceMemory;
+		protected long m_DataMemory;
+		protected long m_ModelMemory;
+		protected long m_OffHeapMemory;
+		protected double m_SMOTESeconds;
+		protected double m_TreeSeconds;
+		protected long m_Heap;
+		protected int m_NumCores;
+		protected boolean m_Calibrated;
+		protected List<Configuration> m_Configurations = new ArrayList<Configuration>();
+		protected Configuration m_Recommended;
+
+		/**
+		 * @return the number of majority instances of the largest partition
+		 */
+		public long getPartitionMajority() {
+			return m_PartitionMajority;
+		}
+
+		/**
+		 * @return the number of minority instances after SMOTE
+		 */
+		public long getSMOTEInstances() {
+			return m_SMOTEInstances;
+		}
+
+		/**
+		 * @return the number of majority instances of a partition after the subsampling
+		 */
+		public long getSubsampledInstances() {
+			return m_SubsampledInstances;
+		}
+
+		/**
+		 * @return the number of instances the forest of a partition is trained on
+		 */
+		public long getTrainingSetSize() {
+			return m_SubsampledInstances + m_SMOTEInstances;
+		}
+
+		/**
+		 * @return the estimated heap in bytes of the trained model
+		 */
+		public long getModelMemory() {
+			return m_ModelMemory;
+		}
+
+		/**
+		 * @return the estimated build time of a partition on a single core in seconds
+		 */
+		public double getPartitionSeconds() {
+			return m_SMOTESeconds + m_NumTrees * m_TreeSeconds;
+		}
+
+		/**
+		 * @return the estimated build time of all partitions on a single core in seconds
+		 */
+		public double getCPUSeconds() {
+			return m_NumPartitions * getPartitionSeconds();
+		}
+
+		/**
+		 * @return all configurations considered, ordered by storage and number of partitions built at the same time
+		 */
+		public List<Configuration> getConfigurations() {
+			return m_Configurations;
+		}
+
+		/**
+		 * @return the fastest configuration that fits into the heap, null if none fits
+		 */
+		public Configuration getRecommended() {
+			return m_Recommended;
+		}
+
+		/**
+		 * @return the smallest estimated peak heap in bytes of all configurations
+		 */
+		public long getMinimumMemory() {
+			long min = Long.MAX_VALUE;
+			for (Configuration configuration : m_Configurations)
+				min = Math.min(min, configuration.getPeakMemory());
+			return min;
+		}
+
+		@Override
+		public String toString() {
+			StringBuffer text = new StringBuffer();
+			text.append("Data: " + m_NumMajority + " majority and " + m_NumMinority + " minority instances, "
+					+ m_NumAttributes + " attributes, about " + m_InstanceMemory + " bytes per instance\n");
+			text.append("Partitions: " + m_NumPartitions + " with up to " + m_PartitionMajority
+					+ " majority instances\n");
+			text.append("Training set of a partition: " + m_SubsampledInstances + " majority and " + m_SMOTEInstances
+					+ " minority instances after SMOTE, " + m_NumTrees + " trees\n");
+			text.append("Heap of the data: " + toMB(m_DataMemory) + " MB, model: " + toMB(m_ModelMemory)
+					+ " MB, majority class off the heap: " + toMB(m_OffHeapMemory) + " MB\n");
+			text.append("Time of a partition on one core: " + Utils.doubleToString(getPartitionSeconds(), 2)
+					+ " s (SMOTE " + Utils.doubleToString(m_SMOTESeconds, 2) + " s, tree "
+					+ Utils.doubleToString(m_TreeSeconds, 2) + " s), all partitions: "
+					+ Utils.doubleToString(getCPUSeconds(), 2) + " s"
+					+ (m_Calibrated ? "" : " (not calibrated)") + "\n\n");
+
+			text.append("Partitions\tTrees\tStorage\tPeak MB\tTime s\n");
+			for (Configuration configuration : m_Configurations) {
+				text.append(configuration.getPartitionSlots() + "\t" + configuration.getTreeSlots() + "\t"
+						+ storageName(configuration.getStorage()) + "\t" + toMB(configuration.getPeakMemory()) + "\t"
+						+ Utils.doubleToString(configuration.getSeconds(), 2)
+						+ (configuration == m_Recommended ? "\t*" : "") + "\n");
+			}
+			text.append("\n");
+
+			if (m_Recommended == null) {
+				text.append("No configuration fits into " + toMB(m_Heap) + " MB of heap, at least "
+						+ toMB(getMinimumMemory()) + " MB are needed.\n");
+			} else {
+				text.append("Recommended for " + toMB(m_Heap) + " MB of heap and " + m_NumCores + " cores: -num-slots "
+						+ m_Recommended.getPartitionSlots() + " -majority-storage "
+						+ storageName(m_Recommended.getStorage()) + " and " + m_Recommended.getTreeSlots()
+						+ " RF execution slots\n");
+			}
+			return text.toString();
+		}
+	}
+
+	/**
+	 * A planner for a classifier with default options.
+	 */
+	public HyperSMURFPlanner() {
+		this(new HyperSMURF());
+	}
+
+	/**
+	 * A planner for the options of a classifier. Execution slots and storage of the classifier are ignored, they are
+	 * what the planner recommends.
+	 *
+	 * @param classifier
+	 *            the classifier
+	 */
+	public HyperSMURFPlanner(HyperSMURF classifier) {
+		m_Classifier = classifier;
+	}
+
+	/**
+	 * Get the heap to plan for.
+	 *
+	 * @return the heap in bytes
+	 */
+	public long getHeap() {
+		return m_Heap;
+	}
+
+	/**
+	 * Set the heap to plan for.
+	 *
+	 * @param heap
+	 *            the heap in bytes
+	 */
+	public void setHeap(long heap) {
+		if (heap > 0)
+			m_Heap = heap;
+		else
+			System.err.println("Heap has to be greater than 0!");
+	}
+
+	/**
+	 * Get the number of cores to plan for.
+	 *
+	 * @return the number of cores
+	 */
+	public int getNumCores() {
+		return m_NumCores;
+	}
+
+	/**
+	 * Set the number of cores to plan for.
+	 *
+	 * @param numCores
+	 *            the number of cores
+	 */
+	public void setNumCores(int numCores) {
+		if (numCores > 0)
+			m_NumCores = numCores;
+		else
+			System.err.println("Number of cores has to be greater than 0!");
+	}
+
+	/**
+	 * Get the maximum number of instances of the calibration sample.
+	 *
+	 * @return the number of instances
+	 */
+	public int getSampleSize() {
+		return m_SampleSize;
+	}
+
+	/**
+	 * Set the maximum number of instances of the calibration sample.
+	 *
+	 * @param sampleSize
+	 *            the number of instances
+	 */
+	public void setSampleSize(int sampleSize) {
+		if (sampleSize > 0)
+			m_SampleSize = sampleSize;
+		else
+			System.err.println("Sample size has to be greater than 0!");
+	}
+
+	/**
+	 * Returns whether the time and model size factors were calibrated.
+	 *
+	 * @return true if {@link #calibrate(Instances, int[])} was run
+	 */
+	public boolean isCalibrated() {
+		return m_Calibrated;
+	}
+
+	/**
+	 * Calibrates the time and model size factors on a data set, see {@link #calibrate(Instances, int[])}.
+	 *
+	 * @param data
+	 *            the data set with the class set
+	 * @throws Exception
+	 *             if the sample cannot be built
+	 */
+	public void calibrate(Instances data) throws Exception {
+		calibrate(data, data.attributeStats(data.classIndex()).nominalCounts);
+	}
+
+	/**
+	 * Calibrates the time and model size factors with a build of a single partition on a sample. The sample keeps the
+	 * ratio of majority to minority instances of a partition of the full data set, but has at most
+	 * {@link #getSampleSize()} instances. The partition is built twice and the faster build is used, so that the
+	 * first one warms up the JIT.
+	 *
+	 * @param sample
+	 *            a random sample of the data set with the class set
+	 * @param classCounts
+	 *            the number of instances per class of the full data set
+	 * @throws Exception
+	 *             if the sample cannot be built
+	 */
+	public void calibrate(Instances sample, int[] classCounts) throws Exception {
+		int minorityClass = getMinorityClass(classCounts);
+		long numMinority = classCounts[minorityClass];
+		long partitionMajority = (Utils.sum(classCounts) - numMinority + m_Classifier.getNumIterations() - 1)
+				/ m_Classifier.getNumIterations();
+
+		Instances minority = new Instances(sample, 0);
+		Instances majority = new Instances(sample, 0);
+		for (Instance instance : sample) {
+			if (instance.classIsMissing())
+				continue;
+			if ((int) instance.classValue() == minorityClass)
+				minority.add(instance);
+			else
+				majority.add(instance);
+		}
+		if (minority.numInstances() <= m_Classifier.getNearestNeighbors() || majority.numInstances() == 0)
+			throw new Exception("The sample needs more than " + m_Classifier.getNearestNeighbors()
+					+ " minority instances and at least one majority instance.");
+
+		double scale = Math.min(1.0, (double) m_SampleSize / (partitionMajority + numMinority));
+		int sampleMinority = (int) Math.max(m_Classifier.getNearestNeighbors() + 1, Math.round(numMinority * scale));
+		int sampleMajority = (int) Math.max(1, Math.round(partitionMajority * scale));
+		Random random = new Random(m_Classifier.getSeed());
+		minority.randomize(random);
+		majority.randomize(random);
+		sampleMinority = Math.min(sampleMinority, minority.numInstances());
+		Instances partition = new Instances(minority, 0, sampleMinority);
+		for (int i = 0; i < Math.min(sampleMajority, majority.numInstances()); i++)
+			partition.add(majority.instance(i));
+
+		long smoteNanos = Long.MAX_VALUE;
+		long forestNanos = Long.MAX_VALUE;
+		long numNodes = 0;
+		int numTrees = 0;
+		long trainingSetSize = 0;
+		for (int run = 0; run < 2; run++) {
+			long seed = EasyEnsemble.deriveSeed(m_Classifier.getSeed(), 0);
+			Filter smote = m_Classifier.getSMOTE(seed);
+			smote.setInputFormat(partition);
+			long start = System.nanoTime();
+			Instances smoted = Filter.useFilter(partition, smote);
+			smoteNanos = Math.min(smoteNanos, System.nanoTime() - start);
+
+			Filter subsample = m_Classifier.getSpreadSubsample(seed);
+			subsample.setInputFormat(smoted);
+			Instances training = Filter.useFilter(smoted, subsample);
+			RandomForest forest = m_Classifier.getRandomForest(seed);
+			forest.setNumExecutionSlots(1);
+			start = System.nanoTime();
+			forest.buildClassifier(training);
+			forestNanos = Math.min(forestNanos, System.nanoTime() - start);
+
+			trainingSetSize = training.numInstances();
+			numTrees = forest.getNumIterations();
+			numNodes = 0;
+			if (forest instanceof PartitionForest) {
+				PartitionForest partitionForest = (PartitionForest) forest;
+				numTrees = partitionForest.getNumTrees();
+				for (int i = 0; i < numTrees; i++)
+					numNodes += ((RandomTree) partitionForest.getTree(i)).numElements();
+			}
+		}
+
+		m_SMOTECost = smoteNanos / 1e9 / smoteWork(sampleMinority, sample.numAttributes());
+		m_TreeCost = forestNanos / 1e9 / numTrees / treeWork(trainingSetSize, sample.numAttributes());
+		if (numNodes > 0)
+			m_NodesPerInstance = (double) numNodes / numTrees / trainingSetSize;
+		m_Calibrated = true;
+	}
+
+	/**
+	 * Plans the build on a data set.
+	 *
+	 * @param data
+	 *            the data set with the class set
+	 * @return the plan
+	 */
+	public Plan plan(Instances data) {
+		long bytes = 0;
+		int count = Math.min(1000, data.numInstances());
+		for (int i = 0; i < count; i++)
+			bytes += EasyEnsemble.estimateInstanceMemory(data.instance(i));
+		return plan(data.attributeStats(data.classIndex()).nominalCounts, data.numAttributes(),
+				count == 0 ? EasyEnsemble.estimateInstanceMemory(data.numAttributes()) : (bytes + count - 1) / count);
+	}
+
+	/**
+	 * Plans the build on a data set of dense instances.
+	 *
+	 * @param classCounts
+	 *            the number of instances per class
+	 * @param numAttributes
+	 *            the number of attributes including the class
+	 * @return the plan
+	 */
+	public Plan plan(int[] classCounts, int numAttributes) {
+		return plan(classCounts, numAttributes, EasyEnsemble.estimateInstanceMemory(numAttributes));
+	}
+
+	/**
+	 * Plans the build.
+	 *
+	 * @param classCounts
+	 *            the number of instances per class
+	 * @param numAttributes
+	 *            the number of attributes including the class
+	 * @param instanceMemory
+	 *            the mean heap in bytes of an instance
+	 * @return the plan
+	 */
+	protected Plan plan(int[] classCounts, int numAttributes, long instanceMemory) {
+		int minorityClass = getMinorityClass(classCounts);
+		Plan plan = new Plan();
+		plan.m_NumPartitions = m_Classifier.getNumIterations();
+		plan.m_NumTrees = m_Classifier.getNumTrees();
+		plan.m_NumMinority = classCounts[minorityClass];
+		plan.m_NumMajority = Utils.sum(classCounts) - plan.m_NumMinority;
+		plan.m_NumAttributes = numAttributes;
+		plan.m_InstanceMemory = instanceMemory;
+		plan.m_Heap = m_Heap;
+		plan.m_NumCores = m_NumCores;
+		plan.m_Calibrated = m_Calibrated;
+
+		plan.m_PartitionMajority = (plan.m_NumMajority + plan.m_NumPartitions - 1) / plan.m_NumPartitions;
+		plan.m_SMOTEInstances = m_Classifier.numSMOTEInstances(plan.m_NumMinority);
+		plan.m_SubsampledInstances = m_Classifier.numSubsampledInstances(plan.m_PartitionMajority,
+				plan.m_NumMinority);
+
+		// the data set of the caller, and the copies of the class split or the minority class only
+		plan.m_DataMemory = (plan.m_NumMajority + plan.m_NumMinority) * instanceMemory;
+		plan.m_ModelMemory = (long) (plan.m_NumPartitions * plan.m_NumTrees * m_NodesPerInstance
+				* plan.getTrainingSetSize() * NODE_MEMORY);
+		plan.m_OffHeapMemory = plan.m_NumMajority * 8L * numAttributes;
+		plan.m_SMOTESeconds = m_SMOTECost * smoteWork(plan.m_NumMinority, numAttributes);
+		plan.m_TreeSeconds = m_TreeCost * treeWork(plan.getTrainingSetSize(), numAttributes);
+
+		for (int storage : new int[] { EasyEnsemble.STORAGE_HEAP, EasyEnsemble.STORAGE_MAPPED }) {
+			long split = storage == EasyEnsemble.STORAGE_HEAP ? plan.m_DataMemory
+					: plan.m_NumMinority * instanceMemory;
+			for (int partitionSlots : getPartitionSlots(plan.m_NumPartitions)) {
+				int treeSlots = Math.max(1, Math.min(plan.m_NumTrees, m_NumCores / partitionSlots));
+				long partitionMemory = m_Classifier.estimatePartitionRows(plan.m_PartitionMajority,
+						plan.m_NumMinority, treeSlots) * instanceMemory;
+				long peak = plan.m_DataMemory + split + plan.m_ModelMemory + partitionSlots * partitionMemory;
+				int waves = (plan.m_NumPartitions + partitionSlots - 1) / partitionSlots;
+				int treeWaves = (plan.m_NumTrees + treeSlots - 1) / treeSlots;
+				double seconds = waves * (plan.m_SMOTESeconds + treeWaves * plan.m_TreeSeconds);
+				Configuration configuration = new Configuration(partitionSlots, treeSlots, storage, peak, seconds);
+				plan.m_Configurations.add(configuration);
+				// the heap is preferred, it is listed first
+				if (peak <= m_Heap && (plan.m_Recommended == null || seconds < plan.m_Recommended.getSeconds()))
+					plan.m_Recommended = configuration;
+			}
+		}
+		return plan;
+	}
+
+	/**
+	 * Returns the numbers of partitions built at the same time that are considered: the powers of two below the
+	 * number of cores and the number of cores, limited by the number of partitions.
+	 */
+	private int[] getPartitionSlots(int numPartitions) {
+		int max = Math.max(1, Math.min(m_NumCores, numPartitions));
+		List<Integer> slots = new ArrayList<Integer>();
+		for (int slot = 1; slot < max; slot *= 2)
+			slots.add(slot);
+		slots.add(max);
+		int[] result = new int[slots.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = slots.get(i);
+		return result;
+	}
+
+	/**
+	 * Work of a tree on <code>n</code> instances: every level of the tree sorts the values of the features
+	 * considered per split.
+	 */
+	private double treeWork(long numInstances, int numAttributes) {
+		int numFeatures = m_Classifier.getNumFeatures() > 0 ? Math.min(m_Classifier.getNumFeatures(), numAttributes - 1)
+				: (int) Utils.log2(numAttributes - 1) + 1;
+		double log = Utils.log2(Math.max(2, numInstances));
+		return numInstances * log * log * numFeatures;
+	}
+
+	/**
+	 * Work of SMOTE: the distances between all pairs of minority instances.
+	 */
+	private static double smoteWork(long numMinority, int numAttributes) {
+		return (double) numMinority * numMinority * numAttributes;
+	}
+
+	private static int getMinorityClass(int[] classCounts) {
+		int minIndex = 0;
+		for (int i = 1; i < classCounts.length; i++) {
+			if (classCounts[i] != 0 && (classCounts[minIndex] == 0 || classCounts[i] < classCounts[minIndex]))
+				minIndex = i;
+		}
+		return minIndex;
+	}
+
+	private static String storageName(int storage) {
+		for (int i = 0; i < EasyEnsemble.TAGS_STORAGE.length; i++) {
+			if (EasyEnsemble.TAGS_STORAGE[i].getID() == storage)
+				return EasyEnsemble.TAGS_STORAGE[i].getIDStr().toLowerCase();
+		}
+		return "" + storage;
+	}
+
+	private static long toMB(long bytes) {
+		return (bytes + (1 << 20) - 1) >> 20;
+	}
+
+	/**
+	 * Plans a build from the command line.
+	 *
+	 * @param args
+	 *            the options
+	 * @throws Exception
+	 *             if the data set cannot be read or the options are invalid
+	 */
+	public static void main(String[] args) throws Exception {
+		String dataFile = Utils.getOption('t', args);
+		String majority = Utils.getOption("majority", args);
+		String minority = Utils.getOption("minority", args);
+		String attributes = Utils.getOption("attributes", args);
+		String heap = Utils.getOption("heap", args);
+		String cores = Utils.getOption("cores", args);
+		String numTrees = Utils.getOption("num-trees", args);
+		String sampleSize = Utils.getOption("sample", args);
+		boolean calibrate = Utils.getFlag("calibrate", args);
+		String[] classifierOptions = Utils.partitionOptions(args);
+		Utils.checkForRemainingOptions(args);
+		if (dataFile.length() == 0 && (majority.length() == 0 || minority.length() == 0 || attributes.length() == 0)
+				|| calibrate && dataFile.length() == 0) {
+			System.err.println("Usage: HyperSMURFPlanner (-t <file> | -majority <num> -minority <num> "
+					+ "-attributes <num>) [-heap <MB>] [-cores <num>] [-num-trees <num>] [-calibrate] "
+					+ "[-sample <num>] [-- <HyperSMURF options>]");
+			System.exit(1);
+		}
+
+		HyperSMURF classifier = new HyperSMURF();
+		classifier.setOptions(classifierOptions);
+		if (numTrees.length() != 0)
+			classifier.setNumTrees(Integer.parseInt(numTrees));
+		HyperSMURFPlanner planner = new HyperSMURFPlanner(classifier);
+		if (heap.length() != 0)
+			planner.setHeap(Long.parseLong(heap) << 20);
+		if (cores.length() != 0)
+			planner.setNumCores(Integer.parseInt(cores));
+		if (sampleSize.length() != 0)
+			planner.setSampleSize(Integer.parseInt(sampleSize));
+
+		Plan plan;
+		if (dataFile.length() == 0) {
+			plan = planner.plan(new int[] { Integer.parseInt(majority), Integer.parseInt(minority) },
+					Integer.parseInt(attributes));
+		} else {
+			DataSource source = ParallelTextLoader.getDataSource(dataFile);
+			Instances structure = source.getStructure();
+			structure.setClassIndex(structure.numAttributes() - 1);
+			int[] classCounts = new int[structure.numClasses()];
+			long bytes = 0;
+			// a reservoir sample per class, so that the minority class is in the calibration sample
+			Instances[] reservoirs = new Instances[classCounts.length];
+			for (int i = 0; i < reservoirs.length; i++)
+				reservoirs[i] = new Instances(structure, 0);
+			Random random = new Random(classifier.getSeed());
+			while (source.hasMoreElements(structure)) {
+				Instance instance = source.nextElement(structure);
+				if (instance.classIsMissing())
+					continue;
+				int classValue = (int) instance.classValue();
+				classCounts[classValue]++;
+				bytes += EasyEnsemble.estimateInstanceMemory(instance);
+				if (!calibrate)
+					continue;
+				if (reservoirs[classValue].numInstances() < planner.getSampleSize()) {
+					reservoirs[classValue].add(instance);
+				} else {
+					int index = random.nextInt(classCounts[classValue]);
+					if (index < planner.getSampleSize())
+						reservoirs[classValue].set(index, instance);
+				}
+			}
+			if (calibrate) {
+				Instances sample = new Instances(structure, 0);
+				for (Instances reservoir : reservoirs)
+					sample.addAll(reservoir);
+				planner.calibrate(sample, classCounts);
+			}
+			int count = Utils.sum(classCounts);
+			plan = planner.plan(classCounts, structure.numAttributes(),
+					count == 0 ? EasyEnsemble.estimateInstanceMemory(structure.numAttributes()) : (bytes + count - 1) / count);
+		}
+		System.out.println(plan);
+	}
+
+}
@@ -0,0 +1,496 @@
+package weka.classifiers.trees;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.evaluation.RankMetrics;
+import weka.classifiers.meta.EasyEnsemble;
+import weka.classifiers.meta.FilteredClassifier;
+import weka.core.BatchPredictor;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+import weka.core.converters.ParallelTextLoader;
+
+/**
+ * <p>
+ * Prunes a trained {@link HyperSMURF} (or any {@link EasyEnsemble}) to reduce its scoring cost. Whole partitions are
+ * removed greedily, always the one whose removal hurts the AUPRC on a validation set least, as long as the AUPRC stays
+ * within a tolerance of the unpruned model. Afterwards single trees of the remaining partitions are removed in the
+ * order of their individual harm, again only while the AUPRC stays within the tolerance.
+ * </p>
+ *
+ * <p>
+ * The scores of all partitions and trees are computed once, so every pruning step only re-ranks the validation set.
+ * Every accepted step is recorded with its number of partitions, trees and AUPRC, which is the speed/accuracy curve of
+ * the pruning.
+ * </p>
+ *
+ * <p>
+ * Valid options are:
+ * </p>
+ *
+ * <pre>
+ *  -model &lt;file&gt;
+ *  The serialized model.
+ * </pre>
+ *
+ * <pre>
+ *  -validation &lt;file&gt;
+ *  The validation set, the class is the last attribute.
+ * </pre>
+ *
+ * <pre>
+ *  -output &lt;file&gt;
+ *  File for the pruned model.
+ * </pre>
+ *
+ * <pre>
+ *  -tolerance &lt;num&gt;
+ *  Maximum loss of AUPRC.
+ *  (default 0.01)
+ * </pre>
+ *
+ * <pre>
+ *  -mode &lt;partitions|trees|both&gt;
+ *  What to prune.
+ *  (default both)
+ * </pre>
+ *
+ * <pre>
+ *  -C &lt;value-index&gt;
+ *  The index of the positive class value, starting with 1.
+ *  (default 0: least frequent class of the validation set)
+ * </pre>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class HyperSMURFPruner {
+
+	/** Maximum loss of AUPRC */
+	protected double m_Tolerance = 0.01;
+
+	/** Whether to remove partitions */
+	protected boolean m_PrunePartitions = true;
+
+	/** Whether to remove trees */
+	protected boolean m_PruneTrees = true;
+
+	/** The index of the positive class, -1 for the least frequent class of the validation set */
+	protected int m_ClassIndex = -1;
+
+	/** The accepted pruning steps */
+	protected List<Step> m_Curve = new ArrayList<Step>();
+
+	/**
+	 * An accepted pruning step.
+	 */
+	public static class Step {
+		protected final String m_Action;
+		protected final int m_NumPartitions;
+		protected final int m_NumTrees;
+		protected final double m_AUPRC;
+
+		protected Step(String action, int numPartitions, int numTrees, double auprc) {
+			m_Action = action;
+			m_NumPartitions = numPartitions;
+			m_NumTrees = numTrees;
+			m_AUPRC = auprc;
+		}
+
+		public String getAction() {
+			return m_Action;
+		}
+
+		public int getNumPartitions() {
+			return m_NumPartitions;
+		}
+
+		public int getNumTrees() {
+			return m_NumTrees;
+		}
+
+		public double getAUPRC() {
+			return m_AUPRC;
+		}
+	}
+
+	/**
+	 * Get the maximum loss of AUPRC.
+	 *
+	 * @return the tolerance
+	 */
+	public double getTolerance() {
+		return m_Tolerance;
+	}
+
+	/**
+	 * Set the maximum loss of AUPRC.
+	 *
+	 * @param tolerance
+	 *            the tolerance
+	 */
+	public void setTolerance(double tolerance) {
+		m_Tolerance = tolerance;
+	}
+
+	/**
+	 * Get whether partitions are removed.
+	 *
+	 * @return true if partitions are removed
+	 */
+	public boolean getPrunePartitions() {
+		return m_PrunePartitions;
+	}
+
+	/**
+	 * Set whether partitions are removed.
+	 *
+	 * @param prune
+	 *            true if partitions are removed
+	 */
+	public void setPrunePartitions(boolean prune) {
+		m_PrunePartitions = prune;
+	}
+
+	/**
+	 * Get whether trees are removed.
+	 *
+	 * @return true if trees are removed
+	 */
+	public boolean getPruneTrees() {
+		return m_PruneTrees;
+	}
+
+	/**
+	 * Set whether trees are removed. Only trees of {@link PartitionForest} base learners can be removed.
+	 *
+	 * @param prune
+	 *            true if trees are removed
+	 */
+	public void setPruneTrees(boolean prune) {
+		m_PruneTrees = prune;
+	}
+
+	/**
+	 * Get the index of the positive class.
+	 *
+	 * @return the index, -1 for the least frequent class of the validation set
+	 */
+	public int getClassIndex() {
+		return m_ClassIndex;
+	}
+
+	/**
+	 * Set the index of the positive class.
+	 *
+	 * @param classIndex
+	 *            the index, -1 for the least frequent class of the validation set
+	 */
+	public void setClassIndex(int classIndex) {
+		m_ClassIndex = classIndex;
+	}
+
+	/**
+	 * Returns the speed/accuracy curve of the last pruning.
+	 *
+	 * @return the accepted steps, starting with the unpruned model and ending with the measured pruned model
+	 */
+	public List<Step> getCurve() {
+		return m_Curve;
+	}
+
+	/**
+	 * Prunes the model in place.
+	 *
+	 * @param model
+	 *            the trained model
+	 * @param validation
+	 *            the validation set
+	 * @throws Exception
+	 *             if the model cannot be evaluated
+	 */
+	public void prune(EasyEnsemble model, Instances validation) throws Exception {
+		validation = new Instances(validation);
+		validation.deleteWithMissingClass();
+		int classIndex = m_ClassIndex >= 0 ? m_ClassIndex : leastFrequentClass(validation);
+		int n = validation.numInstances();
+		boolean[] positive = new boolean[n];
+		for (int i = 0; i < n; i++)
+			positive[i] = (int) validation.instance(i).classValue() == classIndex;
+
+		// the classifiers of a partition, one per minority class, are removed together
+		Classifier[] classifiers = model.getPartitionClassifiers();
+		int numClassifiers = model.numClassifiersPerPartition();
+		int numPartitions = classifiers.length / numClassifiers;
+		double[][] classifierScores = new double[classifiers.length][];
+		double[][] partitionScores = new double[numPartitions][n];
+		double[] sum = new double[n];
+		for (int c = 0; c < classifiers.length; c++) {
+			classifierScores[c] = classScores(classifiers[c], validation, classIndex);
+			for (int i = 0; i < n; i++) {
+				partitionScores[c / numClassifiers][i] += classifierScores[c][i];
+				sum[i] += classifierScores[c][i];
+			}
+		}
+
+		m_Curve.clear();
+		int numTrees = 0;
+		for (Classifier classifier : classifiers)
+			numTrees += numTrees(classifier);
+		double[] candidate = new double[n];
+		for (int i = 0; i < n; i++)
+			candidate[i] = round(sum[i]);
+		double baseline = RankMetrics.areaUnderPRC(candidate, positive);
+		double floor = baseline - m_Tolerance;
+		m_Curve.add(new Step("unpruned", numPartitions, numTrees, baseline));
+
+		// greedy backward elimination of partitions
+		List<Integer> active = new ArrayList<Integer>();
+		for (int p = 0; p < numPartitions; p++)
+			active.add(p);
+		while (m_PrunePartitions && active.size() > 1) {
+			int best = -1;
+			double bestAUPRC = Double.NEGATIVE_INFINITY;
+			for (int p : active) {
+				for (int i = 0; i < n; i++)
+					candidate[i] = round(sum[i] - partitionScores[p][i]);
+				double auprc = RankMetrics.areaUnderPRC(candidate, positive);
+				if (auprc > bestAUPRC) {
+					bestAUPRC = auprc;
+					best = p;
+				}
+			}
+			if (bestAUPRC < floor)
+				break;
+			for (int i = 0; i < n; i++)
+				sum[i] -= partitionScores[best][i];
+			active.remove(Integer.valueOf(best));
+			for (int c = best * numClassifiers; c < (best + 1) * numClassifiers; c++)
+				numTrees -= numTrees(classifiers[c]);
+			m_Curve.add(new Step("remove partition " + best, active.size(), numTrees, bestAUPRC));
+		}
+
+		// removal of single trees, least harmful first
+		if (m_PruneTrees) {
+			for (int p : active) {
+				for (int c = p * numClassifiers; c < (p + 1) * numClassifiers; c++) {
+					PartitionForest forest = getForest(classifiers[c]);
+					if (forest == null || forest.getNumTrees() < 2)
+						continue;
+					numTrees = pruneTrees(forest, p, validation, classIndex, positive, sum, classifierScores[c], floor,
+							active.size(), numTrees);
+				}
+			}
+		}
+
+		int[] retained = new int[active.size()];
+		for (int i = 0; i < retained.length; i++)
+			retained[i] = active.get(i);
+		model.retainPartitions(retained);
+
+		double[][] distributions = model.distributionsForInstances(validation);
+		double[] scores = new double[n];
+		for (int i = 0; i < n; i++)
+			scores[i] = distributions[i][classIndex];
+		m_Curve.add(new Step("pruned", retained.length, numTrees, RankMetrics.areaUnderPRC(scores, positive)));
+	}
+
+	/**
+	 * Removes the trees of the forest of one partition.
+	 *
+	 * @return the number of trees of the ensemble afterwards
+	 */
+	private int pruneTrees(PartitionForest forest, int partition, Instances validation, int classIndex,
+			boolean[] positive, double[] sum, double[] forestScores, double floor, int numPartitions,
+			int numTrees) throws Exception {
+		int n = validation.numInstances();
+		int size = forest.getNumTrees();
+		double[][] treeScores = new double[size][n];
+		double[][] treeWeights = new double[size][n];
+		double[] treeSum = new double[n];
+		double[] weightSum = new double[n];
+		for (int t = 0; t < size; t++) {
+			for (int i = 0; i < n; i++) {
+				double[] dist = forest.getTree(t).distributionForInstance(validation.instance(i));
+				if (dist == null)
+					continue;
+				treeScores[t][i] = dist[classIndex];
+				treeWeights[t][i] = Utils.sum(dist);
+				treeSum[i] += treeScores[t][i];
+				weightSum[i] += treeWeights[t][i];
+			}
+		}
+
+		// order trees by the AUPRC of the ensemble without them
+		double[] candidate = new double[n];
+		double[] harm = new double[size];
+		for (int t = 0; t < size; t++) {
+			fillWithoutTree(candidate, sum, forestScores, treeSum, weightSum, treeScores[t],
+					treeWeights[t]);
+			harm[t] = -RankMetrics.areaUnderPRC(candidate, positive);
+		}
+
+		boolean[] removed = new boolean[size];
+		int kept = size;
+		for (int t : Utils.sort(harm)) {
+			if (kept == 1)
+				break;
+			fillWithoutTree(candidate, sum, forestScores, treeSum, weightSum, treeScores[t],
+					treeWeights[t]);
+			double auprc = RankMetrics.areaUnderPRC(candidate, positive);
+			if (auprc < floor)
+				continue;
+			removed[t] = true;
+			kept--;
+			numTrees--;
+			for (int i = 0; i < n; i++) {
+				treeSum[i] -= treeScores[t][i];
+				weightSum[i] -= treeWeights[t][i];
+				double score = weightSum[i] > 0 ? treeSum[i] / weightSum[i] : 0;
+				sum[i] += score - forestScores[i];
+				forestScores[i] = score;
+			}
+			m_Curve.add(new Step("remove tree " + t + " of partition " + partition, numPartitions, numTrees, auprc));
+		}
+
+		int[] retained = new int[kept];
+		for (int t = 0, k = 0; t < size; t++)
+			if (!removed[t])
+				retained[k++] = t;
+		forest.retainTrees(retained);
+		return numTrees;
+	}
+
+	/**
+	 * Ensemble scores if a tree is removed from a partition.
+	 */
+	private static void fillWithoutTree(double[] candidate, double[] sum, double[] partitionScores, double[] treeSum,
+			double[] weightSum, double[] treeScores, double[] treeWeights) {
+		for (int i = 0; i < candidate.length; i++) {
+			double weight = weightSum[i] - treeWeights[i];
+			double score = weight > 0 ? (treeSum[i] - treeScores[i]) / weight : 0;
+			candidate[i] = round(sum[i] - partitionScores[i] + score);
+		}
+	}
+
+	/**
+	 * Removes the rounding noise of the incrementally updated sums, otherwise scores that are equal in the pruned model
+	 * are no longer ties.
+	 */
+	private static double round(double score) {
+		return Math.rint(score * 1e9) / 1e9;
+	}
+
+	/**
+	 * Scores of one class for all instances.
+	 */
+	private static double[] classScores(Classifier classifier, Instances instances, int classIndex)
+			throws Exception {
+		double[] scores = new double[instances.numInstances()];
+		if (classifier instanceof BatchPredictor) {
+			double[][] distributions = ((BatchPredictor) classifier).distributionsForInstances(instances);
+			for (int i = 0; i < scores.length; i++)
+				scores[i] = distributions[i][classIndex];
+		} else {
+			for (int i = 0; i < scores.length; i++)
+				scores[i] = classifier.distributionForInstance(instances.instance(i))[classIndex];
+		}
+		return scores;
+	}
+
+	private static PartitionForest getForest(Classifier partition) {
+		if (partition instanceof FilteredClassifier)
+			partition = ((FilteredClassifier) partition).getClassifier();
+		return partition instanceof PartitionForest ? (PartitionForest) partition : null;
+	}
+
+	private static int numTrees(Classifier partition) {
+		PartitionForest forest = getForest(partition);
+		return forest == null ? 1 : forest.getNumTrees();
+	}
+
+	private static int leastFrequentClass(Instances data) {
+		int[] counts = data.attributeStats(data.classIndex()).nominalCounts;
+		int minIndex = 0;
+		for (int i = 1; i < counts.length; i++) {
+			if (counts[i] != 0 && (counts[minIndex] == 0 || counts[i] < counts[minIndex]))
+				minIndex = i;
+		}
+		return minIndex;
+	}
+
+	/**
+	 * Returns the speed/accuracy curve as a table.
+	 *
+	 * @return the curve
+	 */
+	public String curveToString() {
+		StringBuffer text = new StringBuffer();
+		text.append("Partitions\tTrees\tAUPRC\tStep\n");
+		for (Step step : m_Curve) {
+			text.append(step.getNumPartitions() + "\t" + step.getNumTrees() + "\t"
+					+ Utils.doubleToString(step.getAUPRC(), 6) + "\t" + step.getAction() + "\n");
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Prunes a serialized model from the command line.
+	 *
+	 * @param args
+	 *            the options
+	 * @throws Exception
+	 *             if the model cannot be pruned
+	 */
+	public static void main(String[] args) throws Exception {
+		String modelFile = Utils.getOption("model", args);
+		String validationFile = Utils.getOption("validation", args);
+		String outputFile = Utils.getOption("output", args);
+		String tolerance = Utils.getOption("tolerance", args);
+		String mode = Utils.getOption("mode", args);
+		String classValue = Utils.getOption('C', args);
+		Utils.checkForRemainingOptions(args);
+		if (modelFile.length() == 0 || validationFile.length() == 0 || outputFile.length() == 0) {
+			System.err.println("Usage: HyperSMURFPruner -model <file> -validation <file> -output <file> "
+					+ "[-tolerance <num>] [-mode <partitions|trees|both>] [-C <value-index>]");
+			System.exit(1);
+		}
+
+		HyperSMURFPruner pruner = new HyperSMURFPruner();
+		if (tolerance.length() != 0)
+			pruner.setTolerance(Double.parseDouble(tolerance));
+		if (mode.length() != 0) {
+			pruner.setPrunePartitions(!mode.equals("trees"));
+			pruner.setPruneTrees(!mode.equals("partitions"));
+		}
+		if (classValue.length() != 0)
+			pruner.setClassIndex(Integer.parseInt(classValue) - 1);
+
+		Object[] objects = SerializationHelper.readAll(modelFile);
+		EasyEnsemble model = (EasyEnsemble) objects[0];
+		Instances validation = ParallelTextLoader.read(validationFile);
+		validation.setClassIndex(validation.numAttributes() - 1);
+
+		long start = System.nanoTime();
+		model.distributionsForInstances(validation);
+		long before = System.nanoTime() - start;
+
+		pruner.prune(model, validation);
+
+		start = System.nanoTime();
+		model.distributionsForInstances(validation);
+		long after = System.nanoTime() - start;
+
+		System.out.println(pruner.curveToString());
+		System.out.println("Scoring time of the validation set: " + Utils.doubleToString(before / 1e6, 1)
+				+ " ms before, " + Utils.doubleToString(after / 1e6, 1) + " ms after pruning");
+
+		Instances header = objects.length > 1 && objects[1] instanceof Instances ? (Instances) objects[1]
+				: new Instances(validation, 0);
+		SerializationHelper.writeAll(outputFile, new Object[] { model, header });
+	}
+
+}
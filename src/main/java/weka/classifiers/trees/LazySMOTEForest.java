@@ -0,0 +1,618 @@
+package weka.classifiers.trees;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import weka.classifiers.meta.EasyEnsemble;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+import weka.core.Utils;
+import weka.core.VectorKernels;
+import weka.filters.supervised.instance.SparseSMOTE;
+
+/**
+ * <p>
+ * {@link PartitionForest} that oversamples the minority class lazily. Instead of training on the output of SMOTE, the
+ * forest keeps only the real instances and the nearest minority neighbours of every minority instance. The synthetic
+ * instances are generated when they are drawn into the bootstrap sample of a tree, so the training data of the forest
+ * does not grow with the oversampling percentage. Only the bootstrap samples of the trees built at the same time
+ * contain synthetic instances.
+ * </p>
+ *
+ * <p>
+ * The synthetic instances are numbered like the output of SMOTE: <code>floor(P / 100)</code> per minority instance,
+ * and one more for a random subset of the minority instances for the remainder of the percentage. A synthetic instance
+ * only depends on its number and the seed of the forest, so it is the same in every tree that draws it. Numeric
+ * values are interpolated between the minority instance and a random one of its neighbours with a random gap per
+ * attribute, nominal values are the majority vote of the instance and all its neighbours, as in SMOTE. Neighbours are
+ * found with the Euclidean distance on numeric and the value difference metric on nominal attributes, missing values
+ * are ignored. The numeric part is computed with {@link VectorKernels}.
+ * </p>
+ *
+ * <p>
+ * Sparse training data stays sparse, as in {@link SparseSMOTE}: distances are computed over the non-zero values of
+ * both instances, and synthetic instances are {@link SparseInstance}s that only interpolate the values where the
+ * instance or its neighbour is non-zero.
+ * </p>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class LazySMOTEForest extends PartitionForest {
+
+	/** for serialization */
+	private static final long serialVersionUID = -6381265212924163117L;
+
+	/** Id of the seed of the synthetic instances, see {@link EasyEnsemble#deriveSeed(long, int)} */
+	protected static final int SMOTE_SEED = 2;
+
+	/** Percentage of synthetic instances */
+	protected double m_Percentage = 100.0;
+
+	/** Number of nearest neighbours */
+	protected int m_NearestNeighbors = 5;
+
+	/** The index of the class value to oversample, starting with 1, 0 for the least frequent class */
+	protected String m_ClassValueIndex = "0";
+
+	/** The maximum number of minority instances including the synthetic ones, 0 for no maximum */
+	protected int m_MaxCount = 0;
+
+	/** The rows of the minority instances in the training data, only set during the build */
+	protected transient int[] m_MinorityRows;
+
+	/** The nearest neighbours of each minority instance, indices into {@link #m_MinorityRows} */
+	protected transient int[][] m_Neighbors;
+
+	/** The minority instances with one synthetic instance more for the remainder of the percentage */
+	protected transient int[] m_ExtraBases;
+
+	/** The number of synthetic instances per minority instance */
+	protected transient int m_PerBase;
+
+	/** The number of synthetic instances */
+	protected transient int m_NumSynthetic;
+
+	/** The minority class */
+	protected transient int m_MinorityClass;
+
+	/**
+	 * The nominal value of each attribute of each minority instance, majority vote with its neighbours. For sparse
+	 * data only the non-zero votes, at the attributes in {@link #m_VoteIndices}.
+	 */
+	protected transient double[][] m_Votes;
+
+	/** The attributes of the non-zero votes of each minority instance for sparse data, null for dense data */
+	protected transient int[][] m_VoteIndices;
+
+	/** The attributes of the non-zero values of each minority instance without the class, null for dense data */
+	protected transient int[][] m_SparseIndices;
+
+	/** The non-zero values of each minority instance at the attributes in {@link #m_SparseIndices} */
+	protected transient double[][] m_SparseValues;
+
+	/** Cumulative weights of the training data, null if all weights are 1 */
+	protected transient double[] m_CumulativeWeights;
+
+	/**
+	 * Get the percentage of synthetic instances.
+	 *
+	 * @return the percentage
+	 */
+	public double getPercentage() {
+		return m_Percentage;
+	}
+
+	/**
+	 * Set the percentage of synthetic instances.
+	 *
+	 * @param percentage
+	 *            the percentage
+	 */
+	public void setPercentage(double percentage) {
+		if (percentage >= 0)
+			m_Percentage = percentage;
+		else
+			System.err.println("Percentage must be >= 0!");
+	}
+
+	/**
+	 * Get the number of nearest neighbours.
+	 *
+	 * @return the number of neighbours
+	 */
+	public int getNearestNeighbors() {
+		return m_NearestNeighbors;
+	}
+
+	/**
+	 * Set the number of nearest neighbours.
+	 *
+	 * @param nearestNeighbors
+	 *            the number of neighbours
+	 */
+	public void setNearestNeighbors(int nearestNeighbors) {
+		if (nearestNeighbors >= 1)
+			m_NearestNeighbors = nearestNeighbors;
+		else
+			System.err.println("At least 1 neighbor necessary!");
+	}
+
+	/**
+	 * Get the index of the class value to oversample.
+	 *
+	 * @return the index starting with 1, "first", "last" or 0 for the least frequent class
+	 */
+	public String getClassValueIndex() {
+		return m_ClassValueIndex;
+	}
+
+	/**
+	 * Set the index of the class value to oversample.
+	 *
+	 * @param classValueIndex
+	 *            the index starting with 1, "first", "last" or 0 for the least frequent class
+	 */
+	public void setClassValueIndex(String classValueIndex) {
+		m_ClassValueIndex = classValueIndex;
+	}
+
+	/**
+	 * Get the maximum number of minority instances including the synthetic ones.
+	 *
+	 * @return the maximum, 0 for no maximum
+	 */
+	public int getMaxCount() {
+		return m_MaxCount;
+	}
+
+	/**
+	 * Set the maximum number of minority instances including the synthetic ones.
+	 *
+	 * @param maxCount
+	 *            the maximum, 0 for no maximum
+	 */
+	public void setMaxCount(int maxCount) {
+		m_MaxCount = maxCount;
+	}
+
+	/**
+	 * Finds the neighbours of the minority instances and builds the trees.
+	 *
+	 * @throws Exception
+	 *             if the forest cannot be built
+	 */
+	@Override
+	protected void buildClassifiers() throws Exception {
+		if (m_CalcOutOfBag)
+			throw new Exception("Out of bag error cannot be calculated with lazy SMOTE!");
+		try {
+			prepare();
+			super.buildClassifiers();
+		} finally {
+			m_MinorityRows = null;
+			m_Neighbors = null;
+			m_ExtraBases = null;
+			m_Votes = null;
+			m_VoteIndices = null;
+			m_SparseIndices = null;
+			m_SparseValues = null;
+			m_CumulativeWeights = null;
+		}
+	}
+
+	/**
+	 * The samples with synthetic instances are not rows of the training data, so the trees are only grown on the
+	 * presorted index if no synthetic instances are generated.
+	 *
+	 * @return true if the trees can be grown on a presorted index
+	 */
+	@Override
+	protected boolean canPresort() {
+		return m_NumSynthetic == 0 && super.canPresort();
+	}
+
+	/**
+	 * Finds the minority instances, their neighbours and the number of synthetic instances.
+	 */
+	private void prepare() throws Exception {
+		int[] classCounts = new int[m_data.numClasses()];
+		for (Instance instance : m_data)
+			if (!instance.classIsMissing())
+				classCounts[(int) instance.classValue()]++;
+		if (!m_ClassValueIndex.equals("0")) {
+			int index = m_ClassValueIndex.equalsIgnoreCase("first") ? 1
+					: m_ClassValueIndex.equalsIgnoreCase("last") ? classCounts.length
+							: Integer.parseInt(m_ClassValueIndex);
+			if (index < 1 || index > classCounts.length)
+				throw new Exception("value index must be <= the number of classes");
+			m_MinorityClass = index - 1;
+		} else {
+			m_MinorityClass = 0;
+			for (int i = 1; i < classCounts.length; i++)
+				if (classCounts[i] != 0 && (classCounts[m_MinorityClass] == 0 || classCounts[i] < classCounts[m_MinorityClass]))
+					m_MinorityClass = i;
+		}
+
+		int m = classCounts[m_MinorityClass];
+		m_MinorityRows = new int[m];
+		boolean weighted = false;
+		for (int i = 0, j = 0; i < m_data.numInstances(); i++) {
+			Instance instance = m_data.instance(i);
+			weighted |= instance.weight() != 1.0;
+			if (!instance.classIsMissing() && (int) instance.classValue() == m_MinorityClass)
+				m_MinorityRows[j++] = i;
+		}
+		if (weighted) {
+			m_CumulativeWeights = new double[m_data.numInstances()];
+			double sum = 0;
+			for (int i = 0; i < m_CumulativeWeights.length; i++) {
+				sum += m_data.instance(i).weight();
+				m_CumulativeWeights[i] = sum;
+			}
+		}
+
+		m_PerBase = (int) Math.floor(m_Percentage / 100);
+		Random random = new Random(EasyEnsemble.deriveSeed(m_Seed, SMOTE_SEED));
+		List<Integer> bases = new ArrayList<Integer>(m);
+		for (int i = 0; i < m; i++)
+			bases.add(i);
+		Collections.shuffle(bases, random);
+		int numExtra = (int) ((m_Percentage / 100 - m_PerBase) * m);
+		m_ExtraBases = new int[numExtra];
+		for (int i = 0; i < numExtra; i++)
+			m_ExtraBases[i] = bases.get(i);
+		Arrays.sort(m_ExtraBases);
+		m_NumSynthetic = m_PerBase * m + numExtra;
+		if (m_MaxCount > 0)
+			m_NumSynthetic = Math.max(0, Math.min(m_NumSynthetic, m_MaxCount - m));
+		if (m_NumSynthetic == 0)
+			return;
+
+		int k = Math.min(m_NearestNeighbors, m - 1);
+		if (k < 1)
+			throw new Exception("Cannot use 0 neighbors!");
+		findNeighbors(k);
+	}
+
+	/**
+	 * Finds the nearest minority neighbours of every minority instance and the majority votes of the nominal values.
+	 */
+	private void findNeighbors(int k) {
+		if (SparseSMOTE.isSparse(m_data)) {
+			findSparseNeighbors(k);
+			return;
+		}
+		int m = m_MinorityRows.length;
+		int numAttributes = m_data.numAttributes();
+		double[][][] vdm = valueDifferenceMatrices();
+		double[][] values = new double[m][];
+		for (int i = 0; i < m; i++)
+			values[i] = m_data.instance(m_MinorityRows[i]).toDoubleArray();
+
+		// the numeric attributes in one block per instance for the distance kernel, missing values are NaN
+		int numNumeric = 0;
+		int[] nominal = new int[numAttributes];
+		int numNominal = 0;
+		for (int a = 0; a < numAttributes; a++) {
+			if (a == m_data.classIndex())
+				continue;
+			if (vdm[a] != null)
+				nominal[numNominal++] = a;
+			else
+				numNumeric++;
+		}
+		double[][] numeric = new double[m][numNumeric];
+		for (int i = 0; i < m; i++)
+			for (int a = 0, n = 0; a < numAttributes; a++)
+				if (a != m_data.classIndex() && vdm[a] == null)
+					numeric[i][n++] = values[i][a];
+		VectorKernels kernels = VectorKernels.getInstance();
+
+		m_Neighbors = new int[m][k];
+		double[] distances = new double[m];
+		for (int i = 0; i < m; i++) {
+			for (int j = 0; j < m; j++) {
+				if (i == j)
+					continue;
+				double distance = kernels.squaredDistance(numeric[i], numeric[j], numNumeric);
+				for (int l = 0; l < numNominal; l++) {
+					int a = nominal[l];
+					if (!Utils.isMissingValue(values[i][a]) && !Utils.isMissingValue(values[j][a]))
+						distance += vdm[a][(int) values[i][a]][(int) values[j][a]];
+				}
+				distances[j] = distance;
+			}
+			SparseSMOTE.nearestNeighbors(i, distances, m_Neighbors[i]);
+		}
+
+		m_Votes = new double[m][];
+		for (int a = 0; a < numAttributes; a++) {
+			if (a == m_data.classIndex() || !m_data.attribute(a).isNominal())
+				continue;
+			for (int i = 0; i < m; i++) {
+				if (m_Votes[i] == null)
+					m_Votes[i] = new double[numAttributes];
+				int[] counts = new int[m_data.attribute(a).numValues()];
+				if (!Utils.isMissingValue(values[i][a]))
+					counts[(int) values[i][a]]++;
+				for (int neighbor : m_Neighbors[i])
+					if (!Utils.isMissingValue(values[neighbor][a]))
+						counts[(int) values[neighbor][a]]++;
+				m_Votes[i][a] = Utils.maxIndex(counts);
+			}
+		}
+	}
+
+	/**
+	 * Finds the neighbours and votes of sparse data on the non-zero values of the minority instances.
+	 */
+	private void findSparseNeighbors(int k) {
+		int m = m_MinorityRows.length;
+		double[][][] vdm = valueDifferenceMatrices();
+		m_SparseIndices = new int[m][];
+		m_SparseValues = new double[m][];
+		for (int i = 0; i < m; i++) {
+			Instance instance = m_data.instance(m_MinorityRows[i]);
+			int count = 0;
+			for (int p = 0; p < instance.numValues(); p++)
+				if (instance.index(p) != m_data.classIndex() && instance.valueSparse(p) != 0)
+					count++;
+			m_SparseIndices[i] = new int[count];
+			m_SparseValues[i] = new double[count];
+			for (int p = 0, q = 0; p < instance.numValues(); p++) {
+				if (instance.index(p) == m_data.classIndex() || instance.valueSparse(p) == 0)
+					continue;
+				m_SparseIndices[i][q] = instance.index(p);
+				m_SparseValues[i][q++] = instance.valueSparse(p);
+			}
+		}
+
+		m_Neighbors = new int[m][k];
+		double[] distances = new double[m];
+		for (int i = 0; i < m; i++) {
+			for (int j = 0; j < m; j++)
+				if (i != j)
+					distances[j] = sparseDistance(i, j, vdm);
+			SparseSMOTE.nearestNeighbors(i, distances, m_Neighbors[i]);
+		}
+
+		// votes for the nominal attributes with a non-zero value, all other votes are for the first value
+		m_Votes = new double[m][];
+		m_VoteIndices = new int[m][];
+		for (int i = 0; i < m; i++) {
+			Map<Integer, int[]> votes = new TreeMap<Integer, int[]>();
+			addVotes(votes, i);
+			for (int neighbor : m_Neighbors[i])
+				addVotes(votes, neighbor);
+			int[] indices = new int[votes.size()];
+			double[] values = new double[votes.size()];
+			int count = 0;
+			for (Map.Entry<Integer, int[]> entry : votes.entrySet()) {
+				// the last count is the one of the missing values
+				int[] counts = entry.getValue();
+				counts[0] += k + 1 - Utils.sum(counts);
+				int vote = Utils.maxIndex(Arrays.copyOf(counts, counts.length - 1));
+				if (vote != 0) {
+					indices[count] = entry.getKey();
+					values[count++] = vote;
+				}
+			}
+			m_VoteIndices[i] = Arrays.copyOf(indices, count);
+			m_Votes[i] = Arrays.copyOf(values, count);
+		}
+	}
+
+	/**
+	 * Squared distance of two minority instances over the union of their non-zero values, like
+	 * {@link #findNeighbors(int)} computes it for dense data.
+	 */
+	private double sparseDistance(int i, int j, double[][][] vdm) {
+		int[] indicesI = m_SparseIndices[i];
+		int[] indicesJ = m_SparseIndices[j];
+		double distance = 0;
+		int p = 0;
+		int q = 0;
+		while (p < indicesI.length || q < indicesJ.length) {
+			int index;
+			double iVal = 0;
+			double jVal = 0;
+			if (q == indicesJ.length || (p < indicesI.length && indicesI[p] < indicesJ[q])) {
+				index = indicesI[p];
+				iVal = m_SparseValues[i][p++];
+			} else if (p == indicesI.length || indicesJ[q] < indicesI[p]) {
+				index = indicesJ[q];
+				jVal = m_SparseValues[j][q++];
+			} else {
+				index = indicesI[p];
+				iVal = m_SparseValues[i][p++];
+				jVal = m_SparseValues[j][q++];
+			}
+			if (Utils.isMissingValue(iVal) || Utils.isMissingValue(jVal))
+				continue;
+			if (vdm[index] == null)
+				distance += (iVal - jVal) * (iVal - jVal);
+			else
+				distance += vdm[index][(int) iVal][(int) jVal];
+		}
+		return distance;
+	}
+
+	private void addVotes(Map<Integer, int[]> votes, int i) {
+		for (int p = 0; p < m_SparseIndices[i].length; p++) {
+			Attribute attribute = m_data.attribute(m_SparseIndices[i][p]);
+			if (!attribute.isNominal())
+				continue;
+			int[] counts = votes.get(m_SparseIndices[i][p]);
+			if (counts == null) {
+				counts = new int[attribute.numValues() + 1];
+				votes.put(m_SparseIndices[i][p], counts);
+			}
+			double value = m_SparseValues[i][p];
+			counts[Utils.isMissingValue(value) ? counts.length - 1 : (int) value]++;
+		}
+	}
+
+	/**
+	 * Value difference matrices of the nominal attributes, null for all other attributes.
+	 */
+	private double[][][] valueDifferenceMatrices() {
+		double[][][] vdm = new double[m_data.numAttributes()][][];
+		for (int a = 0; a < m_data.numAttributes(); a++) {
+			Attribute attribute = m_data.attribute(a);
+			if (a == m_data.classIndex() || !attribute.isNominal())
+				continue;
+			int[] counts = new int[attribute.numValues()];
+			int[][] countsByClass = new int[m_data.numClasses()][attribute.numValues()];
+			for (Instance instance : m_data) {
+				if (instance.isMissing(a) || instance.classIsMissing())
+					continue;
+				counts[(int) instance.value(a)]++;
+				countsByClass[(int) instance.classValue()][(int) instance.value(a)]++;
+			}
+			vdm[a] = new double[attribute.numValues()][attribute.numValues()];
+			for (int v1 = 0; v1 < counts.length; v1++) {
+				for (int v2 = 0; v2 < counts.length; v2++) {
+					double sum = 0;
+					for (int c = 0; c < countsByClass.length; c++) {
+						double term1 = counts[v1] == 0 ? 0 : countsByClass[c][v1] / (double) counts[v1];
+						double term2 = counts[v2] == 0 ? 0 : countsByClass[c][v2] / (double) counts[v2];
+						sum += Math.abs(term1 - term2);
+					}
+					vdm[a][v1][v2] = sum;
+				}
+			}
+		}
+		return vdm;
+	}
+
+	/**
+	 * Draws the bootstrap sample from the training data and the synthetic instances. Every synthetic instance has
+	 * weight 1.
+	 */
+	@Override
+	protected Instances getBootstrap(int iteration, Random r) throws Exception {
+		if (m_NumSynthetic == 0)
+			return super.getBootstrap(iteration, r);
+
+		int numReal = m_data.numInstances();
+		double realWeight = m_CumulativeWeights == null ? numReal : m_CumulativeWeights[numReal - 1];
+		double totalWeight = realWeight + m_NumSynthetic;
+		int bagSize = (int) ((numReal + m_NumSynthetic) * (m_BagSizePercent / 100.0));
+		Instances bag = new Instances(m_data, bagSize);
+		// one generator for the synthetic instances of the tree, reseeded for each of them
+		Random random = new Random();
+		for (int i = 0; i < bagSize; i++) {
+			double draw = r.nextDouble() * totalWeight;
+			if (draw < realWeight) {
+				int row = (int) draw;
+				if (m_CumulativeWeights != null) {
+					row = Arrays.binarySearch(m_CumulativeWeights, draw);
+					row = row < 0 ? -row - 1 : row + 1;
+				}
+				bag.add(m_data.instance(Math.min(row, numReal - 1)));
+			} else {
+				bag.add(synthetic(Math.min((int) (draw - realWeight), m_NumSynthetic - 1), random));
+			}
+		}
+		return bag;
+	}
+
+	/**
+	 * Generates a synthetic instance. It only depends on its number and the seed of the forest.
+	 *
+	 * @param number
+	 *            the number of the synthetic instance
+	 * @param random
+	 *            the generator of the calling tree, it is reseeded for the instance
+	 * @return the instance
+	 */
+	protected Instance synthetic(int number, Random random) {
+		int base = number < m_PerBase * m_MinorityRows.length ? number / m_PerBase
+				: m_ExtraBases[number - m_PerBase * m_MinorityRows.length];
+		random.setSeed(EasyEnsemble.deriveSeed(EasyEnsemble.deriveSeed(m_Seed, SMOTE_SEED), number));
+		int neighbor = m_Neighbors[base][random.nextInt(m_Neighbors[base].length)];
+		if (m_SparseIndices != null)
+			return sparseSynthetic(base, neighbor, random);
+
+		Instance instance = m_data.instance(m_MinorityRows[base]);
+		Instance neighborInstance = m_data.instance(m_MinorityRows[neighbor]);
+		double[] values = new double[m_data.numAttributes()];
+		for (int a = 0; a < values.length; a++) {
+			Attribute attribute = m_data.attribute(a);
+			double value = instance.value(a);
+			if (a == m_data.classIndex()) {
+				value = m_MinorityClass;
+			} else if (attribute.isNominal()) {
+				value = m_Votes[base][a];
+			} else if (attribute.isNumeric() && !Utils.isMissingValue(value) && !neighborInstance.isMissing(a)) {
+				value += random.nextDouble() * (neighborInstance.value(a) - value);
+				if (attribute.isDate())
+					value = (long) value;
+			}
+			values[a] = value;
+		}
+		return new DenseInstance(1.0, values);
+	}
+
+	/**
+	 * Generates a sparse synthetic instance. The numeric values are interpolated where the instance or its neighbour
+	 * is non-zero, the nominal values are the non-zero votes, all other values are zero.
+	 */
+	private Instance sparseSynthetic(int base, int neighbor, Random random) {
+		int[] indicesB = m_SparseIndices[base];
+		int[] indicesN = m_SparseIndices[neighbor];
+		int[] votes = m_VoteIndices[base];
+		int[] indices = new int[indicesB.length + indicesN.length + votes.length + 1];
+		double[] values = new double[indices.length];
+		int count = 0;
+		int p = 0;
+		int q = 0;
+		int v = 0;
+		boolean classDone = false;
+		while (p < indicesB.length || q < indicesN.length || v < votes.length || !classDone) {
+			int numericIndex = Math.min(p < indicesB.length ? indicesB[p] : Integer.MAX_VALUE,
+					q < indicesN.length ? indicesN[q] : Integer.MAX_VALUE);
+			int voteIndex = v < votes.length ? votes[v] : Integer.MAX_VALUE;
+			int classIndex = classDone ? Integer.MAX_VALUE : m_data.classIndex();
+			double value;
+			int index;
+			if (classIndex < numericIndex && classIndex < voteIndex) {
+				index = classIndex;
+				value = m_MinorityClass;
+				classDone = true;
+			} else if (voteIndex < numericIndex) {
+				index = voteIndex;
+				value = m_Votes[base][v++];
+			} else {
+				index = numericIndex;
+				double bVal = p < indicesB.length && indicesB[p] == index ? m_SparseValues[base][p++] : 0;
+				double nVal = q < indicesN.length && indicesN[q] == index ? m_SparseValues[neighbor][q++] : 0;
+				Attribute attribute = m_data.attribute(index);
+				if (!attribute.isNumeric())
+					continue;
+				value = bVal;
+				if (!Utils.isMissingValue(bVal) && !Utils.isMissingValue(nVal)) {
+					value += random.nextDouble() * (nVal - bVal);
+					if (attribute.isDate())
+						value = (long) value;
+				}
+			}
+			if (value != 0) {
+				indices[count] = index;
+				values[count++] = value;
+			}
+		}
+		return new SparseInstance(1.0, Arrays.copyOf(values, count), Arrays.copyOf(indices, count),
+				m_data.numAttributes());
+	}
+
+}
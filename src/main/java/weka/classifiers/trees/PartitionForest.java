@@ -0,0 +1,759 @@
+package weka.classifiers.trees;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.meta.CancellationToken;
+import weka.classifiers.meta.EasyEnsemble;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Randomizable;
+import weka.core.SparseInstance;
+import weka.core.Utils;
+import weka.core.VectorKernels;
+
+/**
+ * <p>
+ * Random forest used as base learner of each {@link HyperSMURF} partition. Gives HyperSMURF access to the trees of the
+ * forest.
+ * </p>
+ *
+ * <p>
+ * The bootstrap sample and the seed of each tree are derived from the seed of the forest and the number of the tree
+ * alone, see {@link EasyEnsemble#deriveSeed(long, int)}. The forest is therefore the same for any number of execution
+ * slots and for any order in which the trees are built.
+ * </p>
+ *
+ * <p>
+ * The build can be stopped with a {@link CancellationToken}. Trees that are not started before the token is cancelled
+ * are left out of the forest.
+ * </p>
+ *
+ * <p>
+ * With a nominal class and dense data the trees are grown as {@link PresortedRandomTree}s on a {@link PresortedIndex}
+ * of the training data, which sorts every numeric attribute once for all trees of the forest instead of once per node
+ * of every tree. The trees are the same as the ones {@link RandomTree} grows on the bootstrap samples, see
+ * {@link #setPresort(boolean)}.
+ * </p>
+ *
+ * <p>
+ * {@link #distributionForInstance(Instance, double[])} scores an instance into a given array and walks the trees on
+ * scratch buffers of the calling thread, so it allocates nothing once the buffers are warm. The trees are walked in
+ * their {@link FlatTree} form, which is read once per tree on first use, trees that cannot be read score through
+ * {@link RandomTree#distributionForInstance(Instance)}.
+ * {@link #distributionsForInstances(Instances)} routes a whole batch through each tree block by block, comparing the
+ * values of all rows at a node with its split point in one {@link VectorKernels#lessThan(double[], int, double, boolean[])}
+ * call.
+ * </p>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class PartitionForest extends RandomForest {
+
+	/** for serialization */
+	private static final long serialVersionUID = 2867349235169473856L;
+
+	/** Id of the seed of the bootstrap sample of a tree */
+	protected static final int BAG_SEED = 0;
+
+	/** Id of the seed of a tree */
+	protected static final int TREE_SEED = 1;
+
+	/** The token that stops the build, null if there is none */
+	protected transient CancellationToken m_CancellationToken;
+
+	/** The trees of the running build that were skipped because the token was cancelled */
+	protected transient boolean[] m_Skipped;
+
+	/** The number of trees requested for the last build */
+	protected int m_NumPlannedTrees;
+
+	/** Whether the trees are grown on a presorted index of the training data */
+	protected boolean m_Presort = true;
+
+	/** The presorted index of the running build, null if the trees are built on their samples */
+	protected transient PresortedIndex m_Index;
+
+	/** The number of each row of the training data with its weight, sampled like the training data */
+	protected transient Instances m_RowIds;
+
+	/** The trees in their flat form for scoring, null for trees that cannot be read, read on first use */
+	protected transient volatile FlatTree[] m_FlatTrees;
+
+	/**
+	 * Set the token that stops the build.
+	 *
+	 * @param token
+	 *            the token, null for none
+	 */
+	public void setCancellationToken(CancellationToken token) {
+		m_CancellationToken = token;
+	}
+
+	/**
+	 * Set whether the trees are grown on a presorted index of the training data. The index is only used for a nominal
+	 * class without missing values, dense data and {@link RandomTree}s without backfitting, otherwise every tree is
+	 * built on its bootstrap sample.
+	 *
+	 * @param presort
+	 *            true to grow the trees on a presorted index
+	 */
+	public void setPresort(boolean presort) {
+		m_Presort = presort;
+	}
+
+	/**
+	 * Get whether the trees are grown on a presorted index of the training data.
+	 *
+	 * @return true if the trees are grown on a presorted index
+	 */
+	public boolean getPresort() {
+		return m_Presort;
+	}
+
+	/**
+	 * Builds the forest. Trees skipped because the cancellation token was cancelled are removed afterwards.
+	 *
+	 * @param data
+	 *            the training data
+	 * @throws Exception
+	 *             if the forest cannot be built
+	 */
+	@Override
+	public void buildClassifier(Instances data) throws Exception {
+		m_FlatTrees = null;
+		m_Skipped = new boolean[m_NumIterations];
+		m_NumPlannedTrees = m_NumIterations;
+		try {
+			super.buildClassifier(data);
+			int numBuilt = 0;
+			for (boolean skipped : m_Skipped)
+				if (!skipped)
+					numBuilt++;
+			if (numBuilt < m_Skipped.length) {
+				int[] trees = new int[numBuilt];
+				for (int i = 0, j = 0; i < m_Skipped.length; i++)
+					if (!m_Skipped[i])
+						trees[j++] = i;
+				retainTrees(trees);
+			}
+		} finally {
+			m_Skipped = null;
+		}
+	}
+
+	/**
+	 * Builds the trees, as {@link PresortedRandomTree}s on a presorted index of the training data if
+	 * {@link #canPresort()}.
+	 *
+	 * @throws Exception
+	 *             if the trees cannot be built
+	 */
+	@Override
+	protected void buildClassifiers() throws Exception {
+		if (!canPresort()) {
+			super.buildClassifiers();
+			return;
+		}
+		m_Index = new PresortedIndex(m_data);
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		attributes.add(new Attribute("row"));
+		m_RowIds = new Instances("rows", attributes, m_data.numInstances());
+		for (int i = 0; i < m_data.numInstances(); i++)
+			m_RowIds.add(new DenseInstance(m_data.instance(i).weight(), new double[] { i }));
+		for (int i = 0; i < m_Classifiers.length; i++)
+			m_Classifiers[i] = PresortedRandomTree.withOptionsOf((RandomTree) m_Classifiers[i]);
+		try {
+			super.buildClassifiers();
+		} finally {
+			m_Index = null;
+			m_RowIds = null;
+		}
+	}
+
+	/**
+	 * Returns whether the trees of the running build can be grown on a presorted index of the training data: presorting
+	 * is switched on, the class is nominal without missing values, the data is dense and the trees are plain
+	 * {@link RandomTree}s without backfitting.
+	 *
+	 * @return true if the trees can be grown on a presorted index
+	 */
+	protected boolean canPresort() {
+		if (!m_Presort || m_Classifier.getClass() != RandomTree.class || ((RandomTree) m_Classifier).getNumFolds() > 0)
+			return false;
+		if (!m_data.classAttribute().isNominal() || m_data.numAttributes() < 2 || m_data.numInstances() == 0)
+			return false;
+		for (Instance instance : m_data)
+			if (instance.classIsMissing() || instance instanceof SparseInstance)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Returns the bootstrap sample of a tree and seeds the tree. Same sampling as
+	 * {@link weka.classifiers.meta.Bagging#getTrainingSet(int)}, but with seeds derived from the number of the tree.
+	 * Trees grown on the presorted index get the same sample as the weight of each row of the training data, and an
+	 * empty sample is returned.
+	 *
+	 * @param iteration
+	 *            the number of the tree
+	 * @return the bootstrap sample
+	 * @throws Exception
+	 *             if the sample cannot be generated
+	 */
+	@Override
+	protected synchronized Instances getTrainingSet(int iteration) throws Exception {
+		if (m_CancellationToken != null && m_CancellationToken.isCancelled()) {
+			// a single instance keeps the skipped tree cheap, it is removed after the build
+			m_Skipped[iteration] = true;
+			return new Instances(m_data, 0, 1);
+		}
+		long seed = EasyEnsemble.deriveSeed(m_Seed, iteration);
+		if (m_Classifiers[iteration] instanceof Randomizable)
+			((Randomizable) m_Classifiers[iteration]).setSeed((int) EasyEnsemble.deriveSeed(seed, TREE_SEED));
+
+		Random r = new Random(EasyEnsemble.deriveSeed(seed, BAG_SEED));
+		if (m_Index == null)
+			return getBootstrap(iteration, r);
+		PresortedRandomTree tree = (PresortedRandomTree) m_Classifiers[iteration];
+		Instances bag = getBootstrap(m_RowIds, iteration, r);
+		double[] weights = new double[m_data.numInstances()];
+		for (Instance row : bag)
+			weights[(int) row.value(0)] += row.weight();
+		// the row at which Instances#getRandomNumberGenerator(long) draws the seed of the tree from the sample
+		int seedRow = (int) bag.instance(new Random(tree.getSeed()).nextInt(bag.numInstances())).value(0);
+		tree.setSample(m_Index, weights, seedRow);
+		return new Instances(m_data, 0);
+	}
+
+	/**
+	 * Draws the bootstrap sample of a tree from the training data.
+	 *
+	 * @param iteration
+	 *            the number of the tree
+	 * @param r
+	 *            the random number generator of the sample
+	 * @return the bootstrap sample
+	 * @throws Exception
+	 *             if the sample cannot be generated
+	 */
+	protected Instances getBootstrap(int iteration, Random r) throws Exception {
+		return getBootstrap(m_data, iteration, r);
+	}
+
+	/**
+	 * Draws the bootstrap sample of a tree from the given data. The sample depends only on the number and the weights
+	 * of the rows.
+	 *
+	 * @param data
+	 *            the training data or the row numbers with the weights of the training data
+	 * @param iteration
+	 *            the number of the tree
+	 * @param r
+	 *            the random number generator of the sample
+	 * @return the bootstrap sample
+	 * @throws Exception
+	 *             if the sample cannot be generated
+	 */
+	protected Instances getBootstrap(Instances data, int iteration, Random r) throws Exception {
+		int bagSize = (int) (data.numInstances() * (m_BagSizePercent / 100.0));
+		if (m_CalcOutOfBag) {
+			m_inBag[iteration] = new boolean[data.numInstances()];
+			return data.resampleWithWeights(r, m_inBag[iteration], getRepresentCopiesUsingWeights());
+		} else if (bagSize < data.numInstances()) {
+			Instances bagData = data.resampleWithWeights(r, false);
+			bagData.randomize(r);
+			return new Instances(bagData, 0, bagSize);
+		} else {
+			return data.resampleWithWeights(r, getRepresentCopiesUsingWeights());
+		}
+	}
+
+	/**
+	 * Calculates the class membership probabilities for the given test instance with the trees of the built forest,
+	 * which can be fewer than the number of iterations if trees were removed.
+	 *
+	 * @param instance
+	 *            the instance to be classified
+	 * @return predicted class probability distribution
+	 * @throws Exception
+	 *             if distribution can't be computed successfully
+	 */
+	@Override
+	public double[] distributionForInstance(Instance instance) throws Exception {
+		if (!instance.classAttribute().isNumeric())
+			return distributionForInstance(instance, new double[instance.numClasses()]);
+		double sum = 0;
+		int numPredictions = 0;
+		for (Classifier classifier : m_Classifiers) {
+			double prediction = classifier.classifyInstance(instance);
+			if (!Utils.isMissingValue(prediction)) {
+				sum += prediction;
+				numPredictions++;
+			}
+		}
+		return new double[] { numPredictions == 0 ? Utils.missingValue() : sum / numPredictions };
+	}
+
+	/**
+	 * Calculates the class membership probabilities for the given test instance into the given array. Gives the same
+	 * result as {@link #distributionForInstance(Instance)}, but the trees are walked on scratch buffers of the calling
+	 * thread instead of allocating a distribution per tree and node.
+	 *
+	 * @param instance
+	 *            the instance to be classified
+	 * @param dist
+	 *            the array for the distribution, one entry per class
+	 * @return the given array with the predicted class probability distribution
+	 * @throws Exception
+	 *             if distribution can't be computed successfully
+	 */
+	public double[] distributionForInstance(Instance instance, double[] dist) throws Exception {
+		if (instance.classAttribute().isNumeric()) {
+			double[] result = distributionForInstance(instance);
+			System.arraycopy(result, 0, dist, 0, result.length);
+			return dist;
+		}
+		Arrays.fill(dist, 0);
+		FlatTree[] flatTrees = getFlatTrees();
+		for (int i = 0; i < m_Classifiers.length; i++) {
+			double[] newProbs;
+			if (flatTrees[i] != null)
+				newProbs = flatTrees[i].scratchDistribution(instance);
+			else if (m_Classifiers[i] instanceof CompactTree)
+				newProbs = ((CompactTree) m_Classifiers[i]).scratchDistribution(instance);
+			else
+				newProbs = m_Classifiers[i].distributionForInstance(instance);
+			if (newProbs == null)
+				continue;
+			for (int j = 0; j < dist.length; j++)
+				dist[j] += newProbs[j];
+		}
+		if (!Utils.eq(Utils.sum(dist), 0))
+			Utils.normalize(dist);
+		return dist;
+	}
+
+	/**
+	 * Returns the trees of the built forest in their flat form, reading them on first use.
+	 *
+	 * @return the flat trees, null for trees that are no {@link RandomTree} or cannot be read
+	 */
+	protected FlatTree[] getFlatTrees() {
+		FlatTree[] flatTrees = m_FlatTrees;
+		if (flatTrees != null && flatTrees.length == m_Classifiers.length)
+			return flatTrees;
+		synchronized (this) {
+			if (m_FlatTrees == null || m_FlatTrees.length != m_Classifiers.length) {
+				flatTrees = new FlatTree[m_Classifiers.length];
+				for (int i = 0; i < flatTrees.length; i++)
+					if (m_Classifiers[i] instanceof RandomTree)
+						flatTrees[i] = FlatTree.read((RandomTree) m_Classifiers[i]);
+				m_FlatTrees = flatTrees;
+			}
+			return m_FlatTrees;
+		}
+	}
+
+	/**
+	 * Calculates the class membership probabilities for a batch of test instances. The rows are routed through every
+	 * tree together: at a numeric split the values of all rows that reach the node are compared with the split point
+	 * in one block, at a nominal split the rows are grouped by value. Only the columns of the attributes the trees
+	 * split on are copied out of the instances. Gives the same result as {@link #distributionForInstance(Instance)},
+	 * up to rounding for instances with missing values, which are passed down all branches of a split weighted with
+	 * the proportion of the branch. Batches with {@link SparseInstance}s are scored instance by instance, so their
+	 * values are not expanded into columns.
+	 *
+	 * @param instances
+	 *            the instances to be classified
+	 * @return predicted class probability distributions, one row per instance
+	 * @throws Exception
+	 *             if distributions can't be computed successfully
+	 */
+	@Override
+	public double[][] distributionsForInstances(Instances instances) throws Exception {
+		if (instances.classAttribute().isNumeric())
+			return super.distributionsForInstances(instances);
+		for (int row = 0; row < instances.numInstances(); row++) {
+			if (instances.instance(row) instanceof SparseInstance) {
+				double[][] result = new double[instances.numInstances()][];
+				for (int i = 0; i < result.length; i++)
+					result[i] = distributionForInstance(instances.instance(i), new double[instances.numClasses()]);
+				return result;
+			}
+		}
+		return distributions(new Batch(instances));
+	}
+
+	/**
+	 * Calculates the class membership probabilities for rows that are given column by column, e.g. a slice of a
+	 * column-major matrix. Gives the same result as {@link #distributionsForInstances(Instances)} for the instances
+	 * of the rows, without creating them. Trees without a flat form score the rows one by one on a single instance
+	 * that is refilled for every row.
+	 *
+	 * @param columns
+	 *            the values of the attributes of the training header, one array per attribute with a value for every
+	 *            row, the column of the class can be null
+	 * @param numRows
+	 *            the number of rows
+	 * @return predicted class probability distributions, one row per instance
+	 * @throws Exception
+	 *             if the columns do not fit the forest or distributions can't be computed successfully
+	 */
+	public double[][] distributionsForColumns(double[][] columns, int numRows) throws Exception {
+		if (m_data.classAttribute().isNumeric())
+			throw new Exception("Columns can only be scored with a nominal class!");
+		if (columns.length != m_data.numAttributes())
+			throw new Exception("Expected " + m_data.numAttributes() + " columns but got " + columns.length + "!");
+		return distributions(new Batch(m_data, columns, numRows));
+	}
+
+	/**
+	 * Routes the rows of a batch through every tree, see {@link #distributionsForInstances(Instances)}.
+	 */
+	private double[][] distributions(Batch batch) throws Exception {
+		FlatTree[] flatTrees = getFlatTrees();
+		for (int i = 0; i < m_Classifiers.length; i++) {
+			if (flatTrees[i] != null) {
+				for (int row = 0; row < batch.m_NumRows; row++) {
+					batch.m_Rows[row] = row;
+					batch.m_Weights[row] = 1.0;
+				}
+				batch.m_Top = batch.m_NumRows;
+				route(flatTrees[i], 0, batch, 0, batch.m_NumRows, -1);
+			} else {
+				for (int row = 0; row < batch.m_NumRows; row++) {
+					double[] newProbs;
+					if (m_Classifiers[i] instanceof CompactTree)
+						newProbs = ((CompactTree) m_Classifiers[i]).scratchDistribution(batch.instance(row));
+					else
+						newProbs = m_Classifiers[i].distributionForInstance(batch.instance(row));
+					if (newProbs == null)
+						continue;
+					for (int j = 0; j < newProbs.length; j++)
+						batch.m_Result[row][j] += newProbs[j];
+				}
+			}
+		}
+		for (double[] dist : batch.m_Result)
+			if (!Utils.eq(Utils.sum(dist), 0))
+				Utils.normalize(dist);
+		return batch.m_Result;
+	}
+
+	@Override
+	public boolean implementsMoreEfficientBatchPrediction() {
+		return true;
+	}
+
+	/**
+	 * Routes the rows <code>from</code> to <code>to</code> of the batch through a node and adds the distributions of
+	 * the leaves they reach to the result.
+	 *
+	 * @param fallback
+	 *            the deepest node above with a class distribution, used for the rows that reach a leaf without one,
+	 *            as in {@link RandomTree}, -1 if there is none
+	 */
+	private static void route(FlatTree tree, int node, Batch batch, int from, int to, int fallback) {
+		if (from == to)
+			return;
+		int attribute = tree.attribute(node);
+		if (attribute == FlatTree.LEAF) {
+			addLeaf(tree, node, batch, from, to, fallback);
+			return;
+		}
+		double[] column = batch.column(attribute);
+
+		// the rows with a missing value to the end of the block
+		int end = to;
+		for (int k = from; k < end;) {
+			if (Utils.isMissingValue(column[batch.m_Rows[k]]))
+				batch.swap(k, --end);
+			else
+				k++;
+		}
+
+		int next = tree.classDistribution(node) != null ? node : fallback;
+		int first = tree.firstSuccessor(node);
+		int numSuccessors = tree.numSuccessors(node);
+		if (tree.getHeader().attribute(attribute).isNominal()) {
+			int[] starts = new int[numSuccessors + 1];
+			for (int k = from; k < end; k++)
+				starts[(int) column[batch.m_Rows[k]] + 1]++;
+			for (int i = 1; i < starts.length; i++)
+				starts[i] += starts[i - 1];
+			int[] positions = Arrays.copyOf(starts, starts.length - 1);
+			for (int k = from; k < end; k++) {
+				int position = positions[(int) column[batch.m_Rows[k]]]++;
+				batch.m_TmpRows[position] = batch.m_Rows[k];
+				batch.m_TmpWeights[position] = batch.m_Weights[k];
+			}
+			System.arraycopy(batch.m_TmpRows, 0, batch.m_Rows, from, end - from);
+			System.arraycopy(batch.m_TmpWeights, 0, batch.m_Weights, from, end - from);
+			for (int i = 0; i < numSuccessors; i++)
+				route(tree, first + i, batch, from + starts[i], from + starts[i + 1], next);
+		} else {
+			int n = end - from;
+			for (int k = 0; k < n; k++)
+				batch.m_Values[k] = column[batch.m_Rows[from + k]];
+			int numLess = batch.m_Kernels.lessThan(batch.m_Values, n, tree.splitPoint(node), batch.m_Less);
+			for (int k = 0, left = 0, right = numLess; k < n; k++) {
+				int position = batch.m_Less[k] ? left++ : right++;
+				batch.m_TmpRows[position] = batch.m_Rows[from + k];
+				batch.m_TmpWeights[position] = batch.m_Weights[from + k];
+			}
+			System.arraycopy(batch.m_TmpRows, 0, batch.m_Rows, from, n);
+			System.arraycopy(batch.m_TmpWeights, 0, batch.m_Weights, from, n);
+			route(tree, first, batch, from, from + numLess, next);
+			route(tree, first + 1, batch, from + numLess, end, next);
+		}
+
+		// the rows with a missing value go down all branches, as a copy after the used part of the buffers
+		for (int i = 0; i < numSuccessors && end < to; i++) {
+			int start = batch.m_Top;
+			batch.ensureCapacity(start + to - end);
+			for (int k = end; k < to; k++) {
+				batch.m_Rows[batch.m_Top] = batch.m_Rows[k];
+				batch.m_Weights[batch.m_Top++] = tree.prop(first + i) * batch.m_Weights[k];
+			}
+			route(tree, first + i, batch, start, batch.m_Top, -1);
+			batch.m_Top = start;
+		}
+	}
+
+	/**
+	 * Adds the normalized class distribution of a leaf, or of the fallback node if the leaf has none, to the rows
+	 * <code>from</code> to <code>to</code> of the batch.
+	 */
+	private static void addLeaf(FlatTree tree, int node, Batch batch, int from, int to, int fallback) {
+		int source = node;
+		if (tree.classDistribution(node) == null) {
+			if (tree.getAllowUnclassifiedInstances() || fallback == -1)
+				return;
+			source = fallback;
+		}
+		double[] dist = batch.m_Leaf;
+		System.arraycopy(tree.classDistribution(source), 0, dist, 0, dist.length);
+		Utils.normalize(dist);
+		for (int k = from; k < to; k++) {
+			double[] result = batch.m_Result[batch.m_Rows[k]];
+			double weight = batch.m_Weights[k];
+			for (int j = 0; j < dist.length; j++)
+				result[j] += weight * dist[j];
+		}
+	}
+
+	/**
+	 * The columns, result and routing buffers of a batch. The rows that reach a node are a block of
+	 * {@link #m_Rows}, with the weight of each row in {@link #m_Weights}.
+	 */
+	private static class Batch {
+
+		/** The number of instances */
+		protected final int m_NumRows;
+
+		/** The instances, null if the batch is given as columns */
+		protected final Instances m_Instances;
+
+		/** The values of the instances, one array per attribute, null until a tree splits on the attribute */
+		protected final double[][] m_Columns;
+
+		/** The header of the rows */
+		protected final Instances m_Header;
+
+		/** The instance refilled for each row of a batch given as columns, created on first use */
+		protected Instance m_Row;
+
+		/** The values of {@link #m_Row} */
+		protected double[] m_RowValues;
+
+		/** The summed distributions, one per instance */
+		protected final double[][] m_Result;
+
+		/** Scratch buffer for the distribution of a leaf */
+		protected final double[] m_Leaf;
+
+		/** The kernels of the threshold comparisons */
+		protected final VectorKernels m_Kernels = VectorKernels.getInstance();
+
+		/** The rows, grouped into blocks by the nodes they reach */
+		protected int[] m_Rows;
+
+		/** The weight of each entry of {@link #m_Rows} */
+		protected double[] m_Weights;
+
+		/** The end of the used part of {@link #m_Rows} */
+		protected int m_Top;
+
+		/** Scratch buffers of a split */
+		protected double[] m_Values;
+		protected boolean[] m_Less;
+		protected int[] m_TmpRows;
+		protected double[] m_TmpWeights;
+
+		protected Batch(Instances instances) {
+			this(instances, instances, new double[instances.numAttributes()][], instances.numInstances());
+		}
+
+		protected Batch(Instances header, double[][] columns, int numRows) {
+			this(null, header, columns, numRows);
+		}
+
+		private Batch(Instances instances, Instances header, double[][] columns, int numRows) {
+			m_Instances = instances;
+			m_Header = header;
+			m_NumRows = numRows;
+			m_Columns = columns;
+			m_Result = new double[m_NumRows][header.numClasses()];
+			m_Leaf = new double[header.numClasses()];
+			m_Rows = new int[m_NumRows];
+			m_Weights = new double[m_NumRows];
+			m_Values = new double[m_NumRows];
+			m_Less = new boolean[m_NumRows];
+			m_TmpRows = new int[m_NumRows];
+			m_TmpWeights = new double[m_NumRows];
+		}
+
+		/**
+		 * Returns the values of an attribute, copying them out of the instances on first use.
+		 */
+		protected double[] column(int attribute) {
+			if (m_Columns[attribute] == null && m_Instances != null) {
+				double[] column = new double[m_NumRows];
+				for (int row = 0; row < m_NumRows; row++)
+					column[row] = m_Instances.instance(row).value(attribute);
+				m_Columns[attribute] = column;
+			}
+			return m_Columns[attribute];
+		}
+
+		/**
+		 * Returns the instance of a row. For a batch given as columns this is the same instance for every row, refilled
+		 * with the values of the row.
+		 */
+		protected Instance instance(int row) {
+			if (m_Instances != null)
+				return m_Instances.instance(row);
+			if (m_Row == null) {
+				m_RowValues = new double[m_Columns.length];
+				m_Row = new DenseInstance(1.0, m_RowValues);
+				m_Row.setDataset(m_Header);
+			}
+			for (int i = 0; i < m_Columns.length; i++)
+				m_RowValues[i] = m_Columns[i] == null ? Utils.missingValue() : m_Columns[i][row];
+			return m_Row;
+		}
+
+		/**
+		 * Grows the buffers for rows with missing values that are copied to several branches.
+		 */
+		protected void ensureCapacity(int capacity) {
+			if (capacity <= m_Rows.length)
+				return;
+			capacity = Math.max(capacity, 2 * m_Rows.length);
+			m_Rows = Arrays.copyOf(m_Rows, capacity);
+			m_Weights = Arrays.copyOf(m_Weights, capacity);
+			m_Values = new double[capacity];
+			m_Less = new boolean[capacity];
+			m_TmpRows = new int[capacity];
+			m_TmpWeights = new double[capacity];
+		}
+
+		protected void swap(int i, int j) {
+			int row = m_Rows[i];
+			m_Rows[i] = m_Rows[j];
+			m_Rows[j] = row;
+			double weight = m_Weights[i];
+			m_Weights[i] = m_Weights[j];
+			m_Weights[j] = weight;
+		}
+	}
+
+	/**
+	 * Returns the number of trees in the built forest.
+	 *
+	 * @return the number of trees, 0 if the forest is not built
+	 */
+	public int getNumTrees() {
+		return m_Classifiers == null ? 0 : m_Classifiers.length;
+	}
+
+	/**
+	 * Returns the header of the training data of the built forest, with the attributes of its trees.
+	 *
+	 * @return the header, null if the forest is not built
+	 */
+	public Instances getTrainingHeader() {
+		return m_data;
+	}
+
+	/**
+	 * Returns the number of trees requested for the last build. Can be larger than {@link #getNumTrees()} if the build
+	 * was stopped or trees were removed.
+	 *
+	 * @return the number of trees requested
+	 */
+	public int getNumPlannedTrees() {
+		return m_NumPlannedTrees;
+	}
+
+	/**
+	 * Returns a tree of the built forest.
+	 *
+	 * @param index
+	 *            the index of the tree
+	 * @return the tree
+	 */
+	public Classifier getTree(int index) {
+		return m_Classifiers[index];
+	}
+
+	/**
+	 * Replaces the trees of the built forest by their {@link CompactTree} form. Trees of a numeric class and trees that
+	 * cannot be read, see {@link FlatTree#read(RandomTree)}, are kept.
+	 *
+	 * @param leafFormat
+	 *            the storage format of the class distributions, see {@link CompactTree#TAGS_LEAVES}
+	 * @param thresholdFormat
+	 *            the storage format of the split points, see {@link CompactTree#TAGS_THRESHOLDS}. The split tables
+	 *            are shared by all trees of the forest, the split points are stored as float32 if an attribute has
+	 *            too many of them
+	 * @throws Exception
+	 *             if a tree cannot be compacted
+	 */
+	public void compact(int leafFormat, int thresholdFormat) throws Exception {
+		FlatTree[] flatTrees = getFlatTrees();
+		List<FlatTree> trees = new ArrayList<FlatTree>();
+		for (FlatTree flatTree : flatTrees)
+			if (flatTree != null)
+				trees.add(flatTree);
+		double[][] splitTables = thresholdFormat == CompactTree.THRESHOLDS_TABLE ? CompactTree.splitTables(trees)
+				: null;
+		for (int i = 0; i < m_Classifiers.length; i++)
+			if (flatTrees[i] != null)
+				m_Classifiers[i] = new CompactTree(flatTrees[i], leafFormat, splitTables);
+		m_FlatTrees = null;
+	}
+
+	/**
+	 * Keeps only the given trees of the built forest. The number of iterations is not changed, so the next build trains
+	 * all trees again.
+	 *
+	 * @param trees
+	 *            the indices of the trees to keep
+	 */
+	public void retainTrees(int[] trees) {
+		Classifier[] retained = new Classifier[trees.length];
+		for (int i = 0; i < trees.length; i++)
+			retained[i] = m_Classifiers[trees[i]];
+		m_Classifiers = retained;
+		m_FlatTrees = null;
+	}
+
+}
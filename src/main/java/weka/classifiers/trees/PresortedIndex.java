@@ -0,0 +1,295 @@
+package weka.classifiers.trees;
+
+import java.util.Arrays;
+
+import weka.core.ContingencyTables;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * <p>
+ * The training set of a {@link PartitionForest} with the rows of every numeric attribute sorted once for all trees.
+ * A {@link PresortedRandomTree} takes its orderings from the index through the weights of its bootstrap sample and
+ * keeps them sorted while it splits, so no tree sorts an attribute again.
+ * </p>
+ *
+ * <p>
+ * The index holds a copy of the values of the training set in columns and one ordering of the rows per numeric
+ * attribute. It is meant for dense data, {@link PartitionForest} builds the trees of sparse data on their samples.
+ * </p>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class PresortedIndex {
+
+	/** The training set */
+	protected final Instances m_Data;
+
+	/** The values of each attribute, one column per attribute */
+	protected final double[][] m_Values;
+
+	/** The class of each row */
+	protected final int[] m_Classes;
+
+	/** The rows of each numeric attribute sorted by value with missing values last, null for other attributes */
+	protected final int[][] m_Order;
+
+	/** The numeric attributes, their lists follow the list of all rows in a node */
+	protected final int[] m_Numeric;
+
+	/** The list of each attribute in a node, 0 (all rows) for nominal attributes */
+	protected final int[] m_List;
+
+	/**
+	 * Builds the index.
+	 *
+	 * @param data
+	 *            the training set, the class must be nominal and not missing
+	 */
+	public PresortedIndex(Instances data) {
+		m_Data = data;
+		int numRows = data.numInstances();
+		m_Values = new double[data.numAttributes()][numRows];
+		m_Classes = new int[numRows];
+		for (int i = 0; i < numRows; i++) {
+			Instance instance = data.instance(i);
+			for (int j = 0; j < m_Values.length; j++)
+				m_Values[j][i] = instance.value(j);
+			m_Classes[i] = (int) instance.classValue();
+		}
+
+		int numNumeric = 0;
+		for (int j = 0; j < data.numAttributes(); j++)
+			if (j != data.classIndex() && data.attribute(j).isNumeric())
+				numNumeric++;
+		m_Numeric = new int[numNumeric];
+		m_List = new int[data.numAttributes()];
+		m_Order = new int[data.numAttributes()][];
+		for (int j = 0, k = 0; j < data.numAttributes(); j++) {
+			if (j == data.classIndex() || !data.attribute(j).isNumeric())
+				continue;
+			m_Numeric[k] = j;
+			m_List[j] = ++k;
+			m_Order[j] = sort(m_Values[j]);
+		}
+	}
+
+	/**
+	 * Returns the rows sorted by value, missing values last.
+	 */
+	private static int[] sort(double[] values) {
+		int numPresent = 0;
+		for (double value : values)
+			if (!Utils.isMissingValue(value))
+				numPresent++;
+		double[] present = new double[numPresent];
+		int[] rows = new int[numPresent];
+		int[] order = new int[values.length];
+		for (int i = 0, p = 0, m = numPresent; i < values.length; i++) {
+			if (Utils.isMissingValue(values[i])) {
+				order[m++] = i;
+			} else {
+				present[p] = values[i];
+				rows[p++] = i;
+			}
+		}
+		int[] sorted = Utils.sortWithNoMissingValues(present);
+		for (int i = 0; i < numPresent; i++)
+			order[i] = rows[sorted[i]];
+		return order;
+	}
+
+	/**
+	 * The rows of a node and their weights, once in the order of the training set and once sorted by each numeric
+	 * attribute.
+	 */
+	protected static class NodeRows {
+		protected int[][] m_Rows;
+		protected double[][] m_Weights;
+		protected int m_Size;
+
+		protected NodeRows(int numLists, int size) {
+			m_Rows = new int[numLists][size];
+			m_Weights = new double[numLists][size];
+			m_Size = size;
+		}
+	}
+
+	/**
+	 * Returns the rows of a bootstrap sample of the training set, in the order of the training set and sorted by each
+	 * numeric attribute.
+	 *
+	 * @param weights
+	 *            the weight of each row of the training set in the sample, 0 if it is not in the sample
+	 * @param classProbs
+	 *            the array that gets the weight of each class in the sample
+	 * @return the rows of the sample
+	 */
+	protected NodeRows rows(double[] weights, double[] classProbs) {
+		int size = 0;
+		for (double weight : weights)
+			if (weight > 0)
+				size++;
+		NodeRows rows = new NodeRows(m_Numeric.length + 1, size);
+		for (int i = 0, k = 0; i < weights.length; i++) {
+			if (weights[i] > 0) {
+				rows.m_Rows[0][k] = i;
+				rows.m_Weights[0][k++] = weights[i];
+				classProbs[m_Classes[i]] += weights[i];
+			}
+		}
+		for (int l = 1; l <= m_Numeric.length; l++) {
+			int[] order = m_Order[m_Numeric[l - 1]];
+			for (int i = 0, k = 0; i < order.length; i++) {
+				if (weights[order[i]] > 0) {
+					rows.m_Rows[l][k] = order[i];
+					rows.m_Weights[l][k++] = weights[order[i]];
+				}
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Class distribution of the branches of the best split on an attribute, see RandomTree.Tree#distribution.
+	 *
+	 * @param props
+	 *            the array that gets the proportion of each branch
+	 * @param dists
+	 *            the array that gets the class distribution of each branch
+	 * @param att
+	 *            the attribute
+	 * @param rows
+	 *            the rows of the node
+	 * @return the split point, NaN for nominal attributes
+	 */
+	protected double distribution(double[][] props, double[][][] dists, int att, NodeRows rows) {
+		double splitPoint = Double.NaN;
+		int numClasses = m_Data.numClasses();
+		double[] values = m_Values[att];
+		int[] list = rows.m_Rows[m_List[att]];
+		double[] weights = rows.m_Weights[m_List[att]];
+		double[][] dist;
+		int firstMissing = rows.m_Size;
+		if (m_List[att] == 0) {
+			dist = new double[m_Data.attribute(att).numValues()][numClasses];
+			for (int i = 0; i < rows.m_Size; i++) {
+				double value = values[list[i]];
+				if (!Utils.isMissingValue(value))
+					dist[(int) value][m_Classes[list[i]]] += weights[i];
+				else if (firstMissing == rows.m_Size)
+					firstMissing = i;
+			}
+		} else {
+			double[][] currDist = new double[2][numClasses];
+			dist = new double[2][numClasses];
+			for (int i = 0; i < rows.m_Size; i++) {
+				if (Utils.isMissingValue(values[list[i]])) {
+					firstMissing = i;
+					break;
+				}
+				currDist[1][m_Classes[list[i]]] += weights[i];
+			}
+			double priorVal = ContingencyTables.entropyOverColumns(currDist);
+			for (int j = 0; j < currDist.length; j++)
+				System.arraycopy(currDist[j], 0, dist[j], 0, dist[j].length);
+
+			double currSplit = values[list[0]];
+			double bestVal = -Double.MAX_VALUE;
+			for (int i = 0; i < firstMissing; i++) {
+				double attVal = values[list[i]];
+				if (attVal > currSplit) {
+					double currVal = priorVal - ContingencyTables.entropyConditionedOnRows(currDist);
+					if (currVal > bestVal) {
+						bestVal = currVal;
+						splitPoint = (attVal + currSplit) / 2.0;
+						if (splitPoint <= currSplit)
+							splitPoint = attVal;
+						for (int j = 0; j < currDist.length; j++)
+							System.arraycopy(currDist[j], 0, dist[j], 0, dist[j].length);
+					}
+					currSplit = attVal;
+				}
+				int classVal = m_Classes[list[i]];
+				currDist[0][classVal] += weights[i];
+				currDist[1][classVal] -= weights[i];
+			}
+		}
+
+		props[0] = new double[dist.length];
+		for (int j = 0; j < props[0].length; j++)
+			props[0][j] = Utils.sum(dist[j]);
+		if (Utils.eq(Utils.sum(props[0]), 0)) {
+			for (int j = 0; j < props[0].length; j++)
+				props[0][j] = 1.0 / props[0].length;
+		} else {
+			Utils.normalize(props[0]);
+		}
+		for (int i = firstMissing; i < rows.m_Size; i++)
+			if (Utils.isMissingValue(values[list[i]]))
+				for (int j = 0; j < dist.length; j++)
+					dist[j][m_Classes[list[i]]] += props[0][j] * weights[i];
+		dists[0] = dist;
+		return splitPoint;
+	}
+
+	/**
+	 * Splits the rows of a node into the branches, see RandomTree.Tree#splitData. Every list stays in its order.
+	 *
+	 * @param rows
+	 *            the rows of the node, released by the split
+	 * @param att
+	 *            the attribute of the split
+	 * @param splitPoint
+	 *            the split point, NaN for nominal attributes
+	 * @param prop
+	 *            the proportion of each branch
+	 * @return the rows of each branch
+	 */
+	protected NodeRows[] split(NodeRows rows, int att, double splitPoint, double[] prop) {
+		double[] values = m_Values[att];
+		boolean nominal = m_List[att] == 0;
+		int[] sizes = new int[prop.length];
+		for (int i = 0; i < rows.m_Size; i++) {
+			double value = values[rows.m_Rows[0][i]];
+			if (Utils.isMissingValue(value)) {
+				for (int b = 0; b < prop.length; b++)
+					if (prop[b] > 0)
+						sizes[b]++;
+			} else {
+				sizes[nominal ? (int) value : value < splitPoint ? 0 : 1]++;
+			}
+		}
+		int numLists = rows.m_Rows.length;
+		NodeRows[] subsets = new NodeRows[prop.length];
+		for (int b = 0; b < prop.length; b++)
+			subsets[b] = new NodeRows(numLists, sizes[b]);
+		int[] positions = new int[prop.length];
+		for (int l = 0; l < numLists; l++) {
+			int[] list = rows.m_Rows[l];
+			double[] weights = rows.m_Weights[l];
+			Arrays.fill(positions, 0);
+			for (int i = 0; i < rows.m_Size; i++) {
+				double value = values[list[i]];
+				if (Utils.isMissingValue(value)) {
+					for (int b = 0; b < prop.length; b++) {
+						if (prop[b] > 0) {
+							subsets[b].m_Rows[l][positions[b]] = list[i];
+							subsets[b].m_Weights[l][positions[b]++] = prop[b] * weights[i];
+						}
+					}
+				} else {
+					int b = nominal ? (int) value : value < splitPoint ? 0 : 1;
+					subsets[b].m_Rows[l][positions[b]] = list[i];
+					subsets[b].m_Weights[l][positions[b]++] = weights[i];
+				}
+			}
+			// the rows of the parent are not needed any more
+			rows.m_Rows[l] = null;
+			rows.m_Weights[l] = null;
+		}
+		return subsets;
+	}
+}
@@ -0,0 +1,232 @@
+package weka.classifiers.trees;
+
+import java.util.Random;
+
+import weka.core.ContingencyTables;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * <p>
+ * {@link RandomTree} that grows on a bootstrap sample of a {@link PresortedIndex} instead of sorting the numeric
+ * attributes of its training data at every node. {@link PartitionForest} hands each tree its sample with
+ * {@link #setSample(PresortedIndex, double[], int)} before it builds the tree. Without a sample the tree is built like
+ * a {@link RandomTree}.
+ * </p>
+ *
+ * <p>
+ * The tree is grown like {@link RandomTree#buildClassifier(Instances)} grows it on the sample: the same random attribute
+ * choices, split points, class distributions and stopping rules for nominal classes. With integer weights, i.e.
+ * bootstrap counts without missing values, the trees are identical. Missing values are distributed over the branches
+ * like in {@link RandomTree}, only the order in which their fractional weights are summed may differ. Backfitting and
+ * numeric classes are not supported on a sample.
+ * </p>
+ *
+ * <p>
+ * Weka loads packages in a class loader of their own, so this class is not in the runtime package of
+ * {@link RandomTree}. The tree therefore only sets the protected fields of itself and of its own {@link PresortedTree}
+ * nodes, and reads its options through their getters.
+ * </p>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class PresortedRandomTree extends RandomTree {
+
+	/** for serialization */
+	private static final long serialVersionUID = -2398712340987123459L;
+
+	/** The index of the sample, null if the tree is built on its training data */
+	protected transient PresortedIndex m_Index;
+
+	/** The weight of each row of the index in the sample */
+	protected transient double[] m_Weights;
+
+	/** The row of the index at which {@link Instances#getRandomNumberGenerator(long)} draws the seed of the tree */
+	protected transient int m_SeedRow;
+
+	/**
+	 * Creates a tree with the options of another tree.
+	 *
+	 * @param tree
+	 *            the tree to take the options from
+	 * @return the new tree
+	 * @throws Exception
+	 *             if the options cannot be set
+	 */
+	public static PresortedRandomTree withOptionsOf(RandomTree tree) throws Exception {
+		PresortedRandomTree result = new PresortedRandomTree();
+		result.setOptions(tree.getOptions());
+		result.setComputeImpurityDecreases(tree.getComputeImpurityDecreases());
+		return result;
+	}
+
+	/**
+	 * Sets the bootstrap sample the tree is grown on by the next {@link #buildClassifier(Instances)}.
+	 *
+	 * @param index
+	 *            the presorted training set, its class must be nominal and not missing
+	 * @param weights
+	 *            the weight of each row of the index in the sample, 0 if it is not in the sample
+	 * @param seedRow
+	 *            the row of the index at which {@link Instances#getRandomNumberGenerator(long)} draws the seed of the
+	 *            tree from the sample
+	 */
+	public void setSample(PresortedIndex index, double[] weights, int seedRow) {
+		m_Index = index;
+		m_Weights = weights;
+		m_SeedRow = seedRow;
+	}
+
+	/**
+	 * Grows the tree on the sample set by {@link #setSample(PresortedIndex, double[], int)}, or builds it on the given
+	 * data if there is none.
+	 *
+	 * @param data
+	 *            the training data, ignored if a sample is set
+	 * @throws Exception
+	 *             if the tree cannot be built
+	 */
+	@Override
+	public void buildClassifier(Instances data) throws Exception {
+		if (m_Index == null) {
+			super.buildClassifier(data);
+			return;
+		}
+		try {
+			buildOnSample();
+		} finally {
+			m_Index = null;
+			m_Weights = null;
+		}
+	}
+
+	/**
+	 * Grows the tree on the sample, see {@link RandomTree#buildClassifier(Instances)}.
+	 */
+	private void buildOnSample() throws Exception {
+		Instances header = m_Index.m_Data;
+		int numAttributes = header.numAttributes();
+		if (m_computeImpurityDecreases)
+			m_impurityDecreasees = new double[numAttributes][2];
+		if (m_KValue > numAttributes - 1)
+			m_KValue = numAttributes - 1;
+		if (m_KValue < 1)
+			m_KValue = (int) Utils.log2(numAttributes - 1) + 1;
+		m_zeroR = null;
+
+		Random random = new Random();
+		random.setSeed(header.instance(m_SeedRow).toStringNoWeight().hashCode() + (long) m_randomSeed);
+
+		int[] window = new int[numAttributes - 1];
+		for (int i = 0, j = 0; i < window.length; i++, j++) {
+			if (j == header.classIndex())
+				j++;
+			window[i] = j;
+		}
+
+		double[] classProbs = new double[header.numClasses()];
+		PresortedIndex.NodeRows rows = m_Index.rows(m_Weights, classProbs);
+		PresortedTree root = new PresortedTree();
+		root.grow(m_Index, rows, classProbs, window, random, 0);
+		m_Info = new Instances(header, 0);
+		m_Tree = root;
+	}
+
+	/**
+	 * A node grown on the rows of a {@link PresortedIndex}.
+	 */
+	protected class PresortedTree extends Tree {
+
+		/** for serialization */
+		private static final long serialVersionUID = 6125987340981237649L;
+
+		/**
+		 * Grows the node, see RandomTree.Tree#buildTree.
+		 *
+		 * @param index
+		 *            the presorted training set
+		 * @param rows
+		 *            the rows of the node, released while the node grows
+		 * @param classProbs
+		 *            the weight of each class in the node
+		 * @param window
+		 *            the attributes to choose from
+		 * @param random
+		 *            the random number generator of the tree
+		 * @param depth
+		 *            the depth of the node
+		 * @throws Exception
+		 *             if the node cannot be grown
+		 */
+		protected void grow(PresortedIndex index, PresortedIndex.NodeRows rows, double[] classProbs, int[] window,
+				Random random, int depth) throws Exception {
+			if (rows.m_Size == 0)
+				return;
+			double totalWeight = Utils.sum(classProbs);
+			int maxDepth = getMaxDepth();
+			if (totalWeight < 2 * getMinNum() || Utils.eq(classProbs[Utils.maxIndex(classProbs)], totalWeight)
+					|| maxDepth > 0 && depth >= maxDepth) {
+				m_ClassDistribution = classProbs.clone();
+				return;
+			}
+
+			double val = -Double.MAX_VALUE;
+			double split = -Double.MAX_VALUE;
+			double[][] bestDists = null;
+			double[] bestProps = null;
+			int bestIndex = 0;
+			double[][] props = new double[1][0];
+			double[][][] dists = new double[1][0][0];
+			int windowSize = window.length;
+			int k = getKValue();
+			boolean gainFound = false;
+			while (windowSize > 0 && (k-- > 0 || !gainFound)) {
+				int chosenIndex = random.nextInt(windowSize);
+				int attIndex = window[chosenIndex];
+				window[chosenIndex] = window[windowSize - 1];
+				window[windowSize - 1] = attIndex;
+				windowSize--;
+
+				double currSplit = index.distribution(props, dists, attIndex, rows);
+				double currVal = ContingencyTables.entropyOverColumns(dists[0])
+						- ContingencyTables.entropyConditionedOnRows(dists[0]);
+				if (Utils.gr(currVal, 0))
+					gainFound = true;
+				if (currVal > val || !getBreakTiesRandomly() && currVal == val && attIndex < bestIndex) {
+					val = currVal;
+					bestIndex = attIndex;
+					split = currSplit;
+					bestProps = props[0];
+					bestDists = dists[0];
+				}
+			}
+
+			if (!Utils.gr(val, 0)) {
+				m_ClassDistribution = classProbs.clone();
+				return;
+			}
+			if (getComputeImpurityDecreases()) {
+				double[][] impurityDecreases = getImpurityDecreases();
+				impurityDecreases[bestIndex][0] += val;
+				impurityDecreases[bestIndex][1]++;
+			}
+			m_Attribute = bestIndex;
+			m_SplitPoint = split;
+			m_Prop = bestProps;
+			PresortedIndex.NodeRows[] subsets = index.split(rows, bestIndex, split, bestProps);
+			m_Successors = new Tree[bestDists.length];
+			boolean emptySuccessor = false;
+			for (int i = 0; i < bestDists.length; i++) {
+				PresortedIndex.NodeRows subset = subsets[i];
+				subsets[i] = null;
+				PresortedTree successor = new PresortedTree();
+				successor.grow(index, subset, bestDists[i], window, random, depth + 1);
+				m_Successors[i] = successor;
+				emptySuccessor |= successor.m_ClassDistribution == null;
+			}
+			if (emptySuccessor)
+				m_ClassDistribution = classProbs.clone();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package weka.core;
+
+/**
+ * <p>
+ * Numeric kernels of the inner loops of hyperSMURF: the squared distance of the neighbour search of the minority
+ * oversampling and the threshold comparison of the batch scoring of the trees.
+ * </p>
+ *
+ * <p>
+ * This class is the scalar implementation for Java 8. The multi-release jar contains a subclass for Java 17 and
+ * higher in <code>META-INF/versions/17</code> that uses the Vector API. {@link #getInstance()} returns it if it can be
+ * loaded, i.e. on Java 17 or higher started with <code>--add-modules jdk.incubator.vector</code>, and this class
+ * otherwise. Both give bit for bit the same results, so a model does not depend on the JVM it is built on.
+ * </p>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class VectorKernels {
+
+	/** Name of the Vector API implementation in the multi-release jar */
+	protected static final String VECTOR_IMPLEMENTATION = "weka.core.SIMDVectorKernels";
+
+	/** The best implementation available */
+	private static final VectorKernels INSTANCE = load();
+
+	/**
+	 * Use {@link #getInstance()}.
+	 */
+	protected VectorKernels() {
+	}
+
+	/**
+	 * Returns the best implementation available in this JVM.
+	 *
+	 * @return the kernels
+	 */
+	public static VectorKernels getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Loads the Vector API implementation, the scalar one if it is not in the jar or the module is missing.
+	 */
+	private static VectorKernels load() {
+		try {
+			return (VectorKernels) Class.forName(VECTOR_IMPLEMENTATION).newInstance();
+		} catch (Exception | LinkageError e) {
+			return new VectorKernels();
+		}
+	}
+
+	/**
+	 * Whether the kernels use the Vector API.
+	 *
+	 * @return false for the scalar implementation
+	 */
+	public boolean isVectorized() {
+		return false;
+	}
+
+	/**
+	 * Squared Euclidean distance of two vectors. Coordinates where one of the vectors is missing (NaN) are ignored.
+	 *
+	 * @param a
+	 *            the first vector
+	 * @param b
+	 *            the second vector
+	 * @param length
+	 *            the number of coordinates
+	 * @return the squared distance
+	 */
+	public double squaredDistance(double[] a, double[] b, int length) {
+		double sum = 0;
+		for (int i = 0; i < length; i++) {
+			double diff = a[i] - b[i];
+			if (!Double.isNaN(diff))
+				sum += diff * diff;
+		}
+		return sum;
+	}
+
+	/**
+	 * Compares a block of values with a threshold. Missing values (NaN) are not less than any threshold.
+	 *
+	 * @param values
+	 *            the values
+	 * @param length
+	 *            the number of values
+	 * @param threshold
+	 *            the threshold
+	 * @param less
+	 *            set to true where the value is less than the threshold, false otherwise
+	 * @return the number of values less than the threshold
+	 */
+	public int lessThan(double[] values, int length, double threshold, boolean[] less) {
+		int count = 0;
+		for (int i = 0; i < length; i++) {
+			less[i] = values[i] < threshold;
+			if (less[i])
+				count++;
+		}
+		return count;
+	}
+
+}
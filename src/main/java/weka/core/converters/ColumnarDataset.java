@@ -0,0 +1,636 @@
+package weka.core.converters;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * <p>
+ * Read access to a binary columnar data set file, as written by {@link ColumnarSaver}. The columns of a file are
+ * memory-mapped, so instances are built directly from the stored values without parsing text and without reading the
+ * whole file onto the heap.
+ * </p>
+ *
+ * <p>
+ * Layout of a file (big-endian):
+ * </p>
+ *
+ * <pre>
+ *  magic "HSMC", format version (int)
+ *  length of the header (int), ARFF header (UTF-8)
+ *  class index (int, -1 if not set), number of rows (int), number of columns (int)
+ *  type of each column (byte): 0 = float64, 1 = float32, 2 = int32 (nominal values, -1 is missing)
+ *  padding to a multiple of 8 bytes
+ *  the columns, each padded to a multiple of 8 bytes
+ * </pre>
+ *
+ * <p>
+ * Numeric and date attributes are stored as float64, numeric attributes optionally as float32. Missing numeric values
+ * are NaN. String and relational attributes are not supported.
+ * </p>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class ColumnarDataset implements Closeable {
+
+	/** The file extension of columnar data sets */
+	public static final String FILE_EXTENSION = ".hsc";
+
+	/** The magic bytes at the start of a file */
+	protected static final byte[] MAGIC = { 'H', 'S', 'M', 'C' };
+
+	/** The version of the format */
+	protected static final int VERSION = 1;
+
+	/** Column type of 64 bit floating point values */
+	public static final byte TYPE_FLOAT64 = 0;
+
+	/** Column type of 32 bit floating point values */
+	public static final byte TYPE_FLOAT32 = 1;
+
+	/** Column type of 32 bit integer values */
+	public static final byte TYPE_INT32 = 2;
+
+	/** The header of the data set */
+	protected Instances m_Structure;
+
+	/** The number of rows */
+	protected int m_NumRows;
+
+	/** The type of each column */
+	protected byte[] m_Types;
+
+	/** The values of each column */
+	protected ByteBuffer[] m_Columns;
+
+	/** The mapped file, null if the data set was read from a buffer */
+	protected RandomAccessFile m_File;
+
+	/** The temporary file of an allocated data set, deleted on close */
+	protected File m_TempFile;
+
+	/**
+	 * Memory-maps a columnar data set file.
+	 *
+	 * @param file
+	 *            the file
+	 * @return the data set
+	 * @throws IOException
+	 *             if the file cannot be read or is not a columnar data set
+	 */
+	public static ColumnarDataset open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ColumnarDataset dataset = new ColumnarDataset();
+			long offset = dataset.readHeader(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					Math.min(channel.size(), Integer.MAX_VALUE)));
+			dataset.m_Columns = new ByteBuffer[dataset.m_Types.length];
+			for (int i = 0; i < dataset.m_Types.length; i++) {
+				long size = columnSize(dataset.m_Types[i], dataset.m_NumRows);
+				if (offset + size > channel.size())
+					throw new IOException("Columnar data set is truncated: " + file);
+				if (size > Integer.MAX_VALUE)
+					throw new IOException("Column " + i + " is larger than 2GB: " + file);
+				dataset.m_Columns[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+				offset += size;
+			}
+			dataset.m_File = raf;
+			return dataset;
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads a columnar data set from a buffer holding a whole file.
+	 *
+	 * @param buffer
+	 *            the buffer
+	 * @return the data set
+	 * @throws IOException
+	 *             if the buffer does not hold a columnar data set
+	 */
+	public static ColumnarDataset wrap(ByteBuffer buffer) throws IOException {
+		ColumnarDataset dataset = new ColumnarDataset();
+		long offset = dataset.readHeader(buffer.duplicate());
+		dataset.m_Columns = new ByteBuffer[dataset.m_Types.length];
+		for (int i = 0; i < dataset.m_Types.length; i++) {
+			long size = columnSize(dataset.m_Types[i], dataset.m_NumRows);
+			if (offset + size > buffer.limit())
+				throw new IOException("Columnar data set is truncated");
+			ByteBuffer column = buffer.duplicate();
+			column.position((int) offset);
+			column.limit((int) (offset + size));
+			dataset.m_Columns[i] = column.slice();
+			offset += size;
+		}
+		return dataset;
+	}
+
+	/**
+	 * Allocates a writable data set outside of the Java heap, either in direct buffers or in a temporary memory-mapped
+	 * file that is deleted on {@link #close()}. All values are 0 until they are set. Numeric and date values are
+	 * stored as float64, so the values read back are exactly the values set. The data set only lives in memory, it is
+	 * not a columnar data set file.
+	 *
+	 * @param structure
+	 *            the header of the data set
+	 * @param numRows
+	 *            the number of rows
+	 * @param mapped
+	 *            true for a temporary memory-mapped file, false for direct buffers
+	 * @return the data set
+	 * @throws IOException
+	 *             if an attribute cannot be stored or the temporary file cannot be created
+	 */
+	public static ColumnarDataset allocate(Instances structure, int numRows, boolean mapped) throws IOException {
+		return allocate(structure, numRows, mapped, false);
+	}
+
+	/**
+	 * Allocates a writable data set outside of the Java heap, see {@link #allocate(Instances, int, boolean)}.
+	 *
+	 * @param structure
+	 *            the header of the data set
+	 * @param numRows
+	 *            the number of rows
+	 * @param mapped
+	 *            true for a temporary memory-mapped file, false for direct buffers
+	 * @param float32
+	 *            true if numeric values are stored as float32
+	 * @return the data set
+	 * @throws IOException
+	 *             if an attribute cannot be stored or the temporary file cannot be created
+	 */
+	public static ColumnarDataset allocate(Instances structure, int numRows, boolean mapped, boolean float32)
+			throws IOException {
+		ColumnarDataset dataset = new ColumnarDataset();
+		dataset.m_Structure = new Instances(structure, 0);
+		dataset.m_NumRows = numRows;
+		dataset.m_Types = columnTypes(structure, float32);
+		dataset.m_Columns = new ByteBuffer[dataset.m_Types.length];
+		long total = 0;
+		for (byte type : dataset.m_Types) {
+			if (columnSize(type, numRows) > Integer.MAX_VALUE)
+				throw new IOException("Columns larger than 2GB are not supported");
+			total += columnSize(type, numRows);
+		}
+		if (!mapped) {
+			for (int i = 0; i < dataset.m_Types.length; i++)
+				dataset.m_Columns[i] = ByteBuffer.allocateDirect((int) columnSize(dataset.m_Types[i], numRows));
+			return dataset;
+		}
+		dataset.m_TempFile = File.createTempFile("columns-", FILE_EXTENSION);
+		dataset.m_TempFile.deleteOnExit();
+		try {
+			dataset.m_File = new RandomAccessFile(dataset.m_TempFile, "rw");
+			dataset.m_File.setLength(total);
+			FileChannel channel = dataset.m_File.getChannel();
+			long offset = 0;
+			for (int i = 0; i < dataset.m_Types.length; i++) {
+				long size = columnSize(dataset.m_Types[i], numRows);
+				dataset.m_Columns[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset, size);
+				offset += size;
+			}
+		} catch (IOException e) {
+			dataset.close();
+			throw e;
+		}
+		return dataset;
+	}
+
+	/**
+	 * Reads the header and returns the offset of the first column.
+	 */
+	private long readHeader(ByteBuffer buffer) throws IOException {
+		byte[] magic = new byte[MAGIC.length];
+		buffer.get(magic);
+		for (int i = 0; i < MAGIC.length; i++)
+			if (magic[i] != MAGIC[i])
+				throw new IOException("Not a columnar data set");
+		int version = buffer.getInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported columnar data set version " + version);
+		byte[] header = new byte[buffer.getInt()];
+		buffer.get(header);
+		m_Structure = new Instances(new StringReader(new String(header, StandardCharsets.UTF_8)));
+		int classIndex = buffer.getInt();
+		m_NumRows = buffer.getInt();
+		m_Types = new byte[buffer.getInt()];
+		buffer.get(m_Types);
+		if (m_Types.length != m_Structure.numAttributes())
+			throw new IOException("Number of columns does not match the header");
+		m_Structure.setClassIndex(classIndex);
+		return pad(buffer.position());
+	}
+
+	/**
+	 * Writes the header of a data set.
+	 *
+	 * @param out
+	 *            the output, positioned at the start of the file
+	 * @param structure
+	 *            the header of the data set
+	 * @param numRows
+	 *            the number of rows
+	 * @param types
+	 *            the types of the columns
+	 * @throws IOException
+	 *             if the header cannot be written
+	 */
+	protected static void writeHeader(DataOutputStream out, Instances structure, int numRows, byte[] types)
+			throws IOException {
+		byte[] header = new Instances(structure, 0).toString().getBytes(StandardCharsets.UTF_8);
+		out.write(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(header.length);
+		out.write(header);
+		out.writeInt(structure.classIndex());
+		out.writeInt(numRows);
+		out.writeInt(types.length);
+		out.write(types);
+		writePadding(out, MAGIC.length + 4 + 4 + header.length + 4 + 4 + 4 + types.length);
+	}
+
+	/**
+	 * Writes zeros up to the next multiple of 8 bytes.
+	 *
+	 * @param out
+	 *            the output
+	 * @param written
+	 *            the number of bytes written so far
+	 * @throws IOException
+	 *             if the padding cannot be written
+	 */
+	protected static void writePadding(DataOutputStream out, long written) throws IOException {
+		for (long i = written; i < pad(written); i++)
+			out.write(0);
+	}
+
+	/**
+	 * Returns the column types for a header.
+	 *
+	 * @param structure
+	 *            the header
+	 * @param float32
+	 *            true if numeric columns are stored as float32
+	 * @return the types
+	 * @throws IOException
+	 *             if an attribute cannot be stored
+	 */
+	protected static byte[] columnTypes(Instances structure, boolean float32) throws IOException {
+		byte[] types = new byte[structure.numAttributes()];
+		for (int i = 0; i < types.length; i++) {
+			Attribute attribute = structure.attribute(i);
+			if (attribute.isNominal())
+				types[i] = TYPE_INT32;
+			else if (attribute.isDate())
+				types[i] = TYPE_FLOAT64;
+			else if (attribute.isNumeric())
+				types[i] = float32 ? TYPE_FLOAT32 : TYPE_FLOAT64;
+			else
+				throw new IOException("Attribute type of " + attribute.name() + " is not supported");
+		}
+		return types;
+	}
+
+	/**
+	 * Number of bytes of a column including padding.
+	 *
+	 * @param type
+	 *            the type of the column
+	 * @param numRows
+	 *            the number of rows
+	 * @return the size in bytes
+	 */
+	protected static long columnSize(byte type, int numRows) {
+		return pad((long) numRows * (type == TYPE_FLOAT64 ? 8 : 4));
+	}
+
+	private static long pad(long size) {
+		return (size + 7) / 8 * 8;
+	}
+
+	/**
+	 * Writes a value to a column.
+	 *
+	 * @param out
+	 *            the output
+	 * @param type
+	 *            the type of the column
+	 * @param value
+	 *            the value
+	 * @throws IOException
+	 *             if the value cannot be written
+	 */
+	protected static void writeValue(DataOutputStream out, byte type, double value) throws IOException {
+		switch (type) {
+		case TYPE_FLOAT64:
+			out.writeDouble(value);
+			break;
+		case TYPE_FLOAT32:
+			out.writeFloat((float) value);
+			break;
+		default:
+			out.writeInt(Utils.isMissingValue(value) ? -1 : (int) value);
+		}
+	}
+
+	/**
+	 * Returns the header of the data set, with the class index set.
+	 *
+	 * @return the header
+	 */
+	public Instances getStructure() {
+		return new Instances(m_Structure, 0);
+	}
+
+	/**
+	 * Returns the number of instances.
+	 *
+	 * @return the number of instances
+	 */
+	public int numInstances() {
+		return m_NumRows;
+	}
+
+	/**
+	 * Returns the number of attributes.
+	 *
+	 * @return the number of attributes
+	 */
+	public int numAttributes() {
+		return m_Types.length;
+	}
+
+	/**
+	 * Returns the type of a column.
+	 *
+	 * @param attribute
+	 *            the index of the attribute
+	 * @return the type
+	 */
+	public byte getType(int attribute) {
+		return m_Types[attribute];
+	}
+
+	/**
+	 * Returns a value. Missing values are {@link Utils#missingValue()}.
+	 *
+	 * @param row
+	 *            the row
+	 * @param attribute
+	 *            the index of the attribute
+	 * @return the value
+	 */
+	public double value(int row, int attribute) {
+		switch (m_Types[attribute]) {
+		case TYPE_FLOAT64:
+			return m_Columns[attribute].getDouble(row * 8);
+		case TYPE_FLOAT32:
+			return m_Columns[attribute].getFloat(row * 4);
+		default:
+			int value = m_Columns[attribute].getInt(row * 4);
+			return value < 0 ? Utils.missingValue() : value;
+		}
+	}
+
+	/**
+	 * Sets a value of a data set created by {@link #allocate(Instances, int, boolean)}. Rows must not be written while
+	 * they are read by another thread.
+	 *
+	 * @param row
+	 *            the row
+	 * @param attribute
+	 *            the index of the attribute
+	 * @param value
+	 *            the value, {@link Utils#missingValue()} for a missing value
+	 */
+	public void setValue(int row, int attribute, double value) {
+		switch (m_Types[attribute]) {
+		case TYPE_FLOAT64:
+			m_Columns[attribute].putDouble(row * 8, value);
+			break;
+		case TYPE_FLOAT32:
+			m_Columns[attribute].putFloat(row * 4, (float) value);
+			break;
+		default:
+			m_Columns[attribute].putInt(row * 4, Utils.isMissingValue(value) ? -1 : (int) value);
+		}
+	}
+
+	/**
+	 * Sets the values of a row of a data set created by {@link #allocate(Instances, int, boolean)} to the values of
+	 * an instance. Only the stored values of a sparse instance are written, the row must not have been set before.
+	 *
+	 * @param row
+	 *            the row
+	 * @param instance
+	 *            the instance
+	 */
+	public void set(int row, Instance instance) {
+		for (int i = 0; i < instance.numValues(); i++)
+			setValue(row, instance.index(i), instance.valueSparse(i));
+	}
+
+	/**
+	 * Sets a whole column of a data set created by {@link #allocate(Instances, int, boolean, boolean)} to a range of
+	 * an array, e.g. a column of a column-major matrix. Float64 columns are copied in bulk.
+	 *
+	 * @param attribute
+	 *            the index of the attribute
+	 * @param values
+	 *            the values, {@link Utils#missingValue()} for missing values
+	 * @param offset
+	 *            the index of the value of the first row
+	 */
+	public void setColumn(int attribute, double[] values, int offset) {
+		if (m_Types[attribute] == TYPE_FLOAT64) {
+			ByteBuffer column = m_Columns[attribute].duplicate();
+			column.asDoubleBuffer().put(values, offset, m_NumRows);
+			return;
+		}
+		for (int row = 0; row < m_NumRows; row++)
+			setValue(row, attribute, values[offset + row]);
+	}
+
+	/**
+	 * Sets a whole column of a data set created by {@link #allocate(Instances, int, boolean, boolean)} to a range of
+	 * an array. Float32 columns are copied in bulk.
+	 *
+	 * @param attribute
+	 *            the index of the attribute
+	 * @param values
+	 *            the values, NaN for missing values
+	 * @param offset
+	 *            the index of the value of the first row
+	 */
+	public void setColumn(int attribute, float[] values, int offset) {
+		if (m_Types[attribute] == TYPE_FLOAT32) {
+			ByteBuffer column = m_Columns[attribute].duplicate();
+			column.asFloatBuffer().put(values, offset, m_NumRows);
+			return;
+		}
+		for (int row = 0; row < m_NumRows; row++)
+			setValue(row, attribute, values[offset + row]);
+	}
+
+	/**
+	 * Sets a whole column of a data set created by {@link #allocate(Instances, int, boolean, boolean)} to a range of
+	 * an array, e.g. the value indices of a nominal attribute. Int32 columns are copied in bulk.
+	 *
+	 * @param attribute
+	 *            the index of the attribute
+	 * @param values
+	 *            the values, -1 for missing values
+	 * @param offset
+	 *            the index of the value of the first row
+	 */
+	public void setColumn(int attribute, int[] values, int offset) {
+		if (m_Types[attribute] == TYPE_INT32) {
+			ByteBuffer column = m_Columns[attribute].duplicate();
+			column.asIntBuffer().put(values, offset, m_NumRows);
+			return;
+		}
+		for (int row = 0; row < m_NumRows; row++)
+			setValue(row, attribute, values[offset + row] < 0 ? Utils.missingValue() : values[offset + row]);
+	}
+
+	/**
+	 * Copies a range of a column into an array. Missing values are {@link Utils#missingValue()}.
+	 *
+	 * @param attribute
+	 *            the index of the attribute
+	 * @param from
+	 *            the first row
+	 * @param to
+	 *            the row after the last row
+	 * @param values
+	 *            the array, at least as long as the range
+	 */
+	public void column(int attribute, int from, int to, double[] values) {
+		ByteBuffer column = m_Columns[attribute].duplicate();
+		switch (m_Types[attribute]) {
+		case TYPE_FLOAT64:
+			column.position(from * 8);
+			column.asDoubleBuffer().get(values, 0, to - from);
+			break;
+		case TYPE_FLOAT32:
+			float[] floats = new float[to - from];
+			column.position(from * 4);
+			column.asFloatBuffer().get(floats);
+			for (int i = 0; i < floats.length; i++)
+				values[i] = floats[i];
+			break;
+		default:
+			int[] ints = new int[to - from];
+			column.position(from * 4);
+			column.asIntBuffer().get(ints);
+			for (int i = 0; i < ints.length; i++)
+				values[i] = ints[i] < 0 ? Utils.missingValue() : ints[i];
+		}
+	}
+
+	/**
+	 * Returns an instance. Its dataset is the header of this data set.
+	 *
+	 * @param row
+	 *            the row
+	 * @return the instance
+	 */
+	public Instance instance(int row) {
+		double[] values = new double[m_Types.length];
+		for (int i = 0; i < values.length; i++)
+			values[i] = value(row, i);
+		Instance instance = new DenseInstance(1.0, values);
+		instance.setDataset(m_Structure);
+		return instance;
+	}
+
+	/**
+	 * Returns the instances of a range of rows, e.g. a batch for scoring.
+	 *
+	 * @param from
+	 *            the first row
+	 * @param to
+	 *            the row after the last row
+	 * @return the instances
+	 */
+	public Instances getInstances(int from, int to) {
+		double[][] values = new double[to - from][m_Types.length];
+		// column by column to read the mapped file sequentially
+		double[] column = new double[to - from];
+		for (int i = 0; i < m_Types.length; i++) {
+			column(i, from, to, column);
+			for (int row = 0; row < column.length; row++)
+				values[row][i] = column[row];
+		}
+		return toInstances(values);
+	}
+
+	/**
+	 * Returns the instances of a range of an array of rows, e.g. the rows of one class.
+	 *
+	 * @param rows
+	 *            the rows, ascending rows are read sequentially
+	 * @param from
+	 *            the first index into the rows
+	 * @param to
+	 *            the index after the last index into the rows
+	 * @return the instances in the order of the rows
+	 */
+	public Instances getInstances(int[] rows, int from, int to) {
+		double[][] values = new double[to - from][m_Types.length];
+		for (int i = 0; i < m_Types.length; i++)
+			for (int row = from; row < to; row++)
+				values[row - from][i] = value(rows[row], i);
+		return toInstances(values);
+	}
+
+	private Instances toInstances(double[][] values) {
+		Instances instances = new Instances(m_Structure, values.length);
+		for (double[] row : values)
+			instances.add(new DenseInstance(1.0, row));
+		return instances;
+	}
+
+	/**
+	 * Returns all instances.
+	 *
+	 * @return the instances
+	 */
+	public Instances getInstances() {
+		return getInstances(0, m_NumRows);
+	}
+
+	/**
+	 * Releases the file. Mapped columns stay valid until they are garbage collected. The temporary file of an
+	 * allocated data set is deleted.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be closed
+	 */
+	@Override
+	public void close() throws IOException {
+		if (m_File != null)
+			m_File.close();
+		if (m_TempFile != null)
+			m_TempFile.delete();
+	}
+
+}
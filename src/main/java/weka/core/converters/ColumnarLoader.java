@@ -0,0 +1,162 @@
+package weka.core.converters;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import weka.core.Environment;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionUtils;
+
+/**
+ * <p>
+ * Reads a binary columnar data set file written by {@link ColumnarSaver}. Files are memory-mapped, see
+ * {@link ColumnarDataset}; other sources are read onto the heap.
+ * </p>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class ColumnarLoader extends AbstractFileLoader implements BatchConverter, IncrementalConverter {
+
+	/** for serialization */
+	private static final long serialVersionUID = -4016442287633530409L;
+
+	/** The data set */
+	protected transient ColumnarDataset m_Dataset = null;
+
+	/** The next row of incremental loading */
+	protected int m_IncrementalIndex = 0;
+
+	/**
+	 * Returns a string describing this loader.
+	 *
+	 * @return a description of the loader suitable for displaying in the explorer/experimenter gui
+	 */
+	public String globalInfo() {
+		return "Reads a binary columnar data set file with extension " + ColumnarDataset.FILE_EXTENSION + ".";
+	}
+
+	@Override
+	public void reset() throws IOException {
+		super.reset();
+		m_IncrementalIndex = 0;
+	}
+
+	@Override
+	public String getFileExtension() {
+		return ColumnarDataset.FILE_EXTENSION;
+	}
+
+	@Override
+	public String[] getFileExtensions() {
+		return new String[] { getFileExtension() };
+	}
+
+	@Override
+	public String getFileDescription() {
+		return "Binary columnar data set";
+	}
+
+	@Override
+	public void setSource(File file) throws IOException {
+		if (file == null)
+			throw new IOException("Source file object is null!");
+		File resolved = file;
+		try {
+			if (m_env == null)
+				m_env = Environment.getSystemWide();
+			resolved = new File(m_env.substitute(file.getPath()));
+		} catch (Exception e) {
+			// use the file name as it is
+		}
+		if (!resolved.isFile()) {
+			// e.g. a resource, read as a stream
+			super.setSource(file);
+			return;
+		}
+		m_structure = null;
+		setRetrieval(NONE);
+		closeDataset();
+		m_Dataset = ColumnarDataset.open(resolved);
+		m_sourceFile = file;
+		m_File = file.getPath();
+	}
+
+	@Override
+	public void setSource(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1 << 16];
+		int read;
+		while ((read = in.read(buffer)) > 0)
+			bytes.write(buffer, 0, read);
+		in.close();
+		closeDataset();
+		m_Dataset = ColumnarDataset.wrap(ByteBuffer.wrap(bytes.toByteArray()));
+	}
+
+	/**
+	 * Returns the memory-mapped data set, e.g. to read batches of instances for scoring.
+	 *
+	 * @return the data set
+	 * @throws IOException
+	 *             if no source has been specified
+	 */
+	public ColumnarDataset getDataset() throws IOException {
+		if (m_Dataset == null)
+			throw new IOException("No source has been specified");
+		return m_Dataset;
+	}
+
+	@Override
+	public Instances getStructure() throws IOException {
+		if (m_structure == null)
+			m_structure = getDataset().getStructure();
+		return new Instances(m_structure, 0);
+	}
+
+	@Override
+	public Instances getDataSet() throws IOException {
+		if (getRetrieval() == INCREMENTAL)
+			throw new IOException("Cannot mix getting instances in both incremental and batch modes");
+		setRetrieval(BATCH);
+		return getDataset().getInstances();
+	}
+
+	@Override
+	public Instance getNextInstance(Instances structure) throws IOException {
+		if (getRetrieval() == BATCH)
+			throw new IOException("Cannot mix getting instances in both incremental and batch modes");
+		setRetrieval(INCREMENTAL);
+		if (m_IncrementalIndex == getDataset().numInstances())
+			return null;
+		Instance instance = getDataset().instance(m_IncrementalIndex++);
+		instance.setDataset(structure);
+		return instance;
+	}
+
+	private void closeDataset() throws IOException {
+		if (m_Dataset != null)
+			m_Dataset.close();
+		m_Dataset = null;
+	}
+
+	@Override
+	public String getRevision() {
+		return RevisionUtils.extract("$Revision: 1 $");
+	}
+
+	/**
+	 * Main method.
+	 *
+	 * @param args
+	 *            should contain the name of an input file.
+	 */
+	public static void main(String[] args) {
+		runFileLoader(new ColumnarLoader(), args);
+	}
+
+}
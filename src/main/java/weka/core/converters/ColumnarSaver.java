@@ -0,0 +1,360 @@
+package weka.core.converters;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Vector;
+
+import weka.core.Capabilities;
+import weka.core.Capabilities.Capability;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Option;
+import weka.core.RevisionUtils;
+import weka.core.Utils;
+import weka.core.converters.ConverterUtils.DataSource;
+
+/**
+ * <p>
+ * Writes instances to a binary columnar data set file, see {@link ColumnarDataset} for the layout. In incremental
+ * mode every column is spooled to a temporary file, so data sets larger than the heap can be converted.
+ * </p>
+ *
+ * <p>
+ * Valid options are:
+ * </p>
+ *
+ * <pre>
+ *  -i &lt;the input file&gt;
+ *  The input file (ARFF, CSV or any other format Weka can read, optionally gzipped).
+ * </pre>
+ *
+ * <pre>
+ *  -o &lt;the output file&gt;
+ *  The output file.
+ * </pre>
+ *
+ * <pre>
+ *  -c &lt;the class index&gt;
+ *  The index of the class attribute, "first" and "last" are accepted as well.
+ *  (default last)
+ * </pre>
+ *
+ * <pre>
+ *  -float
+ *  Store numeric attributes as 32 bit floating point values.
+ * </pre>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class ColumnarSaver extends AbstractFileSaver implements BatchConverter, IncrementalConverter {
+
+	/** for serialization */
+	private static final long serialVersionUID = 6205466217785939245L;
+
+	/** The output */
+	protected transient DataOutputStream m_Output;
+
+	/** Whether numeric attributes are stored as float32 */
+	protected boolean m_Float32 = false;
+
+	/** The column types of an incremental write */
+	protected transient byte[] m_Types;
+
+	/** The spool files of an incremental write */
+	protected transient File[] m_SpoolFiles;
+
+	/** The spooled columns of an incremental write */
+	protected transient DataOutputStream[] m_Spools;
+
+	/** The number of rows of an incremental write */
+	protected int m_NumRows;
+
+	public ColumnarSaver() {
+		resetOptions();
+	}
+
+	/**
+	 * Returns a string describing this saver.
+	 *
+	 * @return a description of the saver suitable for displaying in the explorer/experimenter gui
+	 */
+	public String globalInfo() {
+		return "Writes instances to a binary columnar file with extension " + ColumnarDataset.FILE_EXTENSION
+				+ ", which can be memory-mapped for training and scoring.";
+	}
+
+	@Override
+	public String getFileDescription() {
+		return "Binary columnar data set";
+	}
+
+	@Override
+	public void resetOptions() {
+		super.resetOptions();
+		setFileExtension(ColumnarDataset.FILE_EXTENSION);
+	}
+
+	@Override
+	public Capabilities getCapabilities() {
+		Capabilities result = super.getCapabilities();
+		result.enable(Capability.NOMINAL_ATTRIBUTES);
+		result.enable(Capability.NUMERIC_ATTRIBUTES);
+		result.enable(Capability.DATE_ATTRIBUTES);
+		result.enable(Capability.MISSING_VALUES);
+		result.enable(Capability.NOMINAL_CLASS);
+		result.enable(Capability.NUMERIC_CLASS);
+		result.enable(Capability.DATE_CLASS);
+		result.enable(Capability.MISSING_CLASS_VALUES);
+		result.enable(Capability.NO_CLASS);
+		return result;
+	}
+
+	@Override
+	public Enumeration<Option> listOptions() {
+		Vector<Option> newVector = new Vector<Option>();
+		newVector.addElement(new Option("\tStore numeric attributes as 32 bit floating point values.", "float", 0,
+				"-float"));
+		newVector.addAll(Collections.list(super.listOptions()));
+		return newVector.elements();
+	}
+
+	@Override
+	public void setOptions(String[] options) throws Exception {
+		boolean float32 = Utils.getFlag("float", options);
+		super.setOptions(options);
+		setFloat32(float32);
+	}
+
+	@Override
+	public String[] getOptions() {
+		Vector<String> result = new Vector<String>();
+		if (getFloat32())
+			result.add("-float");
+		Collections.addAll(result, super.getOptions());
+		return result.toArray(new String[result.size()]);
+	}
+
+	/**
+	 * Returns the tip text for this property
+	 *
+	 * @return tip text for this property suitable for displaying in the explorer/experimenter gui
+	 */
+	public String float32TipText() {
+		return "Store numeric attributes as 32 bit floating point values.";
+	}
+
+	/**
+	 * Get whether numeric attributes are stored as float32.
+	 *
+	 * @return true if numeric attributes are stored as float32
+	 */
+	public boolean getFloat32() {
+		return m_Float32;
+	}
+
+	/**
+	 * Set whether numeric attributes are stored as float32.
+	 *
+	 * @param float32
+	 *            true if numeric attributes are stored as float32
+	 */
+	public void setFloat32(boolean float32) {
+		m_Float32 = float32;
+	}
+
+	@Override
+	public void resetWriter() {
+		super.resetWriter();
+		m_Output = null;
+	}
+
+	@Override
+	public void setDestination(OutputStream output) throws IOException {
+		super.setDestination(output);
+		m_Output = new DataOutputStream(new BufferedOutputStream(output));
+	}
+
+	@Override
+	public void writeBatch() throws IOException {
+		if (getRetrieval() == INCREMENTAL)
+			throw new IOException("Batch and incremental saving cannot be mixed.");
+		Instances instances = getInstances();
+		if (instances == null)
+			throw new IOException("No instances to save");
+		if (m_Output == null)
+			throw new IOException("No output file set.");
+		setRetrieval(BATCH);
+		setWriteMode(WRITE);
+
+		byte[] types = ColumnarDataset.columnTypes(instances, m_Float32);
+		ColumnarDataset.writeHeader(m_Output, instances, instances.numInstances(), types);
+		for (int i = 0; i < types.length; i++) {
+			for (Instance instance : instances)
+				ColumnarDataset.writeValue(m_Output, types[i], instance.value(i));
+			writeColumnPadding(m_Output, types[i], instances.numInstances());
+		}
+		m_Output.close();
+
+		setWriteMode(WAIT);
+		resetWriter();
+		setWriteMode(CANCEL);
+	}
+
+	@Override
+	public void writeIncremental(Instance instance) throws IOException {
+		if (getRetrieval() == BATCH || getRetrieval() == NONE)
+			throw new IOException("Batch and incremental saving cannot be mixed.");
+		if (getWriteMode() == WAIT) {
+			if (getInstances() == null) {
+				setWriteMode(CANCEL);
+				if (instance != null)
+					System.err.println("Structure(Header Information) has to be set in advance");
+			} else {
+				setWriteMode(STRUCTURE_READY);
+			}
+		}
+		if (getWriteMode() == CANCEL) {
+			if (m_Output != null)
+				m_Output.close();
+			cancel();
+			return;
+		}
+		if (getWriteMode() == STRUCTURE_READY) {
+			setWriteMode(WRITE);
+			startSpooling();
+		}
+		if (instance != null) {
+			for (int i = 0; i < m_Types.length; i++)
+				ColumnarDataset.writeValue(m_Spools[i], m_Types[i], instance.value(i));
+			m_NumRows++;
+		} else {
+			finishSpooling();
+			resetStructure();
+			resetWriter();
+		}
+	}
+
+	private void startSpooling() throws IOException {
+		if (m_Output == null)
+			throw new IOException("No output file set.");
+		m_Types = ColumnarDataset.columnTypes(getInstances(), m_Float32);
+		m_SpoolFiles = new File[m_Types.length];
+		m_Spools = new DataOutputStream[m_Types.length];
+		m_NumRows = 0;
+		for (int i = 0; i < m_Types.length; i++) {
+			m_SpoolFiles[i] = File.createTempFile("column" + i + "-", ".spool");
+			m_SpoolFiles[i].deleteOnExit();
+			m_Spools[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(m_SpoolFiles[i])));
+		}
+	}
+
+	private void finishSpooling() throws IOException {
+		try {
+			ColumnarDataset.writeHeader(m_Output, getInstances(), m_NumRows, m_Types);
+			byte[] buffer = new byte[1 << 16];
+			for (int i = 0; i < m_Types.length; i++) {
+				m_Spools[i].close();
+				InputStream in = new BufferedInputStream(new FileInputStream(m_SpoolFiles[i]));
+				try {
+					int read;
+					while ((read = in.read(buffer)) > 0)
+						m_Output.write(buffer, 0, read);
+				} finally {
+					in.close();
+				}
+				writeColumnPadding(m_Output, m_Types[i], m_NumRows);
+			}
+			m_Output.close();
+		} finally {
+			for (File file : m_SpoolFiles)
+				file.delete();
+			m_Spools = null;
+			m_SpoolFiles = null;
+		}
+	}
+
+	private static void writeColumnPadding(DataOutputStream out, byte type, int numRows) throws IOException {
+		ColumnarDataset.writePadding(out, (long) numRows * (type == ColumnarDataset.TYPE_FLOAT64 ? 8 : 4));
+	}
+
+	@Override
+	public String getRevision() {
+		return RevisionUtils.extract("$Revision: 1 $");
+	}
+
+	/**
+	 * Converts a data set of any format Weka can read to a columnar data set. ARFF and CSV files are read with a
+	 * {@link ParallelTextLoader}. The input is read incrementally if its loader supports it, so the conversion needs
+	 * little heap.
+	 *
+	 * @param input
+	 *            the input file
+	 * @param output
+	 *            the output file
+	 * @param classIndex
+	 *            the class index, "first", "last" or a 1-based index
+	 * @param float32
+	 *            true if numeric attributes are stored as float32
+	 * @throws Exception
+	 *             if the input cannot be read or the output cannot be written
+	 */
+	public static void convert(String input, File output, String classIndex, boolean float32) throws Exception {
+		DataSource source = ParallelTextLoader.getDataSource(input);
+		Instances structure = source.getStructure();
+		if (classIndex.equalsIgnoreCase("first"))
+			structure.setClassIndex(0);
+		else if (classIndex.equalsIgnoreCase("last"))
+			structure.setClassIndex(structure.numAttributes() - 1);
+		else if (classIndex.length() != 0)
+			structure.setClassIndex(Integer.parseInt(classIndex) - 1);
+
+		ColumnarSaver saver = new ColumnarSaver();
+		saver.setFloat32(float32);
+		saver.setFile(output);
+		if (source.isIncremental()) {
+			saver.setRetrieval(INCREMENTAL);
+			saver.setInstances(structure);
+			while (source.hasMoreElements(structure))
+				saver.writeIncremental(source.nextElement(structure));
+			saver.writeIncremental(null);
+		} else {
+			Instances data = source.getDataSet();
+			data.setClassIndex(structure.classIndex());
+			saver.setInstances(data);
+			saver.writeBatch();
+		}
+	}
+
+	/**
+	 * Main method.
+	 *
+	 * @param args
+	 *            should contain the options of a Saver.
+	 */
+	public static void main(String[] args) {
+		try {
+			String input = Utils.getOption('i', args);
+			String output = Utils.getOption('o', args);
+			String classIndex = Utils.getOption('c', args);
+			boolean float32 = Utils.getFlag("float", args);
+			if (input.length() == 0 || output.length() == 0) {
+				System.err.println(makeOptionStr(new ColumnarSaver()));
+				System.exit(1);
+			}
+			convert(input, new File(output), classIndex.length() == 0 ? "last" : classIndex, float32);
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		}
+	}
+
+}
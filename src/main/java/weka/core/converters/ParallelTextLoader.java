@@ -0,0 +1,1188 @@
+package weka.core.converters;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Environment;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Option;
+import weka.core.OptionHandler;
+import weka.core.Range;
+import weka.core.RevisionUtils;
+import weka.core.SparseInstance;
+import weka.core.Utils;
+import weka.core.converters.ConverterUtils.DataSource;
+
+/**
+ * <p>
+ * Reads large ARFF and CSV files, optionally gzipped, with a pipeline: one thread decompresses the input and cuts it
+ * into chunks of complete lines, the chunks are tokenised and parsed in parallel and the parsed rows are handed out in
+ * the order of the file. Reading is bounded by the decompression as long as there are enough cores for parsing.
+ * </p>
+ *
+ * <p>
+ * ARFF files are read incrementally, so instances can be scored while the file is still being parsed. Numeric,
+ * nominal and date attributes as well as sparse rows and instance weights are supported, string and relational
+ * attributes are not. The first line of a CSV file contains the attribute names, all attributes are numeric except the
+ * nominal ones given by <code>-N</code>, whose labels are collected in the order of their first appearance. CSV files
+ * are therefore read completely before the structure is known.
+ * </p>
+ *
+ * <p>
+ * The loader does not register itself for the file extensions, use {@link #read(String)} or
+ * {@link #getDataSource(String)} instead of {@link DataSource} to read a file with it.
+ * </p>
+ *
+ * <p>
+ * Valid options are:
+ * </p>
+ *
+ * <pre>
+ *  -num-slots &lt;num&gt;
+ *  Number of threads that parse chunks. (default number of cores)
+ * </pre>
+ *
+ * <pre>
+ *  -chunk-size &lt;num&gt;
+ *  Size of the chunks handed to the parsing threads in KB. (default 1024)
+ * </pre>
+ *
+ * <pre>
+ *  -csv
+ *  Read the input as CSV. Set automatically for file names ending with .csv or .csv.gz.
+ * </pre>
+ *
+ * <pre>
+ *  -N &lt;range&gt;
+ *  The range of nominal attributes of a CSV file. (default last)
+ * </pre>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class ParallelTextLoader extends AbstractLoader implements BatchConverter, IncrementalConverter, OptionHandler {
+
+	/** for serialization */
+	private static final long serialVersionUID = 2733839409542102427L;
+
+	/** The number of threads that parse chunks */
+	protected int m_NumExecutionSlots = Runtime.getRuntime().availableProcessors();
+
+	/** The chunk size in KB */
+	protected int m_ChunkSize = 1024;
+
+	/** Whether the input is CSV */
+	protected boolean m_CSV = false;
+
+	/** The nominal attributes of a CSV file */
+	protected Range m_NominalAttributes = new Range("last");
+
+	/** The source file */
+	protected File m_SourceFile = null;
+
+	/** The decompressed input */
+	protected transient InputStream m_Input = null;
+
+	/** The structure */
+	protected transient Instances m_Structure = null;
+
+	/** The bytes read behind the header */
+	protected transient byte[] m_Remainder = null;
+
+	/** The number of header lines */
+	protected transient int m_HeaderLines = 0;
+
+	/** The running pipeline */
+	private transient Pipeline m_Pipeline = null;
+
+	/** The instances of the current chunk during incremental loading */
+	protected transient List<Instance> m_Current = null;
+
+	/** The position in the current chunk during incremental loading */
+	protected transient int m_CurrentIndex = 0;
+
+	/** CSV data read to determine the structure */
+	protected transient Instances m_Data = null;
+
+	/**
+	 * Returns a string describing this loader.
+	 *
+	 * @return a description of the loader suitable for displaying in the explorer/experimenter gui
+	 */
+	public String globalInfo() {
+		return "Reads ARFF and CSV files, optionally gzipped, with one thread decompressing and several threads "
+				+ "parsing chunks of lines in parallel. The order of the instances is kept.";
+	}
+
+	@Override
+	public Enumeration<Option> listOptions() {
+		Vector<Option> newVector = new Vector<Option>();
+		newVector.addElement(new Option("\tNumber of threads that parse chunks.\n\t(default number of cores)",
+				"num-slots", 1, "-num-slots <num>"));
+		newVector.addElement(new Option("\tSize of the chunks handed to the parsing threads in KB.\n\t(default 1024)",
+				"chunk-size", 1, "-chunk-size <num>"));
+		newVector.addElement(new Option(
+				"\tRead the input as CSV. Set automatically for file names ending with .csv or .csv.gz.", "csv", 0,
+				"-csv"));
+		newVector.addElement(new Option("\tThe range of nominal attributes of a CSV file.\n\t(default last)", "N", 1,
+				"-N <range>"));
+		return newVector.elements();
+	}
+
+	@Override
+	public void setOptions(String[] options) throws Exception {
+		String tmpStr = Utils.getOption("num-slots", options);
+		if (tmpStr.length() != 0)
+			setNumExecutionSlots(Integer.parseInt(tmpStr));
+		else
+			setNumExecutionSlots(Runtime.getRuntime().availableProcessors());
+
+		tmpStr = Utils.getOption("chunk-size", options);
+		if (tmpStr.length() != 0)
+			setChunkSize(Integer.parseInt(tmpStr));
+		else
+			setChunkSize(1024);
+
+		setCSV(Utils.getFlag("csv", options));
+
+		tmpStr = Utils.getOption('N', options);
+		setNominalAttributes(tmpStr.length() != 0 ? tmpStr : "last");
+
+		Utils.checkForRemainingOptions(options);
+	}
+
+	@Override
+	public String[] getOptions() {
+		Vector<String> result = new Vector<String>();
+		result.add("-num-slots");
+		result.add("" + getNumExecutionSlots());
+		result.add("-chunk-size");
+		result.add("" + getChunkSize());
+		if (getCSV())
+			result.add("-csv");
+		result.add("-N");
+		result.add(getNominalAttributes());
+		return result.toArray(new String[result.size()]);
+	}
+
+	/**
+	 * Returns the tip text for this property
+	 *
+	 * @return tip text for this property suitable for displaying in the explorer/experimenter gui
+	 */
+	public String numExecutionSlotsTipText() {
+		return "The number of threads that parse chunks of lines.";
+	}
+
+	/**
+	 * Get the number of threads that parse chunks.
+	 *
+	 * @return the number of threads
+	 */
+	public int getNumExecutionSlots() {
+		return m_NumExecutionSlots;
+	}
+
+	/**
+	 * Set the number of threads that parse chunks.
+	 *
+	 * @param numSlots
+	 *            the number of threads
+	 */
+	public void setNumExecutionSlots(int numSlots) {
+		if (numSlots < 1) {
+			System.err.println("Number of execution slots has to be at least 1!");
+			return;
+		}
+		m_NumExecutionSlots = numSlots;
+	}
+
+	/**
+	 * Returns the tip text for this property
+	 *
+	 * @return tip text for this property suitable for displaying in the explorer/experimenter gui
+	 */
+	public String chunkSizeTipText() {
+		return "The size of the chunks handed to the parsing threads in KB.";
+	}
+
+	/**
+	 * Get the chunk size.
+	 *
+	 * @return the chunk size in KB
+	 */
+	public int getChunkSize() {
+		return m_ChunkSize;
+	}
+
+	/**
+	 * Set the chunk size.
+	 *
+	 * @param chunkSize
+	 *            the chunk size in KB
+	 */
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize < 1) {
+			System.err.println("Chunk size has to be at least 1 KB!");
+			return;
+		}
+		m_ChunkSize = chunkSize;
+	}
+
+	/**
+	 * Returns the tip text for this property
+	 *
+	 * @return tip text for this property suitable for displaying in the explorer/experimenter gui
+	 */
+	public String CSVTipText() {
+		return "Read the input as CSV. Set automatically for file names ending with .csv or .csv.gz.";
+	}
+
+	/**
+	 * Get whether the input is read as CSV.
+	 *
+	 * @return true if the input is read as CSV
+	 */
+	public boolean getCSV() {
+		return m_CSV;
+	}
+
+	/**
+	 * Set whether the input is read as CSV.
+	 *
+	 * @param csv
+	 *            true if the input is read as CSV
+	 */
+	public void setCSV(boolean csv) {
+		m_CSV = csv;
+	}
+
+	/**
+	 * Returns the tip text for this property
+	 *
+	 * @return tip text for this property suitable for displaying in the explorer/experimenter gui
+	 */
+	public String nominalAttributesTipText() {
+		return "The range of nominal attributes of a CSV file, e.g. first-3,5,last.";
+	}
+
+	/**
+	 * Get the range of nominal attributes of a CSV file.
+	 *
+	 * @return the range
+	 */
+	public String getNominalAttributes() {
+		return m_NominalAttributes.getRanges();
+	}
+
+	/**
+	 * Set the range of nominal attributes of a CSV file.
+	 *
+	 * @param range
+	 *            the range, e.g. first-3,5,last
+	 */
+	public void setNominalAttributes(String range) {
+		m_NominalAttributes.setRanges(range);
+	}
+
+	@Override
+	public void reset() throws IOException {
+		stopPipeline();
+		if (m_Input != null)
+			m_Input.close();
+		m_Input = null;
+		m_Structure = null;
+		m_Remainder = null;
+		m_Data = null;
+		m_Current = null;
+		m_CurrentIndex = 0;
+		setRetrieval(NONE);
+		if (m_SourceFile != null)
+			setSource(m_SourceFile);
+	}
+
+	@Override
+	public void setSource(File file) throws IOException {
+		if (file == null)
+			throw new IOException("Source file object is null!");
+		File resolved = file;
+		try {
+			resolved = new File(Environment.getSystemWide().substitute(file.getPath()));
+		} catch (Exception e) {
+			// use the file name as it is
+		}
+		String name = resolved.getName().toLowerCase();
+		if (name.endsWith(".gz"))
+			name = name.substring(0, name.length() - 3);
+		if (name.endsWith(CSVLoader.FILE_EXTENSION))
+			setCSV(true);
+		else if (name.endsWith(ArffLoader.FILE_EXTENSION))
+			setCSV(false);
+
+		InputStream in = new FileInputStream(resolved);
+		if (resolved.getName().toLowerCase().endsWith(".gz"))
+			in = new GZIPInputStream(in, 1 << 16);
+		setSource(in);
+		m_SourceFile = file;
+	}
+
+	@Override
+	public void setSource(InputStream in) throws IOException {
+		stopPipeline();
+		if (m_Input != null && m_Input != in)
+			m_Input.close();
+		m_SourceFile = null;
+		m_Input = in instanceof BufferedInputStream || in instanceof GZIPInputStream ? in
+				: new BufferedInputStream(in, 1 << 16);
+		m_Structure = null;
+		m_Remainder = null;
+		m_Data = null;
+		m_Current = null;
+		m_CurrentIndex = 0;
+		setRetrieval(NONE);
+	}
+
+	@Override
+	public Instances getStructure() throws IOException {
+		if (m_Structure == null) {
+			if (m_Input == null)
+				throw new IOException("No source has been specified");
+			if (m_CSV) {
+				m_Data = readCSV();
+				m_Structure = new Instances(m_Data, 0);
+			} else {
+				readHeader();
+			}
+		}
+		return new Instances(m_Structure, 0);
+	}
+
+	@Override
+	public Instances getDataSet() throws IOException {
+		if (getRetrieval() == INCREMENTAL)
+			throw new IOException("Cannot mix getting instances in both incremental and batch modes");
+		setRetrieval(BATCH);
+		Instances structure = getStructure();
+		if (m_CSV) {
+			Instances data = m_Data;
+			m_Data = null;
+			return data;
+		}
+		Instances data = new Instances(structure, 1000);
+		startPipeline();
+		List<Instance> chunk;
+		while ((chunk = m_Pipeline.next()) != null)
+			for (Instance instance : chunk)
+				data.add(instance);
+		stopPipeline();
+		data.compactify();
+		return data;
+	}
+
+	@Override
+	public Instance getNextInstance(Instances structure) throws IOException {
+		if (getRetrieval() == BATCH)
+			throw new IOException("Cannot mix getting instances in both incremental and batch modes");
+		setRetrieval(INCREMENTAL);
+		getStructure();
+		if (m_CSV) {
+			if (m_Data == null || m_CurrentIndex == m_Data.numInstances()) {
+				m_Data = null;
+				return null;
+			}
+			Instance instance = m_Data.instance(m_CurrentIndex++);
+			instance.setDataset(structure);
+			return instance;
+		}
+		if (m_Pipeline == null) {
+			// the end has already been reached
+			if (m_Input == null)
+				return null;
+			startPipeline();
+		}
+		while (m_Current == null || m_CurrentIndex == m_Current.size()) {
+			m_Current = m_Pipeline.next();
+			m_CurrentIndex = 0;
+			if (m_Current == null) {
+				stopPipeline();
+				return null;
+			}
+		}
+		Instance instance = m_Current.get(m_CurrentIndex++);
+		instance.setDataset(structure);
+		return instance;
+	}
+
+	/**
+	 * Reads the ARFF header up to the <code>@data</code> line. The bytes read behind it are kept for the pipeline.
+	 */
+	private void readHeader() throws IOException {
+		StringBuilder header = new StringBuilder();
+		LineReader reader = new LineReader(m_Input);
+		String line;
+		m_HeaderLines = 0;
+		while ((line = reader.readLine()) != null) {
+			m_HeaderLines++;
+			header.append(line).append('\n');
+			if (line.trim().toLowerCase().startsWith(Instances.ARFF_DATA))
+				break;
+		}
+		if (line == null)
+			throw new IOException("No " + Instances.ARFF_DATA + " line found, is this an ARFF file?");
+		m_Structure = new Instances(new StringReader(header.toString()));
+		for (int i = 0; i < m_Structure.numAttributes(); i++) {
+			Attribute attribute = m_Structure.attribute(i);
+			if (attribute.isString() || attribute.isRelationValued())
+				throw new IOException("Attribute " + attribute.name() + " is of an unsupported type: "
+						+ Attribute.typeToString(attribute) + ", use the ArffLoader instead.");
+		}
+		m_Remainder = reader.remainder();
+	}
+
+	/**
+	 * Reads a complete CSV file. The labels of nominal attributes are collected in the order of their first
+	 * appearance.
+	 */
+	private Instances readCSV() throws IOException {
+		LineReader reader = new LineReader(m_Input);
+		String line;
+		m_HeaderLines = 0;
+		while ((line = reader.readLine()) != null) {
+			m_HeaderLines++;
+			if (line.trim().length() != 0)
+				break;
+		}
+		if (line == null)
+			throw new IOException("The CSV file is empty.");
+		List<String> names = new ArrayList<String>();
+		tokenize(line, 0, line.length(), names);
+		m_NominalAttributes.setUpper(names.size() - 1);
+		boolean[] nominal = new boolean[names.size()];
+		for (int i = 0; i < nominal.length; i++)
+			nominal[i] = m_NominalAttributes.isInRange(i);
+		m_Remainder = reader.remainder();
+
+		List<Map<String, Integer>> indices = new ArrayList<Map<String, Integer>>();
+		List<List<String>> labels = new ArrayList<List<String>>();
+		for (int i = 0; i < nominal.length; i++) {
+			indices.add(nominal[i] ? new HashMap<String, Integer>() : null);
+			labels.add(nominal[i] ? new ArrayList<String>() : null);
+		}
+
+		List<double[]> rows = new ArrayList<double[]>();
+		startPipeline(new CSVParser(nominal));
+		CSVChunk chunk;
+		while ((chunk = (CSVChunk) m_Pipeline.nextChunk()) != null) {
+			// map the labels of the chunk to the labels of the data set
+			int[][] mapping = new int[nominal.length][];
+			for (int i = 0; i < nominal.length; i++) {
+				if (!nominal[i])
+					continue;
+				mapping[i] = new int[chunk.m_Labels[i].size()];
+				for (int j = 0; j < mapping[i].length; j++) {
+					String label = chunk.m_Labels[i].get(j);
+					Integer index = indices.get(i).get(label);
+					if (index == null) {
+						index = labels.get(i).size();
+						indices.get(i).put(label, index);
+						labels.get(i).add(label);
+					}
+					mapping[i][j] = index;
+				}
+			}
+			for (double[] row : chunk.m_Rows) {
+				for (int i = 0; i < nominal.length; i++)
+					if (nominal[i] && !Utils.isMissingValue(row[i]))
+						row[i] = mapping[i][(int) row[i]];
+				rows.add(row);
+			}
+		}
+		stopPipeline();
+
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		for (int i = 0; i < nominal.length; i++)
+			attributes.add(nominal[i] ? new Attribute(names.get(i), labels.get(i)) : new Attribute(names.get(i)));
+		String relation = m_SourceFile != null ? m_SourceFile.getName().replaceAll("(\\.csv)?(\\.gz)?$", "")
+				: "stream";
+		Instances data = new Instances(relation, attributes, rows.size());
+		for (double[] row : rows)
+			data.add(new DenseInstance(1.0, row));
+		return data;
+	}
+
+	private void startPipeline() throws IOException {
+		startPipeline(new ARFFParser(m_Structure));
+	}
+
+	private void startPipeline(ChunkParser parser) throws IOException {
+		if (m_Input == null)
+			throw new IOException("The source has already been read, call reset() first.");
+		m_Pipeline = new Pipeline(m_Input, m_Remainder, parser);
+		m_Input = null;
+		m_Remainder = null;
+	}
+
+	private void stopPipeline() {
+		if (m_Pipeline != null)
+			m_Pipeline.close();
+		m_Pipeline = null;
+	}
+
+	/**
+	 * Splits a line at commas outside of quotes. Tokens are trimmed, quotes are kept.
+	 *
+	 * @param line
+	 *            the line
+	 * @param from
+	 *            the first character
+	 * @param to
+	 *            the end of the part of the line to split
+	 * @param tokens
+	 *            the list the tokens are added to
+	 */
+	protected static void tokenize(String line, int from, int to, List<String> tokens) {
+		int start = from;
+		char quote = 0;
+		for (int i = from; i < to; i++) {
+			char c = line.charAt(i);
+			if (quote != 0) {
+				if (c == '\\')
+					i++;
+				else if (c == quote)
+					quote = 0;
+			} else if (c == '\'' || c == '"') {
+				quote = c;
+			} else if (c == ',') {
+				tokens.add(line.substring(start, i).trim());
+				start = i + 1;
+			}
+		}
+		tokens.add(line.substring(start, to).trim());
+	}
+
+	/** Powers of ten that are exact doubles */
+	private static final double[] POWERS_OF_TEN = new double[23];
+
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++)
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+	}
+
+	/**
+	 * Parses a number. Plain decimals with at most 15 digits are exact integers divided by an exact power of ten, so a
+	 * single correctly rounded division gives the same result as {@link Double#parseDouble(String)}, which is used for
+	 * all other numbers.
+	 *
+	 * @param token
+	 *            the number
+	 * @return the value
+	 * @throws NumberFormatException
+	 *             if the token is not a number
+	 */
+	protected static double parseNumber(String token) {
+		int length = token.length();
+		int i = 0;
+		boolean negative = false;
+		if (length > 0 && (token.charAt(0) == '-' || token.charAt(0) == '+')) {
+			negative = token.charAt(0) == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int decimals = -1;
+		for (; i < length; i++) {
+			char c = token.charAt(i);
+			if (c >= '0' && c <= '9') {
+				mantissa = mantissa * 10 + (c - '0');
+				digits++;
+				if (decimals >= 0)
+					decimals++;
+			} else if (c == '.' && decimals < 0) {
+				decimals = 0;
+			} else {
+				return Double.parseDouble(token);
+			}
+		}
+		if (digits == 0 || digits > 15)
+			return Double.parseDouble(token);
+		double value = decimals > 0 ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Removes the quotes of a token.
+	 *
+	 * @param token
+	 *            the token
+	 * @return the token without quotes and escape characters
+	 */
+	protected static String unquote(String token) {
+		int length = token.length();
+		if (length > 1) {
+			char first = token.charAt(0);
+			if ((first == '\'' || first == '"') && token.charAt(length - 1) == first)
+				return Utils.unbackQuoteChars(token.substring(1, length - 1));
+		}
+		return token;
+	}
+
+	/**
+	 * Reads lines from the start of a stream and returns the bytes read behind the last line.
+	 */
+	private static class LineReader {
+
+		private final InputStream m_In;
+		private byte[] m_Buffer = new byte[1 << 16];
+		private int m_Position = 0;
+		private int m_Length = 0;
+
+		LineReader(InputStream in) {
+			m_In = in;
+		}
+
+		String readLine() throws IOException {
+			int start = m_Position;
+			while (true) {
+				for (int i = m_Position; i < m_Length; i++) {
+					if (m_Buffer[i] == '\n') {
+						int end = i > start && m_Buffer[i - 1] == '\r' ? i - 1 : i;
+						m_Position = i + 1;
+						return new String(m_Buffer, start, end - start, StandardCharsets.UTF_8);
+					}
+				}
+				// move the partial line to the front and read more
+				int partial = m_Length - start;
+				if (partial == m_Buffer.length)
+					m_Buffer = Arrays.copyOf(m_Buffer, m_Buffer.length * 2);
+				System.arraycopy(m_Buffer, start, m_Buffer, 0, partial);
+				m_Position = partial;
+				m_Length = partial;
+				start = 0;
+				int read = m_In.read(m_Buffer, m_Length, m_Buffer.length - m_Length);
+				if (read < 0) {
+					m_Position = m_Length;
+					return partial == 0 ? null : new String(m_Buffer, 0, partial, StandardCharsets.UTF_8);
+				}
+				m_Length += read;
+			}
+		}
+
+		byte[] remainder() {
+			return Arrays.copyOfRange(m_Buffer, m_Position, m_Length);
+		}
+	}
+
+	/**
+	 * A parsed chunk.
+	 */
+	private static class Chunk {
+
+		/** The number of lines of the chunk */
+		int m_NumLines;
+
+		/** The instances of an ARFF chunk */
+		List<Instance> m_Instances;
+	}
+
+	/**
+	 * A parsed CSV chunk. Nominal values are indices into the labels of the chunk.
+	 */
+	private static class CSVChunk extends Chunk {
+
+		List<double[]> m_Rows;
+
+		List<String>[] m_Labels;
+
+		Map<String, Integer>[] m_Indices;
+	}
+
+	/**
+	 * Thrown by a parser, the line is relative to the start of the chunk.
+	 */
+	private static class ChunkParseException extends IOException {
+
+		private static final long serialVersionUID = -6330569735282946519L;
+
+		final int m_Line;
+
+		ChunkParseException(int line, String message) {
+			super(message);
+			m_Line = line;
+		}
+	}
+
+	/**
+	 * Parses the lines of a chunk. Implementations must be thread-safe.
+	 */
+	private abstract static class ChunkParser {
+
+		Chunk parse(byte[] bytes) throws IOException {
+			String text = new String(bytes, StandardCharsets.UTF_8);
+			List<String> tokens = new ArrayList<String>();
+			Chunk chunk = newChunk();
+			int line = 0;
+			int start = 0;
+			while (start < text.length()) {
+				int end = text.indexOf('\n', start);
+				if (end < 0)
+					end = text.length();
+				int next = end + 1;
+				if (end > start && text.charAt(end - 1) == '\r')
+					end--;
+				line++;
+				while (start < end && Character.isWhitespace(text.charAt(start)))
+					start++;
+				if (start < end && text.charAt(start) != '%') {
+					try {
+						tokens.clear();
+						parseLine(text, start, end, tokens, chunk);
+					} catch (ChunkParseException e) {
+						throw e;
+					} catch (Exception e) {
+						throw new ChunkParseException(line, e.getMessage());
+					}
+				}
+				start = next;
+			}
+			chunk.m_NumLines = line;
+			return chunk;
+		}
+
+		abstract Chunk newChunk();
+
+		abstract void parseLine(String text, int from, int to, List<String> tokens, Chunk chunk) throws Exception;
+	}
+
+	/**
+	 * Parses dense and sparse ARFF rows.
+	 */
+	private static class ARFFParser extends ChunkParser {
+
+		private final Instances m_Structure;
+
+		private final Map<String, Integer>[] m_Labels;
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		ARFFParser(Instances structure) {
+			m_Structure = structure;
+			// the hash tables of the attributes are synchronized, read-only maps are shared between the threads
+			m_Labels = new Map[structure.numAttributes()];
+			for (int i = 0; i < m_Labels.length; i++) {
+				Attribute attribute = structure.attribute(i);
+				if (attribute.isNominal()) {
+					m_Labels[i] = new HashMap<String, Integer>();
+					for (int j = 0; j < attribute.numValues(); j++)
+						m_Labels[i].put(attribute.value(j), j);
+				}
+			}
+		}
+
+		@Override
+		Chunk newChunk() {
+			Chunk chunk = new Chunk();
+			chunk.m_Instances = new ArrayList<Instance>();
+			return chunk;
+		}
+
+		@Override
+		void parseLine(String text, int from, int to, List<String> tokens, Chunk chunk) throws Exception {
+			int numAttributes = m_Structure.numAttributes();
+			double weight = 1.0;
+			if (text.charAt(from) == '{') {
+				int close = text.indexOf('}', from);
+				if (close < 0)
+					throw new Exception("Missing } in sparse row");
+				int rest = text.indexOf('{', close);
+				if (rest >= 0 && rest < to)
+					weight = parseWeight(text.substring(rest, to).trim());
+				if (close > from + 1 && text.substring(from + 1, close).trim().length() != 0)
+					tokenize(text, from + 1, close, tokens);
+				double[] values = new double[tokens.size()];
+				int[] indices = new int[tokens.size()];
+				for (int i = 0; i < tokens.size(); i++) {
+					String token = tokens.get(i);
+					int space = 0;
+					while (space < token.length() && !Character.isWhitespace(token.charAt(space)))
+						space++;
+					indices[i] = Integer.parseInt(token.substring(0, space));
+					if (indices[i] < 0 || indices[i] >= numAttributes)
+						throw new Exception("Index out of range: " + indices[i]);
+					values[i] = value(indices[i], token.substring(space).trim());
+				}
+				chunk.m_Instances.add(new SparseInstance(weight, values, indices, numAttributes));
+				return;
+			}
+			tokenize(text, from, to, tokens);
+			if (tokens.size() == numAttributes + 1 && tokens.get(numAttributes).startsWith("{"))
+				weight = parseWeight(tokens.get(numAttributes));
+			else if (tokens.size() != numAttributes)
+				throw new Exception("Wrong number of values. Read " + tokens.size() + ", expected " + numAttributes);
+			double[] values = new double[numAttributes];
+			for (int i = 0; i < numAttributes; i++)
+				values[i] = value(i, tokens.get(i));
+			chunk.m_Instances.add(new DenseInstance(weight, values));
+		}
+
+		private double value(int index, String token) throws Exception {
+			if (token.equals("?"))
+				return Utils.missingValue();
+			Attribute attribute = m_Structure.attribute(index);
+			switch (attribute.type()) {
+			case Attribute.NUMERIC:
+				return parseNumber(token);
+			case Attribute.NOMINAL:
+				Integer value = m_Labels[index].get(unquote(token));
+				if (value == null)
+					throw new Exception("Nominal value " + token + " not declared in header of attribute "
+							+ attribute.name());
+				return value;
+			case Attribute.DATE:
+				// date formats are not thread-safe
+				synchronized (attribute) {
+					return attribute.parseDate(unquote(token));
+				}
+			default:
+				throw new Exception("Unsupported attribute type of " + attribute.name());
+			}
+		}
+
+		private static double parseWeight(String token) throws Exception {
+			if (!token.startsWith("{") || !token.endsWith("}"))
+				throw new Exception("Invalid instance weight: " + token);
+			return Double.parseDouble(token.substring(1, token.length() - 1).trim());
+		}
+	}
+
+	/**
+	 * Parses CSV rows, nominal values are collected per chunk.
+	 */
+	private static class CSVParser extends ChunkParser {
+
+		private final boolean[] m_Nominal;
+
+		CSVParser(boolean[] nominal) {
+			m_Nominal = nominal;
+		}
+
+		@Override
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		Chunk newChunk() {
+			CSVChunk chunk = new CSVChunk();
+			chunk.m_Rows = new ArrayList<double[]>();
+			chunk.m_Labels = new List[m_Nominal.length];
+			chunk.m_Indices = new Map[m_Nominal.length];
+			for (int i = 0; i < m_Nominal.length; i++) {
+				if (m_Nominal[i]) {
+					chunk.m_Labels[i] = new ArrayList<String>();
+					chunk.m_Indices[i] = new HashMap<String, Integer>();
+				}
+			}
+			return chunk;
+		}
+
+		@Override
+		void parseLine(String text, int from, int to, List<String> tokens, Chunk chunk) throws Exception {
+			CSVChunk csvChunk = (CSVChunk) chunk;
+			tokenize(text, from, to, tokens);
+			if (tokens.size() != m_Nominal.length)
+				throw new Exception("Wrong number of values. Read " + tokens.size() + ", expected " + m_Nominal.length);
+			double[] row = new double[m_Nominal.length];
+			for (int i = 0; i < row.length; i++) {
+				String token = tokens.get(i);
+				if (token.length() == 0 || token.equals("?")) {
+					row[i] = Utils.missingValue();
+				} else if (m_Nominal[i]) {
+					String label = unquote(token);
+					Integer index = csvChunk.m_Indices[i].get(label);
+					if (index == null) {
+						index = csvChunk.m_Labels[i].size();
+						csvChunk.m_Indices[i].put(label, index);
+						csvChunk.m_Labels[i].add(label);
+					}
+					row[i] = index;
+				} else {
+					try {
+						row[i] = parseNumber(token);
+					} catch (NumberFormatException e) {
+						throw new Exception("Value " + token + " of attribute " + (i + 1)
+								+ " is not numeric, add the attribute to the nominal range (-N).");
+					}
+				}
+			}
+			csvChunk.m_Rows.add(row);
+		}
+	}
+
+	/**
+	 * The pipeline: a thread decompresses the input and cuts it into chunks of complete lines, which are parsed by a
+	 * thread pool. The futures of the chunks are queued in the order of the file, so the consumer gets the chunks in
+	 * order while later chunks are still being parsed. The queue is bounded, which keeps the memory bounded too.
+	 */
+	private class Pipeline implements Runnable {
+
+		private final InputStream m_In;
+
+		private final byte[] m_Head;
+
+		private final ChunkParser m_Parser;
+
+		private final ExecutorService m_Executor;
+
+		private final BlockingQueue<Future<Chunk>> m_Queue;
+
+		private final Thread m_Thread;
+
+		private final FutureTask<Chunk> m_End = new FutureTask<Chunk>(new Callable<Chunk>() {
+			@Override
+			public Chunk call() {
+				return null;
+			}
+		});
+
+		private volatile boolean m_Closed = false;
+
+		private int m_LinesRead;
+
+		private boolean m_Finished = false;
+
+		Pipeline(InputStream in, byte[] head, ChunkParser parser) {
+			m_In = in;
+			m_Head = head == null ? new byte[0] : head;
+			m_Parser = parser;
+			m_LinesRead = m_HeaderLines;
+			m_End.run();
+			ThreadFactory factory = new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ParallelTextLoader-parser");
+					thread.setDaemon(true);
+					return thread;
+				}
+			};
+			m_Executor = Executors.newFixedThreadPool(m_NumExecutionSlots, factory);
+			m_Queue = new ArrayBlockingQueue<Future<Chunk>>(2 * m_NumExecutionSlots + 1);
+			m_Thread = new Thread(this, "ParallelTextLoader-reader");
+			m_Thread.setDaemon(true);
+			m_Thread.start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				byte[] carry = m_Head;
+				byte[] block = new byte[m_ChunkSize * 1024];
+				while (!m_Closed) {
+					int length = 0;
+					int read = 0;
+					while (length < block.length && (read = m_In.read(block, length, block.length - length)) >= 0)
+						length += read;
+					// cut behind the last line break, the rest is carried over to the next chunk
+					int cut = length;
+					if (read >= 0)
+						while (cut > 0 && block[cut - 1] != '\n')
+							cut--;
+					byte[] bytes = Arrays.copyOf(carry, carry.length + cut);
+					System.arraycopy(block, 0, bytes, carry.length, cut);
+					carry = Arrays.copyOfRange(block, cut, length);
+					if (read < 0 || cut > 0) {
+						submit(bytes);
+						if (read < 0)
+							break;
+					} else {
+						// no line break in the whole block
+						carry = bytes;
+					}
+				}
+			} catch (final Exception e) {
+				FutureTask<Chunk> failed = new FutureTask<Chunk>(new Callable<Chunk>() {
+					@Override
+					public Chunk call() throws Exception {
+						throw e;
+					}
+				});
+				failed.run();
+				put(failed);
+			} finally {
+				try {
+					m_In.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+				put(m_End);
+			}
+		}
+
+		private void submit(final byte[] bytes) throws InterruptedException {
+			if (bytes.length == 0)
+				return;
+			m_Queue.put(m_Executor.submit(new Callable<Chunk>() {
+				@Override
+				public Chunk call() throws Exception {
+					return m_Parser.parse(bytes);
+				}
+			}));
+		}
+
+		private void put(Future<Chunk> future) {
+			try {
+				if (!m_Closed)
+					m_Queue.put(future);
+			} catch (InterruptedException e) {
+				// closed
+			}
+		}
+
+		/**
+		 * Returns the next chunk in the order of the file.
+		 *
+		 * @return the next chunk or null at the end of the input
+		 */
+		Chunk nextChunk() throws IOException {
+			if (m_Finished)
+				return null;
+			try {
+				Future<Chunk> future = m_Queue.take();
+				if (future == m_End) {
+					m_Finished = true;
+					return null;
+				}
+				Chunk chunk = future.get();
+				m_LinesRead += chunk.m_NumLines;
+				return chunk;
+			} catch (InterruptedException e) {
+				close();
+				throw new IOException("Reading was interrupted", e);
+			} catch (ExecutionException e) {
+				close();
+				Throwable cause = e.getCause();
+				if (cause instanceof ChunkParseException)
+					throw new IOException("Line " + (m_LinesRead + ((ChunkParseException) cause).m_Line) + ": "
+							+ cause.getMessage(), cause);
+				if (cause instanceof IOException)
+					throw (IOException) cause;
+				throw new IOException(cause);
+			}
+		}
+
+		/**
+		 * Returns the instances of the next ARFF chunk.
+		 *
+		 * @return the instances or null at the end of the input
+		 */
+		List<Instance> next() throws IOException {
+			Chunk chunk = nextChunk();
+			return chunk == null ? null : chunk.m_Instances;
+		}
+
+		void close() {
+			m_Closed = true;
+			m_Thread.interrupt();
+			m_Executor.shutdownNow();
+			m_Queue.clear();
+		}
+	}
+
+	@Override
+	public String getRevision() {
+		return RevisionUtils.extract("$Revision: 1 $");
+	}
+
+	/**
+	 * Returns a data source for a file. ARFF and CSV files, optionally gzipped, are read with a
+	 * {@link ParallelTextLoader}, columnar files with a {@link ColumnarLoader}, all other formats with the loader Weka
+	 * chooses for them.
+	 *
+	 * @param file
+	 *            the file name
+	 * @return the data source
+	 * @throws Exception
+	 *             if the file cannot be opened
+	 */
+	public static DataSource getDataSource(String file) throws Exception {
+		String name = file.toLowerCase().replaceAll("\\.gz$", "");
+		if (name.endsWith(ArffLoader.FILE_EXTENSION) || name.endsWith(CSVLoader.FILE_EXTENSION)) {
+			ParallelTextLoader loader = new ParallelTextLoader();
+			loader.setSource(new File(file));
+			return new DataSource(loader);
+		}
+		if (name.endsWith(ColumnarDataset.FILE_EXTENSION)) {
+			ColumnarLoader loader = new ColumnarLoader();
+			loader.setFile(new File(file));
+			return new DataSource(loader);
+		}
+		return new DataSource(file);
+	}
+
+	/**
+	 * Reads a file, see {@link #getDataSource(String)}.
+	 *
+	 * @param file
+	 *            the file name
+	 * @return the instances
+	 * @throws Exception
+	 *             if the file cannot be read
+	 */
+	public static Instances read(String file) throws Exception {
+		DataSource source = getDataSource(file);
+		if (source.getLoader() instanceof ParallelTextLoader)
+			return source.getLoader().getDataSet();
+		return source.getDataSet();
+	}
+
+	/**
+	 * Main method.
+	 *
+	 * @param args
+	 *            should contain the name of an input file and optionally the options of the loader.
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.err.println("Usage: ParallelTextLoader <file> [options]");
+			Enumeration<Option> options = new ParallelTextLoader().listOptions();
+			while (options.hasMoreElements()) {
+				Option option = options.nextElement();
+				System.err.println(option.synopsis() + "\n" + option.description());
+			}
+			System.exit(1);
+		}
+		try {
+			ParallelTextLoader loader = new ParallelTextLoader();
+			String[] options = Arrays.copyOfRange(args, 1, args.length);
+			loader.setOptions(options);
+			long start = System.nanoTime();
+			loader.setSource(new File(args[0]));
+			Instances data = loader.getDataSet();
+			System.err.println("Read " + data.numInstances() + " instances with " + data.numAttributes()
+					+ " attributes in " + Utils.doubleToString((System.nanoTime() - start) / 1e9, 2) + " s");
+			System.out.println(new Instances(data, 0));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
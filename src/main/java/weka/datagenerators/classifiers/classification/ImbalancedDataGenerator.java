@@ -0,0 +1,575 @@
+package weka.datagenerators.classifiers.classification;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.Vector;
+
+import weka.classifiers.meta.EasyEnsemble;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Option;
+import weka.core.RevisionUtils;
+import weka.core.Utils;
+import weka.core.converters.ColumnarDataset;
+import weka.core.converters.ColumnarSaver;
+import weka.datagenerators.ClassificationGenerator;
+
+/**
+ * <p>
+ * Generates imbalanced data sets like <code>imbalanced.data.generator</code> of the hyperSMURF R package. The
+ * informative features of the positive examples are drawn from a Gaussian with mean 1 and the given standard
+ * deviation, all other features of positive and negative examples from a standard Gaussian. The positive examples are
+ * spread randomly over the data set.
+ * </p>
+ *
+ * <p>
+ * Examples are generated one by one and each one only depends on the seed and its row, so data sets of any size can be
+ * streamed to disk with little heap. If the output file has the extension {@value ColumnarDataset#FILE_EXTENSION} the
+ * data set is written as a columnar data set, ARFF otherwise.
+ * </p>
+ *
+ * <p>
+ * Valid options are:
+ * </p>
+ *
+ * <pre>
+ *  -h
+ *  Prints this help.
+ * </pre>
+ *
+ * <pre>
+ *  -o &lt;file&gt;
+ *  The name of the output file, otherwise the generated data is
+ *  printed to stdout.
+ * </pre>
+ *
+ * <pre>
+ *  -r &lt;name&gt;
+ *  The name of the relation.
+ * </pre>
+ *
+ * <pre>
+ *  -d
+ *  Whether to print debug informations.
+ * </pre>
+ *
+ * <pre>
+ *  -S
+ *  The seed for random function (default 1)
+ * </pre>
+ *
+ * <pre>
+ *  -n &lt;num&gt;
+ *  The number of examples to generate (default 2020)
+ * </pre>
+ *
+ * <pre>
+ *  -P &lt;num&gt;
+ *  The number of positive examples (default 20).
+ * </pre>
+ *
+ * <pre>
+ *  -a &lt;num&gt;
+ *  The number of features (default 10).
+ * </pre>
+ *
+ * <pre>
+ *  -inf &lt;num&gt;
+ *  The number of informative features (default 3).
+ * </pre>
+ *
+ * <pre>
+ *  -sd &lt;num&gt;
+ *  The standard deviation of the informative features of the
+ *  positive examples (default 1.0).
+ * </pre>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class ImbalancedDataGenerator extends ClassificationGenerator {
+
+	/** for serialization */
+	private static final long serialVersionUID = -2418637504628846273L;
+
+	/** The number of positive examples */
+	protected int m_NumPositives;
+
+	/** The number of features */
+	protected int m_NumFeatures;
+
+	/** The number of informative features */
+	protected int m_NumInformative;
+
+	/** The standard deviation of the informative features of the positive examples */
+	protected double m_StandardDeviation;
+
+	/** The sorted rows of the positive examples */
+	protected transient int[] m_PositiveRows;
+
+	/** The row of the next example */
+	protected transient int m_Row;
+
+	/** The index of the next positive row in {@link #m_PositiveRows} */
+	protected transient int m_NextPositive;
+
+	public ImbalancedDataGenerator() {
+		super();
+		setNumPositives(defaultNumPositives());
+		setNumFeatures(defaultNumFeatures());
+		setNumInformative(defaultNumInformative());
+		setStandardDeviation(defaultStandardDeviation());
+	}
+
+	/**
+	 * Returns a string describing this data generator.
+	 *
+	 * @return a description of the data generator suitable for displaying in the explorer/experimenter gui
+	 */
+	public String globalInfo() {
+		return "Generates imbalanced data sets like imbalanced.data.generator of the hyperSMURF R package.\n"
+				+ "The informative features of the positive examples are drawn from a Gaussian with mean 1 and the "
+				+ "given standard deviation, all other features from a standard Gaussian. Examples are generated one "
+				+ "by one, so data sets of any size can be streamed to disk. Output files with the extension "
+				+ ColumnarDataset.FILE_EXTENSION + " are written as columnar data sets.";
+	}
+
+	@Override
+	protected int defaultNumExamples() {
+		return 2020;
+	}
+
+	@Override
+	public Enumeration<Option> listOptions() {
+		Vector<Option> result = enumToVector(super.listOptions());
+
+		result.addElement(new Option("\tThe number of positive examples (default " + defaultNumPositives() + ").",
+				"P", 1, "-P <num>"));
+
+		result.addElement(
+				new Option("\tThe number of features (default " + defaultNumFeatures() + ").", "a", 1, "-a <num>"));
+
+		result.addElement(new Option("\tThe number of informative features (default " + defaultNumInformative() + ").",
+				"inf", 1, "-inf <num>"));
+
+		result.addElement(new Option("\tThe standard deviation of the informative features of the\n"
+				+ "\tpositive examples (default " + defaultStandardDeviation() + ").", "sd", 1, "-sd <num>"));
+
+		return result.elements();
+	}
+
+	/**
+	 * Parses a given list of options.
+	 * <p>
+	 *
+	 * <!-- options-start --> Valid options are:
+	 * </p>
+	 *
+	 * <pre>
+	 *  -n &lt;num&gt;
+	 *  The number of examples to generate (default 2020)
+	 * </pre>
+	 *
+	 * <pre>
+	 *  -P &lt;num&gt;
+	 *  The number of positive examples (default 20).
+	 * </pre>
+	 *
+	 * <pre>
+	 *  -a &lt;num&gt;
+	 *  The number of features (default 10).
+	 * </pre>
+	 *
+	 * <pre>
+	 *  -inf &lt;num&gt;
+	 *  The number of informative features (default 3).
+	 * </pre>
+	 *
+	 * <pre>
+	 *  -sd &lt;num&gt;
+	 *  The standard deviation of the informative features of the
+	 *  positive examples (default 1.0).
+	 * </pre>
+	 *
+	 * <!-- options-end -->
+	 *
+	 * @param options
+	 *            the list of options as an array of strings
+	 * @throws Exception
+	 *             if an option is not supported
+	 */
+	@Override
+	public void setOptions(String[] options) throws Exception {
+		super.setOptions(options);
+
+		String tmpStr = Utils.getOption('P', options);
+		if (tmpStr.length() != 0)
+			setNumPositives(Integer.parseInt(tmpStr));
+		else
+			setNumPositives(defaultNumPositives());
+
+		tmpStr = Utils.getOption('a', options);
+		if (tmpStr.length() != 0)
+			setNumFeatures(Integer.parseInt(tmpStr));
+		else
+			setNumFeatures(defaultNumFeatures());
+
+		tmpStr = Utils.getOption("inf", options);
+		if (tmpStr.length() != 0)
+			setNumInformative(Integer.parseInt(tmpStr));
+		else
+			setNumInformative(defaultNumInformative());
+
+		tmpStr = Utils.getOption("sd", options);
+		if (tmpStr.length() != 0)
+			setStandardDeviation(Double.parseDouble(tmpStr));
+		else
+			setStandardDeviation(defaultStandardDeviation());
+	}
+
+	@Override
+	public String[] getOptions() {
+		Vector<String> result = new Vector<String>(Arrays.asList(super.getOptions()));
+
+		result.add("-P");
+		result.add("" + getNumPositives());
+
+		result.add("-a");
+		result.add("" + getNumFeatures());
+
+		result.add("-inf");
+		result.add("" + getNumInformative());
+
+		result.add("-sd");
+		result.add("" + getStandardDeviation());
+
+		return result.toArray(new String[result.size()]);
+	}
+
+	protected int defaultNumPositives() {
+		return 20;
+	}
+
+	/**
+	 * Returns the tip text for this property
+	 *
+	 * @return tip text for this property suitable for displaying in the explorer/experimenter gui
+	 */
+	public String numPositivesTipText() {
+		return "The number of positive examples, the others are negative.";
+	}
+
+	/**
+	 * Get the number of positive examples.
+	 *
+	 * @return the number of positive examples
+	 */
+	public int getNumPositives() {
+		return m_NumPositives;
+	}
+
+	/**
+	 * Set the number of positive examples.
+	 *
+	 * @param numPositives
+	 *            the number of positive examples
+	 */
+	public void setNumPositives(int numPositives) {
+		if (numPositives >= 0)
+			m_NumPositives = numPositives;
+		else
+			System.err.println("Number of positive examples must be >= 0!");
+	}
+
+	protected int defaultNumFeatures() {
+		return 10;
+	}
+
+	/**
+	 * Returns the tip text for this property
+	 *
+	 * @return tip text for this property suitable for displaying in the explorer/experimenter gui
+	 */
+	public String numFeaturesTipText() {
+		return "The number of features, informative ones and noise.";
+	}
+
+	/**
+	 * Get the number of features.
+	 *
+	 * @return the number of features
+	 */
+	public int getNumFeatures() {
+		return m_NumFeatures;
+	}
+
+	/**
+	 * Set the number of features.
+	 *
+	 * @param numFeatures
+	 *            the number of features
+	 */
+	public void setNumFeatures(int numFeatures) {
+		if (numFeatures >= 1)
+			m_NumFeatures = numFeatures;
+		else
+			System.err.println("Number of features must be >= 1!");
+	}
+
+	protected int defaultNumInformative() {
+		return 3;
+	}
+
+	/**
+	 * Returns the tip text for this property
+	 *
+	 * @return tip text for this property suitable for displaying in the explorer/experimenter gui
+	 */
+	public String numInformativeTipText() {
+		return "The number of informative features, the first features of the data set. The others are noise.";
+	}
+
+	/**
+	 * Get the number of informative features.
+	 *
+	 * @return the number of informative features
+	 */
+	public int getNumInformative() {
+		return m_NumInformative;
+	}
+
+	/**
+	 * Set the number of informative features.
+	 *
+	 * @param numInformative
+	 *            the number of informative features
+	 */
+	public void setNumInformative(int numInformative) {
+		if (numInformative >= 0)
+			m_NumInformative = numInformative;
+		else
+			System.err.println("Number of informative features must be >= 0!");
+	}
+
+	protected double defaultStandardDeviation() {
+		return 1;
+	}
+
+	/**
+	 * Returns the tip text for this property
+	 *
+	 * @return tip text for this property suitable for displaying in the explorer/experimenter gui
+	 */
+	public String standardDeviationTipText() {
+		return "The standard deviation of the informative features of the positive examples, "
+				+ "the smaller the easier the positives are separated.";
+	}
+
+	/**
+	 * Get the standard deviation of the informative features of the positive examples.
+	 *
+	 * @return the standard deviation
+	 */
+	public double getStandardDeviation() {
+		return m_StandardDeviation;
+	}
+
+	/**
+	 * Set the standard deviation of the informative features of the positive examples.
+	 *
+	 * @param standardDeviation
+	 *            the standard deviation
+	 */
+	public void setStandardDeviation(double standardDeviation) {
+		if (standardDeviation > 0)
+			m_StandardDeviation = standardDeviation;
+		else
+			System.err.println("Standard deviation must be > 0!");
+	}
+
+	/**
+	 * Return if single mode is set for the given data generator.
+	 *
+	 * @return always true, the examples are generated one by one
+	 */
+	@Override
+	public boolean getSingleModeFlag() {
+		return true;
+	}
+
+	/**
+	 * Initializes the format for the dataset produced and draws the rows of the positive examples.
+	 *
+	 * @return the format for the dataset
+	 * @throws Exception
+	 *             if the generating of the format failed
+	 */
+	@Override
+	public Instances defineDataFormat() throws Exception {
+		if (m_NumInformative > m_NumFeatures)
+			throw new Exception("More informative features (" + m_NumInformative + ") than features ("
+					+ m_NumFeatures + ")");
+		if (m_NumPositives > getNumExamples())
+			throw new Exception("More positive examples (" + m_NumPositives + ") than examples (" + getNumExamples()
+					+ ")");
+		setRandom(new Random(getSeed()));
+		setNumExamplesAct(getNumExamples());
+
+		ArrayList<Attribute> atts = new ArrayList<Attribute>(m_NumFeatures + 1);
+		for (int i = 0; i < m_NumFeatures; i++)
+			atts.add(new Attribute((i < m_NumInformative ? "inf" : "noise") + (i + 1)));
+		atts.add(new Attribute("class", Arrays.asList("negative", "positive")));
+		Instances format = new Instances(getRelationNameToUse(), atts, 0);
+		format.setClassIndex(m_NumFeatures);
+
+		// Floyd's algorithm, the heap is only needed for the positives
+		Random random = getRandom();
+		Set<Integer> positives = new HashSet<Integer>(2 * m_NumPositives);
+		for (int j = getNumExamples() - m_NumPositives; j < getNumExamples(); j++) {
+			int row = random.nextInt(j + 1);
+			positives.add(positives.contains(row) ? j : row);
+		}
+		m_PositiveRows = new int[m_NumPositives];
+		int i = 0;
+		for (int row : positives)
+			m_PositiveRows[i++] = row;
+		Arrays.sort(m_PositiveRows);
+		m_Row = 0;
+		m_NextPositive = 0;
+
+		return format;
+	}
+
+	/**
+	 * Generates the example of the next row.
+	 *
+	 * @return the example
+	 * @throws Exception
+	 *             if the format is not defined or all examples have been generated
+	 */
+	@Override
+	public Instance generateExample() throws Exception {
+		Instances format = getDatasetFormat();
+		if (format == null || m_PositiveRows == null)
+			throw new Exception("Dataset format not defined.");
+		if (m_Row >= getNumExamplesAct())
+			throw new Exception("All " + getNumExamplesAct() + " examples have been generated.");
+
+		boolean positive = m_NextPositive < m_PositiveRows.length && m_PositiveRows[m_NextPositive] == m_Row;
+		if (positive)
+			m_NextPositive++;
+		Random random = new Random(EasyEnsemble.deriveSeed(getSeed(), m_Row));
+		m_Row++;
+
+		double[] values = new double[m_NumFeatures + 1];
+		for (int i = 0; i < m_NumFeatures; i++) {
+			if (positive && i < m_NumInformative)
+				values[i] = 1 + m_StandardDeviation * random.nextGaussian();
+			else
+				values[i] = random.nextGaussian();
+		}
+		values[m_NumFeatures] = positive ? 1 : 0;
+		Instance example = new DenseInstance(1.0, values);
+		example.setDataset(format);
+		return example;
+	}
+
+	/**
+	 * Generates all examples of the data set.
+	 *
+	 * @return the data set
+	 * @throws Exception
+	 *             if the format is not defined
+	 */
+	@Override
+	public Instances generateExamples() throws Exception {
+		Instances format = getDatasetFormat();
+		if (format == null)
+			throw new Exception("Dataset format not defined.");
+		Instances data = new Instances(format, getNumExamplesAct());
+		for (int i = 0; i < getNumExamplesAct(); i++)
+			data.add(generateExample());
+		return data;
+	}
+
+	/**
+	 * Generates a comment string that documents the data generator.
+	 *
+	 * @return the comment
+	 */
+	@Override
+	public String generateStart() {
+		return "";
+	}
+
+	/**
+	 * Generates a comment string that documents the class balance.
+	 *
+	 * @return the comment
+	 */
+	@Override
+	public String generateFinished() {
+		return "% " + m_NumPositives + " positive and " + (getNumExamplesAct() - m_NumPositives)
+				+ " negative examples\n";
+	}
+
+	/**
+	 * Streams the data set to a columnar data set file. The columns are spooled by the {@link ColumnarSaver}, so the
+	 * heap does not grow with the number of examples.
+	 *
+	 * @param output
+	 *            the output file
+	 * @param float32
+	 *            true if the features are stored as float32
+	 * @throws Exception
+	 *             if the data cannot be generated or written
+	 */
+	public void generateColumnar(File output, boolean float32) throws Exception {
+		setDatasetFormat(defineDataFormat());
+		ColumnarSaver saver = new ColumnarSaver();
+		saver.setFloat32(float32);
+		saver.setFile(output);
+		saver.setRetrieval(ColumnarSaver.INCREMENTAL);
+		saver.setInstances(getDatasetFormat());
+		for (int i = 0; i < getNumExamplesAct(); i++)
+			saver.writeIncremental(generateExample());
+		saver.writeIncremental(null);
+	}
+
+	@Override
+	public String getRevision() {
+		return RevisionUtils.extract("$Revision: 1 $");
+	}
+
+	/**
+	 * Main method for executing this class.
+	 *
+	 * @param args
+	 *            should contain arguments for the data producer, an output file with the extension
+	 *            {@value ColumnarDataset#FILE_EXTENSION} is written as columnar data set
+	 */
+	public static void main(String[] args) {
+		try {
+			String output = Utils.getOption('o', args.clone());
+			if (output.endsWith(ColumnarDataset.FILE_EXTENSION) && !Utils.getFlag('h', args.clone())) {
+				ImbalancedDataGenerator generator = new ImbalancedDataGenerator();
+				Utils.getOption('o', args);
+				generator.setOptions(args);
+				Utils.checkForRemainingOptions(args);
+				generator.generateColumnar(new File(output), false);
+				return;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return;
+		}
+		runDataGenerator(new ImbalancedDataGenerator(), args);
+	}
+}
@@ -0,0 +1,386 @@
+package weka.filters.supervised.instance;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Option;
+import weka.core.SparseInstance;
+
+/**
+ * <p>
+ * SMOTE that keeps sparse data sparse. If the input contains {@link SparseInstance}s, distances are computed over the
+ * non-zero coordinates of both instances and synthetic instances are {@link SparseInstance}s that only interpolate
+ * coordinates where the instance or its neighbour is non-zero. Zero coordinates of both stay zero, as they would in
+ * SMOTE, so time and memory scale with the number of non-zero values instead of the number of attributes. Dense input
+ * is handled by {@link SMOTE} unchanged.
+ * </p>
+ *
+ * <p>
+ * Valid options are the ones of {@link SMOTE}.
+ * </p>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class SparseSMOTE extends SMOTE {
+
+	/** for serialization */
+	private static final long serialVersionUID = -3519406532498718834L;
+
+	/**
+	 * Returns an enumeration describing the available options, the ones of {@link SMOTE}.
+	 *
+	 * @return an enumeration of all the available options
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public Enumeration<Option> listOptions() {
+		// SMOTE returns a raw Enumeration
+		return super.listOptions();
+	}
+
+	@Override
+	public String globalInfo() {
+		return "SMOTE that keeps sparse instances sparse. Distances and synthetic instances are computed on the non-zero "
+				+ "values only. For more information, see \n\n" + getTechnicalInformation().toString();
+	}
+
+	/**
+	 * Returns true if one of the instances is sparse.
+	 *
+	 * @param data
+	 *            the instances
+	 * @return true if sparse
+	 */
+	public static boolean isSparse(Instances data) {
+		for (Instance instance : data)
+			if (instance instanceof SparseInstance)
+				return true;
+		return false;
+	}
+
+	@Override
+	protected void doSMOTE() throws Exception {
+		Instances input = getInputFormat();
+		if (!isSparse(input)) {
+			super.doSMOTE();
+			return;
+		}
+
+		int minIndex = 0;
+		int min = Integer.MAX_VALUE;
+		if (m_DetectMinorityClass) {
+			int[] classCounts = input.attributeStats(input.classIndex()).nominalCounts;
+			for (int i = 0; i < classCounts.length; i++) {
+				if (classCounts[i] != 0 && classCounts[i] < min) {
+					min = classCounts[i];
+					minIndex = i;
+				}
+			}
+		} else {
+			String classVal = getClassValue();
+			if (classVal.equalsIgnoreCase("first"))
+				minIndex = 1;
+			else if (classVal.equalsIgnoreCase("last"))
+				minIndex = input.numClasses();
+			else
+				minIndex = Integer.parseInt(classVal);
+			if (minIndex > input.numClasses())
+				throw new Exception("value index must be <= the number of classes");
+			minIndex--;
+		}
+		int nearestNeighbors = min <= getNearestNeighbors() ? min - 1 : getNearestNeighbors();
+		if (nearestNeighbors < 1)
+			throw new Exception("Cannot use 0 neighbors!");
+
+		// the buffered input is flushed afterwards, so the instances can be pushed without another copy
+		List<Instance> sample = new ArrayList<Instance>();
+		for (Instance instance : input) {
+			push(instance, false);
+			if ((int) instance.classValue() == minIndex)
+				sample.add(instance);
+		}
+
+		int m = sample.size();
+		nearestNeighbors = Math.min(nearestNeighbors, m - 1);
+		if (nearestNeighbors < 1)
+			throw new Exception("Cannot use 0 neighbors!");
+
+		double[][][] vdm = valueDifferenceMatrices(input);
+
+		// non-zero values without the class
+		int[][] indices = new int[m][];
+		double[][] values = new double[m][];
+		for (int i = 0; i < m; i++) {
+			Instance instance = sample.get(i);
+			int count = 0;
+			for (int p = 0; p < instance.numValues(); p++)
+				if (instance.index(p) != input.classIndex())
+					count++;
+			indices[i] = new int[count];
+			values[i] = new double[count];
+			for (int p = 0, q = 0; p < instance.numValues(); p++) {
+				if (instance.index(p) == input.classIndex())
+					continue;
+				indices[i][q] = instance.index(p);
+				values[i][q++] = instance.valueSparse(p);
+			}
+		}
+
+		Random rand = new Random(getRandomSeed());
+		List<Integer> extraIndices = new LinkedList<Integer>();
+		double percentageRemainder = (getPercentage() / 100) - Math.floor(getPercentage() / 100.0);
+		int extraIndicesCount = (int) (percentageRemainder * m);
+		if (extraIndicesCount >= 1) {
+			for (int i = 0; i < m; i++)
+				extraIndices.add(i);
+		}
+		Collections.shuffle(extraIndices, rand);
+		extraIndices = extraIndices.subList(0, extraIndicesCount);
+		Set<Integer> extraIndexSet = new HashSet<Integer>(extraIndices);
+
+		double[] distances = new double[m];
+		int[] nnArray = new int[nearestNeighbors];
+		for (int i = 0; i < m; i++) {
+			for (int j = 0; j < m; j++)
+				if (i != j)
+					distances[j] = distance(indices[i], values[i], indices[j], values[j], input, vdm);
+			nearestNeighbors(i, distances, nnArray);
+
+			for (int n = (int) Math.floor(getPercentage() / 100); n > 0 || extraIndexSet.remove(i); n--) {
+				int nn = nnArray[rand.nextInt(nearestNeighbors)];
+				push(synthetic(i, nn, nnArray, indices, values, input, minIndex, rand));
+			}
+		}
+	}
+
+	/**
+	 * Finds the nearest neighbours of an instance, nearest first, in a bounded max-heap of the nearest ones so far.
+	 * Ties are broken by index, like the stable sort of SMOTE.
+	 *
+	 * @param i
+	 *            the index of the instance, its own distance is ignored
+	 * @param distances
+	 *            the distances of all instances to the instance
+	 * @param nnArray
+	 *            the array for the neighbours, its length is the number of neighbours
+	 */
+	public static void nearestNeighbors(int i, double[] distances, int[] nnArray) {
+		int size = 0;
+		for (int j = 0; j < distances.length; j++) {
+			if (j == i)
+				continue;
+			if (size < nnArray.length) {
+				nnArray[size] = j;
+				siftUp(nnArray, size++, distances);
+			} else if (farther(nnArray[0], j, distances)) {
+				nnArray[0] = j;
+				siftDown(nnArray, nnArray.length, distances);
+			}
+		}
+		// heap sort in place, the farthest neighbour moves to the end
+		for (int end = nnArray.length - 1; end > 0; end--) {
+			int farthest = nnArray[0];
+			nnArray[0] = nnArray[end];
+			nnArray[end] = farthest;
+			siftDown(nnArray, end, distances);
+		}
+	}
+
+	private static boolean farther(int a, int b, double[] distances) {
+		int compare = Double.compare(distances[a], distances[b]);
+		return compare > 0 || (compare == 0 && a > b);
+	}
+
+	private static void siftUp(int[] heap, int pos, double[] distances) {
+		while (pos > 0) {
+			int parent = (pos - 1) / 2;
+			if (!farther(heap[pos], heap[parent], distances))
+				return;
+			int tmp = heap[pos];
+			heap[pos] = heap[parent];
+			heap[parent] = tmp;
+			pos = parent;
+		}
+	}
+
+	private static void siftDown(int[] heap, int size, double[] distances) {
+		int pos = 0;
+		for (int child = 1; child < size; child = 2 * pos + 1) {
+			if (child + 1 < size && farther(heap[child + 1], heap[child], distances))
+				child++;
+			if (!farther(heap[child], heap[pos], distances))
+				return;
+			int tmp = heap[pos];
+			heap[pos] = heap[child];
+			heap[child] = tmp;
+			pos = child;
+		}
+	}
+
+	/**
+	 * Value difference matrices of the nominal and string attributes, null for all other attributes.
+	 */
+	private static double[][][] valueDifferenceMatrices(Instances input) {
+		double[][][] vdm = new double[input.numAttributes()][][];
+		for (int a = 0; a < input.numAttributes(); a++) {
+			Attribute attr = input.attribute(a);
+			if (a == input.classIndex() || (!attr.isNominal() && !attr.isString()))
+				continue;
+			int[] featureValueCounts = new int[attr.numValues()];
+			int[][] featureValueCountsByClass = new int[input.numClasses()][attr.numValues()];
+			for (Instance instance : input) {
+				int value = (int) instance.value(attr);
+				featureValueCounts[value]++;
+				featureValueCountsByClass[(int) instance.classValue()][value]++;
+			}
+			vdm[a] = new double[attr.numValues()][attr.numValues()];
+			for (int v1 = 0; v1 < attr.numValues(); v1++) {
+				for (int v2 = 0; v2 < attr.numValues(); v2++) {
+					double sum = 0;
+					for (int c = 0; c < input.numClasses(); c++) {
+						double term1 = featureValueCountsByClass[c][v1] / (double) featureValueCounts[v1];
+						double term2 = featureValueCountsByClass[c][v2] / (double) featureValueCounts[v2];
+						sum += Math.abs(term1 - term2);
+					}
+					vdm[a][v1][v2] = sum;
+				}
+			}
+		}
+		return vdm;
+	}
+
+	/**
+	 * Distance of two instances over the union of their non-zero values. Coordinates that are zero in both add nothing.
+	 */
+	private static double distance(int[] indicesI, double[] valuesI, int[] indicesJ, double[] valuesJ,
+			Instances input, double[][][] vdm) {
+		double distance = 0;
+		int p = 0;
+		int q = 0;
+		while (p < indicesI.length || q < indicesJ.length) {
+			int index;
+			double iVal = 0;
+			double jVal = 0;
+			if (q == indicesJ.length || (p < indicesI.length && indicesI[p] < indicesJ[q])) {
+				index = indicesI[p];
+				iVal = valuesI[p++];
+			} else if (p == indicesI.length || indicesJ[q] < indicesI[p]) {
+				index = indicesJ[q];
+				jVal = valuesJ[q++];
+			} else {
+				index = indicesI[p];
+				iVal = valuesI[p++];
+				jVal = valuesJ[q++];
+			}
+			if (vdm[index] == null)
+				distance += (iVal - jVal) * (iVal - jVal);
+			else
+				distance += vdm[index][(int) iVal][(int) jVal];
+		}
+		return Math.sqrt(distance);
+	}
+
+	/**
+	 * A synthetic sparse instance between an instance and one of its neighbours. Numeric values are interpolated on the
+	 * non-zero coordinates of both, nominal values are the majority vote of the instance and all its neighbours.
+	 */
+	private static Instance synthetic(int i, int nn, int[] nnArray, int[][] indices, double[][] values,
+			Instances input, int minIndex, Random rand) {
+		Map<Integer, Double> result = new TreeMap<Integer, Double>();
+		int p = 0;
+		int q = 0;
+		int[] indicesI = indices[i];
+		int[] indicesN = indices[nn];
+		while (p < indicesI.length || q < indicesN.length) {
+			int index;
+			double iVal = 0;
+			double nVal = 0;
+			if (q == indicesN.length || (p < indicesI.length && indicesI[p] < indicesN[q])) {
+				index = indicesI[p];
+				iVal = values[i][p++];
+			} else if (p == indicesI.length || indicesN[q] < indicesI[p]) {
+				index = indicesN[q];
+				nVal = values[nn][q++];
+			} else {
+				index = indicesI[p];
+				iVal = values[i][p++];
+				nVal = values[nn][q++];
+			}
+			Attribute attr = input.attribute(index);
+			if (attr.isDate())
+				result.put(index, (double) (long) (iVal + rand.nextDouble() * (nVal - iVal)));
+			else if (attr.isNumeric())
+				result.put(index, iVal + rand.nextDouble() * (nVal - iVal));
+		}
+
+		// votes for the non-zero nominal values, all other votes are for the first value
+		Map<Integer, int[]> votes = new TreeMap<Integer, int[]>();
+		addVotes(votes, indicesI, values[i], input);
+		for (int neighbor : nnArray)
+			addVotes(votes, indices[neighbor], values[neighbor], input);
+		for (Map.Entry<Integer, int[]> entry : votes.entrySet()) {
+			int[] valueCounts = entry.getValue();
+			int nonZero = 0;
+			for (int count : valueCounts)
+				nonZero += count;
+			valueCounts[0] += nnArray.length + 1 - nonZero;
+			int maxIndex = 0;
+			for (int v = 1; v < valueCounts.length; v++)
+				if (valueCounts[v] > valueCounts[maxIndex])
+					maxIndex = v;
+			result.put(entry.getKey(), (double) maxIndex);
+		}
+		result.put(input.classIndex(), (double) minIndex);
+
+		int count = 0;
+		for (double value : result.values())
+			if (value != 0)
+				count++;
+		int[] newIndices = new int[count];
+		double[] newValues = new double[count];
+		int k = 0;
+		for (Map.Entry<Integer, Double> entry : result.entrySet()) {
+			if (entry.getValue() == 0)
+				continue;
+			newIndices[k] = entry.getKey();
+			newValues[k++] = entry.getValue();
+		}
+		return new SparseInstance(1.0, newValues, newIndices, input.numAttributes());
+	}
+
+	private static void addVotes(Map<Integer, int[]> votes, int[] indices, double[] values, Instances input) {
+		for (int p = 0; p < indices.length; p++) {
+			Attribute attr = input.attribute(indices[p]);
+			if (!attr.isNominal() && !attr.isString())
+				continue;
+			int[] valueCounts = votes.get(indices[p]);
+			if (valueCounts == null) {
+				valueCounts = new int[attr.numValues()];
+				votes.put(indices[p], valueCounts);
+			}
+			valueCounts[(int) values[p]]++;
+		}
+	}
+
+	/**
+	 * Main method for running this filter.
+	 *
+	 * @param args
+	 *            should contain arguments to the filter: use -h for help
+	 */
+	public static void main(String[] args) {
+		runFilter(new SparseSMOTE(), args);
+	}
+}
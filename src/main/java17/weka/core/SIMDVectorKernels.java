@@ -0,0 +1,70 @@
+package weka.core;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * <p>
+ * {@link VectorKernels} with the Vector API of Java 17 and higher. Compiled into <code>META-INF/versions/17</code> of
+ * the multi-release jar and loaded by {@link VectorKernels#getInstance()} if the JVM is started with
+ * <code>--add-modules jdk.incubator.vector</code>. The remainder of a block that does not fill a whole vector is
+ * handled by the scalar loops.
+ * </p>
+ *
+ * @author <a href="mailto:max.schubach@charite.de">Max Schubach</a>
+ *
+ */
+public class SIMDVectorKernels extends VectorKernels {
+
+	/** The preferred vector shape of the platform */
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	@Override
+	public boolean isVectorized() {
+		return true;
+	}
+
+	/**
+	 * Computes the squared differences lane-wise, but adds them up one by one in the order of the coordinates, as
+	 * {@link VectorKernels#squaredDistance(double[], double[], int)} does. The result is therefore bit for bit the
+	 * scalar one, and models do not depend on the JVM they are built on. Missing coordinates add zero.
+	 */
+	@Override
+	public double squaredDistance(double[] a, double[] b, int length) {
+		double[] squares = new double[SPECIES.length()];
+		double result = 0;
+		int i = 0;
+		for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+			DoubleVector diff = DoubleVector.fromArray(SPECIES, a, i).sub(DoubleVector.fromArray(SPECIES, b, i));
+			diff.mul(diff).blend(0.0, diff.test(VectorOperators.IS_NAN)).intoArray(squares, 0);
+			for (double square : squares)
+				result += square;
+		}
+		for (; i < length; i++) {
+			double diff = a[i] - b[i];
+			if (!Double.isNaN(diff))
+				result += diff * diff;
+		}
+		return result;
+	}
+
+	@Override
+	public int lessThan(double[] values, int length, double threshold, boolean[] less) {
+		int count = 0;
+		int i = 0;
+		for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+			VectorMask<Double> mask = DoubleVector.fromArray(SPECIES, values, i).compare(VectorOperators.LT, threshold);
+			mask.intoArray(less, i);
+			count += mask.trueCount();
+		}
+		for (; i < length; i++) {
+			less[i] = values[i] < threshold;
+			if (less[i])
+				count++;
+		}
+		return count;
+	}
+
+}
@@ -0,0 +1,119 @@
+package weka.classifiers.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+import com.google.common.io.Resources;
+
+import weka.classifiers.Evaluation;
+import weka.classifiers.trees.HyperSMURF;
+import weka.core.Instances;
+
+public class StreamingRankMetricsTest {
+
+	@Test
+	public void boundTest() throws Exception {
+		Random random = new Random(42);
+		int n = 20000;
+		double[] scores = new double[n];
+		boolean[] positive = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			positive[i] = random.nextDouble() < 0.05;
+			// some ties
+			double score = random.nextDouble() * 0.8 + (positive[i] ? 0.2 : 0);
+			scores[i] = i % 10 == 0 ? Math.round(score * 100) / 100.0 : score;
+		}
+		double auprc = RankMetrics.areaUnderPRC(scores, positive);
+		double auroc = RankMetrics.areaUnderROC(scores, positive);
+
+		StreamingRankMetrics exact = new StreamingRankMetrics(StreamingRankMetrics.EXACT);
+		exact.add(scores, positive);
+		assertEquals(auprc, exact.areaUnderPRC(), 0);
+		assertEquals(auroc, exact.areaUnderROC(), 0);
+
+		for (int numBins : new int[] { 10, 1000, StreamingRankMetrics.DEFAULT_NUM_BINS }) {
+			StreamingRankMetrics metrics = new StreamingRankMetrics(numBins);
+			metrics.add(scores, positive);
+			assertEquals(auprc, metrics.areaUnderPRC(), metrics.getPRCErrorBound());
+			assertEquals(auroc, metrics.areaUnderROC(), metrics.getROCErrorBound());
+			if (numBins == StreamingRankMetrics.DEFAULT_NUM_BINS) {
+				assertThat(metrics.getPRCErrorBound(), Matchers.lessThan(1e-3));
+				assertThat(metrics.getROCErrorBound(), Matchers.lessThan(1e-4));
+			}
+		}
+
+		// scores outside [0, 1] are counted in the first or last bin
+		StreamingRankMetrics metrics = new StreamingRankMetrics(10);
+		metrics.add(new double[] { -1, 0.5, 2 }, new boolean[] { false, false, true });
+		assertEquals(1, metrics.areaUnderPRC(), 0);
+		assertEquals(1, metrics.areaUnderROC(), 0);
+	}
+
+	@Test
+	public void mergeTest() throws Exception {
+		Random random = new Random(7);
+		for (int numBins : new int[] { StreamingRankMetrics.EXACT, 100 }) {
+			StreamingRankMetrics all = new StreamingRankMetrics(numBins);
+			StreamingRankMetrics[] parts = new StreamingRankMetrics[3];
+			for (int p = 0; p < parts.length; p++)
+				parts[p] = new StreamingRankMetrics(numBins);
+			for (int i = 0; i < 3000; i++) {
+				double score = random.nextDouble();
+				boolean positive = random.nextDouble() < score * 0.2;
+				all.add(score, positive);
+				parts[i % parts.length].add(score, positive);
+			}
+			parts[0].merge(parts[1]);
+			parts[0].merge(parts[2]);
+			assertEquals(all.getNumPositives(), parts[0].getNumPositives());
+			assertEquals(all.getNumNegatives(), parts[0].getNumNegatives());
+			assertEquals(all.areaUnderPRC(), parts[0].areaUnderPRC(), 1e-12);
+			assertEquals(all.areaUnderROC(), parts[0].areaUnderROC(), 1e-12);
+			assertEquals(all.getPRCErrorBound(), parts[0].getPRCErrorBound(), 1e-12);
+		}
+	}
+
+	@Test
+	public void hyperSMURFTest() throws Exception {
+		File file = new File(Resources.getResource("diabetes.arff.gz").getPath());
+		GZIPInputStream in = new GZIPInputStream(new FileInputStream(file));
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+		Instances data = new Instances(reader);
+		in.close();
+		reader.close();
+		data.setClassIndex(data.numAttributes() - 1);
+		data.randomize(new Random(42));
+		Instances train = data.trainCV(3, 0);
+		Instances test = data.testCV(3, 0);
+
+		HyperSMURF hyperSMURF = new HyperSMURF();
+		hyperSMURF.setNumIterations(2);
+		hyperSMURF.buildClassifier(train);
+		Evaluation eval = new Evaluation(train);
+		eval.evaluateModel(hyperSMURF, test);
+
+		// scored in blocks
+		StreamingRankMetrics exact = new StreamingRankMetrics(StreamingRankMetrics.EXACT);
+		StreamingRankMetrics histogram = new StreamingRankMetrics();
+		for (int first = 0; first < test.numInstances(); first += 100) {
+			Instances block = new Instances(test, first, Math.min(100, test.numInstances() - first));
+			exact.add(hyperSMURF, block, 1);
+			histogram.add(hyperSMURF, block, 1);
+		}
+		assertEquals(eval.areaUnderPRC(1), exact.areaUnderPRC(), 1e-12);
+		assertEquals(eval.areaUnderROC(1), exact.areaUnderROC(), 1e-12);
+		assertEquals(eval.areaUnderPRC(1), histogram.areaUnderPRC(), histogram.getPRCErrorBound() + 1e-12);
+		assertEquals(eval.areaUnderROC(1), histogram.areaUnderROC(), histogram.getROCErrorBound() + 1e-12);
+	}
+
+}
@@ -1,26 +1,44 @@
 package weka.classifiers.meta;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
 
 import org.hamcrest.Matchers;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import com.google.common.io.Resources;
 
+import weka.classifiers.Classifier;
 import weka.classifiers.Evaluation;
 import weka.classifiers.trees.J48;
+import weka.classifiers.trees.RandomForest;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
 import weka.core.Instances;
+import weka.core.SelectedTag;
+import weka.core.Utils;
+import weka.core.converters.ColumnarDataset;
+import weka.core.converters.ColumnarSaver;
 
 public class EasyEnsembleTest {
 
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
 	private static Instances data;
 	private static Instances randData;
 	private static String diabetesFile = "diabetes.arff.gz";
@@ -63,4 +81,263 @@ public class EasyEnsembleTest {
 		assertThat(rocEasyEnsemble, Matchers.greaterThan(rocJ48));
 	}
 
+	@Test
+	public void majorityStorageTest() throws Exception {
+		Instances weighted = new Instances(randData);
+		weighted.instance(3).setWeight(2.0);
+		double[][] expected = newEasyEnsemble(EasyEnsemble.STORAGE_HEAP, weighted).distributionsForInstances(data);
+		for (int storage : new int[] { EasyEnsemble.STORAGE_DIRECT, EasyEnsemble.STORAGE_MAPPED }) {
+			EasyEnsemble easyEnsemble = newEasyEnsemble(storage, weighted);
+			double[][] actual = easyEnsemble.distributionsForInstances(data);
+			for (int i = 0; i < expected.length; i++)
+				assertArrayEquals(expected[i], actual[i], 0.0);
+		}
+
+		// training from a columnar file, weights are not stored there
+		expected = newEasyEnsemble(EasyEnsemble.STORAGE_HEAP, randData).distributionsForInstances(data);
+		File file = folder.newFile("diabetes.hsc");
+		ColumnarSaver saver = new ColumnarSaver();
+		saver.setInstances(randData);
+		saver.setFile(file);
+		saver.writeBatch();
+		ColumnarDataset dataset = ColumnarDataset.open(file);
+		EasyEnsemble easyEnsemble = newEasyEnsemble(EasyEnsemble.STORAGE_HEAP, null);
+		easyEnsemble.buildClassifier(dataset);
+		dataset.close();
+		double[][] actual = easyEnsemble.distributionsForInstances(data);
+		for (int i = 0; i < expected.length; i++)
+			assertArrayEquals(expected[i], actual[i], 0.0);
+	}
+
+	@Test
+	public void memoryBudgetTest() throws Exception {
+		// two partitions of 400 KB and their extra copies fit into 1 MB
+		EasyEnsemble easyEnsemble = new EasyEnsemble() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected long estimatePartitionMemory(int classifier) {
+				return 400 * 1024;
+			}
+		};
+		easyEnsemble.setNumIterations(8);
+		easyEnsemble.setNumExecutionSlots(4);
+		easyEnsemble.setMemoryBudget(1);
+		easyEnsemble.setClassifier(new ConcurrencyCountingJ48());
+		ConcurrencyCountingJ48.reset();
+		easyEnsemble.buildClassifier(randData);
+		assertEquals(2, ConcurrencyCountingJ48.MAX_RUNNING.get());
+
+		// without a budget all slots build partitions
+		easyEnsemble.setMemoryBudget(0);
+		ConcurrencyCountingJ48.reset();
+		easyEnsemble.buildClassifier(randData);
+		assertThat(ConcurrencyCountingJ48.MAX_RUNNING.get(), Matchers.greaterThan(2));
+
+		// two partitions of 512 KB fill the budget, the forests get no extra slots for their bootstrap samples
+		EasyEnsemble forests = new EasyEnsemble() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected long estimatePartitionMemory(int classifier) {
+				return 512 * 1024;
+			}
+		};
+		forests.setNumIterations(8);
+		forests.setNumExecutionSlots(4);
+		forests.setMemoryBudget(1);
+		forests.setClassifier(new RandomForest());
+		forests.buildClassifier(randData);
+		for (Classifier forest : forests.getPartitionClassifiers())
+			assertEquals(1, ((RandomForest) forest).getNumExecutionSlots());
+	}
+
+	/**
+	 * J48 that counts the partitions built at the same time.
+	 */
+	public static class ConcurrencyCountingJ48 extends J48 {
+
+		private static final long serialVersionUID = 1L;
+
+		static final AtomicInteger RUNNING = new AtomicInteger();
+
+		static final AtomicInteger MAX_RUNNING = new AtomicInteger();
+
+		static void reset() {
+			RUNNING.set(0);
+			MAX_RUNNING.set(0);
+		}
+
+		@Override
+		public void buildClassifier(Instances data) throws Exception {
+			int running = RUNNING.incrementAndGet();
+			MAX_RUNNING.accumulateAndGet(running, Math::max);
+			try {
+				Thread.sleep(50);
+				super.buildClassifier(data);
+			} finally {
+				RUNNING.decrementAndGet();
+			}
+		}
+	}
+
+	@Test
+	public void adaptiveTest() throws Exception {
+		EasyEnsemble easyEnsemble = newAdaptiveEasyEnsemble(1);
+		double[] trace = easyEnsemble.getAdaptiveAUPRC();
+		int numBuilt = easyEnsemble.getPartitionClassifiers().length;
+		assertThat(trace.length, Matchers.greaterThanOrEqualTo(2));
+		assertThat(numBuilt, Matchers.lessThan(40));
+		assertEquals(trace.length * easyEnsemble.getAdaptiveWave(), numBuilt);
+		assertThat(trace[trace.length - 1] - trace[trace.length - 2],
+				Matchers.lessThan(easyEnsemble.getAdaptiveTolerance()));
+		assertThat(easyEnsemble.isBuildStopped(), Matchers.is(false));
+
+		// the same partitions for any number of execution slots
+		EasyEnsemble parallel = newAdaptiveEasyEnsemble(3);
+		assertArrayEquals(trace, parallel.getAdaptiveAUPRC(), 0.0);
+		double[][] expected = easyEnsemble.distributionsForInstances(data);
+		double[][] actual = parallel.distributionsForInstances(data);
+		for (int i = 0; i < expected.length; i++)
+			assertArrayEquals(expected[i], actual[i], 0.0);
+
+		// the kept partitions are trained on the whole minority class, like the partitions of a full build
+		EasyEnsemble full = new EasyEnsemble();
+		full.setOptions(new String[] { "-I", "40", "-W", J48.class.getName() });
+		full.buildClassifier(randData);
+		for (int p = 0; p < numBuilt; p++)
+			for (int i = 0; i < randData.numInstances(); i += 10)
+				assertArrayEquals(full.getPartitionClassifiers()[p].distributionForInstance(randData.instance(i)),
+						easyEnsemble.getPartitionClassifiers()[p].distributionForInstance(randData.instance(i)), 0.0);
+	}
+
+	@Test
+	public void minorityClassesTest() throws Exception {
+		// two rare classes split from the positives of diabetes
+		Instances multiClass = getMultiClassData();
+		EasyEnsemble easyEnsemble = newMultiClassEasyEnsemble(2, 3);
+		easyEnsemble.buildClassifier(multiClass);
+		assertArrayEquals(new int[] { 2, 1 }, easyEnsemble.getMinorityClasses());
+		assertEquals(8, easyEnsemble.getPartitionClassifiers().length);
+
+		// each classifier is trained on its partition and one minority class, like a model of that class alone
+		double[][] actual = easyEnsemble.distributionsForInstances(multiClass);
+		for (int k = 0; k < 2; k++) {
+			int minorityClass = easyEnsemble.getMinorityClasses()[k];
+			Instances single = new Instances(multiClass, 0);
+			for (int i = 0; i < multiClass.numInstances(); i++)
+				if ((int) multiClass.instance(i).classValue() != easyEnsemble.getMinorityClasses()[1 - k])
+					single.add(multiClass.instance(i));
+			EasyEnsemble separate = newMultiClassEasyEnsemble(1, 1);
+			separate.buildClassifier(single);
+			assertArrayEquals(new int[] { minorityClass }, separate.getMinorityClasses());
+			for (int p = 0; p < 4; p++)
+				for (int i = 0; i < multiClass.numInstances(); i += 10)
+					assertArrayEquals(separate.getPartitionClassifiers()[p].distributionForInstance(multiClass.instance(i)),
+							easyEnsemble.getPartitionClassifiers()[2 * p + k].distributionForInstance(multiClass.instance(i)),
+							0.0);
+
+			// the same ranking of each minority class
+			double[][] expected = separate.distributionsForInstances(multiClass);
+			for (int i = 0; i < expected.length; i++)
+				assertEquals(expected[i][minorityClass], 2 * actual[i][minorityClass], 1e-12);
+		}
+
+		// at least one majority class is kept
+		easyEnsemble = newMultiClassEasyEnsemble(5, 1);
+		easyEnsemble.buildClassifier(multiClass);
+		assertEquals(2, easyEnsemble.getMinorityClasses().length);
+	}
+
+	@Test
+	public void minorityClassesStoppedTest() throws Exception {
+		Instances multiClass = getMultiClassData();
+		EasyEnsemble complete = newMultiClassEasyEnsemble(2, 1);
+		complete.buildClassifier(multiClass);
+
+		// cancels itself before the fourth classifier, the second partition has only one of its two classifiers
+		CancellationToken token = new CancellationToken() {
+			private int m_Checks = 0;
+
+			@Override
+			public boolean isCancelled() {
+				return ++m_Checks >= 4 || super.isCancelled();
+			}
+		};
+		EasyEnsemble stopped = newMultiClassEasyEnsemble(2, 1);
+		stopped.setCancellationToken(token);
+		stopped.buildClassifier(multiClass);
+		assertThat(stopped.isBuildStopped(), Matchers.is(true));
+		assertEquals(1, stopped.getNumPartitions());
+		assertEquals(4, stopped.getNumIterations());
+		assertEquals(2, stopped.getPartitionClassifiers().length);
+		assertThat(stopped.getBuildReport(), Matchers.containsString("Built 2 of 8 classifiers"));
+		for (int c = 0; c < 2; c++)
+			for (int i = 0; i < multiClass.numInstances(); i += 10)
+				assertArrayEquals(complete.getPartitionClassifiers()[c].distributionForInstance(multiClass.instance(i)),
+						stopped.getPartitionClassifiers()[c].distributionForInstance(multiClass.instance(i)), 0.0);
+
+		// whole partitions are retained
+		complete.retainPartitions(new int[] { 3, 1 });
+		assertEquals(2, complete.getNumPartitions());
+		// the option is kept
+		assertEquals(4, complete.getNumIterations());
+		assertThat(Utils.joinOptions(complete.getOptions()), Matchers.containsString("-I 4"));
+		assertEquals(4, complete.getPartitionClassifiers().length);
+		EasyEnsemble full = newMultiClassEasyEnsemble(2, 1);
+		full.buildClassifier(multiClass);
+		int[] expected = { 6, 7, 2, 3 };
+		for (int c = 0; c < expected.length; c++)
+			assertArrayEquals(full.getPartitionClassifiers()[expected[c]].distributionForInstance(multiClass.instance(0)),
+					complete.getPartitionClassifiers()[c].distributionForInstance(multiClass.instance(0)), 0.0);
+	}
+
+	private static Instances getMultiClassData() {
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		for (int j = 0; j < data.numAttributes() - 1; j++)
+			attributes.add((Attribute) data.attribute(j).copy());
+		attributes.add(new Attribute("class", Arrays.asList("negative", "positiveA", "positiveB")));
+		Instances multiClass = new Instances("multiClass", attributes, randData.numInstances());
+		multiClass.setClassIndex(multiClass.numAttributes() - 1);
+		int numPositives = 0;
+		for (int i = 0; i < randData.numInstances(); i++) {
+			double[] values = randData.instance(i).toDoubleArray();
+			if (values[values.length - 1] == 1) {
+				// 40 of one and 30 of the other rare class
+				if (numPositives >= 70)
+					continue;
+				values[values.length - 1] = numPositives++ < 40 ? 1 : 2;
+			}
+			multiClass.add(new DenseInstance(1.0, values));
+		}
+		return multiClass;
+	}
+
+	private static EasyEnsemble newMultiClassEasyEnsemble(int numMinorityClasses, int numSlots) throws Exception {
+		EasyEnsemble easyEnsemble = new EasyEnsemble();
+		easyEnsemble.setOptions(new String[] { "-I", "4", "-minority-classes", "" + numMinorityClasses, "-num-slots",
+				"" + numSlots, "-W", J48.class.getName() });
+		return easyEnsemble;
+	}
+
+	private static EasyEnsemble newAdaptiveEasyEnsemble(int numSlots) throws Exception {
+		EasyEnsemble easyEnsemble = new EasyEnsemble();
+		easyEnsemble.setOptions(new String[] { "-I", "40", "-adaptive-tolerance", "0.01", "-adaptive-wave", "4",
+				"-num-slots", "" + numSlots, "-W", J48.class.getName() });
+		easyEnsemble.buildClassifier(randData);
+		return easyEnsemble;
+	}
+
+	private static EasyEnsemble newEasyEnsemble(int storage, Instances train) throws Exception {
+		EasyEnsemble easyEnsemble = new EasyEnsemble();
+		easyEnsemble.setNumIterations(3);
+		RandomForest forest = new RandomForest();
+		forest.setNumIterations(10);
+		easyEnsemble.setClassifier(forest);
+		easyEnsemble.setMajorityStorage(new SelectedTag(storage, EasyEnsemble.TAGS_STORAGE));
+		if (train != null)
+			easyEnsemble.buildClassifier(train);
+		return easyEnsemble;
+	}
+
 }
@@ -0,0 +1,151 @@
+package weka.classifiers.meta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.hamcrest.Matchers;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Resources;
+
+import weka.classifiers.trees.J48;
+import weka.core.Instances;
+
+public class MicroBatchScorerTest {
+
+	private Instances data;
+	private String diabetesFile = "diabetes.arff.gz";
+
+	@Before
+	public void setUp() throws Exception {
+		File file = new File(Resources.getResource(diabetesFile).getPath());
+		GZIPInputStream in = new GZIPInputStream(new FileInputStream(file));
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+		data = new Instances(reader);
+		reader.close();
+		// setting class attribute
+		data.setClassIndex(data.numAttributes() - 1);
+	}
+
+	@Test
+	public void scoreConcurrentlyTest() throws Exception {
+
+		final EasyEnsemble easyEnsemble = new EasyEnsemble();
+		easyEnsemble.setNumIterations(3);
+		easyEnsemble.setClassifier(new J48());
+		easyEnsemble.buildClassifier(data);
+
+		final MicroBatchScorer scorer = new MicroBatchScorer(easyEnsemble, data, 16, 1000);
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		List<Future<CompletableFuture<double[]>>> futures = new ArrayList<Future<CompletableFuture<double[]>>>();
+		for (int i = 0; i < data.numInstances(); i++) {
+			final int index = i;
+			futures.add(pool.submit(() -> scorer.score(data.instance(index))));
+		}
+		for (int i = 0; i < data.numInstances(); i++) {
+			assertArrayEquals(easyEnsemble.distributionForInstance(data.instance(i)), futures.get(i).get().get(),
+					1e-12);
+		}
+		pool.shutdown();
+		scorer.close();
+
+		MicroBatchScorer.Statistics statistics = scorer.getStatistics();
+		assertEquals(data.numInstances(), statistics.getNumRequests());
+		long batched = 0;
+		long[] histogram = statistics.getBatchSizeHistogram();
+		for (int i = 0; i < histogram.length; i++)
+			batched += i * histogram[i];
+		assertEquals(data.numInstances(), batched);
+		assertThat(statistics.getLatencyPercentile(99), Matchers.greaterThanOrEqualTo(statistics.getLatencyPercentile(50)));
+	}
+
+	@Test
+	public void interruptTest() throws Exception {
+		J48 j48 = new J48();
+		j48.buildClassifier(data);
+
+		// the worker waits up to 10 s for a full batch
+		MicroBatchScorer scorer = new MicroBatchScorer(j48, data, 100, 10000000);
+		List<CompletableFuture<double[]>> futures = new ArrayList<CompletableFuture<double[]>>();
+		for (int i = 0; i < 3; i++)
+			futures.add(scorer.score(data.instance(i)));
+		scorer.m_Worker.interrupt();
+		for (CompletableFuture<double[]> future : futures) {
+			try {
+				future.get(1, TimeUnit.SECONDS);
+				fail("A request was scored after the worker was interrupted");
+			} catch (CancellationException e) {
+				// expected
+			}
+		}
+		scorer.m_Worker.join(1000);
+		assertThat(scorer.m_Worker.isAlive(), Matchers.is(false));
+		try {
+			scorer.score(data.instance(0)).get(1, TimeUnit.SECONDS);
+			fail("A request was accepted after the worker was interrupted");
+		} catch (ExecutionException e) {
+			assertThat(e.getCause(), Matchers.instanceOf(IllegalStateException.class));
+		}
+		scorer.close();
+	}
+
+	@Test
+	public void closeConcurrentlyTest() throws Exception {
+
+		J48 j48 = new J48();
+		j48.buildClassifier(data);
+
+		// every future completes, scored or failed, whenever close() comes
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		for (int round = 0; round < 20; round++) {
+			final MicroBatchScorer scorer = new MicroBatchScorer(j48, data, 8, 100);
+			List<Future<List<CompletableFuture<double[]>>>> clients = new ArrayList<Future<List<CompletableFuture<double[]>>>>();
+			for (int c = 0; c < 4; c++) {
+				clients.add(pool.submit(new Callable<List<CompletableFuture<double[]>>>() {
+					@Override
+					public List<CompletableFuture<double[]>> call() throws Exception {
+						List<CompletableFuture<double[]>> futures = new ArrayList<CompletableFuture<double[]>>();
+						for (int i = 0; i < 2000; i++)
+							futures.add(scorer.score(data.instance(i % data.numInstances())));
+						return futures;
+					}
+				}));
+			}
+			Thread.sleep(round % 5);
+			scorer.close();
+			int numScored = 0;
+			for (Future<List<CompletableFuture<double[]>>> client : clients) {
+				for (CompletableFuture<double[]> future : client.get()) {
+					try {
+						future.get(10, TimeUnit.SECONDS);
+						numScored++;
+					} catch (ExecutionException e) {
+						assertThat(e.getCause(), Matchers.instanceOf(IllegalStateException.class));
+					}
+				}
+			}
+			assertEquals(numScored, scorer.getStatistics().getNumRequests());
+		}
+		pool.shutdown();
+	}
+
+}
@@ -0,0 +1,87 @@
+package weka.classifiers.meta;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Resources;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.trees.J48;
+import weka.core.Instances;
+import weka.core.Range;
+import weka.core.Utils;
+import weka.core.converters.ConverterUtils.DataSource;
+import weka.filters.Filter;
+import weka.filters.unsupervised.attribute.Reorder;
+
+public class MultiModelScorerTest {
+
+	private Instances data;
+	private String diabetesFile = "diabetes.arff.gz";
+
+	@Before
+	public void setUp() throws Exception {
+		File file = new File(Resources.getResource(diabetesFile).getPath());
+		GZIPInputStream in = new GZIPInputStream(new FileInputStream(file));
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+		data = new Instances(reader);
+		reader.close();
+		// setting class attribute
+		data.setClassIndex(data.numAttributes() - 1);
+	}
+
+	@Test
+	public void scoreTest() throws Exception {
+		// a model on a subset of the attributes in another order
+		Reorder reorder = new Reorder();
+		reorder.setAttributeIndices("3,1,5-last");
+		reorder.setInputFormat(data);
+		Instances reordered = Filter.useFilter(data, reorder);
+		reordered.setClassIndex(reordered.numAttributes() - 1);
+
+		EasyEnsemble easyEnsemble = new EasyEnsemble();
+		easyEnsemble.setNumIterations(3);
+		easyEnsemble.setClassifier(new J48());
+		easyEnsemble.buildClassifier(data);
+		J48 j48 = new J48();
+		j48.buildClassifier(data);
+		EasyEnsemble reorderedEnsemble = new EasyEnsemble();
+		reorderedEnsemble.setNumIterations(3);
+		reorderedEnsemble.setClassifier(new J48());
+		reorderedEnsemble.buildClassifier(reordered);
+
+		MultiModelScorer scorer = new MultiModelScorer(
+				new Classifier[] { easyEnsemble, j48, reorderedEnsemble }, new Instances[] { data, data, reordered },
+				new String[] { "ensemble", "j48", "reordered" });
+		scorer.setNumExecutionSlots(3);
+		double[][] scores = scorer.score(data);
+		for (int i = 0; i < data.numInstances(); i++) {
+			assertEquals(easyEnsemble.distributionForInstance(data.instance(i))[1], scores[i][0], 0.0);
+			assertEquals(j48.distributionForInstance(data.instance(i))[1], scores[i][1], 0.0);
+			assertEquals(reorderedEnsemble.distributionForInstance(reordered.instance(i))[1], scores[i][2], 0.0);
+		}
+
+		// streamed in small batches
+		scorer.setBatchSize(100);
+		StringWriter out = new StringWriter();
+		assertEquals(data.numInstances(), scorer.score(new DataSource(data), new Range("first"), out));
+		String[] lines = out.toString().split("\n");
+		assertEquals(data.numInstances() + 1, lines.length);
+		assertEquals("preg,ensemble,j48,reordered", lines[0]);
+		for (int i = 0; i < data.numInstances(); i++) {
+			assertEquals(data.instance(i).toString(0) + "," + Utils.doubleToString(scores[i][0], 6) + ","
+					+ Utils.doubleToString(scores[i][1], 6) + "," + Utils.doubleToString(scores[i][2], 6),
+					lines[i + 1]);
+		}
+	}
+
+}
@@ -0,0 +1,113 @@
+package weka.classifiers.trees;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.hamcrest.Matchers;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Resources;
+
+import weka.classifiers.evaluation.RankMetrics;
+import weka.core.Instances;
+import weka.core.Utils;
+
+public class HyperSMURFAttributeImportanceTest {
+
+	private Instances train;
+	private Instances validation;
+	private String diabetesFile = "diabetes.arff.gz";
+	private int seed = 42;
+
+	@Before
+	public void setUp() throws Exception {
+		File file = new File(Resources.getResource(diabetesFile).getPath());
+		GZIPInputStream in = new GZIPInputStream(new FileInputStream(file));
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+		Instances data = new Instances(reader);
+		in.close();
+		reader.close();
+		data.setClassIndex(data.numAttributes() - 1);
+		data.randomize(new Random(seed));
+		train = data.trainCV(3, 0);
+		validation = data.testCV(3, 0);
+	}
+
+	@Test
+	public void impurityTest() throws Exception {
+		HyperSMURF hyperSMURF = new HyperSMURF();
+		hyperSMURF.setNumIterations(3);
+		hyperSMURF.setComputeAttributeImportance(true);
+		hyperSMURF.buildClassifier(train);
+
+		HyperSMURFAttributeImportance.Report report = new HyperSMURFAttributeImportance().evaluate(hyperSMURF,
+				new Instances(train, 0), null);
+		assertNull(report.getAUPRCLosses());
+		double[] impurity = report.getImpurityDecreases();
+		assertEquals(0, impurity[train.classIndex()], 0);
+		double numNodes = 0;
+		for (int a = 0; a < train.numAttributes(); a++) {
+			if (a != train.classIndex())
+				assertThat(impurity[a], Matchers.greaterThan(0.0));
+			numNodes += report.getNumNodes()[a];
+		}
+		// every split of every tree
+		double numSplits = 0;
+		for (HyperSMURFInspector.PartitionStatistics partition : HyperSMURFInspector.inspect(hyperSMURF)
+				.getPartitions())
+			numSplits += partition.getNumNodes() - partition.getNumLeaves();
+		assertEquals(numSplits, numNodes, 0);
+	}
+
+	@Test(expected = Exception.class)
+	public void noImportanceTest() throws Exception {
+		HyperSMURF hyperSMURF = new HyperSMURF();
+		hyperSMURF.setNumIterations(2);
+		hyperSMURF.buildClassifier(train);
+		new HyperSMURFAttributeImportance().evaluate(hyperSMURF, new Instances(train, 0), null);
+	}
+
+	@Test
+	public void permutationTest() throws Exception {
+		HyperSMURF hyperSMURF = new HyperSMURF();
+		hyperSMURF.setNumIterations(4);
+		hyperSMURF.buildClassifier(train);
+
+		HyperSMURFAttributeImportance importance = new HyperSMURFAttributeImportance();
+		HyperSMURFAttributeImportance.Report report = importance.evaluate(hyperSMURF, new Instances(train, 0),
+				validation);
+		assertNull(report.getImpurityDecreases());
+		assertEquals(0, report.getAUPRCLosses()[train.classIndex()], 0);
+		assertEquals("plas", train.attribute(Utils.maxIndex(report.getAUPRCLosses())).name());
+
+		// the baseline is the ensemble
+		double[][] distributions = hyperSMURF.distributionsForInstances(validation);
+		double[] scores = new double[distributions.length];
+		boolean[] positive = new boolean[distributions.length];
+		for (int i = 0; i < scores.length; i++) {
+			scores[i] = distributions[i][1];
+			positive[i] = validation.instance(i).classValue() == 1;
+		}
+		assertEquals(RankMetrics.areaUnderPRC(scores, positive), report.getAUPRC(), 1e-12);
+		assertEquals(RankMetrics.areaUnderROC(scores, positive), report.getAUROC(), 1e-12);
+
+		// same result with other blocks and threads
+		importance.setBlockSize(50);
+		importance.setNumThreads(3);
+		HyperSMURFAttributeImportance.Report parallel = importance.evaluate(hyperSMURF, new Instances(train, 0),
+				validation);
+		assertArrayEquals(report.getAUPRCLosses(), parallel.getAUPRCLosses(), 1e-12);
+		assertArrayEquals(report.getAUROCLosses(), parallel.getAUROCLosses(), 1e-12);
+	}
+
+}
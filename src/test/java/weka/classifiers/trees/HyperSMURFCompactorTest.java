@@ -0,0 +1,101 @@
+package weka.classifiers.trees;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.hamcrest.Matchers;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Resources;
+
+import weka.core.Instances;
+import weka.core.SelectedTag;
+
+public class HyperSMURFCompactorTest {
+
+	private Instances train;
+	private Instances validation;
+	private String diabetesFile = "diabetes.arff.gz";
+	private int seed = 42;
+
+	@Before
+	public void setUp() throws Exception {
+		File file = new File(Resources.getResource(diabetesFile).getPath());
+		GZIPInputStream in = new GZIPInputStream(new FileInputStream(file));
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+		Instances data = new Instances(reader);
+		in.close();
+		reader.close();
+		data.setClassIndex(data.numAttributes() - 1);
+		data.randomize(new Random(seed));
+		train = data.trainCV(3, 0);
+		validation = data.testCV(3, 0);
+	}
+
+	@Test
+	public void compactTest() throws Exception {
+		for (String leaves : new String[] { "uint16", "float16" }) {
+			for (String thresholds : new String[] { "float32", "table" }) {
+				HyperSMURF hyperSMURF = new HyperSMURF();
+				hyperSMURF.setNumIterations(3);
+				hyperSMURF.buildClassifier(train);
+
+				HyperSMURFCompactor compactor = new HyperSMURFCompactor();
+				compactor.setLeafFormat(new SelectedTag(leaves, CompactTree.TAGS_LEAVES));
+				compactor.setThresholdFormat(new SelectedTag(thresholds, CompactTree.TAGS_THRESHOLDS));
+				HyperSMURFCompactor.Report report = compactor.compact(hyperSMURF, validation);
+
+				assertEquals(3 * hyperSMURF.getNumTrees(), report.getNumTrees());
+				assertThat(report.getBytesAfter(), Matchers.lessThan(report.getBytesBefore() / 2));
+				if (thresholds.equals("table"))
+					assertThat(report.getMaxDifference(), Matchers.lessThan(leaves.equals("uint16") ? 1e-4 : 1e-3));
+				// values next to a split point can take the other branch with float32 split points
+				assertThat(report.getMeanDifference(), Matchers.lessThan(0.005));
+				assertEquals(report.getAUPRCBefore(), report.getAUPRCAfter(), 0.01);
+				assertEquals(report.getAUROCBefore(), report.getAUROCAfter(), 0.01);
+			}
+		}
+	}
+
+	@Test
+	public void missingValuesTest() throws Exception {
+		Random random = new Random(seed);
+		Instances missing = new Instances(validation);
+		for (int i = 0; i < missing.numInstances(); i++)
+			for (int j = 0; j < missing.numAttributes() - 1; j++)
+				if (random.nextDouble() < 0.2)
+					missing.instance(i).setMissing(j);
+
+		HyperSMURF hyperSMURF = new HyperSMURF();
+		hyperSMURF.setNumIterations(2);
+		hyperSMURF.buildClassifier(train);
+		double[][] before = hyperSMURF.distributionsForInstances(missing);
+
+		HyperSMURFCompactor.Report report = new HyperSMURFCompactor().compact(hyperSMURF, missing);
+		assertThat(report.getMaxDifference(), Matchers.lessThan(1e-3));
+
+		// single and batch scoring of the compact trees agree
+		double[][] batch = hyperSMURF.distributionsForInstances(missing);
+		for (int i = 0; i < missing.numInstances(); i++) {
+			assertArrayEquals(before[i], batch[i], 1e-3);
+			assertArrayEquals(batch[i], hyperSMURF.distributionForInstance(missing.instance(i)), 1e-12);
+		}
+	}
+
+	@Test
+	public void float16Test() throws Exception {
+		for (double value : new double[] { 0, 1e-7, 1e-5, 0.1, 1.0 / 3, 0.5, 0.999, 1 })
+			assertEquals(value, CompactTree.fromFloat16(CompactTree.toFloat16(value)),
+					Math.max(value * 1e-3, 0x1p-25));
+	}
+
+}
@@ -0,0 +1,157 @@
+package weka.classifiers.trees;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Resources;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.core.json.JSONNode;
+
+public class HyperSMURFExporterTest {
+
+	private Instances train;
+	private Instances test;
+	private String diabetesFile = "diabetes.arff.gz";
+	private int seed = 42;
+
+	@Before
+	public void setUp() throws Exception {
+		File file = new File(Resources.getResource(diabetesFile).getPath());
+		GZIPInputStream in = new GZIPInputStream(new FileInputStream(file));
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+		Instances data = new Instances(reader);
+		in.close();
+		reader.close();
+		data.setClassIndex(data.numAttributes() - 1);
+		data.randomize(new Random(seed));
+		train = data.trainCV(3, 0);
+		test = data.testCV(3, 0);
+		// some missing values
+		for (int i = 0; i < test.numInstances(); i += 5)
+			test.instance(i).setMissing(i % (test.numAttributes() - 1));
+	}
+
+	@Test
+	public void jsonTest() throws Exception {
+		HyperSMURF hyperSMURF = new HyperSMURF();
+		hyperSMURF.setNumIterations(3);
+		hyperSMURF.buildClassifier(train);
+		assertScoredByJSON(hyperSMURF, 1e-9);
+
+		new HyperSMURFCompactor().compact(hyperSMURF, test);
+		assertScoredByJSON(hyperSMURF, 1e-9);
+	}
+
+	@Test
+	public void textTest() throws Exception {
+		HyperSMURF hyperSMURF = new HyperSMURF();
+		assertEquals(hyperSMURF.toString(), export(hyperSMURF, false));
+
+		hyperSMURF.setNumIterations(2);
+		hyperSMURF.setPrintTrees(true);
+		hyperSMURF.buildClassifier(train);
+		assertEquals(hyperSMURF.toString(), export(hyperSMURF, false));
+	}
+
+	private String export(HyperSMURF model, boolean json) throws Exception {
+		StringWriter writer = new StringWriter();
+		HyperSMURFExporter exporter = new HyperSMURFExporter(writer);
+		if (json)
+			exporter.writeJSON(model, new Instances(train, 0));
+		else
+			exporter.writeText(model);
+		return writer.toString();
+	}
+
+	/**
+	 * Scores the test set with the exported model as described in {@link HyperSMURFExporter}.
+	 */
+	private void assertScoredByJSON(HyperSMURF model, double delta) throws Exception {
+		JSONNode json = JSONNode.read(new StringReader(export(model, true)));
+		assertEquals("hyperSMURF", json.getChild("format").getValue());
+		assertEquals(train.classIndex(), ((Number) json.getChild("classIndex").getValue()).intValue());
+		assertEquals(train.numAttributes(), json.getChild("attributes").getChildCount());
+		JSONNode partitions = json.getChild("partitions");
+		assertEquals(model.getPartitionClassifiers().length, partitions.getChildCount());
+
+		for (int i = 0; i < test.numInstances(); i++) {
+			Instance instance = test.instance(i);
+			double[] sum = new double[train.numClasses()];
+			for (int p = 0; p < partitions.getChildCount(); p++) {
+				JSONNode trees = ((JSONNode) partitions.getChildAt(p)).getChild("trees");
+				double[] forest = new double[sum.length];
+				for (int t = 0; t < trees.getChildCount(); t++) {
+					JSONNode tree = (JSONNode) trees.getChildAt(t);
+					double[] dist = score(tree.getChild("root"), instance,
+							(Boolean) tree.getChild("allowUnclassified").getValue());
+					if (dist != null)
+						for (int j = 0; j < sum.length; j++)
+							forest[j] += dist[j];
+				}
+				normalize(forest);
+				for (int j = 0; j < sum.length; j++)
+					sum[j] += forest[j];
+			}
+			normalize(sum);
+			assertArrayEquals(model.distributionForInstance(instance), sum, delta);
+		}
+	}
+
+	private static double[] score(JSONNode node, Instance instance, boolean allowUnclassified) {
+		if (node.hasChild("successors")) {
+			int attribute = ((Number) node.getChild("attribute").getValue()).intValue();
+			JSONNode successors = node.getChild("successors");
+			if (instance.isMissing(attribute)) {
+				double[] dist = new double[instance.numClasses()];
+				double[] props = numbers(node.getChild("props"));
+				for (int i = 0; i < successors.getChildCount(); i++) {
+					double[] help = score((JSONNode) successors.getChildAt(i), instance, allowUnclassified);
+					if (help != null)
+						for (int j = 0; j < dist.length; j++)
+							dist[j] += props[i] * help[j];
+				}
+				return dist;
+			}
+			int successor = node.hasChild("split")
+					? (instance.value(attribute) < ((Number) node.getChild("split").getValue()).doubleValue() ? 0 : 1)
+					: (int) instance.value(attribute);
+			double[] dist = score((JSONNode) successors.getChildAt(successor), instance, allowUnclassified);
+			if (dist != null)
+				return dist;
+		}
+		double[] dist = numbers(node.getChild("distribution"));
+		if (dist == null && allowUnclassified)
+			return new double[instance.numClasses()];
+		return dist;
+	}
+
+	private static double[] numbers(JSONNode node) {
+		if (!node.isArray())
+			return null;
+		double[] numbers = new double[node.getChildCount()];
+		for (int i = 0; i < numbers.length; i++)
+			numbers[i] = ((Number) ((JSONNode) node.getChildAt(i)).getValue()).doubleValue();
+		return numbers;
+	}
+
+	private static void normalize(double[] dist) {
+		if (!Utils.eq(Utils.sum(dist), 0))
+			Utils.normalize(dist);
+	}
+
+}
@@ -0,0 +1,72 @@
+package weka.classifiers.trees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.zip.GZIPInputStream;
+
+import org.hamcrest.Matchers;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Resources;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.meta.FilteredClassifier;
+import weka.classifiers.trees.HyperSMURFInspector.ModelStatistics;
+import weka.classifiers.trees.HyperSMURFInspector.PartitionStatistics;
+import weka.classifiers.trees.HyperSMURFInspector.TreeStatistics;
+import weka.core.Instances;
+
+public class HyperSMURFInspectorTest {
+
+	private Instances data;
+	private String diabetesFile = "diabetes.arff.gz";
+
+	@Before
+	public void setUp() throws Exception {
+		File file = new File(Resources.getResource(diabetesFile).getPath());
+		GZIPInputStream in = new GZIPInputStream(new FileInputStream(file));
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+		data = new Instances(reader);
+		in.close();
+		reader.close();
+		data.setClassIndex(data.numAttributes() - 1);
+	}
+
+	@Test
+	public void inspectTest() throws Exception {
+		HyperSMURF hyperSMURF = new HyperSMURF();
+		hyperSMURF.setOptions(new String[] { "-I", "3" });
+		hyperSMURF.setNumTrees(5);
+		hyperSMURF.buildClassifier(data);
+
+		ModelStatistics statistics = HyperSMURFInspector.inspect(hyperSMURF);
+		Classifier[] partitions = hyperSMURF.getPartitionClassifiers();
+		assertEquals(partitions.length, statistics.getPartitions().size());
+		long bytes = statistics.getEnsembleBytes();
+		for (int i = 0; i < partitions.length; i++) {
+			PartitionForest forest = (PartitionForest) ((FilteredClassifier) partitions[i]).getClassifier();
+			PartitionStatistics partition = statistics.getPartitions().get(i);
+			assertEquals(forest.getNumTrees(), partition.getTrees().size());
+			for (int j = 0; j < forest.getNumTrees(); j++) {
+				TreeStatistics tree = partition.getTrees().get(j);
+				assertEquals(((RandomTree) forest.getTree(j)).numElements(), tree.getNumNodes());
+				// binary splits on the numeric attributes
+				assertEquals(tree.getNumNodes() + 1, 2 * tree.getNumLeaves());
+				assertThat(tree.getDepth(), Matchers.greaterThan(0));
+				assertThat(tree.getBytes(), Matchers.greaterThan(40L * tree.getNumNodes()));
+			}
+			assertThat(partition.getFilterBytes(), Matchers.greaterThan(0L));
+			assertThat(partition.getHeaderBytes(), Matchers.greaterThan(0L));
+			bytes += partition.getBytes();
+		}
+		assertEquals(bytes, statistics.getBytes());
+		assertEquals(partitions.length + 4, statistics.toString().split("\n").length);
+	}
+
+}
@@ -0,0 +1,96 @@
+package weka.classifiers.trees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.zip.GZIPInputStream;
+
+import org.hamcrest.Matchers;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Resources;
+
+import weka.classifiers.trees.HyperSMURFPlanner.Configuration;
+import weka.classifiers.trees.HyperSMURFPlanner.Plan;
+import weka.core.Instances;
+import weka.filters.Filter;
+
+public class HyperSMURFPlannerTest {
+
+	private Instances data;
+	private String diabetesFile = "diabetes.arff.gz";
+
+	@Before
+	public void setUp() throws Exception {
+		File file = new File(Resources.getResource(diabetesFile).getPath());
+		GZIPInputStream in = new GZIPInputStream(new FileInputStream(file));
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+		data = new Instances(reader);
+		in.close();
+		reader.close();
+		data.setClassIndex(data.numAttributes() - 1);
+	}
+
+	@Test
+	public void trainingSetTest() throws Exception {
+		HyperSMURF hyperSMURF = new HyperSMURF();
+		hyperSMURF.setOptions(new String[] { "-I", "3" });
+		Plan plan = new HyperSMURFPlanner(hyperSMURF).plan(data);
+		// 500 majority instances in 3 partitions
+		assertEquals(167, plan.getPartitionMajority());
+
+		// the training set of the forest is the output of the filters of the classifier
+		hyperSMURF.setOptions(new String[] { "-I", "1", "-P", "20", "-M", "0.8" });
+		HyperSMURFPlanner planner = new HyperSMURFPlanner(hyperSMURF);
+		plan = planner.plan(data);
+		Filter smote = hyperSMURF.getSMOTE(1);
+		smote.setInputFormat(data);
+		Instances smoted = Filter.useFilter(data, smote);
+		Filter subsample = hyperSMURF.getSpreadSubsample(1);
+		subsample.setInputFormat(smoted);
+		Instances training = Filter.useFilter(smoted, subsample);
+		int[] counts = training.attributeStats(training.classIndex()).nominalCounts;
+		assertEquals(counts[1], plan.getSMOTEInstances());
+		assertEquals(counts[0], plan.getSubsampledInstances());
+
+		planner.calibrate(data);
+		assertTrue(planner.isCalibrated());
+		assertThat(planner.plan(data).getPartitionSeconds(), Matchers.greaterThan(0.0));
+	}
+
+	@Test
+	public void recommendationTest() throws Exception {
+		HyperSMURF hyperSMURF = new HyperSMURF();
+		hyperSMURF.setOptions(new String[] { "-I", "4" });
+		HyperSMURFPlanner planner = new HyperSMURFPlanner(hyperSMURF);
+		planner.setNumCores(4);
+		Plan plan = planner.plan(data);
+		// 1, 2 and 4 partitions at the same time, on the heap and memory-mapped
+		assertEquals(6, plan.getConfigurations().size());
+
+		// enough heap for everything: the fastest configuration
+		assertEquals(4, plan.getRecommended().getPartitionSlots());
+		assertEquals(1, plan.getRecommended().getTreeSlots());
+
+		// only the smallest configurations fit
+		planner.setHeap(plan.getMinimumMemory());
+		plan = planner.plan(data);
+		Configuration recommended = plan.getRecommended();
+		assertThat(recommended.getPeakMemory(), Matchers.lessThanOrEqualTo(planner.getHeap()));
+		for (Configuration configuration : plan.getConfigurations()) {
+			if (configuration.getPeakMemory() <= planner.getHeap())
+				assertThat(recommended.getSeconds(), Matchers.lessThanOrEqualTo(configuration.getSeconds()));
+		}
+
+		planner.setHeap(plan.getMinimumMemory() - 1);
+		assertNull(planner.plan(data).getRecommended());
+	}
+
+}
@@ -0,0 +1,86 @@
+package weka.classifiers.trees;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.hamcrest.Matchers;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Resources;
+
+import weka.classifiers.Evaluation;
+import weka.classifiers.evaluation.RankMetrics;
+import weka.core.Instances;
+
+public class HyperSMURFPrunerTest {
+
+	private Instances train;
+	private Instances validation;
+	private String diabetesFile = "diabetes.arff.gz";
+	private int seed = 42;
+
+	@Before
+	public void setUp() throws Exception {
+		File file = new File(Resources.getResource(diabetesFile).getPath());
+		GZIPInputStream in = new GZIPInputStream(new FileInputStream(file));
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+		Instances data = new Instances(reader);
+		in.close();
+		reader.close();
+		data.setClassIndex(data.numAttributes() - 1);
+		data.randomize(new Random(seed));
+		train = data.trainCV(3, 0);
+		validation = data.testCV(3, 0);
+	}
+
+	@Test
+	public void pruneTest() throws Exception {
+		HyperSMURF hyperSMURF = new HyperSMURF();
+		hyperSMURF.setNumIterations(4);
+		hyperSMURF.buildClassifier(train);
+
+		HyperSMURFPruner pruner = new HyperSMURFPruner();
+		pruner.setTolerance(0.02);
+		pruner.prune(hyperSMURF, validation);
+
+		List<HyperSMURFPruner.Step> curve = pruner.getCurve();
+		HyperSMURFPruner.Step unpruned = curve.get(0);
+		HyperSMURFPruner.Step pruned = curve.get(curve.size() - 1);
+		assertThat(pruned.getNumTrees(), Matchers.lessThan(unpruned.getNumTrees()));
+		assertThat(pruned.getAUPRC(), Matchers.greaterThanOrEqualTo(unpruned.getAUPRC() - 0.02 - 1e-6));
+
+		Evaluation eval = new Evaluation(train);
+		eval.evaluateModel(hyperSMURF, validation);
+		assertEquals(eval.areaUnderPRC(1), pruned.getAUPRC(), 1e-12);
+	}
+
+	@Test
+	public void rankMetricsTest() throws Exception {
+		HyperSMURF hyperSMURF = new HyperSMURF();
+		hyperSMURF.setNumIterations(2);
+		hyperSMURF.buildClassifier(train);
+
+		double[][] distributions = hyperSMURF.distributionsForInstances(validation);
+		double[] scores = new double[distributions.length];
+		boolean[] positive = new boolean[distributions.length];
+		for (int i = 0; i < scores.length; i++) {
+			scores[i] = distributions[i][1];
+			positive[i] = validation.instance(i).classValue() == 1;
+		}
+
+		Evaluation eval = new Evaluation(train);
+		eval.evaluateModel(hyperSMURF, validation);
+		assertEquals(eval.areaUnderPRC(1), RankMetrics.areaUnderPRC(scores, positive), 1e-12);
+		assertEquals(eval.areaUnderROC(1), RankMetrics.areaUnderROC(scores, positive), 1e-12);
+	}
+
+}
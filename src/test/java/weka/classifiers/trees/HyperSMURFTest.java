@@ -1,22 +1,44 @@
 package weka.classifiers.trees;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
 import java.util.zip.GZIPInputStream;
 
 import org.hamcrest.Matchers;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
 import com.google.common.io.Resources;
 
+import weka.classifiers.Classifier;
 import weka.classifiers.Evaluation;
+import weka.classifiers.meta.CancellationToken;
+import weka.classifiers.meta.FilteredClassifier;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.SparseInstance;
+import weka.core.Utils;
+import weka.filters.Filter;
+import weka.filters.MultiFilter;
+import weka.filters.supervised.instance.SMOTE;
+import weka.filters.unsupervised.instance.NonSparseToSparse;
 
 public class HyperSMURFTest {
 
@@ -133,4 +155,413 @@ public class HyperSMURFTest {
 		assertThat(rocHyperSMURF, Matchers.greaterThan(rocRF));
 	}
 
+	@Test
+	public void memoryBudgetTest() throws Exception {
+
+		HyperSMURF hyperSMURF = new HyperSMURF();
+		hyperSMURF.setNumIterations(4);
+		hyperSMURF.buildClassifier(randDiabetesData);
+
+		HyperSMURF budgetHyperSMURF = new HyperSMURF();
+		budgetHyperSMURF.setNumIterations(4);
+		budgetHyperSMURF.setNumExecutionSlots(4);
+		budgetHyperSMURF.setMemoryBudget(1);
+		budgetHyperSMURF.buildClassifier(randDiabetesData);
+
+		for (int i = 0; i < randDiabetesData.numInstances(); i++) {
+			assertArrayEquals(hyperSMURF.distributionForInstance(randDiabetesData.instance(i)),
+					budgetHyperSMURF.distributionForInstance(randDiabetesData.instance(i)), 1e-12);
+		}
+	}
+
+	@Test
+	public void executionSlotsTest() throws Exception {
+
+		HyperSMURF hyperSMURF = new HyperSMURF();
+		hyperSMURF.setNumIterations(4);
+		hyperSMURF.buildClassifier(randDiabetesData);
+
+		HyperSMURF parallelHyperSMURF = new HyperSMURF();
+		parallelHyperSMURF.setNumIterations(4);
+		parallelHyperSMURF.setNumExecutionSlots(3);
+		parallelHyperSMURF.setNumRFExecutionSlots(4);
+		parallelHyperSMURF.buildClassifier(randDiabetesData);
+
+		for (int i = 0; i < randDiabetesData.numInstances(); i++) {
+			assertArrayEquals(hyperSMURF.distributionForInstance(randDiabetesData.instance(i)),
+					parallelHyperSMURF.distributionForInstance(randDiabetesData.instance(i)), 0.0);
+		}
+	}
+
+	@Test
+	public void cancellationTest() throws Exception {
+
+		// cancels itself at the 18th check: before partition 1, trees 1-10, before partition 2, trees 1-5
+		CancellationToken token = new CancellationToken() {
+			private int m_Checks = 0;
+
+			@Override
+			public boolean isCancelled() {
+				return ++m_Checks >= 18 || super.isCancelled();
+			}
+		};
+
+		HyperSMURF hyperSMURF = new HyperSMURF();
+		hyperSMURF.setNumIterations(3);
+		hyperSMURF.setCancellationToken(token);
+		hyperSMURF.buildClassifier(randDiabetesData);
+
+		assertTrue(hyperSMURF.isBuildStopped());
+		assertEquals(2, hyperSMURF.getPartitionClassifiers().length);
+		PartitionForest forest = (PartitionForest) ((FilteredClassifier) hyperSMURF.getPartitionClassifiers()[1])
+				.getClassifier();
+		assertEquals(5, forest.getNumTrees());
+		// the options are kept
+		assertEquals(2, hyperSMURF.getNumPartitions());
+		assertEquals(3, hyperSMURF.getNumIterations());
+		assertEquals(10, forest.getNumIterations());
+		assertThat(hyperSMURF.getBuildReport(), Matchers.containsString("Built 2 of 3 partitions"));
+		assertThat(hyperSMURF.getBuildReport(), Matchers.containsString("15 of 20 trees"));
+		double[] distribution = hyperSMURF.distributionForInstance(randDiabetesData.instance(0));
+		assertEquals(1.0, distribution[0] + distribution[1], 1e-12);
+
+		// a time limit that is over before the first partition
+		hyperSMURF = new HyperSMURF();
+		hyperSMURF.setNumIterations(3);
+		hyperSMURF.setTimeLimit(1e-9);
+		try {
+			hyperSMURF.buildClassifier(randDiabetesData);
+			fail("A model has been built without any time");
+		} catch (Exception e) {
+			assertThat(e.getMessage(), Matchers.containsString("stopped before a partition was finished"));
+		}
+	}
+
+	@Test
+	public void minorityClassesTest() throws Exception {
+		// the positives of diabetes split into two rare classes
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		for (int j = 0; j < randDiabetesData.numAttributes() - 1; j++)
+			attributes.add((Attribute) randDiabetesData.attribute(j).copy());
+		attributes.add(new Attribute("class", Arrays.asList("negative", "positiveA", "positiveB")));
+		Instances data = new Instances("multiClass", attributes, randDiabetesData.numInstances());
+		data.setClassIndex(data.numAttributes() - 1);
+		int numPositives = 0;
+		for (int i = 0; i < randDiabetesData.numInstances(); i++) {
+			double[] values = randDiabetesData.instance(i).toDoubleArray();
+			if (values[values.length - 1] == 1)
+				values[values.length - 1] = 1 + numPositives++ % 2;
+			data.add(new DenseInstance(1.0, values));
+		}
+
+		for (boolean lazySMOTE : new boolean[] { false, true }) {
+			HyperSMURF hyperSMURF = new HyperSMURF();
+			hyperSMURF.setOptions(new String[] { "-I", "3", "-minority-classes", "2", "-num-slots", "2" });
+			hyperSMURF.setLazySMOTE(lazySMOTE);
+			hyperSMURF.buildClassifier(data);
+			Classifier[] classifiers = hyperSMURF.getPartitionClassifiers();
+			assertEquals(6, classifiers.length);
+			assertThat(hyperSMURF.getBuildReport(),
+					Matchers.containsString("Built 6 of 6 classifiers for 2 minority classes"));
+
+			// the classifiers of a partition oversample their own minority class
+			for (int i = 0; i < classifiers.length; i++) {
+				String classValue = "" + (hyperSMURF.getMinorityClasses()[i % 2] + 1);
+				FilteredClassifier classifier = (FilteredClassifier) classifiers[i];
+				if (classifier.getClassifier() instanceof LazySMOTEForest)
+					assertEquals(classValue, ((LazySMOTEForest) classifier.getClassifier()).getClassValueIndex());
+				else
+					assertEquals(classValue,
+							((SMOTE) ((MultiFilter) classifier.getFilter()).getFilters()[0]).getClassValue());
+			}
+
+			Evaluation eval = new Evaluation(data);
+			eval.evaluateModel(hyperSMURF, data);
+			assertThat(eval.areaUnderROC(1), Matchers.greaterThan(0.8));
+			assertThat(eval.areaUnderROC(2), Matchers.greaterThan(0.8));
+		}
+	}
+
+	@Test
+	public void lazySMOTETest() throws Exception {
+
+		HyperSMURF hyperSMURF = new HyperSMURF();
+		hyperSMURF.setOptions(new String[] { "-I", "3", "-P", "300" });
+		Evaluation eval = new Evaluation(randDiabetesData);
+		eval.crossValidateModel(hyperSMURF, randDiabetesData, folds, new Random(seed));
+		double prcHyperSMURF = eval.areaUnderPRC(1);
+
+		HyperSMURF lazyHyperSMURF = new HyperSMURF();
+		lazyHyperSMURF.setOptions(new String[] { "-I", "3", "-P", "300", "-lazy-smote" });
+		eval = new Evaluation(randDiabetesData);
+		eval.crossValidateModel(lazyHyperSMURF, randDiabetesData, folds, new Random(seed));
+		double prcLazyHyperSMURF = eval.areaUnderPRC(1);
+
+		assertEquals(prcHyperSMURF, prcLazyHyperSMURF, 0.05);
+
+		// the synthetic instances do not depend on the tree that draws them
+		lazyHyperSMURF.buildClassifier(randDiabetesData);
+		assertTrue(((FilteredClassifier) lazyHyperSMURF.getPartitionClassifiers()[0])
+				.getClassifier() instanceof LazySMOTEForest);
+		HyperSMURF parallelHyperSMURF = new HyperSMURF();
+		parallelHyperSMURF.setOptions(new String[] { "-I", "3", "-P", "300", "-lazy-smote" });
+		parallelHyperSMURF.setNumRFExecutionSlots(4);
+		parallelHyperSMURF.buildClassifier(randDiabetesData);
+		for (int i = 0; i < randDiabetesData.numInstances(); i++) {
+			assertArrayEquals(lazyHyperSMURF.distributionForInstance(randDiabetesData.instance(i)),
+					parallelHyperSMURF.distributionForInstance(randDiabetesData.instance(i)), 0.0);
+		}
+	}
+
+	@Test
+	public void lazySMOTESparseTest() throws Exception {
+		NonSparseToSparse toSparse = new NonSparseToSparse();
+		toSparse.setInputFormat(randDiabetesData);
+		Instances sparseData = Filter.useFilter(randDiabetesData, toSparse);
+		sparseData.setClassIndex(sparseData.numAttributes() - 1);
+
+		final List<Instance> synthetic = Collections.synchronizedList(new ArrayList<Instance>());
+		LazySMOTEForest forest = new LazySMOTEForest() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected Instance synthetic(int number, Random random) {
+				Instance instance = super.synthetic(number, random);
+				synthetic.add(instance);
+				return instance;
+			}
+		};
+		forest.setNumIterations(5);
+		forest.buildClassifier(sparseData);
+
+		// sparse data gives sparse synthetic instances between the minority instances
+		double[] min = new double[sparseData.numAttributes()];
+		double[] max = new double[sparseData.numAttributes()];
+		Arrays.fill(min, Double.MAX_VALUE);
+		Arrays.fill(max, -Double.MAX_VALUE);
+		for (Instance instance : sparseData) {
+			if (instance.classValue() != 1)
+				continue;
+			for (int a = 0; a < sparseData.numAttributes(); a++) {
+				min[a] = Math.min(min[a], instance.value(a));
+				max[a] = Math.max(max[a], instance.value(a));
+			}
+		}
+		assertThat(synthetic.size(), Matchers.greaterThan(0));
+		for (Instance instance : synthetic) {
+			assertTrue(instance instanceof SparseInstance);
+			assertEquals(1.0, instance.value(sparseData.classIndex()), 0.0);
+			for (int a = 0; a < sparseData.numAttributes(); a++) {
+				assertThat(instance.value(a), Matchers.greaterThanOrEqualTo(min[a]));
+				assertThat(instance.value(a), Matchers.lessThanOrEqualTo(max[a]));
+			}
+		}
+
+		Evaluation eval = new Evaluation(sparseData);
+		eval.evaluateModel(forest, sparseData);
+		assertThat(eval.areaUnderROC(1), Matchers.greaterThan(0.8));
+	}
+
+	@Test
+	public void allocationFreeScoringTest() throws Exception {
+
+		HyperSMURF hyperSMURF = new HyperSMURF();
+		hyperSMURF.setNumIterations(3);
+		hyperSMURF.buildClassifier(randDiabetesData);
+
+		// missing values are passed down all branches of a split
+		Instances testData = new Instances(randDiabetesData);
+		for (int i = 0; i < testData.numInstances(); i += 3)
+			testData.instance(i).setMissing(i % (testData.numAttributes() - 1));
+
+		double[] dist = new double[testData.numClasses()];
+		for (Instance instance : testData) {
+			double[] expected = new double[testData.numClasses()];
+			for (Classifier classifier : hyperSMURF.getPartitionClassifiers()) {
+				double[] partition = classifier.distributionForInstance(instance);
+				for (int j = 0; j < expected.length; j++)
+					expected[j] += partition[j];
+			}
+			Utils.normalize(expected);
+			assertArrayEquals(expected, hyperSMURF.distributionForInstance(instance, dist), 0.0);
+		}
+
+		com.sun.management.ThreadMXBean threads;
+		try {
+			threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		} catch (ClassCastException e) {
+			threads = null;
+		}
+		Assume.assumeTrue(threads != null && threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+		for (int round = 0; round < 50; round++)
+			for (Instance instance : testData)
+				hyperSMURF.distributionForInstance(instance, dist);
+		long threadId = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(threadId);
+		for (int round = 0; round < 100; round++)
+			for (int i = 0; i < testData.numInstances(); i++)
+				hyperSMURF.distributionForInstance(testData.instance(i), dist);
+		long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+		// a few bytes for the measurement itself, less than one per 100 calls
+		assertThat(allocated, Matchers.lessThan((long) testData.numInstances()));
+	}
+
+	@Test
+	public void flatTreeTest() throws Exception {
+
+		PartitionForest forest = new PartitionForest();
+		forest.setNumIterations(5);
+		forest.buildClassifier(randDiabetesData);
+
+		Instances testData = new Instances(randDiabetesData);
+		for (int i = 0; i < testData.numInstances(); i += 3)
+			testData.instance(i).setMissing(i % (testData.numAttributes() - 1));
+
+		// the flat trees score exactly like the trees
+		for (int t = 0; t < forest.getNumTrees(); t++) {
+			RandomTree tree = (RandomTree) forest.getTree(t);
+			FlatTree flatTree = FlatTree.read(tree);
+			assertEquals(tree.numElements(), flatTree.numNodes());
+			for (Instance instance : testData)
+				assertArrayEquals(tree.distributionForInstance(instance), flatTree.scratchDistribution(instance), 0.0);
+		}
+
+		// trees that cannot be read score through the public API of RandomTree
+		double[][] expected = new double[testData.numInstances()][];
+		for (int i = 0; i < testData.numInstances(); i++)
+			expected[i] = forest.distributionForInstance(testData.instance(i), new double[testData.numClasses()]);
+		forest.m_FlatTrees = new FlatTree[forest.getNumTrees()];
+		for (int i = 0; i < testData.numInstances(); i++)
+			assertArrayEquals(expected[i],
+					forest.distributionForInstance(testData.instance(i), new double[testData.numClasses()]), 0.0);
+	}
+
+	@Test
+	public void batchScoringTest() throws Exception {
+
+		// numeric and nominal splits, missing values are passed down all branches
+		for (Instances data : new Instances[] { randDiabetesData, randGeneratedImbalancedBinData }) {
+			PartitionForest forest = new PartitionForest();
+			forest.setNumIterations(10);
+			forest.buildClassifier(data);
+
+			Instances testData = new Instances(data);
+			for (int i = 0; i < testData.numInstances(); i += 3)
+				testData.instance(i).setMissing(i % (testData.numAttributes() - 1));
+
+			double[][] distributions = forest.distributionsForInstances(testData);
+			for (int i = 0; i < testData.numInstances(); i++)
+				assertArrayEquals(forest.distributionForInstance(testData.instance(i)), distributions[i], 1e-12);
+
+			// sparse instances are scored one by one
+			Instances sparseData = new Instances(testData, testData.numInstances());
+			for (Instance instance : testData)
+				sparseData.add(new SparseInstance(instance));
+			distributions = forest.distributionsForInstances(sparseData);
+			for (int i = 0; i < testData.numInstances(); i++)
+				assertArrayEquals(forest.distributionForInstance(testData.instance(i)), distributions[i], 1e-12);
+		}
+	}
+
+	@Test
+	public void presortTest() throws Exception {
+
+		// the same trees as on the bootstrap samples, for all ways of sampling
+		for (Instances data : new Instances[] { randDiabetesData, randGeneratedImbalancedBinData }) {
+			for (String[] options : new String[][] { {}, { "-P", "50" }, { "-O" }, { "-depth", "4", "-num-slots", "3" },
+					{ "-attribute-importance" } }) {
+				PartitionForest presorted = buildForest(data, options, true);
+				PartitionForest sampled = buildForest(data, options, false);
+				for (int i = 0; i < presorted.getNumTrees(); i++) {
+					assertTrue(presorted.getTree(i) instanceof PresortedRandomTree);
+					assertEquals(sampled.getTree(i).toString(), presorted.getTree(i).toString());
+					double[][] expected = ((RandomTree) sampled.getTree(i)).getImpurityDecreases();
+					double[][] actual = ((RandomTree) presorted.getTree(i)).getImpurityDecreases();
+					for (int j = 0; expected != null && j < expected.length; j++)
+						assertArrayEquals(expected[j], actual[j], 1e-9);
+				}
+				double[][] expected = sampled.distributionsForInstances(data);
+				double[][] actual = presorted.distributionsForInstances(data);
+				for (int i = 0; i < data.numInstances(); i++)
+					assertArrayEquals(expected[i], actual[i], 0.0);
+			}
+		}
+
+		// missing values are distributed over the branches, up to rounding of the fractional weights
+		Instances missingData = new Instances(randDiabetesData);
+		for (int i = 0; i < missingData.numInstances(); i += 3)
+			missingData.instance(i).setMissing(i % (missingData.numAttributes() - 1));
+		double[][] expected = buildForest(missingData, new String[0], false).distributionsForInstances(missingData);
+		double[][] actual = buildForest(missingData, new String[0], true).distributionsForInstances(missingData);
+		int numDifferent = 0;
+		for (int i = 0; i < missingData.numInstances(); i++)
+			if (Math.abs(expected[i][1] - actual[i][1]) > 1e-6)
+				numDifferent++;
+		assertThat(numDifferent, Matchers.lessThan(missingData.numInstances() / 20));
+
+		// sparse data stays sparse, its trees are built on their samples
+		NonSparseToSparse toSparse = new NonSparseToSparse();
+		toSparse.setInputFormat(randDiabetesData);
+		Instances sparseData = Filter.useFilter(randDiabetesData, toSparse);
+		assertEquals(RandomTree.class, buildForest(sparseData, new String[0], true).getTree(0).getClass());
+	}
+
+	private static PartitionForest buildForest(Instances data, String[] options, boolean presort) throws Exception {
+		PartitionForest forest = new PartitionForest();
+		forest.setOptions(options.clone());
+		forest.setNumIterations(10);
+		forest.setPresort(presort);
+		forest.buildClassifier(data);
+		return forest;
+	}
+
+	@Test
+	public void matrixTest() throws Exception {
+		int numRows = randDiabetesData.numInstances();
+		int numFeatures = randDiabetesData.numAttributes() - 1;
+		double[] features = new double[numRows * numFeatures];
+		float[] floatFeatures = new float[features.length];
+		int[] labels = new int[numRows];
+		Instances matrixData = HyperSMURF.getMatrixHeader(numFeatures);
+		for (int row = 0; row < numRows; row++) {
+			for (int i = 0; i < numFeatures; i++) {
+				features[i * numRows + row] = randDiabetesData.instance(row).value(i);
+				floatFeatures[i * numRows + row] = (float) features[i * numRows + row];
+			}
+			labels[row] = (int) randDiabetesData.instance(row).classValue();
+			matrixData.add(new DenseInstance(1.0, randDiabetesData.instance(row).toDoubleArray()));
+		}
+
+		// the same model as one trained on the instances
+		String[] options = { "-I", "3" };
+		HyperSMURF hyperSMURF = HyperSMURF.train(features, labels, options);
+		HyperSMURF expected = new HyperSMURF();
+		expected.setOptions(options.clone());
+		expected.buildClassifier(matrixData);
+		double[] scores = HyperSMURF.score(hyperSMURF, features, numRows);
+		for (int row = 0; row < numRows; row++)
+			assertEquals(expected.distributionForInstance(matrixData.instance(row))[1], scores[row], 0.0);
+
+		// trees without a flat form and other classifiers score the rows on a refilled instance
+		new HyperSMURFCompactor().compact(hyperSMURF, matrixData);
+		double[][] distributions = hyperSMURF.distributionsForInstances(matrixData);
+		scores = HyperSMURF.score(hyperSMURF, features, numRows);
+		for (int row = 0; row < numRows; row++)
+			assertEquals(distributions[row][1], scores[row], 0.0);
+		J48 j48 = new J48();
+		j48.buildClassifier(matrixData);
+		scores = HyperSMURF.score(j48, features, numRows);
+		for (int row = 0; row < numRows; row++)
+			assertEquals(j48.distributionForInstance(matrixData.instance(row))[1], scores[row], 0.0);
+
+		// float32 matrices are scored like their double values
+		hyperSMURF = HyperSMURF.train(floatFeatures, labels, null);
+		double[] floatsAsDoubles = new double[floatFeatures.length];
+		for (int i = 0; i < floatFeatures.length; i++)
+			floatsAsDoubles[i] = floatFeatures[i];
+		assertArrayEquals(HyperSMURF.score(hyperSMURF, floatsAsDoubles, numRows),
+				HyperSMURF.score(hyperSMURF, floatFeatures, numRows), 0.0);
+	}
+
 }
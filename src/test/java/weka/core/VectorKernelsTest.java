@@ -0,0 +1,51 @@
+package weka.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class VectorKernelsTest {
+
+	@Test
+	public void scalarTest() throws Exception {
+		VectorKernels kernels = new VectorKernels();
+		double[] a = { 1, 2, Double.NaN, 4, 5 };
+		double[] b = { 2, 0, 3, Double.NaN, 5 };
+		// the missing coordinates are ignored
+		assertEquals(5.0, kernels.squaredDistance(a, b, 5), 0.0);
+		assertEquals(1.0, kernels.squaredDistance(a, b, 1), 0.0);
+
+		boolean[] less = new boolean[5];
+		assertEquals(2, kernels.lessThan(a, 5, 3.0, less));
+		assertArrayEquals(new boolean[] { true, true, false, false, false }, less);
+	}
+
+	@Test
+	public void instanceTest() throws Exception {
+		// the Vector API implementation, if it is loaded, gives the scalar results bit for bit for any block length
+		VectorKernels scalar = new VectorKernels();
+		VectorKernels kernels = VectorKernels.getInstance();
+		Random random = new Random(42);
+		for (int length = 0; length < 300; length++) {
+			double[] a = new double[length];
+			double[] b = new double[length];
+			for (int i = 0; i < length; i++) {
+				// magnitudes far apart, so a different order of the additions would change the rounding
+				double scale = Math.pow(10, random.nextInt(12) - 6);
+				a[i] = random.nextInt(10) == 0 ? Double.NaN : scale * random.nextGaussian();
+				b[i] = scale * random.nextGaussian();
+			}
+			assertEquals(Double.doubleToRawLongBits(scalar.squaredDistance(a, b, length)),
+					Double.doubleToRawLongBits(kernels.squaredDistance(a, b, length)));
+
+			boolean[] expected = new boolean[length];
+			boolean[] less = new boolean[length];
+			assertEquals(scalar.lessThan(a, length, 0.1, expected), kernels.lessThan(a, length, 0.1, less));
+			assertArrayEquals(expected, less);
+		}
+	}
+
+}
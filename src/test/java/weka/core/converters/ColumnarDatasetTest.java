@@ -0,0 +1,94 @@
+package weka.core.converters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.io.Resources;
+
+import weka.core.Instances;
+import weka.core.Utils;
+
+public class ColumnarDatasetTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Instances diabetesData;
+	private String diabetesFile = "diabetes.arff.gz";
+
+	@Before
+	public void setUp() throws Exception {
+		File file = new File(Resources.getResource(diabetesFile).getPath());
+		GZIPInputStream in = new GZIPInputStream(new FileInputStream(file));
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+		diabetesData = new Instances(reader);
+		in.close();
+		reader.close();
+		diabetesData.setClassIndex(diabetesData.numAttributes() - 1);
+		// a missing value in a numeric and in the class column
+		diabetesData.instance(0).setMissing(0);
+		diabetesData.instance(1).setClassMissing();
+	}
+
+	@Test
+	public void batchTest() throws Exception {
+		File file = folder.newFile("diabetes.hsc");
+		ColumnarSaver saver = new ColumnarSaver();
+		saver.setInstances(diabetesData);
+		saver.setFile(file);
+		saver.writeBatch();
+
+		ColumnarLoader loader = new ColumnarLoader();
+		loader.setFile(file);
+		Instances data = loader.getDataSet();
+		assertTrue(diabetesData.equalHeaders(data));
+		assertEquals(diabetesData.classIndex(), data.classIndex());
+		assertValues(diabetesData, data, 0.0);
+		loader.getDataset().close();
+	}
+
+	@Test
+	public void incrementalFloat32Test() throws Exception {
+		File arff = folder.newFile("diabetes.arff");
+		ArffSaver arffSaver = new ArffSaver();
+		arffSaver.setInstances(diabetesData);
+		arffSaver.setFile(arff);
+		arffSaver.writeBatch();
+
+		File file = folder.newFile("diabetes.hsc");
+		ColumnarSaver.convert(arff.getPath(), file, "last", true);
+
+		ColumnarDataset dataset = ColumnarDataset.open(file);
+		assertEquals(diabetesData.numInstances(), dataset.numInstances());
+		assertEquals(ColumnarDataset.TYPE_FLOAT32, dataset.getType(0));
+		assertEquals(ColumnarDataset.TYPE_INT32, dataset.getType(diabetesData.classIndex()));
+		assertValues(diabetesData, dataset.getInstances(), 1e-4);
+		assertTrue(Utils.isMissingValue(dataset.value(0, 0)));
+		dataset.close();
+	}
+
+	private static void assertValues(Instances expected, Instances actual, double delta) {
+		assertEquals(expected.numInstances(), actual.numInstances());
+		for (int i = 0; i < expected.numInstances(); i++) {
+			for (int j = 0; j < expected.numAttributes(); j++) {
+				double value = expected.instance(i).value(j);
+				if (Utils.isMissingValue(value))
+					assertTrue(actual.instance(i).isMissing(j));
+				else
+					assertEquals(value, actual.instance(i).value(j), delta * Math.max(1, Math.abs(value)));
+			}
+		}
+	}
+
+}
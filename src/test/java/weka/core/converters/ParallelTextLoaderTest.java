@@ -0,0 +1,146 @@
+package weka.core.converters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.hamcrest.Matchers;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.io.Resources;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+import weka.filters.Filter;
+import weka.filters.unsupervised.instance.NonSparseToSparse;
+
+public class ParallelTextLoaderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Instances diabetesData;
+	private String diabetesFile = "diabetes.arff.gz";
+
+	@Before
+	public void setUp() throws Exception {
+		File file = new File(Resources.getResource(diabetesFile).getPath());
+		GZIPInputStream in = new GZIPInputStream(new FileInputStream(file));
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+		diabetesData = new Instances(reader);
+		in.close();
+		reader.close();
+		diabetesData.instance(0).setMissing(0);
+		diabetesData.instance(1).setWeight(2.5);
+	}
+
+	@Test
+	public void arffTest() throws Exception {
+		File file = write(diabetesData, "diabetes.arff.gz");
+		Instances data = newLoader(file).getDataSet();
+		assertTrue(diabetesData.equalHeaders(data));
+		assertInstances(diabetesData, data);
+
+		// incremental
+		ParallelTextLoader loader = newLoader(file);
+		Instances structure = loader.getStructure();
+		Instances incremental = new Instances(structure, 0);
+		Instance instance;
+		while ((instance = loader.getNextInstance(structure)) != null)
+			incremental.add(instance);
+		assertInstances(diabetesData, incremental);
+	}
+
+	@Test
+	public void sparseTest() throws Exception {
+		NonSparseToSparse toSparse = new NonSparseToSparse();
+		toSparse.setInputFormat(diabetesData);
+		Instances sparseData = Filter.useFilter(diabetesData, toSparse);
+		sparseData.instance(1).setWeight(2.5);
+
+		Instances data = newLoader(write(sparseData, "sparse.arff")).getDataSet();
+		assertTrue(data.instance(0) instanceof SparseInstance);
+		assertInstances(sparseData, data);
+	}
+
+	@Test
+	public void csvTest() throws Exception {
+		File file = folder.newFile("diabetes.csv");
+		CSVSaver saver = new CSVSaver();
+		saver.setInstances(diabetesData);
+		saver.setFile(file);
+		saver.writeBatch();
+
+		ParallelTextLoader loader = newLoader(file);
+		Instances data = loader.getDataSet();
+		assertEquals(diabetesData.numInstances(), data.numInstances());
+		assertEquals(diabetesData.numAttributes(), data.numAttributes());
+		assertTrue(data.attribute(data.numAttributes() - 1).isNominal());
+		for (int i = 0; i < diabetesData.numInstances(); i++)
+			for (int j = 0; j < diabetesData.numAttributes(); j++)
+				assertEquals(diabetesData.instance(i).toString(j), data.instance(i).toString(j));
+	}
+
+	@Test
+	public void errorTest() throws Exception {
+		File file = folder.newFile("broken.arff");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file));
+		String header = new Instances(diabetesData, 0).toString().trim() + "\n";
+		writer.write(header);
+		for (int i = 0; i < 100; i++)
+			writer.write(diabetesData.instance(i + 2).toString() + "\n");
+		writer.write("1,2,3,4,5,6,7,8,maybe\n");
+		writer.close();
+		int headerLines = header.split("\n").length;
+
+		try {
+			newLoader(file).getDataSet();
+			fail("The undeclared nominal value has not been detected");
+		} catch (IOException e) {
+			assertThat(e.getMessage(), Matchers.startsWith("Line " + (headerLines + 101) + ":"));
+			assertThat(e.getMessage(), Matchers.containsString("maybe"));
+		}
+	}
+
+	private File write(Instances data, String name) throws Exception {
+		File file = folder.newFile(name);
+		Writer writer = new OutputStreamWriter(name.endsWith(".gz") ? new GZIPOutputStream(new FileOutputStream(file))
+				: new FileOutputStream(file));
+		writer.write(data.toString());
+		writer.close();
+		return file;
+	}
+
+	private static ParallelTextLoader newLoader(File file) throws Exception {
+		ParallelTextLoader loader = new ParallelTextLoader();
+		// small chunks, so that the data set is parsed by several threads
+		loader.setOptions(new String[] { "-num-slots", "3", "-chunk-size", "1" });
+		loader.setSource(file);
+		return loader;
+	}
+
+	private static void assertInstances(Instances expected, Instances actual) {
+		assertEquals(expected.numInstances(), actual.numInstances());
+		for (int i = 0; i < expected.numInstances(); i++) {
+			assertEquals(expected.instance(i).toString(), actual.instance(i).toString());
+			assertEquals(expected.instance(i).weight(), actual.instance(i).weight(), 0.0);
+		}
+	}
+
+}
@@ -0,0 +1,73 @@
+package weka.datagenerators.classifiers.classification;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+
+import org.hamcrest.Matchers;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import weka.core.Instances;
+import weka.core.converters.ColumnarDataset;
+
+public class ImbalancedDataGeneratorTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void generateTest() throws Exception {
+		Instances data = generate(1);
+		assertEquals(5000, data.numInstances());
+		assertEquals(9, data.numAttributes());
+		assertEquals(50, data.attributeStats(data.classIndex()).nominalCounts[1]);
+
+		// the positives are shifted on the informative features only
+		double[] positiveMeans = new double[data.numAttributes() - 1];
+		double[] negativeMeans = new double[data.numAttributes() - 1];
+		for (int j = 0; j < positiveMeans.length; j++) {
+			for (int i = 0; i < data.numInstances(); i++) {
+				if (data.instance(i).classValue() == 1)
+					positiveMeans[j] += data.instance(i).value(j) / 50;
+				else
+					negativeMeans[j] += data.instance(i).value(j) / 4950;
+			}
+			assertEquals(j < 3 ? 1 : 0, positiveMeans[j], j < 3 ? 0.1 : 0.5);
+			assertEquals(0, negativeMeans[j], 0.1);
+		}
+
+		// seeded
+		Instances again = generate(1);
+		for (int i = 0; i < data.numInstances(); i++)
+			assertArrayEquals(data.instance(i).toDoubleArray(), again.instance(i).toDoubleArray(), 0.0);
+		assertThat(generate(2).instance(0).value(0), Matchers.not(data.instance(0).value(0)));
+
+		// streamed to a columnar file
+		File file = folder.newFile("imbalanced" + ColumnarDataset.FILE_EXTENSION);
+		newGenerator(1).generateColumnar(file, false);
+		ColumnarDataset dataset = ColumnarDataset.open(file);
+		Instances columnar = dataset.getInstances();
+		dataset.close();
+		assertEquals(data.classIndex(), columnar.classIndex());
+		for (int i = 0; i < data.numInstances(); i++)
+			assertArrayEquals(data.instance(i).toDoubleArray(), columnar.instance(i).toDoubleArray(), 0.0);
+	}
+
+	private static ImbalancedDataGenerator newGenerator(int seed) throws Exception {
+		ImbalancedDataGenerator generator = new ImbalancedDataGenerator();
+		generator.setOptions(new String[] { "-n", "5000", "-P", "50", "-a", "8", "-inf", "3", "-sd", "0.2", "-S",
+				"" + seed });
+		return generator;
+	}
+
+	private static Instances generate(int seed) throws Exception {
+		ImbalancedDataGenerator generator = newGenerator(seed);
+		generator.setDatasetFormat(generator.defineDataFormat());
+		return generator.generateExamples();
+	}
+
+}
@@ -0,0 +1,109 @@
+package weka.filters.supervised.instance;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.zip.GZIPInputStream;
+
+import org.hamcrest.Matchers;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Resources;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+import weka.filters.Filter;
+import weka.filters.unsupervised.instance.NonSparseToSparse;
+
+public class SparseSMOTETest {
+
+	private Instances diabetesData;
+	private String diabetesFile = "diabetes.arff.gz";
+
+	@Before
+	public void setUp() throws Exception {
+		File file = new File(Resources.getResource(diabetesFile).getPath());
+		GZIPInputStream in = new GZIPInputStream(new FileInputStream(file));
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+		diabetesData = new Instances(reader);
+		in.close();
+		reader.close();
+		diabetesData.setClassIndex(diabetesData.numAttributes() - 1);
+	}
+
+	@Test
+	public void denseTest() throws Exception {
+		SMOTE smote = new SMOTE();
+		smote.setInputFormat(diabetesData);
+		Instances expected = Filter.useFilter(diabetesData, smote);
+
+		SparseSMOTE sparseSMOTE = new SparseSMOTE();
+		sparseSMOTE.setInputFormat(diabetesData);
+		Instances actual = Filter.useFilter(diabetesData, sparseSMOTE);
+
+		assertEquals(expected.numInstances(), actual.numInstances());
+		for (int i = 0; i < expected.numInstances(); i++)
+			assertArrayEquals(expected.instance(i).toDoubleArray(), actual.instance(i).toDoubleArray(), 0.0);
+	}
+
+	@Test
+	public void sparseTest() throws Exception {
+		NonSparseToSparse toSparse = new NonSparseToSparse();
+		toSparse.setInputFormat(diabetesData);
+		Instances sparseData = Filter.useFilter(diabetesData, toSparse);
+		sparseData.setClassIndex(sparseData.numAttributes() - 1);
+
+		SparseSMOTE sparseSMOTE = new SparseSMOTE();
+		sparseSMOTE.setNearestNeighbors(1);
+		sparseSMOTE.setInputFormat(sparseData);
+		Instances smoted = Filter.useFilter(sparseData, sparseSMOTE);
+
+		Instances minority = new Instances(diabetesData, 0);
+		for (Instance instance : diabetesData)
+			if (instance.classValue() == 1)
+				minority.add(instance);
+		assertEquals(diabetesData.numInstances() + minority.numInstances(), smoted.numInstances());
+
+		// with 100% and one neighbour each minority instance gets one synthetic instance between it and its neighbour
+		for (int i = 0; i < minority.numInstances(); i++) {
+			Instance synthetic = smoted.instance(diabetesData.numInstances() + i);
+			assertTrue(synthetic instanceof SparseInstance);
+			assertEquals(1.0, synthetic.classValue(), 0.0);
+			Instance instance = minority.instance(i);
+			Instance neighbor = minority.instance(nearestNeighbor(minority, i));
+			for (int a = 0; a < minority.numAttributes() - 1; a++) {
+				double low = Math.min(instance.value(a), neighbor.value(a));
+				double high = Math.max(instance.value(a), neighbor.value(a));
+				assertThat(synthetic.value(a), Matchers.greaterThanOrEqualTo(low));
+				assertThat(synthetic.value(a), Matchers.lessThanOrEqualTo(high));
+			}
+		}
+	}
+
+	private static int nearestNeighbor(Instances data, int i) {
+		int nearest = -1;
+		double min = Double.POSITIVE_INFINITY;
+		for (int j = 0; j < data.numInstances(); j++) {
+			if (i == j)
+				continue;
+			double distance = 0;
+			for (int a = 0; a < data.numAttributes() - 1; a++)
+				distance += Math.pow(data.instance(i).value(a) - data.instance(j).value(a), 2);
+			distance = Math.sqrt(distance);
+			if (distance < min) {
+				min = distance;
+				nearest = j;
+			}
+		}
+		return nearest;
+	}
+
+}